@@ -0,0 +1,115 @@
+/**
+ *  foscamRecorder - http://github.com/TheBigS
+ *  Copyright (C) 2012
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *   any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.thebigs.foscam.recorder;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Minimal harness for the main()-based benchmarks: warms an operation up,
+ * runs it for a fixed time on the calling thread and reports throughput,
+ * time per frame, bytes allocated per frame, allocation rate and GC
+ * activity, like JMH's GC profiler does. Results can also be appended to a
+ * CSV file to compare releases.
+ */
+public class BenchmarkRunner {
+
+	/**
+	 * One benchmark invocation.
+	 */
+	public interface Operation {
+		/**
+		 * @return the number of frames processed
+		 */
+		int run() throws Exception;
+	}
+
+	private final long warmUpMillis;
+	private final long measureMillis;
+	private final PrintWriter csv;
+
+	/**
+	 * @param csvFile file results are appended to, or null
+	 */
+	public BenchmarkRunner(long warmUpMillis, long measureMillis, String csvFile) throws IOException {
+		super();
+		this.warmUpMillis = warmUpMillis;
+		this.measureMillis = measureMillis;
+		this.csv = csvFile == null ? null : new PrintWriter(new FileWriter(csvFile, true));
+		System.out.printf("%-28s %-10s %12s %12s %14s %10s %8s%n",
+				"benchmark", "fixture", "frames/s", "us/frame", "bytes/frame", "alloc MB/s", "gc ms");
+	}
+
+	public void measure(String benchmark, String fixture, Operation operation) {
+		try {
+			loop(operation, warmUpMillis);
+
+			com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+			long threadId = Thread.currentThread().getId();
+			long gcBefore = gcMillis();
+			long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+			long start = System.nanoTime();
+			long frames = loop(operation, measureMillis);
+			long elapsed = System.nanoTime() - start;
+			long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+			long gc = gcMillis() - gcBefore;
+
+			double framesPerSec = frames / (elapsed / 1e9);
+			double usPerFrame = elapsed / 1e3 / frames;
+			double bytesPerFrame = (double) allocated / frames;
+			double allocMbPerSec = allocated / 1024.0 / 1024.0 / (elapsed / 1e9);
+			System.out.printf("%-28s %-10s %12.1f %12.1f %14.0f %10.1f %8d%n",
+					benchmark, fixture, framesPerSec, usPerFrame, bytesPerFrame, allocMbPerSec, gc);
+			if ( csv != null ) {
+				csv.printf("%d,%s,%s,%.1f,%.1f,%.0f,%.1f,%d%n", System.currentTimeMillis(), benchmark, fixture,
+						framesPerSec, usPerFrame, bytesPerFrame, allocMbPerSec, gc);
+				csv.flush();
+			}
+		} catch (Throwable e) {
+			// stages that need the Xuggler natives cannot run without them
+			System.out.printf("%-28s %-10s skipped: %s%n", benchmark, fixture, e);
+		}
+	}
+
+	public void close() {
+		if ( csv != null ) {
+			csv.close();
+		}
+	}
+
+	private static long loop(Operation operation, long millis) throws Exception {
+		long deadline = System.nanoTime() + millis * 1000000L;
+		long frames = 0;
+		do {
+			frames += operation.run();
+		} while ( System.nanoTime() < deadline );
+		return frames;
+	}
+
+	private static long gcMillis() {
+		long total = 0;
+		for ( GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans() ) {
+			total += Math.max(0, gc.getCollectionTime());
+		}
+		return total;
+	}
+}
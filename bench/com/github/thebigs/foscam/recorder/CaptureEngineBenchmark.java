@@ -0,0 +1,164 @@
+/**
+ *  foscamRecorder - http://github.com/TheBigS
+ *  Copyright (C) 2012
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *   any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.thebigs.foscam.recorder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load test of camera ingestion against a local {@link FakeCameraServer}:
+ * how thread count, heap and CPU grow with the number of streams, for the
+ * non-blocking {@link CaptureEngine} and for one blocking capture thread per
+ * camera as {@link Recorder#run()} does.
+ *
+ * usage: CaptureEngineBenchmark [nio|threads|both] [seconds] [streams,...]
+ */
+public class CaptureEngineBenchmark {
+	private static final int FPS = 5;
+	private static final int FRAME_BYTES = 30 * 1024;
+	private static final int CAPTURE_THREAD_STACK_SIZE = 256 * 1024;
+	private static final long WARM_UP_MS = 3000L;
+
+	public static void main(String[] args) throws Exception {
+		String mode = args.length > 0 ? args[0] : "both";
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		String[] counts = (args.length > 2 ? args[2] : "10,50,100,250,500").split(",");
+
+		System.out.printf("%-8s %8s %10s %10s %8s %10s %10s%n", "mode", "streams", "fps", "expected", "threads", "heap MB", "cpu %");
+		for ( String count : counts ) {
+			int streams = Integer.parseInt(count.trim());
+			if ( !mode.equals("threads") ) {
+				run(true, streams, seconds);
+			}
+			if ( !mode.equals("nio") ) {
+				run(false, streams, seconds);
+			}
+		}
+	}
+
+	private static void run(boolean nio, int streams, int seconds) throws Exception {
+		FakeCameraServer server = new FakeCameraServer(0, FPS, FRAME_BYTES);
+		server.start();
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		int baseThreads = threads.getThreadCount();
+
+		final AtomicLong frames = new AtomicLong();
+		CaptureEngine engine = null;
+		List<BlockingCapture> captures = new ArrayList<BlockingCapture>();
+		if ( nio ) {
+			engine = new CaptureEngine();
+			for ( int i = 0; i < streams; i++ ) {
+				engine.addStream(server.getUrl(), "cam" + i, new CaptureEngine.FrameHandler() {
+					@Override
+					public void onFrame(byte[] data, int offset, int length, long captureTimeMillis) {
+						frames.incrementAndGet();
+					}
+				});
+			}
+		}
+		else {
+			for ( int i = 0; i < streams; i++ ) {
+				BlockingCapture capture = new BlockingCapture(server.getUrl(), frames);
+				Thread thread = new Thread(null, capture, "Capture thread - cam" + i, CAPTURE_THREAD_STACK_SIZE);
+				thread.setDaemon(true);
+				capture.thread = thread;
+				captures.add(capture);
+				thread.start();
+			}
+		}
+
+		Thread.sleep(WARM_UP_MS);
+		com.sun.management.OperatingSystemMXBean os = (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+		long cpuBefore = os.getProcessCpuTime();
+		long framesBefore = frames.get();
+		long start = System.nanoTime();
+		Thread.sleep(seconds * 1000L);
+		long elapsed = System.nanoTime() - start;
+		double fps = (frames.get() - framesBefore) / (elapsed / 1e9);
+		double cpu = 100.0 * (os.getProcessCpuTime() - cpuBefore) / elapsed;
+		int captureThreads = threads.getThreadCount() - baseThreads;
+
+		MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		System.gc();
+		System.gc();
+		double heapMb = memory.getHeapMemoryUsage().getUsed() / 1024.0 / 1024.0;
+
+		System.out.printf("%-8s %8d %10.0f %10d %8d %10.1f %10.0f%n",
+				nio ? "nio" : "threads", streams, fps, streams * FPS, captureThreads, heapMb, cpu);
+
+		if ( engine != null ) {
+			engine.shutdown();
+		}
+		for ( BlockingCapture capture : captures ) {
+			capture.running = false;
+		}
+		server.stop();
+		for ( BlockingCapture capture : captures ) {
+			capture.thread.join(5000L);
+		}
+		System.gc();
+	}
+
+	/**
+	 * The blocking capture loop of {@link Recorder#run()}, minus the recording.
+	 */
+	private static class BlockingCapture implements Runnable {
+		private final String camUrl;
+		private final AtomicLong frames;
+		private volatile boolean running = true;
+		private Thread thread;
+
+		BlockingCapture(String camUrl, AtomicLong frames) {
+			this.camUrl = camUrl;
+			this.frames = frames;
+		}
+
+		@Override
+		public void run() {
+			try {
+				URLConnection urlc = new URL(camUrl).openConnection();
+				urlc.setUseCaches(false);
+				urlc.setConnectTimeout((int) CaptureEngine.DEFAULT_CONNECT_TIMEOUT_MS);
+				urlc.setReadTimeout((int) CaptureEngine.DEFAULT_READ_TIMEOUT_MS);
+				InputStream stream = urlc.getInputStream();
+				try {
+					MjpegStreamParser parser = new MjpegStreamParser(urlc.getContentType());
+					while ( running && parser.nextFrame(stream) >= 0 ) {
+						frames.incrementAndGet();
+					}
+				}
+				finally {
+					stream.close();
+				}
+			} catch (IOException e) {
+				if ( running ) {
+					System.err.println("Capture failed: " + e.getMessage());
+				}
+			}
+		}
+	}
+}
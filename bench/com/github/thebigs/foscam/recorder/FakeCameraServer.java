@@ -0,0 +1,419 @@
+/**
+ *  foscamRecorder - http://github.com/TheBigS
+ *  Copyright (C) 2012
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *   any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.thebigs.foscam.recorder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+/**
+ * Local stand-in for any number of Foscam cameras. Every connection gets a
+ * multipart/x-mixed-replace stream in the camera's '--ipcamera' framing,
+ * replaying fixture JPEGs at a fixed frame rate. One non-blocking thread
+ * serves all connections, so the server stays out of thread counts.
+ *
+ * A client that has not taken the previous frame yet skips the next one,
+ * like a real camera on a slow link.
+ *
+ * Faults can be injected, each as a fraction of the frames sent:
+ * <ul>
+ * <li>truncated: the part header promises the whole frame, half is sent</li>
+ * <li>wrong length: the Content-Length header is a quarter short</li>
+ * <li>stall: the stream goes quiet for the stall time</li>
+ * <li>disconnect: the connection is closed</li>
+ * </ul>
+ *
+ * usage: FakeCameraServer -h
+ */
+public class FakeCameraServer implements Runnable {
+	public static final String BOUNDARY = "ipcamera";
+	public static final long DEFAULT_STALL_MS = 3000L;
+
+	private static final byte[] RESPONSE_HEADER = ("HTTP/1.0 200 OK\r\n"
+			+ "Server: Fake camera\r\n"
+			+ "Content-Type: multipart/x-mixed-replace;boundary=" + BOUNDARY + "\r\n\r\n").getBytes();
+
+	private static class Client {
+		final SocketChannel channel;
+		ByteBuffer out = null;
+		boolean requestRead = false;
+		long nextFrameTime;
+		int frame;
+
+		Client(SocketChannel channel, long nextFrameTime, int frame) {
+			this.channel = channel;
+			this.nextFrameTime = nextFrameTime;
+			this.frame = frame;
+		}
+	}
+
+	private final ServerSocketChannel server;
+	private final Selector selector;
+	private final long frameIntervalMillis;
+	private final ByteBuffer[] parts;
+	private final ByteBuffer[] truncatedParts;
+	private final ByteBuffer[] wrongLengthParts;
+	private final List<Client> clients = new ArrayList<Client>();
+	private final Random random = new Random(1);
+
+	private volatile double truncatedRate = 0.0;
+	private volatile double wrongLengthRate = 0.0;
+	private volatile double stallRate = 0.0;
+	private volatile double disconnectRate = 0.0;
+	private volatile long stallMillis = DEFAULT_STALL_MS;
+
+	private volatile boolean running = true;
+	private volatile long framesSent = 0L;
+	private volatile long faultsInjected = 0L;
+	private volatile int connectionCount = 0;
+	private Thread thread;
+
+	/**
+	 * Serves one synthetic JPEG-shaped frame of frameBytes bytes.
+	 *
+	 * @param port port to listen on, 0 for any free port
+	 */
+	public FakeCameraServer(int port, int fps, int frameBytes) throws IOException {
+		this(port, fps, Collections.singletonList(createJpeg(frameBytes)));
+	}
+
+	/**
+	 * Replays the given JPEG frames in a loop.
+	 *
+	 * @param port port to listen on, 0 for any free port
+	 */
+	public FakeCameraServer(int port, int fps, List<byte[]> jpegs) throws IOException {
+		super();
+		if ( jpegs.isEmpty() ) {
+			throw new IllegalArgumentException("Fake camera needs at least one frame.");
+		}
+		this.frameIntervalMillis = 1000L / Math.max(1, fps);
+		this.parts = new ByteBuffer[jpegs.size()];
+		this.truncatedParts = new ByteBuffer[jpegs.size()];
+		this.wrongLengthParts = new ByteBuffer[jpegs.size()];
+		for ( int i = 0; i < jpegs.size(); i++ ) {
+			byte[] jpeg = jpegs.get(i);
+			parts[i] = ByteBuffer.wrap(createPart(jpeg, jpeg.length, jpeg.length));
+			truncatedParts[i] = ByteBuffer.wrap(createPart(jpeg, jpeg.length, jpeg.length / 2));
+			wrongLengthParts[i] = ByteBuffer.wrap(createPart(jpeg, jpeg.length - jpeg.length / 4, jpeg.length));
+		}
+		this.selector = Selector.open();
+		this.server = ServerSocketChannel.open();
+		server.socket().setReuseAddress(true);
+		server.socket().bind(new InetSocketAddress("127.0.0.1", port), 1024);
+		server.configureBlocking(false);
+		server.register(selector, SelectionKey.OP_ACCEPT);
+	}
+
+	/**
+	 * Sets the fraction (0-1) of frames that inject each fault.
+	 */
+	public void setFaults(double truncatedRate, double wrongLengthRate, double stallRate, double disconnectRate) {
+		this.truncatedRate = truncatedRate;
+		this.wrongLengthRate = wrongLengthRate;
+		this.stallRate = stallRate;
+		this.disconnectRate = disconnectRate;
+	}
+
+	public void setStallMillis(long stallMillis) {
+		this.stallMillis = stallMillis;
+	}
+
+	public int getPort() {
+		return server.socket().getLocalPort();
+	}
+
+	/**
+	 * @return the URL a camera client should connect to
+	 */
+	public String getUrl() {
+		return "http://127.0.0.1:" + getPort() + "/videostream.cgi?user=admin&pwd=";
+	}
+
+	public long getFramesSent() {
+		return framesSent;
+	}
+
+	public long getFaultsInjected() {
+		return faultsInjected;
+	}
+
+	public int getConnectionCount() {
+		return connectionCount;
+	}
+
+	public void start() {
+		thread = new Thread(this, "Fake camera server");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Closes every connection and the server socket.
+	 */
+	public void stop() throws InterruptedException {
+		running = false;
+		selector.wakeup();
+		if ( thread != null ) {
+			thread.join();
+		}
+	}
+
+	@Override
+	public void run() {
+		try {
+			while ( running ) {
+				selector.select(Math.max(1L, frameIntervalMillis / 10));
+				long now = System.currentTimeMillis();
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while ( keys.hasNext() ) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					try {
+						if ( key.isAcceptable() ) {
+							accept(now);
+						}
+						else if ( key.isReadable() ) {
+							read((Client) key.attachment(), key);
+						}
+						else if ( key.isWritable() ) {
+							write((Client) key.attachment(), key);
+						}
+					} catch (IOException e) {
+						if ( key.attachment() != null ) {
+							drop((Client) key.attachment(), key);
+						}
+					}
+				}
+				sendFrames(now);
+			}
+		} catch (IOException e) {
+			System.err.println("Fake camera server failed: " + e.getMessage());
+		}
+		finally {
+			for ( Client client : new ArrayList<Client>(clients) ) {
+				drop(client, client.channel.keyFor(selector));
+			}
+			try {
+				server.close();
+				selector.close();
+			} catch (IOException e) {
+				// shutting down anyway
+			}
+		}
+	}
+
+	private void accept(long now) throws IOException {
+		SocketChannel channel;
+		while ( (channel = server.accept()) != null ) {
+			channel.configureBlocking(false);
+			// spread clients over the frame interval like independent cameras
+			Client client = new Client(channel, now + random.nextInt((int) Math.max(1L, frameIntervalMillis)),
+					random.nextInt(parts.length));
+			channel.register(selector, SelectionKey.OP_READ, client);
+			clients.add(client);
+			connectionCount++;
+		}
+	}
+
+	private void read(Client client, SelectionKey key) throws IOException {
+		ByteBuffer request = ByteBuffer.allocate(1024);
+		if ( client.channel.read(request) < 0 ) {
+			throw new IOException("client closed");
+		}
+		if ( !client.requestRead ) {
+			// good enough for a simulator: the first read carries the whole GET request
+			client.requestRead = true;
+			client.out = ByteBuffer.wrap(RESPONSE_HEADER);
+			write(client, key);
+		}
+	}
+
+	private void write(Client client, SelectionKey key) throws IOException {
+		client.channel.write(client.out);
+		if ( client.out.hasRemaining() ) {
+			key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		}
+		else {
+			client.out = null;
+			key.interestOps(SelectionKey.OP_READ);
+		}
+	}
+
+	private void sendFrames(long now) {
+		for ( int i = clients.size() - 1; i >= 0; i-- ) {
+			Client client = clients.get(i);
+			if ( !client.requestRead || now < client.nextFrameTime ) {
+				continue;
+			}
+			client.nextFrameTime += frameIntervalMillis;
+			if ( client.nextFrameTime < now ) {
+				client.nextFrameTime = now + frameIntervalMillis;
+			}
+			if ( client.out != null ) {
+				continue; // still sending the previous frame, skip this one
+			}
+			SelectionKey key = client.channel.keyFor(selector);
+
+			double fault = random.nextDouble();
+			ByteBuffer[] source = parts;
+			if ( (fault -= disconnectRate) < 0 ) {
+				faultsInjected++;
+				drop(client, key);
+				continue;
+			}
+			if ( (fault -= stallRate) < 0 ) {
+				faultsInjected++;
+				client.nextFrameTime = now + stallMillis;
+				continue;
+			}
+			if ( (fault -= truncatedRate) < 0 ) {
+				faultsInjected++;
+				source = truncatedParts;
+			}
+			else if ( (fault -= wrongLengthRate) < 0 ) {
+				faultsInjected++;
+				source = wrongLengthParts;
+			}
+
+			client.out = source[client.frame].duplicate();
+			client.frame = (client.frame + 1) % parts.length;
+			try {
+				write(client, key);
+				framesSent++;
+			} catch (IOException e) {
+				drop(client, key);
+			}
+		}
+	}
+
+	private void drop(Client client, SelectionKey key) {
+		if ( key != null ) {
+			key.cancel();
+		}
+		try {
+			client.channel.close();
+		} catch (IOException e) {
+			// already gone
+		}
+		if ( clients.remove(client) ) {
+			connectionCount--;
+		}
+	}
+
+	/**
+	 * @return a JPEG-shaped frame of random bytes
+	 */
+	private static byte[] createJpeg(int frameBytes) {
+		byte[] jpeg = new byte[Math.max(4, frameBytes)];
+		new Random(7).nextBytes(jpeg);
+		jpeg[0] = (byte) 0xff;
+		jpeg[1] = (byte) 0xd8;
+		jpeg[jpeg.length - 2] = (byte) 0xff;
+		jpeg[jpeg.length - 1] = (byte) 0xd9;
+		return jpeg;
+	}
+
+	/**
+	 * @return one multipart part announcing contentLength bytes and carrying the first bodyLength bytes of the frame
+	 */
+	private static byte[] createPart(byte[] jpeg, int contentLength, int bodyLength) throws IOException {
+		ByteArrayOutputStream part = new ByteArrayOutputStream(bodyLength + 128);
+		part.write(("--" + BOUNDARY + "\r\nContent-Type: image/jpeg\r\nContent-Length: " + contentLength + "\r\n\r\n").getBytes());
+		part.write(jpeg, 0, bodyLength);
+		part.write("\r\n".getBytes());
+		return part.toByteArray();
+	}
+
+	// Command line app
+	public static void main(String[] args) throws Exception {
+		Options options = new Options();
+
+		options.addOption("p", true, "Port to listen on (Defaults to 8080).");
+		options.addOption("f", true, "Frames per second (Defaults to 5).");
+		options.addOption("r", true, "Resolution of the fixture to replay, e.g. 640x480 (Defaults to 640x480).");
+		options.addOption("i", true, "MJPEG capture to replay instead of a fixture.");
+		options.addOption("s", true, "Bytes per synthetic frame, instead of replaying a capture.");
+		options.addOption("t", true, "Percent of frames sent truncated.");
+		options.addOption("l", true, "Percent of frames sent with a wrong Content-Length.");
+		options.addOption("x", true, "Percent of frames followed by a stall.");
+		options.addOption("w", true, "Stall time in milliseconds (Defaults to " + DEFAULT_STALL_MS + ").");
+		options.addOption("d", true, "Percent of frames followed by a disconnect.");
+		options.addOption("h", false, "Print this help message.");
+
+		try {
+			CommandLine cli = new GnuParser().parse(options, args);
+			if ( cli.hasOption("h") ) {
+				HelpFormatter formatter = new HelpFormatter();
+				formatter.printHelp( "java -cp recorder.jar:bench " + FakeCameraServer.class.getName(), options );
+				System.exit(-1);
+			}
+
+			FakeCameraServer server = create(cli, Integer.parseInt(cli.getOptionValue("p", "8080")));
+			server.start();
+			System.out.println("Fake camera streaming at " + server.getUrl());
+			server.thread.join();
+		}
+		catch (ParseException e) {
+			System.err.println("Unable to parse command line options: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Builds a server from the frame and fault options shared with {@link RecorderLoadHarness}.
+	 */
+	static FakeCameraServer create(CommandLine cli, int port) throws IOException {
+		int fps = Integer.parseInt(cli.getOptionValue("f", "5"));
+		FakeCameraServer server;
+		if ( cli.hasOption("s") ) {
+			server = new FakeCameraServer(port, fps, Integer.parseInt(cli.getOptionValue("s")));
+		}
+		else {
+			File capture = cli.hasOption("i") ? new File(cli.getOptionValue("i"))
+					: Fixtures.forResolution(Fixtures.DEFAULT_DIR, cli.getOptionValue("r", "640x480"));
+			server = new FakeCameraServer(port, fps, Fixtures.frames(capture));
+		}
+		server.setFaults(percent(cli, "t"), percent(cli, "l"), percent(cli, "x"), percent(cli, "d"));
+		if ( cli.hasOption("w") ) {
+			server.setStallMillis(Long.parseLong(cli.getOptionValue("w")));
+		}
+		return server;
+	}
+
+	private static double percent(CommandLine cli, String option) {
+		return cli.hasOption(option) ? Double.parseDouble(cli.getOptionValue(option)) / 100.0 : 0.0;
+	}
+}
@@ -0,0 +1,80 @@
+/**
+ *  foscamRecorder - http://github.com/TheBigS
+ *  Copyright (C) 2012
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *   any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.thebigs.foscam.recorder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Access to the MJPEG fixture captures in bench/fixtures, see
+ * {@link MjpegFixtureGenerator}.
+ */
+public class Fixtures {
+	public static final String DEFAULT_DIR = "bench/fixtures";
+
+	/**
+	 * @param resolution 'widthxheight', such as '640x480'
+	 */
+	public static File forResolution(String dir, String resolution) {
+		return new File(dir, resolution + ".mjpeg");
+	}
+
+	public static byte[] read(File file) throws IOException {
+		byte[] data = new byte[(int) file.length()];
+		InputStream in = new FileInputStream(file);
+		try {
+			int read = 0;
+			while ( read < data.length ) {
+				int n = in.read(data, read, data.length - read);
+				if ( n < 0 ) {
+					throw new IOException("unexpected end of " + file);
+				}
+				read += n;
+			}
+		}
+		finally {
+			in.close();
+		}
+		return data;
+	}
+
+	/**
+	 * @return the JPEG frames of a multipart stream
+	 */
+	public static List<byte[]> frames(byte[] stream) throws IOException {
+		List<byte[]> frames = new ArrayList<byte[]>();
+		MjpegStreamParser parser = new MjpegStreamParser(null);
+		InputStream in = new ByteArrayInputStream(stream);
+		int length;
+		while ( (length = parser.nextFrame(in)) >= 0 ) {
+			frames.add(Arrays.copyOfRange(parser.getFrameData(), parser.getFrameOffset(), parser.getFrameOffset() + length));
+		}
+		return frames;
+	}
+
+	public static List<byte[]> frames(File file) throws IOException {
+		return frames(read(file));
+	}
+}
@@ -0,0 +1,127 @@
+/**
+ *  foscamRecorder - http://github.com/TheBigS
+ *  Copyright (C) 2012
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *   any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.thebigs.foscam.recorder;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+/**
+ * Writes the MJPEG fixture captures used by {@link PipelineBenchmark}: a
+ * short camera-like clip (gradient backdrop, sensor noise, a moving object
+ * and a timestamp overlay) at several resolutions, framed exactly like a
+ * Foscam multipart stream.
+ *
+ * usage: MjpegFixtureGenerator [outputDir] [frames]
+ */
+public class MjpegFixtureGenerator {
+	public static final int[][] RESOLUTIONS = { { 320, 240 }, { 640, 480 }, { 1280, 720 } };
+
+	private static final float JPEG_QUALITY = 0.7f;
+
+	public static void main(String[] args) throws IOException {
+		File dir = new File(args.length > 0 ? args[0] : Fixtures.DEFAULT_DIR);
+		int frames = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+		dir.mkdirs();
+		for ( int[] resolution : RESOLUTIONS ) {
+			File file = new File(dir, resolution[0] + "x" + resolution[1] + ".mjpeg");
+			OutputStream out = new FileOutputStream(file);
+			try {
+				Random random = new Random(resolution[0]);
+				for ( int i = 0; i < frames; i++ ) {
+					byte[] jpeg = encode(render(resolution[0], resolution[1], i, frames, random));
+					out.write(("--" + FakeCameraServer.BOUNDARY + "\r\nContent-Type: image/jpeg\r\nContent-Length: "
+							+ jpeg.length + "\r\n\r\n").getBytes());
+					out.write(jpeg);
+					out.write("\r\n".getBytes());
+				}
+			}
+			finally {
+				out.close();
+			}
+			System.out.println("Wrote " + file + " (" + file.length() / 1024 + " KB)");
+		}
+	}
+
+	private static BufferedImage render(int width, int height, int frame, int frames, Random random) {
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+		Graphics2D g = image.createGraphics();
+		g.setPaint(new GradientPaint(0, 0, new Color(70, 90, 110), width, height, new Color(150, 140, 120)));
+		g.fillRect(0, 0, width, height);
+
+		// a person-sized object crossing the scene
+		int x = width * frame / Math.max(1, frames);
+		g.setColor(new Color(40, 40, 50));
+		g.fillRect(x, height / 3, width / 12, height / 2);
+
+		g.setColor(Color.WHITE);
+		g.setFont(new Font(Font.MONOSPACED, Font.BOLD, Math.max(10, height / 30)));
+		g.drawString("2012-05-01 10:00:" + (10 + frame) + "  CAM1", 8, Math.max(12, height / 25));
+		g.dispose();
+
+		// sensor noise, so frames compress like real captures
+		for ( int i = 0; i < width * height / 8; i++ ) {
+			int px = random.nextInt(width);
+			int py = random.nextInt(height);
+			int rgb = image.getRGB(px, py);
+			int d = random.nextInt(17) - 8;
+			int r = clamp(((rgb >> 16) & 0xff) + d);
+			int gr = clamp(((rgb >> 8) & 0xff) + d);
+			int b = clamp((rgb & 0xff) + d);
+			image.setRGB(px, py, (r << 16) | (gr << 8) | b);
+		}
+		return image;
+	}
+
+	private static int clamp(int value) {
+		return Math.max(0, Math.min(255, value));
+	}
+
+	private static byte[] encode(BufferedImage image) throws IOException {
+		ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		MemoryCacheImageOutputStream out = new MemoryCacheImageOutputStream(bytes);
+		try {
+			writer.setOutput(out);
+			ImageWriteParam param = writer.getDefaultWriteParam();
+			param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+			param.setCompressionQuality(JPEG_QUALITY);
+			writer.write(null, new IIOImage(image, null, null), param);
+		}
+		finally {
+			out.close();
+			writer.dispose();
+		}
+		return bytes.toByteArray();
+	}
+}
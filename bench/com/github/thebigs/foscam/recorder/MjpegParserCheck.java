@@ -0,0 +1,268 @@
+/**
+ *  foscamRecorder - http://github.com/TheBigS
+ *  Copyright (C) 2012
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *   any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.thebigs.foscam.recorder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Drives {@link MjpegStreamParser} with the recorded streams in
+ * bench/fixtures, whole, split into random pieces, fed through
+ * {@link MjpegStreamParser#parseFrame()}, without or with wrong
+ * Content-Length headers and cut off mid part, and checks every frame
+ * against the parts of the stream. Also checks that a frame is returned as
+ * soon as its body has arrived, without waiting for the next part.
+ *
+ * Prints one line per check and exits with status 1 if any failed.
+ *
+ * usage: MjpegParserCheck [fixture dir]
+ */
+public class MjpegParserCheck {
+	private static final byte[] DELIMITER = ("--" + MjpegStreamParser.DEFAULT_BOUNDARY).getBytes();
+	private static final byte[] HEADER_END = "\r\n\r\n".getBytes();
+	private static final byte[] CONTENT_LENGTH = "Content-Length: ".getBytes();
+
+	private static int failures = 0;
+
+	/**
+	 * Hands out the stream in pieces of random size, as a socket would.
+	 */
+	private static class ChunkedInputStream extends InputStream {
+		private final byte[] data;
+		private final int end;
+		private final Random random;
+		private final int maxChunk;
+		private int pos = 0;
+
+		ChunkedInputStream(byte[] data, int end, long seed, int maxChunk) {
+			this.data = data;
+			this.end = end;
+			this.random = new Random(seed);
+			this.maxChunk = maxChunk;
+		}
+
+		@Override
+		public int read() throws IOException {
+			return pos < end ? data[pos++] & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if ( pos >= end ) {
+				return -1;
+			}
+			int n = Math.min(Math.min(len, end - pos), 1 + random.nextInt(maxChunk));
+			System.arraycopy(data, pos, b, off, n);
+			pos += n;
+			return n;
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		String dir = args.length > 0 ? args[0] : Fixtures.DEFAULT_DIR;
+		File[] fixtures = new File(dir).listFiles();
+		if ( fixtures == null || fixtures.length == 0 ) {
+			System.err.println("No fixtures in '" + dir + "', run MjpegFixtureGenerator first.");
+			System.exit(-1);
+		}
+		Arrays.sort(fixtures);
+		for ( File fixture : fixtures ) {
+			if ( !fixture.getName().endsWith(".mjpeg") ) {
+				continue;
+			}
+			byte[] stream = Fixtures.read(fixture);
+			List<byte[]> expected = parts(stream);
+			String name = fixture.getName();
+
+			check(name + " whole", expected, parseBlocking(stream, stream.length, 1L, stream.length));
+			check(name + " split", expected, parseBlocking(stream, stream.length, 2L, 1500));
+			check(name + " byte by byte", expected, parseBlocking(stream, stream.length, 3L, 1));
+			check(name + " fed", expected, parseFed(stream, 4L, 1500));
+			byte[] withoutLength = rewriteContentLength(stream, -1);
+			check(name + " no Content-Length", expected, parseBlocking(withoutLength, withoutLength.length, 5L, 1500));
+			byte[] shortLength = rewriteContentLength(stream, -10);
+			check(name + " short Content-Length", expected, parseBlocking(shortLength, shortLength.length, 6L, 1500));
+			byte[] longLength = rewriteContentLength(stream, 10);
+			check(name + " long Content-Length", expected, parseBlocking(longLength, longLength.length, 7L, 1500));
+
+			// cut in the middle of the last part's body: the earlier frames are intact
+			int lastBody = indexOf(stream, HEADER_END, lastIndexOf(stream, DELIMITER)) + HEADER_END.length;
+			int cut = lastBody + expected.get(expected.size() - 1).length / 2;
+			List<byte[]> complete = expected.subList(0, expected.size() - 1);
+			List<byte[]> truncated = parseBlocking(stream, cut, 8L, 1500);
+			check(name + " truncated", complete, truncated.subList(0, Math.min(truncated.size(), complete.size())));
+			check(name + " truncated fed", complete, parseFed(Arrays.copyOf(stream, cut), 9L, 1500));
+
+			checkNotHeldBack(name, stream, expected);
+		}
+		System.out.println(failures == 0 ? "PASS" : "FAIL: " + failures + " checks failed");
+		System.exit(failures == 0 ? 0 : 1);
+	}
+
+	/**
+	 * The stream ends right after the first part's line break, so the parser
+	 * only returns the first frame if it does not wait for the next delimiter.
+	 */
+	private static void checkNotHeldBack(String name, byte[] stream, List<byte[]> expected) throws IOException {
+		int firstBody = indexOf(stream, HEADER_END, 0) + HEADER_END.length;
+		int end = firstBody + expected.get(0).length + 2;
+		final boolean[] askedForMore = { false };
+		InputStream in = new ChunkedInputStream(stream, end, 10L, 1500) {
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				int n = super.read(b, off, len);
+				if ( n < 0 ) {
+					askedForMore[0] = true;
+				}
+				return n;
+			}
+		};
+		MjpegStreamParser parser = new MjpegStreamParser(null);
+		int length = parser.nextFrame(in);
+		boolean ok = length == expected.get(0).length && !askedForMore[0];
+		report(name + " not held back", ok, ok ? "" : "length " + length + ", waited for the next part: " + askedForMore[0]);
+	}
+
+	private static List<byte[]> parseBlocking(byte[] stream, int end, long seed, int maxChunk) throws IOException {
+		List<byte[]> frames = new ArrayList<byte[]>();
+		MjpegStreamParser parser = new MjpegStreamParser(null, 1024, MjpegStreamParser.DEFAULT_MAX_FRAME_SIZE);
+		InputStream in = new ChunkedInputStream(stream, end, seed, maxChunk);
+		int length;
+		while ( (length = parser.nextFrame(in)) >= 0 ) {
+			frames.add(copy(parser, length));
+		}
+		return frames;
+	}
+
+	private static List<byte[]> parseFed(byte[] stream, long seed, int maxChunk) throws IOException {
+		List<byte[]> frames = new ArrayList<byte[]>();
+		MjpegStreamParser parser = new MjpegStreamParser("multipart/x-mixed-replace;boundary=" + MjpegStreamParser.DEFAULT_BOUNDARY,
+				1024, MjpegStreamParser.DEFAULT_MAX_FRAME_SIZE);
+		Random random = new Random(seed);
+		int pos = 0;
+		while ( pos < stream.length ) {
+			int n = Math.min(stream.length - pos, 1 + random.nextInt(maxChunk));
+			parser.append(stream, pos, n);
+			pos += n;
+			int length;
+			while ( (length = parser.parseFrame()) >= 0 ) {
+				frames.add(copy(parser, length));
+			}
+		}
+		return frames;
+	}
+
+	private static byte[] copy(MjpegStreamParser parser, int length) {
+		return Arrays.copyOfRange(parser.getFrameData(), parser.getFrameOffset(), parser.getFrameOffset() + length);
+	}
+
+	/**
+	 * @return the bodies of the stream's parts, found from the delimiters
+	 *         rather than the Content-Length headers
+	 */
+	private static List<byte[]> parts(byte[] stream) {
+		List<byte[]> parts = new ArrayList<byte[]>();
+		int pos = indexOf(stream, DELIMITER, 0);
+		while ( pos >= 0 ) {
+			int bodyStart = indexOf(stream, HEADER_END, pos) + HEADER_END.length;
+			int next = indexOf(stream, DELIMITER, bodyStart);
+			int end = next < 0 ? stream.length : next;
+			while ( end > bodyStart && (stream[end - 1] == '\r' || stream[end - 1] == '\n') ) {
+				end--;
+			}
+			parts.add(Arrays.copyOfRange(stream, bodyStart, end));
+			pos = next;
+		}
+		return parts;
+	}
+
+	/**
+	 * @param delta added to every Content-Length, or -1 to drop the headers
+	 */
+	private static byte[] rewriteContentLength(byte[] stream, int delta) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(stream.length);
+		int pos = 0;
+		int header;
+		while ( (header = indexOf(stream, CONTENT_LENGTH, pos)) >= 0 ) {
+			int lineEnd = indexOf(stream, "\r\n".getBytes(), header);
+			out.write(stream, pos, header - pos);
+			if ( delta != -1 ) {
+				int length = Integer.parseInt(new String(stream, header + CONTENT_LENGTH.length, lineEnd - header - CONTENT_LENGTH.length));
+				byte[] line = ("Content-Length: " + (length + delta)).getBytes();
+				out.write(line, 0, line.length);
+				pos = lineEnd;
+			}
+			else {
+				pos = lineEnd + 2;
+			}
+		}
+		out.write(stream, pos, stream.length - pos);
+		return out.toByteArray();
+	}
+
+	private static void check(String name, List<byte[]> expected, List<byte[]> actual) {
+		if ( expected.size() != actual.size() ) {
+			report(name, false, "expected " + expected.size() + " frames, got " + actual.size());
+			return;
+		}
+		for ( int i = 0; i < expected.size(); i++ ) {
+			if ( !Arrays.equals(expected.get(i), actual.get(i)) ) {
+				report(name, false, "frame " + i + " differs, " + actual.get(i).length + " bytes instead of " + expected.get(i).length);
+				return;
+			}
+		}
+		report(name, true, expected.size() + " frames");
+	}
+
+	private static void report(String name, boolean ok, String detail) {
+		if ( !ok ) {
+			failures++;
+		}
+		System.out.printf("%-4s %-36s %s%n", ok ? "ok" : "FAIL", name, detail);
+	}
+
+	private static int indexOf(byte[] data, byte[] pattern, int from) {
+		outer:
+		for ( int i = from; i <= data.length - pattern.length; i++ ) {
+			for ( int j = 0; j < pattern.length; j++ ) {
+				if ( data[i + j] != pattern[j] ) {
+					continue outer;
+				}
+			}
+			return i;
+		}
+		return -1;
+	}
+
+	private static int lastIndexOf(byte[] data, byte[] pattern) {
+		int last = -1;
+		int pos;
+		while ( (pos = indexOf(data, pattern, last + 1)) >= 0 ) {
+			last = pos;
+		}
+		return last;
+	}
+}
@@ -0,0 +1,110 @@
+/**
+ *  foscamRecorder - http://github.com/TheBigS
+ *  Copyright (C) 2012
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *   any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.github.thebigs.foscam.recorder;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+/**
+ * Measures how many 640x480 frames per second {@link MotionDetector} handles
+ * on one core, and how much it allocates per frame.
+ *
+ * usage: MotionDetectorBenchmark [width] [height] [seconds]
+ */
+public class MotionDetectorBenchmark {
+	private static final int NUM_FRAMES = 64;
+	private static final int TARGET_FPS = 30;
+
+	public static void main(String[] args) {
+		int width = args.length > 0 ? Integer.parseInt(args[0]) : 640;
+		int height = args.length > 1 ? Integer.parseInt(args[1]) : 480;
+		int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+		byte[][] frames = createFrames(width, height);
+		MotionDetector detector = new MotionDetector();
+		detector.addExclusion(0, 0, 100, 5); // timestamp overlay
+
+		// warm up
+		run(detector, frames, width, height, 2000);
+
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
+		long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+		long start = System.nanoTime();
+		long[] result = run(detector, frames, width, height, seconds * 1000L);
+		long elapsed = System.nanoTime() - start;
+		long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+		long processed = result[0];
+		double fps = processed / (elapsed / 1e9);
+		System.out.printf("MotionDetector %dx%d: %d frames in %.2fs%n", width, height, processed, elapsed / 1e9);
+		System.out.printf("  %.0f fps, %.1f us/frame, %.1f bytes allocated/frame, motion in %d frames%n",
+				fps, elapsed / 1e3 / processed, (double) allocated / processed, result[1]);
+		System.out.println(fps >= TARGET_FPS ? "  PASS: keeps up with " + TARGET_FPS + " fps"
+				: "  FAIL: below " + TARGET_FPS + " fps");
+	}
+
+	private static long[] run(MotionDetector detector, byte[][] frames, int width, int height, long millis) {
+		long deadline = System.nanoTime() + millis * 1000000L;
+		long processed = 0;
+		long motion = 0;
+		while ( System.nanoTime() < deadline ) {
+			for ( int i = 0; i < frames.length; i++ ) {
+				if ( detector.detect(frames[i], 0, width, height, width) ) {
+					motion++;
+				}
+				processed++;
+			}
+		}
+		return new long[] { processed, motion };
+	}
+
+	/**
+	 * A noisy static scene with a box walking across it in the second half of the clip.
+	 */
+	private static byte[][] createFrames(int width, int height) {
+		Random random = new Random(42);
+		byte[] scene = new byte[width * height];
+		for ( int y = 0; y < height; y++ ) {
+			for ( int x = 0; x < width; x++ ) {
+				scene[y * width + x] = (byte) (64 + ((x / 40 + y / 40) % 2) * 96);
+			}
+		}
+		byte[][] frames = new byte[NUM_FRAMES][];
+		int box = height / 5;
+		for ( int f = 0; f < NUM_FRAMES; f++ ) {
+			byte[] frame = scene.clone();
+			for ( int i = 0; i < frame.length; i += 7 ) {
+				frame[i] = (byte) ((frame[i] & 0xff) + random.nextInt(9) - 4);
+			}
+			if ( f >= NUM_FRAMES / 2 ) {
+				int bx = (f - NUM_FRAMES / 2) * (width - box) / (NUM_FRAMES / 2);
+				int by = height / 2;
+				for ( int y = by; y < by + box; y++ ) {
+					for ( int x = bx; x < bx + box; x++ ) {
+						frame[y * width + x] = (byte) 230;
+					}
+				}
+			}
+			frames[f] = frame;
+		}
+		return frames;
+	}
+}
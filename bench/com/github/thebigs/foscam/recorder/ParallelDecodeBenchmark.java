@@ -0,0 +1,150 @@
+/**
+ *  foscamRecorder - http://github.com/TheBigS
+ *  Copyright (C) 2012
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *   any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.thebigs.foscam.recorder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+import com.xuggle.xuggler.IVideoPicture;
+
+/**
+ * Measures how the throughput of {@link ParallelDecoder} scales with the
+ * number of decode threads on one camera's frames, and checks that every
+ * frame comes back in the order it was submitted.
+ *
+ * Frames are submitted from the calling thread as fast as the decoder takes
+ * them, like an encoder thread with a full frame queue. Without the Xuggler
+ * native libraries the frames are decoded with ImageIO instead, which still
+ * shows the scaling of the pool and the reorder window but not of the native
+ * decoder.
+ *
+ * usage: ParallelDecodeBenchmark [seconds] [fixture] [maxThreads]
+ */
+public class ParallelDecodeBenchmark {
+	private static final long WARM_UP_MILLIS = 1000L;
+
+	public static void main(String[] args) throws IOException {
+		int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+		File fixture = args.length > 1 ? new File(args[1]) : Fixtures.forResolution(Fixtures.DEFAULT_DIR, "1280x720");
+		int maxThreads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+		List<byte[]> jpegs = Fixtures.frames(fixture);
+		if ( jpegs.isEmpty() ) {
+			System.err.println("No frames in '" + fixture + "', run MjpegFixtureGenerator first.");
+			System.exit(-1);
+		}
+		boolean nativeDecoder = hasNativeDecoder(jpegs.get(0));
+		System.out.println("Decoding " + fixture.getName() + " with " + (nativeDecoder ? "JpegDecoder" : "ImageIO (Xuggler native libraries not found)")
+				+ " on up to " + maxThreads + " threads, " + Runtime.getRuntime().availableProcessors() + " cores");
+		System.out.printf("%8s %8s %12s %12s %10s %12s%n", "threads", "window", "frames/s", "us/frame", "speedup", "efficiency");
+
+		boolean inOrder = true;
+		double baseline = -1;
+		List<Integer> threadCounts = new ArrayList<Integer>();
+		for ( int threads = 1; threads < maxThreads; threads *= 2 ) {
+			threadCounts.add(threads);
+		}
+		threadCounts.add(maxThreads);
+		for ( int threads : threadCounts ) {
+			ParallelDecoder decoder = nativeDecoder ? new ParallelDecoder("bench", threads, 0, null) : new ImageIODecoder(threads);
+			OrderCheck sink = new OrderCheck();
+			try {
+				run(decoder, jpegs, sink, WARM_UP_MILLIS);
+				sink.frames = 0;
+				long start = System.nanoTime();
+				run(decoder, jpegs, sink, seconds * 1000L);
+				long elapsed = System.nanoTime() - start;
+
+				double framesPerSec = sink.frames / (elapsed / 1e9);
+				if ( baseline < 0 ) {
+					baseline = framesPerSec;
+				}
+				System.out.printf("%8d %8d %12.1f %12.1f %9.2fx %11.0f%%%n", threads, decoder.getWindow(), framesPerSec,
+						elapsed / 1e3 / sink.frames, framesPerSec / baseline, framesPerSec / baseline / threads * 100);
+			}
+			finally {
+				decoder.close();
+			}
+			inOrder &= sink.inOrder;
+		}
+		System.out.println(inOrder ? "PASS: every frame delivered in capture order" : "FAIL: frames delivered out of order");
+	}
+
+	private static void run(ParallelDecoder decoder, List<byte[]> jpegs, OrderCheck sink, long millis) {
+		long end = System.currentTimeMillis() + millis;
+		int next = 0;
+		while ( System.currentTimeMillis() < end ) {
+			byte[] jpeg = jpegs.get(next++ % jpegs.size());
+			decoder.submit(new Frame(jpeg, jpeg.length, System.currentTimeMillis(), sink.submitted++), sink);
+		}
+		decoder.drain(sink);
+	}
+
+	private static boolean hasNativeDecoder(byte[] jpeg) {
+		try {
+			JpegDecoder decoder = new JpegDecoder();
+			boolean decoded = decoder.decode(jpeg, 0, jpeg.length, 0L) != null;
+			decoder.close();
+			return decoded;
+		} catch (LinkageError e) {
+			return false;
+		}
+	}
+
+	private static class OrderCheck implements ParallelDecoder.FrameSink {
+		long submitted = 0;
+		long nextExpected = 0;
+		long frames = 0;
+		boolean inOrder = true;
+
+		@Override
+		public void onFrame(Frame frame, IVideoPicture picture) {
+			if ( frame.getSequence() != nextExpected ) {
+				inOrder = false;
+			}
+			nextExpected = frame.getSequence() + 1;
+			frames++;
+		}
+	}
+
+	/**
+	 * Decodes with ImageIO and hands back no picture, as the native decoder
+	 * does for a frame it cannot decode.
+	 */
+	private static class ImageIODecoder extends ParallelDecoder {
+		ImageIODecoder(int threads) {
+			super("bench", threads, 0, null);
+		}
+
+		@Override
+		protected IVideoPicture decode(Frame frame) {
+			try {
+				ImageIO.read(new ByteArrayInputStream(frame.getData(), 0, frame.getLength()));
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+			return null;
+		}
+	}
+}
@@ -0,0 +1,228 @@
+/**
+ *  foscamRecorder - http://github.com/TheBigS
+ *  Copyright (C) 2012
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *   any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.thebigs.foscam.recorder;
+
+import java.awt.Image;
+import java.awt.Toolkit;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+
+import com.xuggle.xuggler.IVideoPicture;
+
+/**
+ * Benchmarks each stage of the recording pipeline separately, and the two
+ * whole paths through {@link Recording}, on the MJPEG fixture captures in
+ * bench/fixtures (see {@link MjpegFixtureGenerator}):
+ *
+ * <ul>
+ * <li>parse: {@link MjpegStreamParser} splitting the multipart stream</li>
+ * <li>decode-awt: Toolkit decode plus {@link BufferedImages#toBufferedImage}</li>
+ * <li>convert: {@link BufferedImages#convertToType} to 3 byte BGR</li>
+ * <li>decode-native: {@link JpegDecoder} straight to YUV420P</li>
+ * <li>encode: H.264 encoding of already decoded pictures</li>
+ * <li>Recording.saveImage: the AWT path, decode to encode</li>
+ * <li>Recording.saveFrame: the direct path, decode to encode</li>
+ * </ul>
+ *
+ * Stages that need the Xuggler native libraries are reported as skipped
+ * when they are not installed.
+ *
+ * usage: PipelineBenchmark [seconds] [fixtureDir] [csvFile]
+ */
+public class PipelineBenchmark {
+	private static final long FRAME_INTERVAL_MS = 200L;
+
+	public static void main(String[] args) throws IOException {
+		int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+		File fixtureDir = new File(args.length > 1 ? args[1] : Fixtures.DEFAULT_DIR);
+		String csvFile = args.length > 2 ? args[2] : null;
+
+		File[] fixtures = fixtureDir.listFiles();
+		if ( fixtures == null || fixtures.length == 0 ) {
+			System.err.println("No fixtures in '" + fixtureDir + "', run MjpegFixtureGenerator first.");
+			System.exit(-1);
+		}
+		// smallest resolution first
+		Arrays.sort(fixtures, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				return a.length() < b.length() ? -1 : (a.length() == b.length() ? 0 : 1);
+			}
+		});
+
+		File tmpDir = new File(System.getProperty("java.io.tmpdir"), "pipeline-benchmark");
+		tmpDir.mkdirs();
+
+		BenchmarkRunner runner = new BenchmarkRunner(Math.min(2000L, seconds * 500L), seconds * 1000L, csvFile);
+		for ( File fixture : fixtures ) {
+			if ( fixture.getName().endsWith(".mjpeg") ) {
+				run(runner, fixture, tmpDir);
+			}
+		}
+		runner.close();
+	}
+
+	private static void run(BenchmarkRunner runner, File fixture, final File tmpDir) throws IOException {
+		String name = fixture.getName().substring(0, fixture.getName().length() - ".mjpeg".length());
+		final byte[] stream = Fixtures.read(fixture);
+		final List<byte[]> jpegs = Fixtures.frames(stream);
+
+		runner.measure("parse", name, new BenchmarkRunner.Operation() {
+			private final MjpegStreamParser parser = new MjpegStreamParser(null);
+			@Override
+			public int run() throws IOException {
+				parser.reset("multipart/x-mixed-replace;boundary=" + FakeCameraServer.BOUNDARY);
+				InputStream in = new ByteArrayInputStream(stream);
+				int frames = 0;
+				while ( parser.nextFrame(in) >= 0 ) {
+					frames++;
+				}
+				return frames;
+			}
+		});
+
+		final List<BufferedImage> decoded = new ArrayList<BufferedImage>();
+		for ( byte[] jpeg : jpegs ) {
+			decoded.add(decodeAwt(jpeg));
+		}
+		runner.measure("decode-awt", name, new BenchmarkRunner.Operation() {
+			@Override
+			public int run() {
+				for ( byte[] jpeg : jpegs ) {
+					decodeAwt(jpeg);
+				}
+				return jpegs.size();
+			}
+		});
+
+		runner.measure("convert", name, new BenchmarkRunner.Operation() {
+			@Override
+			public int run() {
+				for ( BufferedImage image : decoded ) {
+					BufferedImages.convertToType(image, BufferedImage.TYPE_3BYTE_BGR);
+				}
+				return decoded.size();
+			}
+		});
+
+		runner.measure("decode-native", name, new BenchmarkRunner.Operation() {
+			private JpegDecoder decoder = null;
+			@Override
+			public int run() {
+				if ( decoder == null ) {
+					decoder = new JpegDecoder();
+				}
+				for ( byte[] jpeg : jpegs ) {
+					if ( decoder.decode(jpeg, 0, jpeg.length, 0L) == null ) {
+						throw new IllegalStateException("fixture frame could not be decoded natively");
+					}
+				}
+				return jpegs.size();
+			}
+		});
+
+		runner.measure("encode", name, new RecordingOperation(tmpDir) {
+			private List<IVideoPicture> pictures = null;
+			@Override
+			public int run() {
+				if ( pictures == null ) {
+					// decoder pictures are reused, so each frame gets a copy
+					pictures = new ArrayList<IVideoPicture>();
+					JpegDecoder decoder = new JpegDecoder();
+					for ( byte[] jpeg : jpegs ) {
+						pictures.add(IVideoPicture.make(decoder.decode(jpeg, 0, jpeg.length, 0L)));
+					}
+					decoder.close();
+				}
+				for ( IVideoPicture picture : pictures ) {
+					recording().savePicture(picture, nextTimestamp());
+				}
+				return pictures.size();
+			}
+		});
+
+		runner.measure("Recording.saveImage", name, new RecordingOperation(tmpDir) {
+			@Override
+			public int run() {
+				for ( byte[] jpeg : jpegs ) {
+					Image image = Toolkit.getDefaultToolkit().createImage(jpeg);
+					recording().saveImage(image, nextTimestamp());
+				}
+				return jpegs.size();
+			}
+		});
+
+		runner.measure("Recording.saveFrame", name, new RecordingOperation(tmpDir) {
+			@Override
+			public int run() {
+				for ( byte[] jpeg : jpegs ) {
+					recording().saveFrame(jpeg, 0, jpeg.length, nextTimestamp());
+				}
+				return jpegs.size();
+			}
+		});
+	}
+
+	private static BufferedImage decodeAwt(byte[] jpeg) {
+		return BufferedImages.toBufferedImage(Toolkit.getDefaultToolkit().createImage(jpeg));
+	}
+
+	/**
+	 * Writes to one recording for the whole benchmark, cycling it if it gets
+	 * large so the benchmark does not fill the disk.
+	 */
+	private abstract static class RecordingOperation implements BenchmarkRunner.Operation {
+		private static final long MAX_RECORDING_BYTES = 256L * 1024 * 1024;
+
+		private final File dir;
+		private Recording recording = null;
+		private JpegDecoder decoder = null;
+		private long timestamp = 0L;
+
+		RecordingOperation(File dir) {
+			this.dir = dir;
+		}
+
+		Recording recording() {
+			if ( recording != null && recording.getRecordingFileSize() > MAX_RECORDING_BYTES ) {
+				recording.close();
+				new File(recording.getRecordingFileLocation()).delete();
+				recording = null;
+			}
+			if ( recording == null ) {
+				decoder = decoder == null ? new JpegDecoder() : decoder;
+				recording = new Recording(dir.getPath(), "benchmark", new Date(), decoder);
+			}
+			return recording;
+		}
+
+		long nextTimestamp() {
+			timestamp += FRAME_INTERVAL_MS;
+			return timestamp;
+		}
+	}
+}
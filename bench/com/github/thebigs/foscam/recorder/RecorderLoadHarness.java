@@ -0,0 +1,235 @@
+/**
+ *  foscamRecorder - http://github.com/TheBigS
+ *  Copyright (C) 2012
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *   any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.thebigs.foscam.recorder;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+/**
+ * Capacity test for a host: points N {@link Recorder}s, run by a
+ * {@link RecorderSupervisor}, at a local {@link FakeCameraServer} and reports
+ * sustained fps per camera, frames dropped by the frame queues, latency from
+ * capture to the frame being written, and CPU per camera.
+ *
+ * Recordings go to a scratch directory that is emptied first. Passthrough
+ * (mjpeg) recording is the default since it needs no native libraries; use
+ * -F mp4 to include encoding.
+ *
+ * usage: RecorderLoadHarness -h
+ */
+public class RecorderLoadHarness {
+	private static final long WARM_UP_MS = 5000L;
+	private static final int MAX_LATENCY_MS = 10000;
+	private static final double PASS_FPS_RATIO = 0.95;
+
+	private final Map<String, Integer> cameraIndex = new HashMap<String, Integer>();
+	private final AtomicLongArray framesWritten;
+	private final AtomicLongArray maxLatency;
+	private final AtomicLongArray latencyHistogram = new AtomicLongArray(MAX_LATENCY_MS + 1);
+	private volatile boolean measuring = false;
+
+	private RecorderLoadHarness(int cameras) {
+		this.framesWritten = new AtomicLongArray(cameras);
+		this.maxLatency = new AtomicLongArray(cameras);
+	}
+
+	private final FrameWrittenListener listener = new FrameWrittenListener() {
+		@Override
+		public void onFrameWritten(String camName, long captureTimeMillis, long writtenTimeMillis) {
+			if ( !measuring ) {
+				return;
+			}
+			int camera = cameraIndex.get(camName);
+			long latency = Math.max(0, writtenTimeMillis - captureTimeMillis);
+			framesWritten.incrementAndGet(camera);
+			latencyHistogram.incrementAndGet((int) Math.min(latency, MAX_LATENCY_MS));
+			long max;
+			while ( latency > (max = maxLatency.get(camera)) && !maxLatency.compareAndSet(camera, max, latency) ) {
+				// retry
+			}
+		}
+	};
+
+	// Command line app
+	public static void main(String[] args) throws Exception {
+		Options options = new Options();
+
+		options.addOption("n", true, "Number of cameras (Defaults to 10).");
+		options.addOption("D", true, "Seconds to measure, after a 5 second warm-up (Defaults to 30).");
+		options.addOption("m", true, "Capture mode: threads or nio (Defaults to threads).");
+		options.addOption("e", true, "Encoder threads (Defaults to the number of cores).");
+		options.addOption("F", true, "Recording format: mjpeg or mp4 (Defaults to mjpeg).");
+		options.addOption("q", true, "Frame queue size per camera (Defaults to " + Recorder.DEFAULT_FRAME_QUEUE_SIZE + ").");
+		options.addOption("o", true, "Scratch directory for the recordings (Defaults to a temp directory).");
+		options.addOption("f", true, "Frames per second per camera (Defaults to 5).");
+		options.addOption("r", true, "Resolution of the fixture to replay, e.g. 640x480 (Defaults to 640x480).");
+		options.addOption("i", true, "MJPEG capture to replay instead of a fixture.");
+		options.addOption("s", true, "Bytes per synthetic frame, instead of replaying a capture.");
+		options.addOption("t", true, "Percent of frames sent truncated.");
+		options.addOption("l", true, "Percent of frames sent with a wrong Content-Length.");
+		options.addOption("x", true, "Percent of frames followed by a stall.");
+		options.addOption("w", true, "Stall time in milliseconds (Defaults to " + FakeCameraServer.DEFAULT_STALL_MS + ").");
+		options.addOption("d", true, "Percent of frames followed by a disconnect.");
+		options.addOption("h", false, "Print this help message.");
+
+		try {
+			CommandLine cli = new GnuParser().parse(options, args);
+			if ( cli.hasOption("h") ) {
+				HelpFormatter formatter = new HelpFormatter();
+				formatter.printHelp( "java -cp recorder.jar:bench " + RecorderLoadHarness.class.getName(), options );
+				System.exit(-1);
+			}
+			int cameras = Integer.parseInt(cli.getOptionValue("n", "10"));
+			new RecorderLoadHarness(cameras).run(cli, cameras);
+		}
+		catch (ParseException e) {
+			System.err.println("Unable to parse command line options: " + e.getMessage());
+		}
+		System.exit(0);
+	}
+
+	private void run(CommandLine cli, int cameras) throws Exception {
+		int seconds = Integer.parseInt(cli.getOptionValue("D", "30"));
+		int fps = Integer.parseInt(cli.getOptionValue("f", "5"));
+		File outputDir = new File(cli.getOptionValue("o", new File(System.getProperty("java.io.tmpdir"), "recorder-load-harness").getPath()));
+		emptyDirectory(outputDir);
+
+		FakeCameraServer server = FakeCameraServer.create(cli, 0);
+		server.start();
+
+		RecorderSupervisor supervisor = new RecorderSupervisor(
+				Integer.parseInt(cli.getOptionValue("e", String.valueOf(EncoderPool.DEFAULT_THREADS))),
+				EncoderPool.DEFAULT_FRAMES_PER_TURN);
+		String mode = cli.getOptionValue("m", "threads");
+		if ( mode.equalsIgnoreCase("nio") ) {
+			supervisor.setCaptureEngine(new CaptureEngine());
+		}
+		for ( int i = 0; i < cameras; i++ ) {
+			String camName = "cam" + i;
+			cameraIndex.put(camName, i);
+			Recorder recorder = new Recorder(server.getUrl(), camName, outputDir.getPath(), null, null);
+			recorder.setRecordingFormat(RecordingFormat.parse(cli.getOptionValue("F", "mjpeg")));
+			if ( cli.hasOption("q") ) {
+				recorder.setFrameQueue(Integer.parseInt(cli.getOptionValue("q")), Recorder.DEFAULT_DROP_POLICY);
+			}
+			recorder.setFrameWrittenListener(listener);
+			supervisor.addCamera(recorder);
+		}
+
+		System.out.println("Starting " + cameras + " cameras (" + mode + " capture) at " + fps + " fps, warming up...");
+		supervisor.start();
+		Thread.sleep(WARM_UP_MS);
+
+		com.sun.management.OperatingSystemMXBean os = (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+		long[] droppedBefore = droppedCounts(supervisor);
+		long sentBefore = server.getFramesSent();
+		long faultsBefore = server.getFaultsInjected();
+		long cpuBefore = os.getProcessCpuTime();
+		long start = System.nanoTime();
+		measuring = true;
+		Thread.sleep(seconds * 1000L);
+		measuring = false;
+		long elapsed = System.nanoTime() - start;
+		long cpu = os.getProcessCpuTime() - cpuBefore;
+		long[] droppedAfter = droppedCounts(supervisor);
+		int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+
+		double elapsedSecs = elapsed / 1e9;
+		double minFps = Double.MAX_VALUE;
+		double totalFps = 0.0;
+		long totalDropped = 0L;
+		boolean perCamera = cameras <= 20;
+		if ( perCamera ) {
+			System.out.printf("%-8s %8s %8s %10s%n", "camera", "fps", "dropped", "max ms");
+		}
+		for ( int i = 0; i < cameras; i++ ) {
+			double cameraFps = framesWritten.get(i) / elapsedSecs;
+			long dropped = droppedAfter[i] - droppedBefore[i];
+			minFps = Math.min(minFps, cameraFps);
+			totalFps += cameraFps;
+			totalDropped += dropped;
+			if ( perCamera ) {
+				System.out.printf("%-8s %8.2f %8d %10d%n", "cam" + i, cameraFps, dropped, maxLatency.get(i));
+			}
+		}
+
+		System.out.printf("cameras %d, %s capture, %d threads in the process%n", cameras, mode, threads);
+		System.out.printf("fps per camera: %.2f average, %.2f minimum, %d target%n", totalFps / cameras, minFps, fps);
+		System.out.printf("frames sent %d, faults injected %d, dropped by frame queues %d%n",
+				server.getFramesSent() - sentBefore, server.getFaultsInjected() - faultsBefore, totalDropped);
+		System.out.printf("latency capture to written: p50 %d ms, p99 %d ms, max %d ms%n",
+				percentile(0.50), percentile(0.99), percentile(1.0));
+		System.out.printf("cpu per camera: %.2f%% of one core%n", 100.0 * cpu / elapsed / cameras);
+		boolean pass = minFps >= fps * PASS_FPS_RATIO && totalDropped == 0;
+		System.out.println(pass ? "PASS: every camera sustained " + fps + " fps without drops"
+				: "FAIL: below " + fps + " fps or frames dropped");
+
+		supervisor.shutdown();
+		server.stop();
+	}
+
+	private static long[] droppedCounts(RecorderSupervisor supervisor) {
+		long[] dropped = new long[supervisor.getRecorders().size()];
+		for ( int i = 0; i < dropped.length; i++ ) {
+			dropped[i] = supervisor.getRecorders().get(i).getFrameQueue().getDroppedCount();
+		}
+		return dropped;
+	}
+
+	/**
+	 * @return the latency in ms below which the fraction of frames fall, from the histogram
+	 */
+	private long percentile(double fraction) {
+		long total = 0;
+		for ( int i = 0; i < latencyHistogram.length(); i++ ) {
+			total += latencyHistogram.get(i);
+		}
+		long target = (long) Math.ceil(total * fraction);
+		long seen = 0;
+		for ( int i = 0; i < latencyHistogram.length(); i++ ) {
+			seen += latencyHistogram.get(i);
+			if ( seen >= target && seen > 0 ) {
+				return i;
+			}
+		}
+		return 0;
+	}
+
+	private static void emptyDirectory(File dir) {
+		File[] files = dir.listFiles();
+		if ( files != null ) {
+			for ( File file : files ) {
+				if ( file.isFile() ) {
+					file.delete();
+				}
+			}
+		}
+		dir.mkdirs();
+	}
+}
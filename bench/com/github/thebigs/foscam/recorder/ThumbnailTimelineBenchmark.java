@@ -0,0 +1,112 @@
+/**
+ *  foscamRecorder - http://github.com/TheBigS
+ *  Copyright (C) 2012
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *   any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.thebigs.foscam.recorder;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Writes a day of hourly segments' thumbnails for one camera, then measures
+ * how long {@link ThumbnailCache} takes to load the whole day's timeline,
+ * from disk and from memory, and what each thumbnail costs the encoder
+ * thread to write.
+ *
+ * usage: ThumbnailTimelineBenchmark [hours] [intervalSecs] [dir]
+ */
+public class ThumbnailTimelineBenchmark {
+	private static final String CAM_NAME = "bench";
+	private static final long TARGET_MILLIS = 1000L;
+	private static final int TIMELINE_WIDTH = 200;
+
+	public static void main(String[] args) throws Exception {
+		int hours = args.length > 0 ? Integer.parseInt(args[0]) : 24;
+		long intervalMillis = (args.length > 1 ? Long.parseLong(args[1]) : ThumbnailWriter.DEFAULT_INTERVAL_MILLIS / 1000) * 1000L;
+		File dir = new File(args.length > 2 ? args[2] : System.getProperty("java.io.tmpdir"), "thumbnail-bench");
+		dir.mkdirs();
+		for ( File file : dir.listFiles() ) {
+			file.delete();
+		}
+
+		RecordingCatalog catalog = new RecordingCatalog(dir);
+		BufferedImage frame = new BufferedImage(640, 480, BufferedImage.TYPE_3BYTE_BGR);
+		long dayStart = 1335866400000L; // 2012-05-01
+		long thumbnails = 0;
+		long writeNanos = 0;
+		for ( int hour = 0; hour < hours; hour++ ) {
+			long segmentStart = dayStart + hour * 3600000L;
+			String fileName = RecordingSegment.fileName(new Date(segmentStart), CAM_NAME, ".mp4");
+			catalog.segmentOpened(fileName, CAM_NAME, segmentStart);
+			ThumbnailWriter writer = new ThumbnailWriter(new File(dir, fileName), segmentStart, intervalMillis, ThumbnailWriter.DEFAULT_WIDTH);
+			for ( long time = segmentStart; time < segmentStart + 3600000L; time += intervalMillis ) {
+				draw(frame, thumbnails);
+				long start = System.nanoTime();
+				writer.add(frame, time);
+				writeNanos += System.nanoTime() - start;
+				thumbnails++;
+			}
+			writer.close();
+			catalog.segmentClosed(fileName, segmentStart + 3600000L, writer.getFileSize());
+		}
+		System.out.printf("Wrote %d thumbnails for %d hours, %.2f MB, %.2f ms per thumbnail%n", thumbnails, hours,
+				catalog.getTotalBytes() / 1048576.0, writeNanos / 1e6 / thumbnails);
+
+		long dayEnd = dayStart + hours * 3600000L - 1;
+		ThumbnailCache cache = new ThumbnailCache(catalog);
+		long start = System.nanoTime();
+		List<ThumbnailCache.Thumbnail> timeline = cache.getTimeline(CAM_NAME, dayStart, dayEnd);
+		long coldNanos = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		cache.getTimeline(CAM_NAME, dayStart, dayEnd);
+		long warmNanos = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		List<ThumbnailCache.Thumbnail> strip = cache.getTimeline(CAM_NAME, dayStart, dayEnd, TIMELINE_WIDTH);
+		long stripNanos = System.nanoTime() - start;
+
+		System.out.printf("Timeline of %d thumbnails: %.1f ms from disk, %.2f ms cached, %.2f MB held%n", timeline.size(),
+				coldNanos / 1e6, warmNanos / 1e6, cache.getCachedBytes() / 1048576.0);
+		System.out.printf("Strip of %d thumbnails: %.2f ms cached%n", strip.size(), stripNanos / 1e6);
+		System.out.println(coldNanos / 1000000L < TARGET_MILLIS ? "  PASS: loads in under " + TARGET_MILLIS + " ms"
+				: "  FAIL: takes over " + TARGET_MILLIS + " ms");
+	}
+
+	/**
+	 * A checkerboard scene with a box that moves from one thumbnail to the next.
+	 */
+	private static void draw(BufferedImage frame, long n) {
+		Graphics2D g = frame.createGraphics();
+		try {
+			for ( int y = 0; y < frame.getHeight(); y += 40 ) {
+				for ( int x = 0; x < frame.getWidth(); x += 40 ) {
+					g.setColor(((x + y) / 40) % 2 == 0 ? Color.DARK_GRAY : Color.LIGHT_GRAY);
+					g.fillRect(x, y, 40, 40);
+				}
+			}
+			g.setColor(Color.RED);
+			g.fillRect((int) (n * 7 % (frame.getWidth() - 80)), frame.getHeight() / 2, 80, 80);
+		} finally {
+			g.dispose();
+		}
+	}
+}
@@ -0,0 +1,322 @@
+/**
+ *  foscamRecorder - http://github.com/TheBigS
+ *  Copyright (C) 2012
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *   any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.thebigs.foscam.recorder;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters, gauges and stage latencies of one camera, updated by its
+ * {@link Recorder} and {@link SegmentWriter} as frames go through and read by
+ * a {@link MetricsRegistry}. Updates are atomic increments into preallocated
+ * state, nothing is allocated per frame.
+ */
+public class CameraMetrics implements CameraMetricsMBean {
+	/**
+	 * Pipeline stages with a latency histogram each.
+	 */
+	public enum Stage {
+		/** Finding a frame in the stream, not counting time blocked on the network. */
+		PARSE,
+		/** JPEG to picture, natively or through AWT. */
+		DECODE,
+		/** AWT image to the encoder's pixel format. */
+		CONVERT,
+		/** H.264 encoding of one picture. */
+		ENCODE,
+		/** Writing a packet or frame to the recording file. */
+		WRITE;
+
+		/**
+		 * @return the name used in metric labels and JMX object names
+		 */
+		public String label() {
+			return name().toLowerCase();
+		}
+	}
+
+	// disk operations per second are averaged over this many complete seconds
+	private static final int IOPS_WINDOW_SECONDS = 10;
+
+	private final String camName;
+	private final LatencyHistogram[] latencies = new LatencyHistogram[Stage.values().length];
+	private final AtomicLong framesReceived = new AtomicLong();
+	private final AtomicLong framesEncoded = new AtomicLong();
+	private final AtomicLong framesWritten = new AtomicLong();
+	private final AtomicLong framesDuplicate = new AtomicLong();
+	private final AtomicLong bytesIn = new AtomicLong();
+	private final AtomicLong bytesOut = new AtomicLong();
+	private final AtomicLong segmentBytes = new AtomicLong();
+	private final AtomicLong diskBytes = new AtomicLong();
+	private final AtomicLong diskWrites = new AtomicLong();
+	private final AtomicLong diskSyncs = new AtomicLong();
+	// operations counted in each of the last few seconds, slot = second % length
+	private final AtomicLongArray opsSeconds = new AtomicLongArray(IOPS_WINDOW_SECONDS + 1);
+	private final AtomicLongArray opsCounts = new AtomicLongArray(IOPS_WINDOW_SECONDS + 1);
+	private volatile long recordingBytes = 0L;
+	private volatile long quotaHeadroomBytes = -1L;
+	private volatile FrameQueue frameQueue = null;
+	private volatile ConnectionManager connection = null;
+
+	public CameraMetrics(String camName) {
+		super();
+		this.camName = camName;
+		for ( int i = 0; i < latencies.length; i++ ) {
+			latencies[i] = new LatencyHistogram();
+		}
+	}
+
+	public void recordLatency(Stage stage, long nanos) {
+		latencies[stage.ordinal()].record(nanos);
+	}
+
+	public LatencyHistogram getLatency(Stage stage) {
+		return latencies[stage.ordinal()];
+	}
+
+	public void frameReceived() {
+		framesReceived.incrementAndGet();
+	}
+
+	public void frameEncoded() {
+		framesEncoded.incrementAndGet();
+	}
+
+	public void frameWritten() {
+		framesWritten.incrementAndGet();
+	}
+
+	/**
+	 * @param bytes read from the camera's connection, boundaries and headers included
+	 */
+	public void frameDuplicate() {
+		framesDuplicate.incrementAndGet();
+	}
+
+	public void addBytesIn(long bytes) {
+		bytesIn.addAndGet(bytes);
+	}
+
+	public void addBytesOut(long bytes) {
+		bytesOut.addAndGet(bytes);
+	}
+
+	/**
+	 * @param bytes written to a {@link SegmentFile} by the muxer or pack writer
+	 */
+	public void addSegmentBytes(long bytes) {
+		segmentBytes.addAndGet(bytes);
+	}
+
+	/**
+	 * @param pageBytes bytes of the whole pages the write touched
+	 */
+	public void diskWrite(long pageBytes) {
+		diskWrites.incrementAndGet();
+		diskBytes.addAndGet(pageBytes);
+		countOperation();
+	}
+
+	public void diskSync() {
+		diskSyncs.incrementAndGet();
+		countOperation();
+	}
+
+	/**
+	 * Counts into the slot of the current second, resetting it first if it
+	 * still holds an older second. Two threads resetting at once can lose a
+	 * count, which the average can live with.
+	 */
+	private void countOperation() {
+		long second = System.currentTimeMillis() / 1000L;
+		int slot = (int) (second % opsSeconds.length());
+		long slotSecond = opsSeconds.get(slot);
+		if ( slotSecond != second && opsSeconds.compareAndSet(slot, slotSecond, second) ) {
+			opsCounts.set(slot, 0L);
+		}
+		opsCounts.incrementAndGet(slot);
+	}
+
+	public void setRecordingBytes(long recordingBytes) {
+		this.recordingBytes = recordingBytes;
+	}
+
+	/**
+	 * @param quotaHeadroomBytes bytes left under the camera's disk quota, or -1 for no quota
+	 */
+	public void setQuotaHeadroomBytes(long quotaHeadroomBytes) {
+		this.quotaHeadroomBytes = quotaHeadroomBytes;
+	}
+
+	/**
+	 * @param frameQueue the queue whose drop count and depth are reported
+	 */
+	public void setFrameQueue(FrameQueue frameQueue) {
+		this.frameQueue = frameQueue;
+	}
+
+	/**
+	 * @param connection the camera connection whose health is reported
+	 */
+	public void setConnection(ConnectionManager connection) {
+		this.connection = connection;
+	}
+
+	/**
+	 * @return the connection's {@link ConnectionManager.Health}, "connecting" until capture starts
+	 */
+	@Override
+	public String getConnectionHealth() {
+		ConnectionManager current = connection;
+		return current == null ? ConnectionManager.Health.CONNECTING.label() : current.getHealth().label();
+	}
+
+	@Override
+	public long getReconnects() {
+		ConnectionManager current = connection;
+		return current == null ? 0L : current.getReconnects();
+	}
+
+	/**
+	 * @return milliseconds since the last frame arrived, -1 if none has
+	 */
+	@Override
+	public long getMillisSinceLastFrame() {
+		ConnectionManager current = connection;
+		long lastFrameTime = current == null ? -1L : current.getLastFrameTime();
+		return lastFrameTime < 0 ? -1L : System.currentTimeMillis() - lastFrameTime;
+	}
+
+	@Override
+	public String getCamName() {
+		return camName;
+	}
+
+	@Override
+	public long getFramesReceived() {
+		return framesReceived.get();
+	}
+
+	@Override
+	public long getFramesDecoded() {
+		return getLatency(Stage.DECODE).getCount();
+	}
+
+	/**
+	 * @return frames given to the H.264 encoder, always 0 for passthrough recordings
+	 */
+	@Override
+	public long getFramesEncoded() {
+		return framesEncoded.get();
+	}
+
+	/**
+	 * @return frames saved to a recording, in any format
+	 */
+	@Override
+	public long getFramesWritten() {
+		return framesWritten.get();
+	}
+
+	@Override
+	public long getFramesDropped() {
+		FrameQueue queue = frameQueue;
+		return queue == null ? 0L : queue.getDroppedCount();
+	}
+
+	/**
+	 * @return frames not encoded because they were identical to the one before
+	 */
+	@Override
+	public long getFramesDuplicate() {
+		return framesDuplicate.get();
+	}
+
+	@Override
+	public int getFrameQueueDepth() {
+		FrameQueue queue = frameQueue;
+		return queue == null ? 0 : queue.size();
+	}
+
+	@Override
+	public long getBytesIn() {
+		return bytesIn.get();
+	}
+
+	@Override
+	public long getBytesOut() {
+		return bytesOut.get();
+	}
+
+	@Override
+	public long getDiskWrites() {
+		return diskWrites.get();
+	}
+
+	/**
+	 * @return bytes of whole pages written to disk, what the storage actually rewrites
+	 */
+	@Override
+	public long getDiskBytesWritten() {
+		return diskBytes.get();
+	}
+
+	@Override
+	public long getDiskSyncs() {
+		return diskSyncs.get();
+	}
+
+	/**
+	 * @return page bytes written to disk per byte written to segments, 0 before the first write
+	 */
+	@Override
+	public double getWriteAmplification() {
+		long written = segmentBytes.get();
+		return written == 0 ? 0.0 : (double) diskBytes.get() / written;
+	}
+
+	/**
+	 * @return disk writes and syncs per second over the last complete seconds
+	 */
+	@Override
+	public double getDiskIops() {
+		long now = System.currentTimeMillis() / 1000L;
+		long operations = 0;
+		for ( int slot = 0; slot < opsSeconds.length(); slot++ ) {
+			long second = opsSeconds.get(slot);
+			if ( second < now && second >= now - IOPS_WINDOW_SECONDS ) {
+				operations += opsCounts.get(slot);
+			}
+		}
+		return (double) operations / IOPS_WINDOW_SECONDS;
+	}
+
+	/**
+	 * @return size of the recording being written, including sidecar files
+	 */
+	@Override
+	public long getRecordingBytes() {
+		return recordingBytes;
+	}
+
+	@Override
+	public long getQuotaHeadroomBytes() {
+		return quotaHeadroomBytes;
+	}
+}
@@ -0,0 +1,532 @@
+/**
+ *  foscamRecorder - http://github.com/TheBigS
+ *  Copyright (C) 2012
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *   any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.thebigs.foscam.recorder;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking HTTP client that captures MJPEG streams from many cameras on
+ * a few selector threads, instead of one blocked capture thread per camera.
+ *
+ * Each camera is a {@link Stream}: a small state machine that connects,
+ * sends the GET request, reads the response headers and then feeds whatever
+ * the socket has into its own {@link MjpegStreamParser}. Frames are handed
+ * to the stream's {@link FrameHandler} on the selector thread. A stream that
+ * fails to connect within the connect timeout, receives nothing for the read
+ * timeout, or no frame for the stall timeout, is closed and retried after a
+ * backoff from its {@link ConnectionManager}; nothing ever sleeps, so one
+ * slow camera cannot hold up the others.
+ *
+ * Only plain http URLs are supported. User info in the URL is sent as basic
+ * authentication. Host names are resolved on the selector thread when a
+ * stream connects, so cameras are best given by IP address.
+ */
+public class CaptureEngine {
+	public static final int  DEFAULT_SELECTOR_THREADS   = 1;
+	public static final long DEFAULT_CONNECT_TIMEOUT_MS = ConnectionManager.DEFAULT_CONNECT_TIMEOUT_MS;
+	public static final long DEFAULT_READ_TIMEOUT_MS    = ConnectionManager.DEFAULT_READ_TIMEOUT_MS;
+	public static final long DEFAULT_RETRY_DELAY_MS     = ConnectionManager.DEFAULT_MIN_BACKOFF_MS;
+
+	private static final long TICK_MS = 100L;
+	private static final int MAX_RESPONSE_HEADER_SIZE = 8 * 1024;
+	private static final long SELECTOR_SHUTDOWN_TIMEOUT_MS = 5000L;
+
+	/**
+	 * Receives the frames of one stream, on a selector thread. The data is
+	 * only valid for the duration of the call, and the call should be quick
+	 * since every stream on the thread waits for it.
+	 */
+	public interface FrameHandler {
+		void onFrame(byte[] data, int offset, int length, long captureTimeMillis);
+	}
+
+	private enum State {
+		WAITING, CONNECTING, SENDING_REQUEST, READING_HEADERS, STREAMING, CLOSED
+	}
+
+	/**
+	 * One camera connection, owned by a selector thread.
+	 */
+	public class Stream {
+		private final String name;
+		private final String host;
+		private final int port;
+		private final byte[] request;
+		private final FrameHandler handler;
+		private final SelectorLoop loop;
+		private final ConnectionManager connection;
+
+		// only touched by the selector thread
+		private State state = State.WAITING;
+		private long stateSince = 0L;
+		private long lastDataTime = 0L;
+		private SocketChannel channel = null;
+		private SelectionKey key = null;
+		private ByteBuffer requestBuffer = null;
+		private ByteBuffer headerBuffer = null;
+		private MjpegStreamParser parser = null;
+
+		private volatile boolean connected = false;
+		private volatile boolean closeRequested = false;
+		private volatile long framesReceived = 0L;
+		private volatile long reconnects = 0L;
+		private volatile long bytesReceived = 0L;
+		private volatile long lastParseNanos = 0L;
+
+		private Stream(URL url, String name, FrameHandler handler, SelectorLoop loop, ConnectionManager connection) {
+			this.name = name;
+			this.connection = connection;
+			this.host = url.getHost();
+			this.port = url.getPort() < 0 ? url.getDefaultPort() : url.getPort();
+			this.handler = handler;
+			this.loop = loop;
+
+			StringBuilder req = new StringBuilder();
+			String file = url.getFile();
+			req.append("GET ").append(file.length() == 0 ? "/" : file).append(" HTTP/1.0\r\n");
+			req.append("Host: ").append(host);
+			if ( url.getPort() >= 0 ) {
+				req.append(':').append(port);
+			}
+			req.append("\r\n");
+			if ( url.getUserInfo() != null ) {
+				req.append("Authorization: Basic ").append(base64(url.getUserInfo().getBytes())).append("\r\n");
+			}
+			req.append("Connection: close\r\n\r\n");
+			this.request = req.toString().getBytes();
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return true while frames are being received
+		 */
+		public boolean isConnected() {
+			return connected;
+		}
+
+		public long getFramesReceived() {
+			return framesReceived;
+		}
+
+		/**
+		 * @return bytes of multipart body received, across reconnects, up to the last frame
+		 */
+		public long getBytesReceived() {
+			return bytesReceived;
+		}
+
+		/**
+		 * @return time the parser took to find the last frame in the received data
+		 */
+		public long getLastParseNanos() {
+			return lastParseNanos;
+		}
+
+		/**
+		 * @return number of times the connection failed and was retried
+		 */
+		public long getReconnects() {
+			return reconnects;
+		}
+
+		/**
+		 * @return the connection's health and backoff
+		 */
+		public ConnectionManager getConnection() {
+			return connection;
+		}
+
+		/**
+		 * Disconnects and stops retrying. Safe to call from any thread.
+		 */
+		public void close() {
+			closeRequested = true;
+			loop.selector.wakeup();
+		}
+	}
+
+	private final SelectorLoop[] loops;
+	private final AtomicInteger nextLoop = new AtomicInteger();
+	private final long connectTimeoutMillis;
+	private final long readTimeoutMillis;
+	private final long stallTimeoutMillis;
+	private final long retryDelayMillis;
+	private final long maxRetryDelayMillis;
+	private volatile boolean shutdown = false;
+
+	public CaptureEngine() throws IOException {
+		this(DEFAULT_SELECTOR_THREADS, DEFAULT_CONNECT_TIMEOUT_MS, DEFAULT_READ_TIMEOUT_MS, DEFAULT_RETRY_DELAY_MS);
+	}
+
+	public CaptureEngine(int selectorThreads, long connectTimeoutMillis, long readTimeoutMillis, long retryDelayMillis) throws IOException {
+		this(selectorThreads, connectTimeoutMillis, readTimeoutMillis, ConnectionManager.DEFAULT_STALL_TIMEOUT_MS,
+				retryDelayMillis, Math.max(retryDelayMillis, ConnectionManager.DEFAULT_MAX_BACKOFF_MS));
+	}
+
+	/**
+	 * @param stallTimeoutMillis how long a connected stream may go without a frame before it is reconnected
+	 * @param retryDelayMillis shortest wait before reconnecting, doubled after each failure in a row
+	 * @param maxRetryDelayMillis longest wait before reconnecting
+	 */
+	public CaptureEngine(int selectorThreads, long connectTimeoutMillis, long readTimeoutMillis, long stallTimeoutMillis,
+			long retryDelayMillis, long maxRetryDelayMillis) throws IOException {
+		super();
+		if ( selectorThreads < 1 ) {
+			throw new IllegalArgumentException("Capture engine needs at least one selector thread.");
+		}
+		this.connectTimeoutMillis = connectTimeoutMillis;
+		this.readTimeoutMillis = readTimeoutMillis;
+		this.stallTimeoutMillis = stallTimeoutMillis;
+		this.retryDelayMillis = retryDelayMillis;
+		this.maxRetryDelayMillis = maxRetryDelayMillis;
+		this.loops = new SelectorLoop[selectorThreads];
+		for ( int i = 0; i < selectorThreads; i++ ) {
+			loops[i] = new SelectorLoop("Capture selector " + i);
+		}
+	}
+
+	/**
+	 * Starts capturing from a camera. Streams are spread over the selector
+	 * threads round robin.
+	 *
+	 * @throws MalformedURLException if camUrl is not an http URL
+	 */
+	public Stream addStream(String camUrl, String name, FrameHandler handler) throws MalformedURLException {
+		URL url = new URL(camUrl);
+		if ( !"http".equalsIgnoreCase(url.getProtocol()) ) {
+			throw new MalformedURLException("Only http cameras are supported: " + camUrl);
+		}
+		SelectorLoop loop = loops[(nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+		Stream stream = new Stream(url, name, handler, loop, new ConnectionManager(name, connectTimeoutMillis, readTimeoutMillis,
+				stallTimeoutMillis, retryDelayMillis, maxRetryDelayMillis));
+		loop.added.add(stream);
+		loop.selector.wakeup();
+		return stream;
+	}
+
+	public int getSelectorThreadCount() {
+		return loops.length;
+	}
+
+	/**
+	 * Closes every stream and stops the selector threads.
+	 */
+	public void shutdown() {
+		shutdown = true;
+		for ( SelectorLoop loop : loops ) {
+			loop.selector.wakeup();
+		}
+		for ( SelectorLoop loop : loops ) {
+			try {
+				loop.thread.join(SELECTOR_SHUTDOWN_TIMEOUT_MS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Blocks until the selector threads have stopped.
+	 */
+	public void awaitTermination() throws InterruptedException {
+		for ( SelectorLoop loop : loops ) {
+			loop.thread.join();
+		}
+	}
+
+	private class SelectorLoop implements Runnable {
+		private final Selector selector;
+		private final Thread thread;
+		private final ConcurrentLinkedQueue<Stream> added = new ConcurrentLinkedQueue<Stream>();
+		private final List<Stream> streams = new ArrayList<Stream>();
+
+		SelectorLoop(String threadName) throws IOException {
+			this.selector = Selector.open();
+			this.thread = new Thread(this, threadName);
+			this.thread.start();
+		}
+
+		@Override
+		public void run() {
+			try {
+				while ( !shutdown ) {
+					Stream stream;
+					while ( (stream = added.poll()) != null ) {
+						streams.add(stream);
+					}
+					selector.select(TICK_MS);
+					long now = System.currentTimeMillis();
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while ( keys.hasNext() ) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						if ( key.isValid() ) {
+							handle((Stream) key.attachment(), key, now);
+						}
+					}
+					checkTimers(now);
+				}
+			} catch (IOException e) {
+				System.err.println("Capture selector failed: " + e.getMessage());
+			}
+			finally {
+				for ( Stream stream : streams ) {
+					disconnect(stream, State.CLOSED);
+				}
+				streams.clear();
+				try {
+					selector.close();
+				} catch (IOException e) {
+					// nothing left to do with it
+				}
+			}
+		}
+
+		private void checkTimers(long now) {
+			Iterator<Stream> it = streams.iterator();
+			while ( it.hasNext() ) {
+				Stream stream = it.next();
+				if ( stream.closeRequested ) {
+					disconnect(stream, State.CLOSED);
+					it.remove();
+					continue;
+				}
+				switch ( stream.state ) {
+				case WAITING:
+					if ( now >= stream.stateSince ) {
+						connect(stream, now);
+					}
+					break;
+				case CONNECTING:
+				case SENDING_REQUEST:
+					if ( now - stream.stateSince > connectTimeoutMillis ) {
+						fail(stream, "connect timed out", now);
+					}
+					break;
+				case READING_HEADERS:
+				case STREAMING:
+					if ( now - stream.lastDataTime > readTimeoutMillis ) {
+						fail(stream, "no data for " + readTimeoutMillis + "ms", now);
+					}
+					else if ( stream.connection.isStalled(now) ) {
+						fail(stream, "no frame for " + stallTimeoutMillis + "ms", now);
+					}
+					break;
+				default:
+					break;
+				}
+			}
+		}
+
+		private void connect(Stream stream, long now) {
+			stream.connection.connecting(now);
+			try {
+				stream.channel = SocketChannel.open();
+				stream.channel.configureBlocking(false);
+				stream.key = stream.channel.register(selector, 0, stream);
+				stream.stateSince = now;
+				if ( stream.channel.connect(new InetSocketAddress(stream.host, stream.port)) ) {
+					startRequest(stream, now);
+				}
+				else {
+					stream.state = State.CONNECTING;
+					stream.key.interestOps(SelectionKey.OP_CONNECT);
+				}
+			} catch (IOException e) {
+				fail(stream, e.getMessage(), now);
+			}
+		}
+
+		private void startRequest(Stream stream, long now) {
+			stream.state = State.SENDING_REQUEST;
+			stream.requestBuffer = ByteBuffer.wrap(stream.request);
+			stream.key.interestOps(SelectionKey.OP_WRITE);
+		}
+
+		private void handle(Stream stream, SelectionKey key, long now) {
+			try {
+				switch ( stream.state ) {
+				case CONNECTING:
+					if ( stream.channel.finishConnect() ) {
+						startRequest(stream, now);
+					}
+					break;
+				case SENDING_REQUEST:
+					stream.channel.write(stream.requestBuffer);
+					if ( !stream.requestBuffer.hasRemaining() ) {
+						stream.requestBuffer = null;
+						stream.state = State.READING_HEADERS;
+						stream.lastDataTime = now;
+						if ( stream.headerBuffer == null ) {
+							stream.headerBuffer = ByteBuffer.allocate(MAX_RESPONSE_HEADER_SIZE);
+						}
+						stream.headerBuffer.clear();
+						key.interestOps(SelectionKey.OP_READ);
+					}
+					break;
+				case READING_HEADERS:
+					if ( stream.channel.read(stream.headerBuffer) < 0 ) {
+						throw new IOException("Stream closed by camera");
+					}
+					stream.lastDataTime = now;
+					readHeaders(stream, now);
+					break;
+				case STREAMING:
+					if ( stream.parser.read(stream.channel) < 0 ) {
+						throw new IOException("Stream closed by camera");
+					}
+					stream.lastDataTime = now;
+					parseFrames(stream);
+					break;
+				default:
+					break;
+				}
+			} catch (IOException e) {
+				fail(stream, e.getMessage(), now);
+			}
+		}
+
+		private void readHeaders(Stream stream, long now) throws IOException {
+			ByteBuffer buf = stream.headerBuffer;
+			byte[] data = buf.array();
+			int end = -1;
+			for ( int i = 0; i < buf.position(); i++ ) {
+				if ( data[i] == '\n' && ((i >= 1 && data[i - 1] == '\n') || (i >= 3 && data[i - 1] == '\r' && data[i - 2] == '\n')) ) {
+					end = i + 1;
+					break;
+				}
+			}
+			if ( end < 0 ) {
+				if ( !buf.hasRemaining() ) {
+					throw new IOException("Response headers exceed " + MAX_RESPONSE_HEADER_SIZE + " bytes");
+				}
+				return;
+			}
+
+			String[] lines = new String(data, 0, end, "ISO-8859-1").split("\r?\n");
+			String[] status = lines[0].split(" ");
+			if ( status.length < 2 || !status[0].startsWith("HTTP/") || !status[1].equals("200") ) {
+				throw new IOException("Camera responded '" + lines[0] + "'");
+			}
+			String contentType = null;
+			for ( int i = 1; i < lines.length; i++ ) {
+				int colon = lines[i].indexOf(':');
+				if ( colon > 0 && lines[i].substring(0, colon).trim().equalsIgnoreCase("Content-Type") ) {
+					contentType = lines[i].substring(colon + 1).trim();
+				}
+			}
+
+			if ( stream.parser == null ) {
+				stream.parser = new MjpegStreamParser(contentType);
+			}
+			else {
+				stream.parser.reset(contentType);
+			}
+			stream.parser.append(data, end, buf.position() - end);
+			stream.headerBuffer = null; // only needed again after a reconnect
+			stream.state = State.STREAMING;
+			stream.stateSince = now;
+			stream.connected = true;
+			parseFrames(stream);
+		}
+
+		private void parseFrames(Stream stream) throws IOException {
+			MjpegStreamParser parser = stream.parser;
+			int length;
+			while ( (length = parser.parseFrame()) >= 0 ) {
+				long captureTime = System.currentTimeMillis();
+				stream.connection.frameReceived(captureTime);
+				stream.framesReceived++;
+				stream.bytesReceived = parser.getBytesRead();
+				stream.lastParseNanos = parser.getLastParseNanos();
+				try {
+					stream.handler.onFrame(parser.getFrameData(), parser.getFrameOffset(), length, captureTime);
+				} catch (RuntimeException e) {
+					System.err.println("Frame handler for '" + stream.name + "' failed: " + e.getMessage());
+				}
+			}
+		}
+
+		private void fail(Stream stream, String reason, long now) {
+			long delay = stream.connection.failed(reason, now);
+			System.err.println("IO Exception: camera '" + stream.name + "' at " + stream.host + ":" + stream.port
+					+ " (" + reason + "). retrying in " + delay + "ms");
+			disconnect(stream, State.WAITING);
+			stream.stateSince = now + delay; // when to retry
+			stream.reconnects++;
+		}
+
+		private void disconnect(Stream stream, State newState) {
+			if ( stream.key != null ) {
+				stream.key.cancel();
+				stream.key = null;
+			}
+			if ( stream.channel != null ) {
+				try {
+					stream.channel.close();
+				} catch (IOException e) {
+					// already broken
+				}
+				stream.channel = null;
+			}
+			stream.requestBuffer = null;
+			stream.connected = false;
+			stream.state = newState;
+			if ( newState == State.CLOSED ) {
+				stream.connection.stopped(System.currentTimeMillis());
+			}
+		}
+	}
+
+	private static final char[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+	static String base64(byte[] data) {
+		StringBuilder out = new StringBuilder((data.length + 2) / 3 * 4);
+		for ( int i = 0; i < data.length; i += 3 ) {
+			int b = (data[i] & 0xff) << 16;
+			if ( i + 1 < data.length ) {
+				b |= (data[i + 1] & 0xff) << 8;
+			}
+			if ( i + 2 < data.length ) {
+				b |= data[i + 2] & 0xff;
+			}
+			out.append(BASE64[(b >> 18) & 0x3f]);
+			out.append(BASE64[(b >> 12) & 0x3f]);
+			out.append(i + 1 < data.length ? BASE64[(b >> 6) & 0x3f] : '=');
+			out.append(i + 2 < data.length ? BASE64[b & 0x3f] : '=');
+		}
+		return out.toString();
+	}
+}
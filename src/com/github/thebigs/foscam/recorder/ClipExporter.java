@@ -0,0 +1,476 @@
+/**
+ *  foscamRecorder - http://github.com/TheBigS
+ *  Copyright (C) 2012
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *   any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.thebigs.foscam.recorder;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import com.xuggle.xuggler.ICodec;
+import com.xuggle.xuggler.IContainer;
+import com.xuggle.xuggler.IContainerFormat;
+import com.xuggle.xuggler.IPacket;
+import com.xuggle.xuggler.IRational;
+import com.xuggle.xuggler.IStreamCoder;
+
+/**
+ * Exports a camera's footage between two times as one clip, copying the
+ * compressed frames out of the segments that cover the range without
+ * decoding them.
+ *
+ * The clip starts at the last keyframe at or before the start time, found
+ * with the segments' {@link FrameIndex}, and ends with the last frame
+ * captured at or before the end time. MP4 segments are remuxed into one MP4
+ * with timestamps that follow the capture times across segment boundaries.
+ * Pack segments are copied into one pack. Frames are streamed one at a time
+ * through a reused buffer, so memory use does not grow with the length of
+ * the range.
+ */
+public class ClipExporter {
+	private static final String FRAGMENTED_MOVFLAGS = "frag_keyframe+empty_moov";
+	private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * What an export wrote.
+	 */
+	public static class Summary {
+		private int segments = 0;
+		private long frames = 0L;
+		private long bytes = 0L;
+		private long firstCaptureTime = -1L;
+		private long lastCaptureTime = -1L;
+
+		/**
+		 * @return segments the clip was copied from
+		 */
+		public int getSegmentCount() {
+			return segments;
+		}
+
+		public long getFrameCount() {
+			return frames;
+		}
+
+		/**
+		 * @return bytes of frame data copied, not counting container overhead
+		 */
+		public long getBytes() {
+			return bytes;
+		}
+
+		/**
+		 * @return capture time of the clip's first frame, -1 if it has none
+		 */
+		public long getFirstCaptureTime() {
+			return firstCaptureTime;
+		}
+
+		/**
+		 * @return capture time of the clip's last frame, -1 if it has none
+		 */
+		public long getLastCaptureTime() {
+			return lastCaptureTime;
+		}
+
+		private void frame(long captureTime, int size) {
+			if ( firstCaptureTime < 0 ) {
+				firstCaptureTime = captureTime;
+			}
+			lastCaptureTime = captureTime;
+			frames++;
+			bytes += size;
+		}
+
+		@Override
+		public String toString() {
+			return "Summary [segments=" + segments + ", frames=" + frames + ", bytes=" + bytes + ", firstCaptureTime="
+					+ firstCaptureTime + ", lastCaptureTime=" + lastCaptureTime + "]";
+		}
+	}
+
+	private final RecordingCatalog catalog;
+	private final RecordingIndex index;
+
+	public ClipExporter(RecordingCatalog catalog) {
+		super();
+		this.catalog = catalog;
+		this.index = new RecordingIndex(catalog);
+	}
+
+	/**
+	 * @return the extension of the clip exported for the range: ".mp4", or
+	 *         the pack extension if the camera recorded in passthrough mode,
+	 *         null if there is nothing recorded in the range
+	 */
+	public String getClipExtension(String camName, long fromMillis, long toMillis) throws IOException {
+		return clipExtension(index.find(camName, fromMillis, toMillis));
+	}
+
+	/**
+	 * Exports to a file, see {@link #getClipExtension} for its format.
+	 */
+	public Summary export(String camName, long fromMillis, long toMillis, File output) throws IOException {
+		List<RecordingIndex.SeekPoint> seekPoints = find(camName, fromMillis, toMillis);
+		if ( isPack(clipExtension(seekPoints)) ) {
+			OutputStream out = new FileOutputStream(output);
+			try {
+				return exportPack(seekPoints, toMillis, out);
+			}
+			finally {
+				out.close();
+			}
+		}
+		IContainer container = IContainer.make();
+		if ( container.open(output.getPath(), IContainer.Type.WRITE, null) < 0 ) {
+			throw new IOException("could not open output file " + output);
+		}
+		return exportMp4(seekPoints, toMillis, container);
+	}
+
+	/**
+	 * Exports to a stream, as for an HTTP download. An MP4 clip is written
+	 * fragmented, since the stream cannot be rewound to finish it. The
+	 * stream is not closed.
+	 */
+	public Summary export(String camName, long fromMillis, long toMillis, OutputStream out) throws IOException {
+		List<RecordingIndex.SeekPoint> seekPoints = find(camName, fromMillis, toMillis);
+		if ( isPack(clipExtension(seekPoints)) ) {
+			return exportPack(seekPoints, toMillis, out);
+		}
+		IContainerFormat format = IContainerFormat.make();
+		format.setOutputFormat("mp4", null, null);
+		IContainer container = IContainer.make();
+		if ( container.open(out, format) < 0 ) {
+			throw new IOException("could not open output stream");
+		}
+		if ( container.setProperty("movflags", FRAGMENTED_MOVFLAGS) < 0 ) {
+			System.err.println("Muxer does not support fragmented MP4, the exported stream may not play");
+		}
+		return exportMp4(seekPoints, toMillis, container);
+	}
+
+	/**
+	 * Unmaps the frame indexes cached for lookups.
+	 */
+	public void close() {
+		index.close();
+	}
+
+	private List<RecordingIndex.SeekPoint> find(String camName, long fromMillis, long toMillis) throws IOException {
+		List<RecordingIndex.SeekPoint> seekPoints = index.find(camName, fromMillis, toMillis);
+		if ( seekPoints.isEmpty() ) {
+			throw new IOException("nothing recorded by '" + camName + "' in that range");
+		}
+		return seekPoints;
+	}
+
+	private static String clipExtension(List<RecordingIndex.SeekPoint> seekPoints) throws IOException {
+		String extension = null;
+		for ( RecordingIndex.SeekPoint seekPoint : seekPoints ) {
+			String segmentExtension = isPack(seekPoint.getFile().getName()) ? PackRecording.FILE_EXTENSION : ".mp4";
+			if ( extension != null && !extension.equals(segmentExtension) ) {
+				throw new IOException("the range holds both mp4 and pack recordings, export them separately");
+			}
+			extension = segmentExtension;
+		}
+		return extension;
+	}
+
+	private static boolean isPack(String fileName) {
+		return fileName != null && fileName.toLowerCase().endsWith(PackRecording.FILE_EXTENSION);
+	}
+
+	/**
+	 * Copies pack records as they are, each JPEG stands on its own. A segment
+	 * still being written is read up to the frames it had when it was opened.
+	 */
+	private Summary exportPack(List<RecordingIndex.SeekPoint> seekPoints, long toMillis, OutputStream output) throws IOException {
+		Summary summary = new Summary();
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(output, WRITE_BUFFER_SIZE));
+		out.writeInt(PackRecording.MAGIC);
+		out.writeInt(PackRecording.VERSION);
+		byte[] buffer = new byte[WRITE_BUFFER_SIZE];
+		long lastCaptureTime = Long.MIN_VALUE;
+		for ( RecordingIndex.SeekPoint seekPoint : seekPoints ) {
+			PackReader reader = new PackReader(seekPoint.getFile());
+			boolean copied = false;
+			try {
+				for ( int frame = reader.findFrameAtOffset(seekPoint.getOffset()); frame < reader.getFrameCount(); frame++ ) {
+					long captureTime = reader.getCaptureTime(frame);
+					if ( captureTime > toMillis ) {
+						break;
+					}
+					// segments can overlap by a frame where one cycled to the next
+					if ( captureTime < lastCaptureTime ) {
+						continue;
+					}
+					int length = reader.getFrameLength(frame);
+					if ( length > buffer.length ) {
+						buffer = new byte[length];
+					}
+					reader.readFrame(frame, buffer);
+					out.writeInt(length);
+					out.writeLong(captureTime);
+					out.write(buffer, 0, length);
+					lastCaptureTime = captureTime;
+					summary.frame(captureTime, length);
+					copied = true;
+				}
+			}
+			finally {
+				reader.close();
+			}
+			if ( copied ) {
+				summary.segments++;
+			}
+		}
+		out.flush();
+		return summary;
+	}
+
+	/**
+	 * Remuxes the segments' video packets into the container, which is open
+	 * for writing but has no streams yet. Closes the container.
+	 */
+	private Summary exportMp4(List<RecordingIndex.SeekPoint> seekPoints, long toMillis, IContainer out) throws IOException {
+		Summary summary = new Summary();
+		Mp4Remuxer remuxer = new Mp4Remuxer(out, summary);
+		try {
+			for ( RecordingIndex.SeekPoint seekPoint : seekPoints ) {
+				if ( remuxer.copy(seekPoint, toMillis) ) {
+					summary.segments++;
+				}
+			}
+		}
+		finally {
+			remuxer.close();
+		}
+		return summary;
+	}
+
+	/**
+	 * Output side of an MP4 export. Timestamps are rewritten to microseconds
+	 * since the clip's first keyframe, computed from each segment's capture
+	 * times, so gaps between segments are kept and overlaps are dropped.
+	 */
+	private static class Mp4Remuxer {
+		private final IContainer out;
+		private final Summary summary;
+		private final IPacket packet = IPacket.make();
+		private IStreamCoder outCoder = null;
+		private IRational outTimeBase = null;
+		private long clipStartMicros = Long.MIN_VALUE;
+		private long lastDts = Long.MIN_VALUE;
+
+		Mp4Remuxer(IContainer out, Summary summary) {
+			this.out = out;
+			this.summary = summary;
+		}
+
+		/**
+		 * @return true if any packets were copied from the segment
+		 */
+		boolean copy(RecordingIndex.SeekPoint seekPoint, long toMillis) throws IOException {
+			File file = seekPoint.getFile();
+			IContainer in = IContainer.make();
+			if ( in.open(file.getPath(), IContainer.Type.READ, null) < 0 ) {
+				// an MP4 still being written only has its moov once it is closed
+				System.err.println("Unable to read '" + file + "', skipping it");
+				return false;
+			}
+			try {
+				int streamIndex = findVideoStream(in);
+				if ( streamIndex < 0 ) {
+					System.err.println("No video in '" + file + "', skipping it");
+					return false;
+				}
+				IStreamCoder inCoder = in.getStream(streamIndex).getStreamCoder();
+				IRational inTimeBase = in.getStream(streamIndex).getTimeBase();
+				if ( outCoder == null ) {
+					openOutput(inCoder);
+				}
+				else if ( inCoder.getWidth() != outCoder.getWidth() || inCoder.getHeight() != outCoder.getHeight() ) {
+					System.err.println("'" + file + "' is " + inCoder.getWidth() + "x" + inCoder.getHeight()
+							+ ", the clip is " + outCoder.getWidth() + "x" + outCoder.getHeight() + ", skipping it");
+					return false;
+				}
+
+				// the index maps capture time to microseconds into the segment
+				long segmentStartMicros = seekPoint.getCaptureTime() * 1000L - seekPoint.getOffset();
+				if ( seekPoint.getOffset() > 0 ) {
+					in.seekKeyFrame(streamIndex, toTimeBase(seekPoint.getOffset(), inTimeBase), IContainer.SEEK_FLAG_BACKWARDS);
+				}
+
+				boolean copied = false;
+				boolean started = false;
+				while ( in.readNextPacket(packet) >= 0 ) {
+					if ( packet.getStreamIndex() != streamIndex || !packet.isComplete() ) {
+						continue;
+					}
+					if ( !started ) {
+						if ( !packet.isKeyPacket() ) {
+							continue;
+						}
+						started = true;
+					}
+					long ptsMicros = segmentStartMicros + toMicros(packet.getPts(), inTimeBase);
+					long dtsMicros = segmentStartMicros + toMicros(packet.getDts(), inTimeBase);
+					long captureTime = ptsMicros / 1000L;
+					if ( captureTime > toMillis ) {
+						break;
+					}
+					if ( clipStartMicros == Long.MIN_VALUE ) {
+						clipStartMicros = dtsMicros;
+					}
+					long dts = toTimeBase(dtsMicros - clipStartMicros, outTimeBase);
+					if ( dts <= lastDts ) {
+						if ( copied ) {
+							dts = lastDts + 1; // rounding, keep decode order strictly increasing
+						}
+						else {
+							continue; // overlaps the end of the previous segment
+						}
+					}
+					long pts = Math.max(dts, toTimeBase(ptsMicros - clipStartMicros, outTimeBase));
+					packet.setStreamIndex(0);
+					packet.setTimeBase(outTimeBase);
+					packet.setDts(dts);
+					packet.setPts(pts);
+					if ( out.writePacket(packet) < 0 ) {
+						throw new IOException("could not write packet from '" + file + "'");
+					}
+					lastDts = dts;
+					summary.frame(captureTime, packet.getSize());
+					copied = true;
+				}
+				return copied;
+			}
+			finally {
+				in.close();
+			}
+		}
+
+		/**
+		 * Copies the first segment's codec settings, so packets can be written as they are.
+		 */
+		private void openOutput(IStreamCoder inCoder) throws IOException {
+			outCoder = IStreamCoder.make(IStreamCoder.Direction.ENCODING, inCoder);
+			out.addNewStream(outCoder);
+			if ( out.writeHeader() < 0 ) {
+				throw new IOException("could not write clip header");
+			}
+			outTimeBase = out.getStream(0).getTimeBase();
+		}
+
+		void close() {
+			if ( outCoder != null ) {
+				out.writeTrailer();
+			}
+			out.close();
+			packet.delete();
+		}
+
+		private static int findVideoStream(IContainer in) {
+			for ( int i = 0; i < in.getNumStreams(); i++ ) {
+				if ( in.getStream(i).getStreamCoder().getCodecType() == ICodec.Type.CODEC_TYPE_VIDEO ) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		private static long toMicros(long timestamp, IRational timeBase) {
+			return timestamp * 1000000L * timeBase.getNumerator() / timeBase.getDenominator();
+		}
+
+		private static long toTimeBase(long micros, IRational timeBase) {
+			return micros * timeBase.getDenominator() / (1000000L * timeBase.getNumerator());
+		}
+	}
+
+	// Command line app
+	public static void main(String[] args) {
+		Options options = new Options();
+
+		options.addOption("o", true, "Recordings dir location (default: './').");
+		options.addOption("n", true, "Webcam name. Defaults to 'webcam'.");
+		options.addOption("b", true, "Start of the clip, as " + Recording.FILE_DATE_PATTERN + ".");
+		options.addOption("e", true, "End of the clip, as " + Recording.FILE_DATE_PATTERN + ".");
+		options.addOption("f", true, "File to write the clip to, '-' for standard output (Defaults to '<start>-<webcam name>-clip.mp4' in the current dir).");
+		options.addOption("h", false, "Print this help message.");
+
+		try {
+			CommandLine cli = new GnuParser().parse(options, args);
+
+			if ( cli.hasOption("h") || !cli.hasOption("b") || !cli.hasOption("e") ) {
+				HelpFormatter formatter = new HelpFormatter();
+				formatter.printHelp( "java -cp recorder.jar " + ClipExporter.class.getName(), options );
+				System.exit(-1);
+			}
+			String camName = cli.getOptionValue("n", "webcam");
+			DateFormat dateFormat = new SimpleDateFormat(Recording.FILE_DATE_PATTERN);
+			Date from = dateFormat.parse(cli.getOptionValue("b"));
+			Date to = dateFormat.parse(cli.getOptionValue("e"));
+
+			// read only, a recorder may be writing to the directory
+			ClipExporter exporter = new ClipExporter(RecordingCatalog.readOnly(cli.getOptionValue("o", "./")));
+			try {
+				String output = cli.getOptionValue("f");
+				Summary summary;
+				if ( "-".equals(output) ) {
+					summary = exporter.export(camName, from.getTime(), to.getTime(), System.out);
+					System.out.flush();
+					System.err.println("Exported " + summary.getFrameCount() + " frames from " + summary.getSegmentCount() + " recordings");
+					return;
+				}
+				if ( output == null ) {
+					String extension = exporter.getClipExtension(camName, from.getTime(), to.getTime());
+					output = RecordingSegment.fileName(from, camName + "-clip", extension == null ? ".mp4" : extension);
+				}
+				summary = exporter.export(camName, from.getTime(), to.getTime(), new File(output));
+				System.err.println("Exported " + summary.getFrameCount() + " frames from " + summary.getSegmentCount() + " recordings to " + output);
+			}
+			finally {
+				exporter.close();
+			}
+		}
+		catch (ParseException e) {
+			System.err.println("Unable to parse command line options: " + e.getMessage());
+		}
+		catch (java.text.ParseException e) {
+			System.err.println("Unable to parse time, expected " + Recording.FILE_DATE_PATTERN + ": " + e.getMessage());
+		}
+		catch (IOException e) {
+			System.err.println("Unable to export clip: " + e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,339 @@
+/**
+ *  foscamRecorder - http://github.com/TheBigS
+ *  Copyright (C) 2012
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *   any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.thebigs.foscam.recorder;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connection policy and health of one camera: how long to wait for it, when
+ * to give up on a connection that has stalled, and how long to wait before
+ * trying again.
+ *
+ * A connection has stalled when no frame has arrived for the stall timeout,
+ * even if the camera is still sending bytes. Failed connections are retried
+ * after an exponential backoff, doubling from the minimum delay up to the
+ * maximum, with each delay drawn at random from its upper half so cameras
+ * that failed together do not all retry together. The backoff starts over
+ * once a connection has streamed for as long as the maximum delay.
+ *
+ * The capture code reports what happens through {@link #connecting},
+ * {@link #frameReceived} and {@link #failed}; anyone can read the health.
+ * A blocking capture can also be {@link #watch watched}, which closes its
+ * connection when it stalls, from a watchdog thread shared by every camera.
+ */
+public class ConnectionManager {
+	public static final long DEFAULT_CONNECT_TIMEOUT_MS = 10000L;
+	public static final long DEFAULT_READ_TIMEOUT_MS    = 10000L;
+	public static final long DEFAULT_STALL_TIMEOUT_MS   = 15000L;
+	public static final long DEFAULT_MIN_BACKOFF_MS     = 1000L;
+	public static final long DEFAULT_MAX_BACKOFF_MS     = 60000L;
+
+	private static final long WATCHDOG_PERIOD_MS = 1000L;
+
+	public enum Health {
+		/** Connecting, or waiting for the first frame of a new connection. */
+		CONNECTING,
+		/** Frames are arriving. */
+		STREAMING,
+		/** Connected, but no frame for longer than the stall timeout. */
+		STALLED,
+		/** The last connection failed, waiting to retry. */
+		BACKING_OFF,
+		/** The camera cannot be captured, as when its URL is invalid. Not retried. */
+		FAILED,
+		/** Capture was shut down. */
+		STOPPED;
+
+		public String label() {
+			return name().toLowerCase().replace('_', '-');
+		}
+	}
+
+	// blocking captures being watched for stalls, checked by one thread for every camera
+	private static final Set<ConnectionManager> watched = Collections.newSetFromMap(new ConcurrentHashMap<ConnectionManager, Boolean>());
+	private static ScheduledExecutorService watchdog = null;
+
+	private final String camName;
+	private final long connectTimeoutMillis;
+	private final long readTimeoutMillis;
+	private final long stallTimeoutMillis;
+	private final long minBackoffMillis;
+	private final long maxBackoffMillis;
+	private final Random random = new Random();
+
+	private Health state = Health.CONNECTING;
+	private long stateSince = System.currentTimeMillis();
+	private long lastFrameTime = -1L;
+	private long streamingSince = -1L;
+	private int consecutiveFailures = 0;
+	private long reconnects = 0L;
+	private long retryAt = -1L;
+	private String lastError = null;
+	private Closeable connection = null;
+	private boolean closedByWatchdog = false;
+
+	public ConnectionManager(String camName) {
+		this(camName, DEFAULT_CONNECT_TIMEOUT_MS, DEFAULT_READ_TIMEOUT_MS, DEFAULT_STALL_TIMEOUT_MS, DEFAULT_MIN_BACKOFF_MS, DEFAULT_MAX_BACKOFF_MS);
+	}
+
+	public ConnectionManager(String camName, long connectTimeoutMillis, long readTimeoutMillis, long stallTimeoutMillis,
+			long minBackoffMillis, long maxBackoffMillis) {
+		super();
+		if ( minBackoffMillis < 1 || maxBackoffMillis < minBackoffMillis ) {
+			throw new IllegalArgumentException("Backoff needs 0 < min <= max: " + minBackoffMillis + ", " + maxBackoffMillis);
+		}
+		this.camName = camName;
+		this.connectTimeoutMillis = connectTimeoutMillis;
+		this.readTimeoutMillis = readTimeoutMillis;
+		this.stallTimeoutMillis = stallTimeoutMillis;
+		this.minBackoffMillis = minBackoffMillis;
+		this.maxBackoffMillis = maxBackoffMillis;
+	}
+
+	public String getCamName() {
+		return camName;
+	}
+
+	public long getConnectTimeout() {
+		return connectTimeoutMillis;
+	}
+
+	public long getReadTimeout() {
+		return readTimeoutMillis;
+	}
+
+	public long getStallTimeout() {
+		return stallTimeoutMillis;
+	}
+
+	/**
+	 * A connection attempt is starting.
+	 */
+	public synchronized void connecting(long now) {
+		if ( state == Health.FAILED || state == Health.STOPPED ) {
+			return;
+		}
+		setState(Health.CONNECTING, now);
+		streamingSince = -1L;
+	}
+
+	public synchronized void frameReceived(long now) {
+		lastFrameTime = now;
+		if ( state == Health.CONNECTING ) {
+			setState(Health.STREAMING, now);
+			streamingSince = now;
+		}
+	}
+
+	/**
+	 * The connection failed or was closed by the camera.
+	 *
+	 * @return how long to wait before connecting again
+	 */
+	public synchronized long failed(String reason, long now) {
+		connection = null;
+		if ( state == Health.STREAMING && now - streamingSince >= maxBackoffMillis ) {
+			consecutiveFailures = 0; // it was a good connection, start the backoff over
+		}
+		consecutiveFailures++;
+		reconnects++;
+		lastError = closedByWatchdog ? "no frame for " + stallTimeoutMillis + "ms" : reason;
+		closedByWatchdog = false;
+		long delay = getBackoff(consecutiveFailures);
+		retryAt = now + delay;
+		if ( state != Health.FAILED && state != Health.STOPPED ) {
+			setState(Health.BACKING_OFF, now);
+		}
+		return delay;
+	}
+
+	/**
+	 * The camera cannot be captured and will not be retried.
+	 */
+	public synchronized void invalid(String reason, long now) {
+		lastError = reason;
+		setState(Health.FAILED, now);
+	}
+
+	/**
+	 * Capture was shut down. Closes the watched connection, if any, so a
+	 * read blocked on it returns.
+	 */
+	public void stopped(long now) {
+		Closeable open;
+		synchronized(this) {
+			open = connection;
+			if ( state != Health.FAILED ) {
+				setState(Health.STOPPED, now);
+			}
+		}
+		unwatch();
+		if ( open != null ) {
+			try {
+				open.close();
+			} catch (IOException e) {
+				// closing down anyway
+			}
+		}
+	}
+
+	/**
+	 * @return true if connected and no frame arrived for the stall timeout
+	 */
+	public synchronized boolean isStalled(long now) {
+		if ( state != Health.CONNECTING && state != Health.STREAMING ) {
+			return false;
+		}
+		long since = state == Health.STREAMING ? lastFrameTime : stateSince;
+		return now - since > stallTimeoutMillis;
+	}
+
+	public synchronized Health getHealth() {
+		return isStalled(System.currentTimeMillis()) && state == Health.STREAMING ? Health.STALLED : state;
+	}
+
+	/**
+	 * @return when the health last changed
+	 */
+	public synchronized long getHealthSince() {
+		return stateSince;
+	}
+
+	/**
+	 * @return when the last frame arrived, -1 if none has
+	 */
+	public synchronized long getLastFrameTime() {
+		return lastFrameTime;
+	}
+
+	/**
+	 * @return failures since the last good connection
+	 */
+	public synchronized int getConsecutiveFailures() {
+		return consecutiveFailures;
+	}
+
+	/**
+	 * @return number of times a connection failed and was retried
+	 */
+	public synchronized long getReconnects() {
+		return reconnects;
+	}
+
+	/**
+	 * @return when the next connection attempt is due, while backing off
+	 */
+	public synchronized long getRetryAt() {
+		return retryAt;
+	}
+
+	/**
+	 * @return why the last connection failed, null if none has
+	 */
+	public synchronized String getLastError() {
+		return lastError;
+	}
+
+	/**
+	 * @return delay before retrying after the given number of consecutive
+	 *         failures, a random value in the upper half of the exponential step
+	 */
+	long getBackoff(int failures) {
+		int doublings = Math.max(0, Math.min(failures - 1, 30));
+		long step = Math.min(maxBackoffMillis, minBackoffMillis << doublings);
+		long half = step / 2;
+		return half + (long) (random.nextDouble() * (step - half + 1));
+	}
+
+	/**
+	 * Has the shared watchdog close the connection if it stalls, which makes
+	 * a read blocked on it fail. Replaces any connection watched before.
+	 */
+	public void watch(Closeable connection) {
+		synchronized(this) {
+			this.connection = connection;
+		}
+		watched.add(this);
+		startWatchdog();
+	}
+
+	public void unwatch() {
+		watched.remove(this);
+		synchronized(this) {
+			connection = null;
+		}
+	}
+
+	private void checkStall(long now) {
+		Closeable stalled;
+		synchronized(this) {
+			if ( connection == null || !isStalled(now) ) {
+				return;
+			}
+			stalled = connection;
+			connection = null;
+			closedByWatchdog = true;
+		}
+		System.err.println("Camera '" + camName + "' stalled, no frame for " + stallTimeoutMillis + "ms. reconnecting");
+		try {
+			stalled.close();
+		} catch (IOException e) {
+			// it is being dropped anyway
+		}
+	}
+
+	private void setState(Health newState, long now) {
+		if ( state != newState ) {
+			state = newState;
+			stateSince = now;
+		}
+	}
+
+	private static synchronized void startWatchdog() {
+		if ( watchdog != null ) {
+			return;
+		}
+		watchdog = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "Connection watchdog");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		watchdog.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				long now = System.currentTimeMillis();
+				for ( ConnectionManager manager : watched ) {
+					manager.checkStall(now);
+				}
+			}
+		}, WATCHDOG_PERIOD_MS, WATCHDOG_PERIOD_MS, TimeUnit.MILLISECONDS);
+	}
+}
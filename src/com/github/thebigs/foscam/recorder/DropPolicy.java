@@ -0,0 +1,40 @@
+/**
+ *  foscamRecorder - http://github.com/TheBigS
+ *  Copyright (C) 2012
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *   any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.github.thebigs.foscam.recorder;
+
+/**
+ * What a {@link FrameQueue} does with a frame when it is full.
+ */
+public enum DropPolicy {
+	/** Evict the oldest queued frame to make room for the new one. */
+	DROP_OLDEST,
+	/** Discard the new frame. */
+	DROP_NEWEST,
+	/**
+	 * Discard the new frame unless it falls on a keyframe interval, in which
+	 * case the oldest queued frame is evicted for it. Under sustained pressure
+	 * this thins the recording out to one frame per GOP.
+	 */
+	KEYFRAMES_ONLY;
+
+	public static DropPolicy parse(String name) {
+		return valueOf(name.trim().toUpperCase().replace('-', '_'));
+	}
+}
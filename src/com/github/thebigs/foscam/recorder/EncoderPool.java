@@ -0,0 +1,166 @@
+/**
+ *  foscamRecorder - http://github.com/TheBigS
+ *  Copyright (C) 2012
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *   any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.github.thebigs.foscam.recorder;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Fixed-size pool of encoder threads shared by several cameras.
+ *
+ * Each camera registers an {@link Encoder} and gets a {@link Lane} back. When
+ * the camera has frames it signals its lane, which puts it at the back of a
+ * single run queue. A worker that picks the lane up encodes at most
+ * framesPerTurn frames before the lane goes to the back of the queue again,
+ * so cameras take turns and a busy HD camera cannot starve the others. A lane
+ * is never on the queue twice, so one camera's frames are always encoded by
+ * one thread at a time and in order.
+ */
+public class EncoderPool {
+	public static final int DEFAULT_THREADS         = Runtime.getRuntime().availableProcessors();
+	public static final int DEFAULT_FRAMES_PER_TURN = 1;
+
+	private static final long WORKER_SHUTDOWN_TIMEOUT_MS = 5000L;
+
+	/**
+	 * Work scheduled on the pool for one camera.
+	 */
+	public interface Encoder {
+		/**
+		 * Encodes up to maxFrames queued frames.
+		 *
+		 * @return the number of frames encoded
+		 */
+		int encodeFrames(int maxFrames);
+
+		boolean hasPendingFrames();
+	}
+
+	public class Lane {
+		private final Encoder encoder;
+		private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+		private Lane(Encoder encoder) {
+			this.encoder = encoder;
+		}
+
+		/**
+		 * Tells the pool this camera has frames waiting. Cheap to call for every frame.
+		 */
+		public void signal() {
+			if ( !shutdown && scheduled.compareAndSet(false, true) ) {
+				runQueue.add(this);
+			}
+		}
+	}
+
+	private final LinkedBlockingQueue<Lane> runQueue = new LinkedBlockingQueue<Lane>();
+	private final Thread[] workers;
+	private final int framesPerTurn;
+	private volatile boolean shutdown = false;
+
+	public EncoderPool() {
+		this(DEFAULT_THREADS, DEFAULT_FRAMES_PER_TURN);
+	}
+
+	public EncoderPool(int threads, int framesPerTurn) {
+		super();
+		if ( threads < 1 ) {
+			throw new IllegalArgumentException("Encoder pool needs at least one thread.");
+		}
+		this.framesPerTurn = Math.max(1, framesPerTurn);
+		this.workers = new Thread[threads];
+		for ( int i = 0; i < threads; i++ ) {
+			workers[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					work();
+				}
+			}, "Encoder pool thread " + i);
+			workers[i].setDaemon(true);
+			workers[i].start();
+		}
+	}
+
+	public Lane register(Encoder encoder) {
+		return new Lane(encoder);
+	}
+
+	public int getThreadCount() {
+		return workers.length;
+	}
+
+	public int getFramesPerTurn() {
+		return framesPerTurn;
+	}
+
+	/**
+	 * @return number of cameras waiting for a worker
+	 */
+	public int getRunQueueLength() {
+		return runQueue.size();
+	}
+
+	/**
+	 * Stops the workers once their current turn is finished. Frames still
+	 * queued by the cameras are not encoded.
+	 */
+	public void shutdown() {
+		shutdown = true;
+		for ( Thread worker : workers ) {
+			worker.interrupt();
+		}
+		for ( Thread worker : workers ) {
+			try {
+				worker.join(WORKER_SHUTDOWN_TIMEOUT_MS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	private void work() {
+		while ( !shutdown ) {
+			Lane lane;
+			try {
+				lane = runQueue.poll(1, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				continue;
+			}
+			if ( lane == null ) {
+				continue;
+			}
+			try {
+				lane.encoder.encodeFrames(framesPerTurn);
+			} catch (RuntimeException e) {
+				System.err.println("Encoder pool: " + e.getMessage());
+			}
+			finally {
+				// back of the line if there is more to do
+				lane.scheduled.set(false);
+				if ( lane.encoder.hasPendingFrames() ) {
+					lane.signal();
+				}
+			}
+		}
+	}
+}
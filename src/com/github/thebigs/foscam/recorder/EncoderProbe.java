@@ -0,0 +1,183 @@
+/**
+ *  foscamRecorder - http://github.com/TheBigS
+ *  Copyright (C) 2012
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *   any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.thebigs.foscam.recorder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Learns a camera's resolution and frame cadence from the first frames of
+ * its stream, to complete an {@link EncoderProfile} left on auto.
+ *
+ * The resolution is read from the JPEG's start of frame header, without
+ * decoding. The frame rate is the median interval between capture times,
+ * rounded to whole frames per second, so a few late frames do not skew it.
+ * Frames are kept while probing so none are lost; they are handed back by
+ * {@link #drainFrames()} once the probe is complete.
+ */
+public class EncoderProbe {
+	public static final int  DEFAULT_FRAMES = 10;
+	public static final long DEFAULT_MAX_MILLIS = 3000L;
+
+	public static final int  DEFAULT_WIDTH = 640;
+	public static final int  DEFAULT_HEIGHT = 480;
+
+	private static final int MAX_FRAME_RATE = 60;
+
+	private final int framesNeeded;
+	private final long maxMillis;
+	private final List<Frame> frames = new ArrayList<Frame>();
+	private int frameSize = -1;
+
+	public EncoderProbe() {
+		this(DEFAULT_FRAMES, DEFAULT_MAX_MILLIS);
+	}
+
+	/**
+	 * @param framesNeeded frames to see before the cadence is trusted
+	 * @param maxMillis stream time after which the probe completes with whatever it has
+	 */
+	public EncoderProbe(int framesNeeded, long maxMillis) {
+		super();
+		this.framesNeeded = Math.max(2, framesNeeded);
+		this.maxMillis = maxMillis;
+	}
+
+	/**
+	 * Adds a frame. Frames that are not readable JPEGs are kept for the
+	 * recording but tell the probe nothing.
+	 */
+	public void add(Frame frame) {
+		if ( frameSize < 0 ) {
+			frameSize = readFrameSize(frame.getData(), 0, frame.getLength());
+		}
+		frames.add(frame);
+	}
+
+	/**
+	 * @return true once enough frames have been seen, or the time limit has passed
+	 */
+	public boolean isComplete() {
+		if ( frames.isEmpty() ) {
+			return false;
+		}
+		long span = frames.get(frames.size() - 1).getCaptureTime() - frames.get(0).getCaptureTime();
+		return frames.size() >= framesNeeded || span >= maxMillis;
+	}
+
+	/**
+	 * @return the configured profile with the learned values filled in where
+	 *         it says auto. If no frame had a readable size, the size falls
+	 *         back to {@link #DEFAULT_WIDTH}x{@link #DEFAULT_HEIGHT}.
+	 */
+	public EncoderProfile resolve(EncoderProfile configured) {
+		EncoderProfile profile = new EncoderProfile(configured);
+		if ( profile.getWidth() == EncoderProfile.AUTO ) {
+			if ( frameSize >= 0 ) {
+				profile.setSize(frameSize >>> 16, frameSize & 0xffff);
+			}
+			else {
+				profile.setSize(DEFAULT_WIDTH, DEFAULT_HEIGHT);
+			}
+		}
+		if ( profile.getFrameRate() == EncoderProfile.AUTO ) {
+			profile.setFrameRate(getFrameRate());
+		}
+		return profile;
+	}
+
+	/**
+	 * @return frames per second from the median interval, 1 if there are too few frames to tell
+	 */
+	public int getFrameRate() {
+		if ( frames.size() < 2 ) {
+			return 1;
+		}
+		long[] intervals = new long[frames.size() - 1];
+		for ( int i = 1; i < frames.size(); i++ ) {
+			intervals[i - 1] = frames.get(i).getCaptureTime() - frames.get(i - 1).getCaptureTime();
+		}
+		Arrays.sort(intervals);
+		long median = intervals[intervals.length / 2];
+		if ( median <= 0 ) {
+			return MAX_FRAME_RATE;
+		}
+		return (int) Math.max(1, Math.min(MAX_FRAME_RATE, Math.round(1000.0 / median)));
+	}
+
+	/**
+	 * @return the size of the first readable frame, as from {@link #readFrameSize}, or -1 if none was
+	 */
+	public int getFrameSize() {
+		return frameSize;
+	}
+
+	/**
+	 * @return the frames seen so far, oldest first, and starts over
+	 */
+	public List<Frame> drainFrames() {
+		List<Frame> drained = new ArrayList<Frame>(frames);
+		frames.clear();
+		frameSize = -1;
+		return drained;
+	}
+
+	/**
+	 * Reads the size of a JPEG from its start of frame header.
+	 *
+	 * @return width &lt;&lt; 16 | height, or -1 if there is no start of frame header
+	 */
+	public static int readFrameSize(byte[] data, int offset, int length) {
+		int end = offset + length;
+		if ( length < 4 || (data[offset] & 0xff) != 0xff || (data[offset + 1] & 0xff) != 0xd8 ) {
+			return -1;
+		}
+		int pos = offset + 2;
+		while ( pos + 4 <= end ) {
+			if ( (data[pos] & 0xff) != 0xff ) {
+				return -1;
+			}
+			int marker = data[pos + 1] & 0xff;
+			if ( marker == 0xff ) {
+				pos++; // fill byte
+				continue;
+			}
+			if ( marker == 0xd8 || (marker >= 0xd0 && marker <= 0xd7) || marker == 0x01 ) {
+				pos += 2; // markers without a length
+				continue;
+			}
+			if ( marker == 0xd9 || marker == 0xda ) {
+				return -1; // end of image or start of scan before any frame header
+			}
+			int segmentLength = ((data[pos + 2] & 0xff) << 8) | (data[pos + 3] & 0xff);
+			// SOF0 to SOF15, apart from DHT (c4), JPG (c8) and DAC (cc)
+			if ( marker >= 0xc0 && marker <= 0xcf && marker != 0xc4 && marker != 0xc8 && marker != 0xcc ) {
+				if ( pos + 9 > end ) {
+					return -1;
+				}
+				int height = ((data[pos + 5] & 0xff) << 8) | (data[pos + 6] & 0xff);
+				int width = ((data[pos + 7] & 0xff) << 8) | (data[pos + 8] & 0xff);
+				return width == 0 || height == 0 ? -1 : (width << 16) | height;
+			}
+			pos += 2 + segmentLength;
+		}
+		return -1;
+	}
+}
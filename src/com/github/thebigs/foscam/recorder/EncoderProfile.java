@@ -0,0 +1,268 @@
+/**
+ *  foscamRecorder - http://github.com/TheBigS
+ *  Copyright (C) 2012
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *   any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.thebigs.foscam.recorder;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * How a camera's video is encoded: resolution, frame rate, GOP, rate
+ * control and the x264 preset, tune and thread count.
+ *
+ * Resolution and frame rate can be left to be learned from the stream (see
+ * {@link EncoderProbe}), which is the default: the encoder then matches the
+ * camera, no frames are rescaled and the time base fits the real cadence.
+ * The GOP defaults to two seconds of frames.
+ *
+ * Profiles are written as comma separated settings, for example
+ * <code>size=1280x720,fps=15,gop=30,bitrate=2000000,preset=veryfast,tune=zerolatency,threads=2</code>:
+ * <ul>
+ * <li>size: WIDTHxHEIGHT or auto</li>
+ * <li>fps: frames per second or auto</li>
+ * <li>gop: pictures per group of pictures, or auto</li>
+ * <li>quality: constant quality, lower is better (the default, 0)</li>
+ * <li>bitrate: bits per second; without quality this switches to bitrate based rate control</li>
+ * <li>preset, tune: x264 preset and tune names</li>
+ * <li>threads: encoder threads, 0 lets the encoder choose</li>
+ * </ul>
+ */
+public class EncoderProfile {
+	public static final int AUTO = 0;
+	public static final int DEFAULT_QUALITY = 0;
+	public static final int DEFAULT_BIT_RATE = 100000;
+	public static final int DEFAULT_BIT_RATE_TOLERANCE = 9000;
+	public static final int DEFAULT_GOP_SECONDS = 2;
+
+	private int width = AUTO;
+	private int height = AUTO;
+	private int frameRate = AUTO;
+	private int gop = AUTO;
+	private int quality = DEFAULT_QUALITY; // < 0 for bitrate based rate control
+	private int bitRate = DEFAULT_BIT_RATE;
+	private String preset = null;
+	private String tune = null;
+	private int threads = 0;
+
+	/**
+	 * A profile that learns resolution and frame rate from the stream.
+	 */
+	public EncoderProfile() {
+		super();
+	}
+
+	public EncoderProfile(EncoderProfile other) {
+		super();
+		this.width = other.width;
+		this.height = other.height;
+		this.frameRate = other.frameRate;
+		this.gop = other.gop;
+		this.quality = other.quality;
+		this.bitRate = other.bitRate;
+		this.preset = other.preset;
+		this.tune = other.tune;
+		this.threads = other.threads;
+	}
+
+	/**
+	 * @return a profile with a fixed resolution and frame rate and default encoding settings
+	 */
+	public static EncoderProfile fixed(int width, int height, int frameRate) {
+		EncoderProfile profile = new EncoderProfile();
+		profile.setSize(width, height);
+		profile.setFrameRate(frameRate);
+		return profile;
+	}
+
+	/**
+	 * @param spec comma separated settings, see the class description
+	 */
+	public static EncoderProfile parse(String spec) {
+		EncoderProfile profile = new EncoderProfile();
+		boolean qualitySet = false;
+		boolean bitRateSet = false;
+		for ( String setting : StringUtils.split(spec, ',') ) {
+			String[] pair = StringUtils.split(setting, "=", 2);
+			if ( pair.length != 2 ) {
+				throw new IllegalArgumentException("Encoder setting '" + setting + "' is not name=value.");
+			}
+			String name = pair[0].trim().toLowerCase();
+			String value = pair[1].trim();
+			if ( name.equals("size") ) {
+				if ( value.equalsIgnoreCase("auto") ) {
+					profile.setSize(AUTO, AUTO);
+				}
+				else {
+					String[] size = StringUtils.split(value.toLowerCase(), 'x');
+					if ( size.length != 2 ) {
+						throw new IllegalArgumentException("Encoder size '" + value + "' is not WIDTHxHEIGHT.");
+					}
+					profile.setSize(Integer.parseInt(size[0].trim()), Integer.parseInt(size[1].trim()));
+				}
+			}
+			else if ( name.equals("fps") ) {
+				profile.setFrameRate(parseAuto(value));
+			}
+			else if ( name.equals("gop") ) {
+				profile.setGop(parseAuto(value));
+			}
+			else if ( name.equals("quality") ) {
+				profile.setQuality(Integer.parseInt(value));
+				qualitySet = true;
+			}
+			else if ( name.equals("bitrate") ) {
+				profile.setBitRate(Integer.parseInt(value));
+				bitRateSet = true;
+			}
+			else if ( name.equals("preset") ) {
+				profile.setPreset(value);
+			}
+			else if ( name.equals("tune") ) {
+				profile.setTune(value);
+			}
+			else if ( name.equals("threads") ) {
+				profile.setThreads(Integer.parseInt(value));
+			}
+			else {
+				throw new IllegalArgumentException("Unknown encoder setting '" + name + "'.");
+			}
+		}
+		if ( bitRateSet && !qualitySet ) {
+			profile.setQuality(-1);
+		}
+		return profile;
+	}
+
+	private static int parseAuto(String value) {
+		return value.equalsIgnoreCase("auto") ? AUTO : Integer.parseInt(value);
+	}
+
+	/**
+	 * @return true if the resolution or frame rate still has to be learned from the stream
+	 */
+	public boolean needsProbe() {
+		return width == AUTO || height == AUTO || frameRate == AUTO;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * @param width pixels, or {@link #AUTO} together with height to use the camera's
+	 */
+	public void setSize(int width, int height) {
+		if ( (width == AUTO) != (height == AUTO) || width < 0 || height < 0 ) {
+			throw new IllegalArgumentException("Invalid encoder size " + width + "x" + height + ".");
+		}
+		this.width = width;
+		this.height = height;
+	}
+
+	public int getFrameRate() {
+		return frameRate;
+	}
+
+	/**
+	 * @param frameRate frames per second, or {@link #AUTO} to use the camera's cadence
+	 */
+	public void setFrameRate(int frameRate) {
+		if ( frameRate < 0 ) {
+			throw new IllegalArgumentException("Invalid encoder frame rate " + frameRate + ".");
+		}
+		this.frameRate = frameRate;
+	}
+
+	/**
+	 * @return pictures per group of pictures, defaulting to {@link #DEFAULT_GOP_SECONDS} of frames
+	 */
+	public int getGop() {
+		if ( gop != AUTO ) {
+			return gop;
+		}
+		return Math.max(1, frameRate == AUTO ? 10 : frameRate * DEFAULT_GOP_SECONDS);
+	}
+
+	public void setGop(int gop) {
+		this.gop = gop;
+	}
+
+	/**
+	 * @return the constant quality, or a negative number for bitrate based rate control
+	 */
+	public int getQuality() {
+		return quality;
+	}
+
+	public void setQuality(int quality) {
+		this.quality = quality;
+	}
+
+	public int getBitRate() {
+		return bitRate;
+	}
+
+	public void setBitRate(int bitRate) {
+		this.bitRate = bitRate;
+	}
+
+	/**
+	 * @return the x264 preset, or null for the encoder's default
+	 */
+	public String getPreset() {
+		return preset;
+	}
+
+	public void setPreset(String preset) {
+		this.preset = preset;
+	}
+
+	/**
+	 * @return the x264 tune, or null for none
+	 */
+	public String getTune() {
+		return tune;
+	}
+
+	public void setTune(String tune) {
+		this.tune = tune;
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	@Override
+	public String toString() {
+		return "EncoderProfile [size=" + (width == AUTO ? "auto" : width + "x" + height)
+				+ ", fps=" + (frameRate == AUTO ? "auto" : String.valueOf(frameRate))
+				+ ", gop=" + getGop()
+				+ (quality >= 0 ? ", quality=" + quality : "")
+				+ ", bitrate=" + bitRate
+				+ (preset == null ? "" : ", preset=" + preset)
+				+ (tune == null ? "" : ", tune=" + tune)
+				+ (threads == 0 ? "" : ", threads=" + threads) + "]";
+	}
+}
@@ -0,0 +1,126 @@
+/**
+ *  foscamRecorder - http://github.com/TheBigS
+ *  Copyright (C) 2012
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *   any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.thebigs.foscam.recorder;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * A still compressed JPEG frame as read from the camera, stamped with the
+ * time it arrived. The data must not be modified once the frame is handed off.
+ *
+ * Frames whose data comes from a {@link FrameBufferPool} are reference
+ * counted: whoever keeps a frame beyond the call that handed it over calls
+ * {@link #retain()}, and {@link #release()} when done with it. The buffer goes
+ * back to the pool when the last reference is released, so the data must not
+ * be used after that. The data array can be longer than the frame, only
+ * {@link #getLength()} bytes of it belong to the frame.
+ */
+public class Frame {
+	private static final AtomicIntegerFieldUpdater<Frame> REF_COUNT = AtomicIntegerFieldUpdater.newUpdater(Frame.class, "refCount");
+
+	private final byte[] data;
+	private final int length;
+	private final long captureTimeMillis;
+	private final long sequence;
+	private final FrameBufferPool pool;
+	final FrameBufferPool.LeakTracker leakTracker;
+	private volatile int refCount = 1;
+
+	/**
+	 * Creates a frame that is not pooled, whose data is left to the garbage collector.
+	 */
+	public Frame(byte[] data, int length, long captureTimeMillis, long sequence) {
+		this(data, length, captureTimeMillis, sequence, null);
+	}
+
+	Frame(byte[] data, int length, long captureTimeMillis, long sequence, FrameBufferPool pool) {
+		super();
+		this.data = data;
+		this.length = length;
+		this.captureTimeMillis = captureTimeMillis;
+		this.sequence = sequence;
+		this.pool = pool;
+		this.leakTracker = pool == null ? null : pool.track(this);
+	}
+
+	public byte[] getData() {
+		return data;
+	}
+
+	public int getLength() {
+		return length;
+	}
+
+	public long getCaptureTime() {
+		return captureTimeMillis;
+	}
+
+	/**
+	 * @return the position of this frame in the camera stream, counting from 0
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * Takes another reference to the frame.
+	 *
+	 * @return this frame
+	 */
+	public Frame retain() {
+		while ( true ) {
+			int count = refCount;
+			if ( count <= 0 ) {
+				throw new IllegalStateException("Frame " + sequence + " was retained after it was released.");
+			}
+			if ( REF_COUNT.compareAndSet(this, count, count + 1) ) {
+				return this;
+			}
+		}
+	}
+
+	/**
+	 * Gives up a reference to the frame, returning its buffer to the pool if it was the last.
+	 */
+	public void release() {
+		int count = REF_COUNT.decrementAndGet(this);
+		if ( count == 0 ) {
+			if ( pool != null ) {
+				pool.recycle(this);
+			}
+		}
+		else if ( count < 0 ) {
+			throw new IllegalStateException("Frame " + sequence + " was released more often than it was retained.");
+		}
+	}
+
+	/**
+	 * @return references held on the frame, 0 once it has been released
+	 */
+	public int getRefCount() {
+		return refCount;
+	}
+
+	/**
+	 * @return true if the frame's data came from a {@link FrameBufferPool}
+	 */
+	public boolean isPooled() {
+		return pool != null;
+	}
+}
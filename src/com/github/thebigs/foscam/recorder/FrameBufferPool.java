@@ -0,0 +1,248 @@
+/**
+ *  foscamRecorder - http://github.com/TheBigS
+ *  Copyright (C) 2012
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *   any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.thebigs.foscam.recorder;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of the byte buffers frames are copied into off the camera
+ * connection, so a camera streaming HD JPEGs does not turn every frame into
+ * garbage for the young generation.
+ *
+ * Buffers come in power-of-two size classes from 16 KB to 4 MB. A camera's
+ * frames vary by a few percent around a size set by its resolution, so
+ * each camera nearly always draws from one class, and cameras at the same
+ * resolution share it. Larger frames are not pooled. Buffers return to the
+ * pool when their {@link Frame} is released for the last time; the pool
+ * keeps up to maxBytes of them and leaves the rest to the garbage
+ * collector.
+ *
+ * A pooled frame that is garbage collected without being released is a
+ * leak. It costs nothing but a missed reuse, since its buffer is collected
+ * with it. Each one is counted and the first few are logged, so a consumer
+ * that forgets to release shows up in the metrics rather than as GC churn.
+ *
+ * Safe to use from any thread.
+ */
+public class FrameBufferPool implements FrameBufferPoolMBean {
+	public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+	private static final int MIN_SIZE_SHIFT = 14; // 16 KB
+	private static final int MAX_SIZE_SHIFT = 22; // 4 MB
+	private static final int MAX_LOGGED_LEAKS = 10;
+
+	/**
+	 * Notices frames collected while still referenced. Cleared when the frame
+	 * is released, so only leaks are ever enqueued.
+	 */
+	static class LeakTracker extends PhantomReference<Frame> {
+		private final long sequence;
+		private final int length;
+
+		LeakTracker(Frame frame, ReferenceQueue<Frame> queue) {
+			super(frame, queue);
+			this.sequence = frame.getSequence();
+			this.length = frame.getLength();
+		}
+	}
+
+	private final String name;
+	private final long maxBytes;
+	private final ArrayBlockingQueue<byte[]>[] freeBuffers;
+	private final AtomicLong pooledBytes = new AtomicLong();
+
+	// trackers must stay reachable until their frame is released or collected
+	private final Set<LeakTracker> trackers = Collections.newSetFromMap(new ConcurrentHashMap<LeakTracker, Boolean>());
+	private final ReferenceQueue<Frame> collected = new ReferenceQueue<Frame>();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong leaks = new AtomicLong();
+	private final AtomicInteger buffersInUse = new AtomicInteger();
+
+	public FrameBufferPool(String name) {
+		this(name, DEFAULT_MAX_BYTES);
+	}
+
+	/**
+	 * @param name tells pools apart in metrics and leak reports
+	 * @param maxBytes most memory kept in idle buffers
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public FrameBufferPool(String name, long maxBytes) {
+		super();
+		this.name = name;
+		this.maxBytes = maxBytes;
+		this.freeBuffers = new ArrayBlockingQueue[MAX_SIZE_SHIFT - MIN_SIZE_SHIFT + 1];
+		for ( int i = 0; i < freeBuffers.length; i++ ) {
+			long bufferSize = 1L << (MIN_SIZE_SHIFT + i);
+			freeBuffers[i] = new ArrayBlockingQueue<byte[]>((int) Math.max(1L, maxBytes / bufferSize));
+		}
+	}
+
+	/**
+	 * Copies frame data into a pooled buffer.
+	 *
+	 * @return a frame holding one reference, for the caller
+	 */
+	public Frame copyOf(byte[] data, int offset, int length, long captureTimeMillis, long sequence) {
+		reportLeaks();
+
+		int sizeClass = sizeClass(length);
+		if ( sizeClass < 0 ) {
+			misses.incrementAndGet();
+			byte[] copy = new byte[length];
+			System.arraycopy(data, offset, copy, 0, length);
+			return new Frame(copy, length, captureTimeMillis, sequence);
+		}
+
+		byte[] buffer = freeBuffers[sizeClass].poll();
+		if ( buffer != null ) {
+			pooledBytes.addAndGet(-buffer.length);
+			hits.incrementAndGet();
+		}
+		else {
+			buffer = new byte[1 << (MIN_SIZE_SHIFT + sizeClass)];
+			misses.incrementAndGet();
+		}
+		System.arraycopy(data, offset, buffer, 0, length);
+		buffersInUse.incrementAndGet();
+		return new Frame(buffer, length, captureTimeMillis, sequence, this);
+	}
+
+	LeakTracker track(Frame frame) {
+		LeakTracker tracker = new LeakTracker(frame, collected);
+		trackers.add(tracker);
+		return tracker;
+	}
+
+	/**
+	 * Takes back the buffer of a frame whose last reference was released.
+	 */
+	void recycle(Frame frame) {
+		LeakTracker tracker = frame.leakTracker;
+		if ( tracker != null ) {
+			tracker.clear();
+			trackers.remove(tracker);
+		}
+		buffersInUse.decrementAndGet();
+
+		byte[] buffer = frame.getData();
+		int sizeClass = sizeClass(buffer.length);
+		if ( sizeClass < 0 || buffer.length != 1 << (MIN_SIZE_SHIFT + sizeClass) ) {
+			return;
+		}
+		if ( pooledBytes.addAndGet(buffer.length) > maxBytes || !freeBuffers[sizeClass].offer(buffer) ) {
+			pooledBytes.addAndGet(-buffer.length);
+		}
+	}
+
+	/**
+	 * Counts the frames collected since the last call without being released.
+	 */
+	private void reportLeaks() {
+		Reference<? extends Frame> ref;
+		while ( (ref = collected.poll()) != null ) {
+			LeakTracker tracker = (LeakTracker) ref;
+			if ( !trackers.remove(tracker) ) {
+				continue;
+			}
+			buffersInUse.decrementAndGet();
+			if ( leaks.incrementAndGet() <= MAX_LOGGED_LEAKS ) {
+				System.err.println("Frame buffer leak in pool '" + name + "': frame " + tracker.sequence + " (" + tracker.length
+						+ " bytes) was garbage collected without being released");
+			}
+		}
+	}
+
+	/**
+	 * @return the index of the smallest size class that holds length bytes, or -1 if it is too large to pool
+	 */
+	private static int sizeClass(int length) {
+		if ( length <= 1 << MIN_SIZE_SHIFT ) {
+			return 0;
+		}
+		int shift = 32 - Integer.numberOfLeadingZeros(length - 1);
+		return shift > MAX_SIZE_SHIFT ? -1 : shift - MIN_SIZE_SHIFT;
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public long getHits() {
+		return hits.get();
+	}
+
+	@Override
+	public long getMisses() {
+		return misses.get();
+	}
+
+	@Override
+	public double getHitRate() {
+		long h = hits.get();
+		long total = h + misses.get();
+		return total == 0 ? 0.0 : (double) h / total;
+	}
+
+	@Override
+	public int getBuffersInUse() {
+		reportLeaks();
+		return buffersInUse.get();
+	}
+
+	@Override
+	public long getPooledBytes() {
+		return pooledBytes.get();
+	}
+
+	@Override
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	@Override
+	public long getLeaks() {
+		reportLeaks();
+		return leaks.get();
+	}
+
+	/**
+	 * Drops every idle buffer.
+	 */
+	public void clear() {
+		for ( ArrayBlockingQueue<byte[]> buffers : freeBuffers ) {
+			byte[] buffer;
+			while ( (buffer = buffers.poll()) != null ) {
+				pooledBytes.addAndGet(-buffer.length);
+			}
+		}
+	}
+}
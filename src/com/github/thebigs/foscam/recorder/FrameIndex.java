@@ -0,0 +1,268 @@
+/**
+ *  foscamRecorder - http://github.com/TheBigS
+ *  Copyright (C) 2012
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *   any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.thebigs.foscam.recorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Memory-mapped sidecar index of a segment file: one (timestamp, offset)
+ * entry per seekable frame, in the order the frames were written. In a pack
+ * file every frame is indexed and the offset is its byte position; in an MP4
+ * recording only keyframes are indexed and the offset is the keyframe's
+ * timestamp in microseconds from the start of the video, ready for
+ * IContainer.seekKeyFrame.
+ *
+ * The file starts with a 16 byte header (magic, version, entry count) and is
+ * followed by fixed 16 byte entries, so finding the frame for a time is a
+ * binary search over the mapping with no reads or allocation. Writers grow
+ * the mapping in doubling steps and cut the file back to its entries on
+ * close; readers map only the entries that were committed when the index
+ * was opened. Timestamps must never decrease.
+ * An index can also be built in memory only, see {@link #createInMemory(File)}.
+ *
+ * Not thread safe.
+ */
+public class FrameIndex {
+	public static final String FILE_EXTENSION = ".idx";
+
+	private static final int MAGIC = 0x46494458; // "FIDX"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 16;
+	private static final int COUNT_POSITION = 8;
+	private static final int ENTRY_SIZE = 16;
+	private static final int INITIAL_CAPACITY = 4096;
+
+	private final File file;
+	private final boolean writable;
+	private final boolean inMemory;
+	private RandomAccessFile raf;
+	private FileChannel channel;
+	private ByteBuffer map; // mapped, or on the heap for an index kept in memory
+	private int count = 0;
+	private int capacity = 0;
+
+	/**
+	 * @return the sidecar index file for a segment file
+	 */
+	public static File indexFileFor(File segmentFile) {
+		return new File(segmentFile.getPath() + FILE_EXTENSION);
+	}
+
+	/**
+	 * Creates a new, empty index for writing, replacing any existing file.
+	 */
+	public static FrameIndex create(File file) throws IOException {
+		FrameIndex index = new FrameIndex(file, true);
+		index.raf.setLength(0);
+		index.remap(INITIAL_CAPACITY);
+		index.map.putInt(0, MAGIC);
+		index.map.putInt(4, VERSION);
+		index.map.putInt(COUNT_POSITION, 0);
+		return index;
+	}
+
+	/**
+	 * Creates an empty index that is only kept in memory, for readers that
+	 * must not write next to a segment another process may be writing.
+	 *
+	 * @param file the index file the entries stand in for
+	 */
+	public static FrameIndex createInMemory(File file) {
+		FrameIndex index = new FrameIndex(file);
+		index.remapInMemory(INITIAL_CAPACITY);
+		index.map.putInt(0, MAGIC);
+		index.map.putInt(4, VERSION);
+		index.map.putInt(COUNT_POSITION, 0);
+		return index;
+	}
+
+	/**
+	 * Opens an existing index read only.
+	 *
+	 * @throws IOException if the file is missing or is not an index
+	 */
+	public static FrameIndex open(File file) throws IOException {
+		FrameIndex index = new FrameIndex(file, false);
+		try {
+			if ( index.channel.size() < HEADER_SIZE ) {
+				throw new IOException("truncated frame index " + file);
+			}
+			ByteBuffer header = index.channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+			if ( header.getInt(0) != MAGIC || header.getInt(4) != VERSION ) {
+				throw new IOException("not a frame index " + file);
+			}
+			// entries past the end of the file were never written
+			long entriesInFile = (index.channel.size() - HEADER_SIZE) / ENTRY_SIZE;
+			int committed = (int) Math.min(header.getInt(COUNT_POSITION), entriesInFile);
+			index.count = Math.max(0, committed);
+			index.capacity = index.count;
+			index.map = index.channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE + (long) index.count * ENTRY_SIZE);
+		} catch (IOException e) {
+			index.close();
+			throw e;
+		}
+		return index;
+	}
+
+	private FrameIndex(File file) {
+		super();
+		this.file = file;
+		this.writable = true;
+		this.inMemory = true;
+	}
+
+	private FrameIndex(File file, boolean writable) throws IOException {
+		super();
+		this.file = file;
+		this.writable = writable;
+		this.inMemory = false;
+		this.raf = new RandomAccessFile(file, writable ? "rw" : "r");
+		this.channel = raf.getChannel();
+	}
+
+	/**
+	 * Appends an entry and commits it to the header count.
+	 */
+	public void append(long timestampMillis, long offset) throws IOException {
+		if ( !writable ) {
+			throw new IllegalStateException("frame index " + file + " is read only");
+		}
+		if ( count == capacity ) {
+			if ( inMemory ) {
+				remapInMemory(capacity * 2);
+			}
+			else {
+				remap(capacity * 2);
+			}
+		}
+		int pos = HEADER_SIZE + count * ENTRY_SIZE;
+		map.putLong(pos, timestampMillis);
+		map.putLong(pos + 8, offset);
+		count++;
+		map.putInt(COUNT_POSITION, count);
+	}
+
+	public int size() {
+		return count;
+	}
+
+	public long getTimestamp(int i) {
+		checkIndex(i);
+		return map.getLong(HEADER_SIZE + i * ENTRY_SIZE);
+	}
+
+	public long getOffset(int i) {
+		checkIndex(i);
+		return map.getLong(HEADER_SIZE + i * ENTRY_SIZE + 8);
+	}
+
+	/**
+	 * @return the last entry at or before the timestamp, the first entry if
+	 *         the timestamp is earlier than all of them, or -1 if the index is empty
+	 */
+	public int find(long timestampMillis) {
+		if ( count == 0 ) {
+			return -1;
+		}
+		int low = 0;
+		int high = count - 1;
+		while ( low < high ) {
+			int mid = (low + high + 1) >>> 1;
+			if ( map.getLong(HEADER_SIZE + mid * ENTRY_SIZE) <= timestampMillis ) {
+				low = mid;
+			}
+			else {
+				high = mid - 1;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * @return bytes used by the index file, 0 for an index kept in memory
+	 */
+	public long getFileSize() {
+		if ( inMemory ) {
+			return 0L;
+		}
+		return HEADER_SIZE + (long) capacity * ENTRY_SIZE;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Flushes a writable index to disk, cuts off the capacity it grew into
+	 * beyond the entries written, and releases the file.
+	 */
+	public void close() {
+		try {
+			try {
+				if ( writable && map instanceof MappedByteBuffer ) {
+					((MappedByteBuffer) map).force();
+					map = null;
+					// readers map no further than the committed entries, so this leaves their mappings valid
+					raf.setLength(HEADER_SIZE + (long) count * ENTRY_SIZE);
+					capacity = count;
+				}
+			}
+			finally {
+				map = null;
+				if ( raf != null ) {
+					raf.close();
+				}
+			}
+		} catch (IOException e) {
+			System.err.println("Unable to close frame index '" + file + "': " + e.getMessage());
+		}
+		raf = null;
+		channel = null;
+	}
+
+	private void remap(int newCapacity) throws IOException {
+		if ( map != null ) {
+			((MappedByteBuffer) map).force();
+		}
+		map = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) newCapacity * ENTRY_SIZE);
+		capacity = newCapacity;
+	}
+
+	private void remapInMemory(int newCapacity) {
+		ByteBuffer grown = ByteBuffer.allocate(HEADER_SIZE + newCapacity * ENTRY_SIZE);
+		if ( map != null ) {
+			ByteBuffer old = map.duplicate();
+			old.clear();
+			grown.put(old);
+		}
+		map = grown;
+		capacity = newCapacity;
+	}
+
+	private void checkIndex(int i) {
+		if ( i < 0 || i >= count ) {
+			throw new IndexOutOfBoundsException("frame " + i + " of " + count);
+		}
+	}
+}
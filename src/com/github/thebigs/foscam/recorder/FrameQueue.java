@@ -0,0 +1,253 @@
+/**
+ *  foscamRecorder - http://github.com/TheBigS
+ *  Copyright (C) 2012
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *   any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.github.thebigs.foscam.recorder;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded lock-free ring buffer of frames between the capture thread and the
+ * encoder. When the ring is full the {@link DropPolicy} decides which frame is
+ * lost, so a slow encoder never blocks the camera connection.
+ *
+ * Any number of threads may offer and poll. {@link #take(long, TimeUnit)}
+ * parks the calling thread and is meant for a single dedicated consumer.
+ *
+ * The queue owns a reference to every frame in it: {@link #offer} takes over
+ * the caller's, frames that are dropped or cleared are released, and
+ * {@link #poll} and {@link #take} hand the reference on to the caller.
+ */
+public class FrameQueue {
+	public static final int DEFAULT_CAPACITY          = 64;
+	public static final int DEFAULT_KEYFRAME_INTERVAL = 10;
+
+	private final AtomicReferenceArray<Frame> slots;
+	private final AtomicLongArray sequences;
+	private final int mask;
+	private final AtomicLong head = new AtomicLong(); // next slot to poll
+	private final AtomicLong tail = new AtomicLong(); // next slot to fill
+
+	private final DropPolicy dropPolicy;
+	private volatile int keyframeInterval;
+
+	private final AtomicLong offeredCount = new AtomicLong();
+	private final AtomicLong droppedCount = new AtomicLong();
+
+	private volatile Thread waiter = null;
+
+	public FrameQueue() {
+		this(DEFAULT_CAPACITY, DropPolicy.DROP_OLDEST, DEFAULT_KEYFRAME_INTERVAL);
+	}
+
+	/**
+	 * @param capacity number of frames the queue holds, rounded up to a power of two
+	 * @param keyframeInterval captured frames per group of pictures of the encoder
+	 *        profile, used by {@link DropPolicy#KEYFRAMES_ONLY}
+	 */
+	public FrameQueue(int capacity, DropPolicy dropPolicy, int keyframeInterval) {
+		super();
+		if ( capacity < 1 ) {
+			throw new IllegalArgumentException("Capacity must be at least 1.");
+		}
+		if ( dropPolicy == null ) {
+			throw new IllegalArgumentException("Drop policy cannot be null.");
+		}
+		int size = Integer.highestOneBit(capacity);
+		if ( size < capacity ) {
+			size <<= 1;
+		}
+		this.slots = new AtomicReferenceArray<Frame>(size);
+		this.sequences = new AtomicLongArray(size);
+		for ( int i = 0; i < size; i++ ) {
+			sequences.set(i, i);
+		}
+		this.mask = size - 1;
+		this.dropPolicy = dropPolicy;
+		this.keyframeInterval = Math.max(1, keyframeInterval);
+	}
+
+	/**
+	 * Sets the captured frames per group of pictures once the encoder profile
+	 * is known, as when the frame rate is learned from the stream.
+	 */
+	public void setKeyframeInterval(int keyframeInterval) {
+		this.keyframeInterval = Math.max(1, keyframeInterval);
+	}
+
+	/**
+	 * Queues a frame, dropping one according to the drop policy if the queue
+	 * is full. Takes over the caller's reference to the frame.
+	 *
+	 * @return false if the given frame itself was dropped
+	 */
+	public boolean offer(Frame frame) {
+		offeredCount.incrementAndGet();
+		boolean queued = tryEnqueue(frame);
+		if ( !queued && (dropPolicy == DropPolicy.DROP_OLDEST
+				|| (dropPolicy == DropPolicy.KEYFRAMES_ONLY && frame.getSequence() % keyframeInterval == 0)) ) {
+			// make room by evicting the oldest
+			while ( !queued ) {
+				Frame evicted = tryDequeue();
+				if ( evicted != null ) {
+					droppedCount.incrementAndGet();
+					evicted.release();
+				}
+				queued = tryEnqueue(frame);
+			}
+		}
+		if ( queued ) {
+			Thread t = waiter;
+			if ( t != null ) {
+				LockSupport.unpark(t);
+			}
+		}
+		else {
+			droppedCount.incrementAndGet();
+			frame.release();
+		}
+		return queued;
+	}
+
+	/**
+	 * @return the oldest queued frame, or null if the queue is empty
+	 */
+	public Frame poll() {
+		return tryDequeue();
+	}
+
+	/**
+	 * Waits up to the given time for a frame.
+	 *
+	 * @return the oldest queued frame, or null if none arrived in time
+	 */
+	public Frame take(long timeout, TimeUnit unit) throws InterruptedException {
+		Frame frame = tryDequeue();
+		if ( frame != null ) {
+			return frame;
+		}
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		waiter = Thread.currentThread();
+		try {
+			while ( (frame = tryDequeue()) == null ) {
+				long remaining = deadline - System.nanoTime();
+				if ( remaining <= 0 ) {
+					break;
+				}
+				LockSupport.parkNanos(this, remaining);
+				if ( Thread.interrupted() ) {
+					throw new InterruptedException();
+				}
+			}
+		}
+		finally {
+			waiter = null;
+		}
+		return frame;
+	}
+
+	/**
+	 * Removes every queued frame.
+	 *
+	 * @return the number of frames removed
+	 */
+	public int clear() {
+		int cleared = 0;
+		Frame frame;
+		while ( (frame = tryDequeue()) != null ) {
+			frame.release();
+			cleared++;
+		}
+		return cleared;
+	}
+
+	/**
+	 * @return number of frames currently queued
+	 */
+	public int size() {
+		long size = tail.get() - head.get();
+		return (int) Math.max(0, Math.min(size, getCapacity()));
+	}
+
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	public int getCapacity() {
+		return mask + 1;
+	}
+
+	public DropPolicy getDropPolicy() {
+		return dropPolicy;
+	}
+
+	/**
+	 * @return number of frames offered since the queue was created
+	 */
+	public long getOfferedCount() {
+		return offeredCount.get();
+	}
+
+	/**
+	 * @return number of frames lost to the drop policy since the queue was created
+	 */
+	public long getDroppedCount() {
+		return droppedCount.get();
+	}
+
+	private boolean tryEnqueue(Frame frame) {
+		while ( true ) {
+			long pos = tail.get();
+			int idx = (int) (pos & mask);
+			long diff = sequences.get(idx) - pos;
+			if ( diff == 0 ) {
+				if ( tail.compareAndSet(pos, pos + 1) ) {
+					slots.set(idx, frame);
+					sequences.set(idx, pos + 1);
+					return true;
+				}
+			}
+			else if ( diff < 0 ) {
+				return false; // full
+			}
+		}
+	}
+
+	private Frame tryDequeue() {
+		while ( true ) {
+			long pos = head.get();
+			int idx = (int) (pos & mask);
+			long diff = sequences.get(idx) - (pos + 1);
+			if ( diff == 0 ) {
+				if ( head.compareAndSet(pos, pos + 1) ) {
+					Frame frame = slots.get(idx);
+					slots.set(idx, null);
+					sequences.set(idx, pos + mask + 1);
+					return frame;
+				}
+			}
+			else if ( diff < 0 ) {
+				return null; // empty
+			}
+		}
+	}
+}
@@ -0,0 +1,31 @@
+/**
+ *  foscamRecorder - http://github.com/TheBigS
+ *  Copyright (C) 2012
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *   any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.thebigs.foscam.recorder;
+
+/**
+ * Told about every frame a {@link Recorder} writes to a recording, on the
+ * encoder thread, so it has to be quick.
+ */
+public interface FrameWrittenListener {
+	/**
+	 * @param captureTimeMillis when the frame was read from the camera
+	 * @param writtenTimeMillis when it was written to the recording
+	 */
+	void onFrameWritten(String camName, long captureTimeMillis, long writtenTimeMillis);
+}
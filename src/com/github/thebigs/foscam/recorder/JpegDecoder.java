@@ -0,0 +1,279 @@
+/**
+ *  foscamRecorder - http://github.com/TheBigS
+ *  Copyright (C) 2012
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *   any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.github.thebigs.foscam.recorder;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.xuggle.xuggler.ICodec;
+import com.xuggle.xuggler.ICodec.ID;
+import com.xuggle.xuggler.IPacket;
+import com.xuggle.xuggler.IPixelFormat;
+import com.xuggle.xuggler.IStreamCoder;
+import com.xuggle.xuggler.IVideoPicture;
+import com.xuggle.xuggler.IVideoResampler;
+
+/**
+ * Decodes JPEG frames straight into YUV420P pictures with the native MJPEG
+ * decoder, without going through AWT.
+ *
+ * Decoders, pictures and resamplers are created once per frame resolution
+ * and reused, so decoding a frame allocates nothing once the camera's
+ * resolution has been seen. A decoder belongs to one camera and must not be
+ * used by two threads at once.
+ */
+public class JpegDecoder {
+	private static final IPixelFormat.Type OUTPUT_PIXEL_FORMAT = IPixelFormat.Type.YUV420P;
+	private static final int PACKET_PADDING = 64;
+
+	/**
+	 * Decoding state for one resolution and chroma subsampling.
+	 */
+	private static class Slot {
+		IStreamCoder decoder;
+		IVideoPicture decoded;
+		IVideoResampler resampler;
+		IVideoPicture output;
+
+		void close() {
+			if ( decoder != null ) {
+				decoder.close();
+				decoder.delete();
+			}
+			if ( decoded != null ) {
+				decoded.delete();
+			}
+			if ( resampler != null ) {
+				resampler.delete();
+			}
+			if ( output != null && output != decoded ) {
+				output.delete();
+			}
+		}
+	}
+
+	private final Map<Long, Slot> slots = new HashMap<Long, Slot>();
+	private long lastKey = -1L;
+	private Slot lastSlot = null;
+	private IPacket packet = null;
+
+	// filled in by readFrameInfo()
+	private int frameWidth;
+	private int frameHeight;
+	private IPixelFormat.Type framePixelFormat;
+
+	/**
+	 * Decodes a JPEG frame.
+	 *
+	 * @param timestamp presentation time of the frame in microseconds
+	 * @return a YUV420P picture that is reused by the next call for the same
+	 *         resolution, or null if the frame could not be decoded on this path
+	 */
+	public IVideoPicture decode(byte[] data, int offset, int length, long timestamp) {
+		if ( !readFrameInfo(data, offset, length) ) {
+			return null;
+		}
+		Slot slot = getSlot();
+		if ( slot == null ) {
+			return null;
+		}
+
+		if ( packet == null || packet.getMaxSize() < length + PACKET_PADDING ) {
+			if ( packet != null ) {
+				packet.delete();
+			}
+			packet = IPacket.make(Math.max(length * 2, MjpegStreamParser.DEFAULT_BUFFER_SIZE));
+		}
+		packet.put(data, offset, 0, length);
+		packet.setComplete(true, length);
+
+		int decodedBytes = slot.decoder.decodeVideo(slot.decoded, packet, 0);
+		if ( decodedBytes < 0 || !slot.decoded.isComplete() ) {
+			return null;
+		}
+		if ( slot.resampler != null ) {
+			if ( slot.resampler.resample(slot.output, slot.decoded) < 0 ) {
+				return null;
+			}
+		}
+		slot.output.setTimeStamp(timestamp);
+		slot.output.setQuality(0);
+		return slot.output;
+	}
+
+	/**
+	 * @return width of the last frame passed to {@link #decode}
+	 */
+	public int getFrameWidth() {
+		return frameWidth;
+	}
+
+	/**
+	 * @return height of the last frame passed to {@link #decode}
+	 */
+	public int getFrameHeight() {
+		return frameHeight;
+	}
+
+	/**
+	 * Releases the native decoders and pictures.
+	 */
+	public void close() {
+		for ( Slot slot : slots.values() ) {
+			slot.close();
+		}
+		slots.clear();
+		lastKey = -1L;
+		lastSlot = null;
+		if ( packet != null ) {
+			packet.delete();
+			packet = null;
+		}
+	}
+
+	private Slot getSlot() {
+		long key = ((long) frameWidth << 32) | ((long) frameHeight << 8) | framePixelFormat.ordinal();
+		if ( key != lastKey ) {
+			lastSlot = openSlot(key);
+			lastKey = key;
+		}
+		return lastSlot.decoder == null ? null : lastSlot;
+	}
+
+	private Slot openSlot(long key) {
+		Slot slot = slots.get(key);
+		if ( slot != null ) {
+			return slot;
+		}
+
+		// a failed slot stays in the map (without a decoder) so it is not retried every frame
+		slot = new Slot();
+		slots.put(key, slot);
+
+		ICodec codec = ICodec.findDecodingCodec(ID.CODEC_ID_MJPEG);
+		if ( codec == null ) {
+			return slot;
+		}
+		IStreamCoder decoder = IStreamCoder.make(IStreamCoder.Direction.DECODING, codec);
+		decoder.setWidth(frameWidth);
+		decoder.setHeight(frameHeight);
+		decoder.setPixelType(framePixelFormat);
+		if ( decoder.open(null, null) < 0 ) {
+			decoder.delete();
+			return slot;
+		}
+
+		IVideoPicture decoded = IVideoPicture.make(framePixelFormat, frameWidth, frameHeight);
+		IVideoResampler resampler = null;
+		IVideoPicture output = decoded;
+		if ( framePixelFormat != OUTPUT_PIXEL_FORMAT ) {
+			if ( !IVideoResampler.isSupported(IVideoResampler.Feature.FEATURE_COLORSPACECONVERSION) ) {
+				decoder.close();
+				decoder.delete();
+				decoded.delete();
+				return slot;
+			}
+			resampler = IVideoResampler.make(frameWidth, frameHeight, OUTPUT_PIXEL_FORMAT, frameWidth, frameHeight, framePixelFormat);
+			output = IVideoPicture.make(OUTPUT_PIXEL_FORMAT, frameWidth, frameHeight);
+		}
+
+		slot.decoder = decoder;
+		slot.decoded = decoded;
+		slot.resampler = resampler;
+		slot.output = output;
+		return slot;
+	}
+
+	/**
+	 * Reads the size and chroma subsampling from the JPEG's start-of-frame
+	 * segment, which is what the native decoder will produce.
+	 */
+	private boolean readFrameInfo(byte[] data, int offset, int length) {
+		int end = offset + length;
+		if ( length < 4 || (data[offset] & 0xff) != 0xff || (data[offset + 1] & 0xff) != 0xd8 ) {
+			return false;
+		}
+		int pos = offset + 2;
+		while ( pos + 4 <= end ) {
+			if ( (data[pos] & 0xff) != 0xff ) {
+				return false;
+			}
+			int marker = data[pos + 1] & 0xff;
+			if ( marker == 0xff ) {
+				pos++; // fill byte
+				continue;
+			}
+			int segmentLength = ((data[pos + 2] & 0xff) << 8) | (data[pos + 3] & 0xff);
+			boolean startOfFrame = marker >= 0xc0 && marker <= 0xcf && marker != 0xc4 && marker != 0xc8 && marker != 0xcc;
+			if ( startOfFrame ) {
+				return readStartOfFrame(data, pos + 4, Math.min(end, pos + 2 + segmentLength));
+			}
+			if ( marker == 0xda || marker == 0xd9 ) {
+				return false; // image data before any frame header
+			}
+			pos += 2 + segmentLength;
+		}
+		return false;
+	}
+
+	private boolean readStartOfFrame(byte[] data, int pos, int end) {
+		if ( pos + 6 > end ) {
+			return false;
+		}
+		frameHeight = ((data[pos + 1] & 0xff) << 8) | (data[pos + 2] & 0xff);
+		frameWidth = ((data[pos + 3] & 0xff) << 8) | (data[pos + 4] & 0xff);
+		int components = data[pos + 5] & 0xff;
+		if ( frameWidth <= 0 || frameHeight <= 0 ) {
+			return false;
+		}
+		if ( components == 1 ) {
+			framePixelFormat = IPixelFormat.Type.GRAY8;
+			return true;
+		}
+		if ( components != 3 || pos + 6 + 9 > end ) {
+			return false;
+		}
+		int lumaSampling = data[pos + 7] & 0xff;
+		int chromaSampling = data[pos + 10] & 0xff;
+		int chromaH = chromaSampling >> 4;
+		int chromaV = chromaSampling & 0x0f;
+		if ( chromaH == 0 || chromaV == 0 ) {
+			return false;
+		}
+		int h = (lumaSampling >> 4) / chromaH;
+		int v = (lumaSampling & 0x0f) / chromaV;
+		if ( h == 2 && v == 2 ) {
+			framePixelFormat = IPixelFormat.Type.YUVJ420P;
+		}
+		else if ( h == 2 && v == 1 ) {
+			framePixelFormat = IPixelFormat.Type.YUVJ422P;
+		}
+		else if ( h == 1 && v == 1 ) {
+			framePixelFormat = IPixelFormat.Type.YUVJ444P;
+		}
+		else if ( h == 1 && v == 2 ) {
+			framePixelFormat = IPixelFormat.Type.YUVJ440P;
+		}
+		else {
+			return false;
+		}
+		return true;
+	}
+}
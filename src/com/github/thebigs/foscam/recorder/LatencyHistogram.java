@@ -0,0 +1,133 @@
+/**
+ *  foscamRecorder - http://github.com/TheBigS
+ *  Copyright (C) 2012
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *   any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.thebigs.foscam.recorder;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of durations in nanoseconds with power of two buckets:
+ * bucket i counts durations in [2^(i-1), 2^i). Recording a duration is a
+ * couple of atomic increments and allocates nothing, so it can sit on the
+ * per-frame path. Quantiles are only as precise as the buckets, within a
+ * factor of two, which is plenty to tell a 2ms decode from a 20ms one.
+ */
+public class LatencyHistogram implements LatencyHistogramMBean {
+	public static final int BUCKETS = 64;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sumNanos = new AtomicLong();
+	private final AtomicLong maxNanos = new AtomicLong();
+
+	public void record(long nanos) {
+		if ( nanos < 0 ) {
+			nanos = 0;
+		}
+		buckets.incrementAndGet(bucketOf(nanos));
+		count.incrementAndGet();
+		sumNanos.addAndGet(nanos);
+		long max;
+		while ( nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos) ) {
+			// lost a race with a larger or concurrent update, check again
+		}
+	}
+
+	static int bucketOf(long nanos) {
+		return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos));
+	}
+
+	/**
+	 * @return the number of durations recorded in bucket i
+	 */
+	public long getBucketCount(int i) {
+		return buckets.get(i);
+	}
+
+	/**
+	 * @return the exclusive upper bound of bucket i, in nanoseconds
+	 */
+	public static long getBucketLimitNanos(int i) {
+		return i >= BUCKETS - 1 ? Long.MAX_VALUE : 1L << i;
+	}
+
+	public long getSumNanos() {
+		return sumNanos.get();
+	}
+
+	/**
+	 * @return the upper bound, in nanoseconds, of the bucket where the given
+	 *         fraction of the durations recorded so far fall, capped at the max
+	 */
+	public long getQuantileNanos(double fraction) {
+		long total = count.get();
+		if ( total == 0 ) {
+			return 0L;
+		}
+		long target = Math.max(1L, (long) Math.ceil(total * fraction));
+		long seen = 0;
+		for ( int i = 0; i < BUCKETS; i++ ) {
+			seen += buckets.get(i);
+			if ( seen >= target ) {
+				return Math.min(getBucketLimitNanos(i), maxNanos.get());
+			}
+		}
+		return maxNanos.get();
+	}
+
+	@Override
+	public long getCount() {
+		return count.get();
+	}
+
+	@Override
+	public long getMeanMicros() {
+		long total = count.get();
+		return total == 0 ? 0L : TimeUnit.NANOSECONDS.toMicros(sumNanos.get() / total);
+	}
+
+	@Override
+	public long getP50Micros() {
+		return TimeUnit.NANOSECONDS.toMicros(getQuantileNanos(0.50));
+	}
+
+	@Override
+	public long getP99Micros() {
+		return TimeUnit.NANOSECONDS.toMicros(getQuantileNanos(0.99));
+	}
+
+	@Override
+	public long getMaxMicros() {
+		return TimeUnit.NANOSECONDS.toMicros(maxNanos.get());
+	}
+
+	/**
+	 * Starts over. Durations recorded while resetting may be partly lost.
+	 */
+	@Override
+	public void reset() {
+		for ( int i = 0; i < BUCKETS; i++ ) {
+			buckets.set(i, 0L);
+		}
+		count.set(0L);
+		sumNanos.set(0L);
+		maxNanos.set(0L);
+	}
+}
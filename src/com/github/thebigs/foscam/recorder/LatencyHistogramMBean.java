@@ -0,0 +1,42 @@
+/**
+ *  foscamRecorder - http://github.com/TheBigS
+ *  Copyright (C) 2012
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *   any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.thebigs.foscam.recorder;
+
+/**
+ * Management interface of a {@link LatencyHistogram}. Times are in microseconds.
+ */
+public interface LatencyHistogramMBean {
+	long getCount();
+
+	long getMeanMicros();
+
+	/**
+	 * Upper bound of the bucket holding the median, within a factor of two.
+	 */
+	long getP50Micros();
+
+	/**
+	 * Upper bound of the bucket holding the 99th percentile, within a factor of two.
+	 */
+	long getP99Micros();
+
+	long getMaxMicros();
+
+	void reset();
+}
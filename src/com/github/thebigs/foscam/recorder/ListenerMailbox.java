@@ -0,0 +1,150 @@
+/**
+ *  foscamRecorder - http://github.com/TheBigS
+ *  Copyright (C) 2012
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *   any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.thebigs.foscam.recorder;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Latest-frame-wins mailbox between a capture thread and one listener.
+ *
+ * {@link #post(Frame)} replaces whatever frame the listener has not picked up
+ * yet and never blocks, so a slow listener skips frames instead of holding up
+ * recording. Delivery runs on a shared pool of daemon threads, at most one
+ * delivery per mailbox at a time, so each listener sees its frames in order
+ * and one slow listener does not delay the others.
+ *
+ * The mailbox holds a reference to the frame it is waiting to deliver, and
+ * releases it once the listener returns or the frame has been replaced.
+ */
+public abstract class ListenerMailbox implements Runnable {
+	private static final ExecutorService DELIVERY_THREADS = Executors.newCachedThreadPool(new ThreadFactory() {
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "Listener thread - " + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	private final Object listener;
+	private final AtomicReference<Frame> latest = new AtomicReference<Frame>();
+	private final AtomicBoolean scheduled = new AtomicBoolean(false);
+	private volatile boolean closed = false;
+	private volatile long skipped = 0L;
+
+	/**
+	 * @param listener the listener frames are delivered to, used to tell mailboxes apart
+	 */
+	protected ListenerMailbox(Object listener) {
+		super();
+		this.listener = listener;
+	}
+
+	/**
+	 * Hands a frame to the listener, on a delivery thread. The frame is
+	 * released when this returns.
+	 */
+	protected abstract void deliver(Frame frame);
+
+	public Object getListener() {
+		return listener;
+	}
+
+	/**
+	 * Leaves the frame for the listener, replacing one it has not picked up yet.
+	 */
+	public void post(Frame frame) {
+		if ( closed ) {
+			return;
+		}
+		Frame replaced = latest.getAndSet(frame.retain());
+		if ( replaced != null ) {
+			replaced.release();
+			skipped++; // only the posting thread writes this
+		}
+		if ( scheduled.compareAndSet(false, true) ) {
+			DELIVERY_THREADS.execute(this);
+		}
+	}
+
+	/**
+	 * Stops delivery. A frame already being delivered still completes.
+	 */
+	public void close() {
+		closed = true;
+		Frame pending = latest.getAndSet(null);
+		if ( pending != null ) {
+			pending.release();
+		}
+	}
+
+	/**
+	 * @return frames replaced before the listener picked them up
+	 */
+	public long getSkippedCount() {
+		return skipped;
+	}
+
+	/**
+	 * Mailboxes are equal when they deliver to the same listener.
+	 */
+	@Override
+	public boolean equals(Object o) {
+		return o instanceof ListenerMailbox && ((ListenerMailbox) o).listener == listener;
+	}
+
+	@Override
+	public int hashCode() {
+		return System.identityHashCode(listener);
+	}
+
+	@Override
+	public void run() {
+		while ( true ) {
+			Frame frame = latest.getAndSet(null);
+			if ( frame != null && closed ) {
+				frame.release();
+				frame = null;
+			}
+			if ( frame == null ) {
+				scheduled.set(false);
+				// a frame posted after the check above but before scheduled was cleared found it still set
+				if ( closed || latest.get() == null || !scheduled.compareAndSet(false, true) ) {
+					return;
+				}
+				continue;
+			}
+			try {
+				deliver(frame);
+			} catch (RuntimeException e) {
+				System.err.println("Listener " + listener + " failed: " + e.getMessage());
+			}
+			finally {
+				frame.release();
+			}
+		}
+	}
+}
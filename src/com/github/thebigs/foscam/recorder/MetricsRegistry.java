@@ -0,0 +1,339 @@
+/**
+ *  foscamRecorder - http://github.com/TheBigS
+ *  Copyright (C) 2012
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *   any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.thebigs.foscam.recorder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Publishes the {@link CameraMetrics} of a set of cameras over JMX, under
+ * <code>com.github.thebigs.foscam.recorder:type=Camera,name=&lt;camera&gt;</code>
+ * with one <code>type=Latency</code> bean per pipeline stage and one
+ * <code>type=FrameBufferPool</code> bean per frame buffer pool, and optionally
+ * as Prometheus text on <code>http://&lt;host&gt;:&lt;port&gt;/metrics</code>.
+ *
+ * Everything here runs on the JMX or HTTP threads when the metrics are read;
+ * the recorders only ever touch their CameraMetrics.
+ */
+public class MetricsRegistry {
+	public static final String JMX_DOMAIN = "com.github.thebigs.foscam.recorder";
+	public static final String METRICS_PATH = "/metrics";
+
+	private static final String PREFIX = "foscam_";
+	// histogram buckets published over HTTP, 1us to 17s, so every scrape has the same series
+	private static final int FIRST_PUBLISHED_BUCKET = 10;
+	private static final int LAST_PUBLISHED_BUCKET = 34;
+
+	private final List<CameraMetrics> cameras = new CopyOnWriteArrayList<CameraMetrics>();
+	private final List<FrameBufferPool> framePools = new CopyOnWriteArrayList<FrameBufferPool>();
+	private final MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+	private HttpServer httpServer = null;
+
+	/**
+	 * Adds a camera and registers its beans with the platform MBean server.
+	 * Failing to register is reported but does not stop the camera being
+	 * published over HTTP.
+	 */
+	public void register(CameraMetrics metrics) {
+		cameras.add(metrics);
+		try {
+			mbeanServer.registerMBean(metrics, cameraName(metrics));
+			for ( CameraMetrics.Stage stage : CameraMetrics.Stage.values() ) {
+				mbeanServer.registerMBean(metrics.getLatency(stage), latencyName(metrics, stage));
+			}
+		} catch (JMException e) {
+			System.err.println("Unable to register metrics for '" + metrics.getCamName() + "' over JMX: " + e.getMessage());
+		}
+	}
+
+	public void unregister(CameraMetrics metrics) {
+		cameras.remove(metrics);
+		try {
+			unregisterIfPresent(cameraName(metrics));
+			for ( CameraMetrics.Stage stage : CameraMetrics.Stage.values() ) {
+				unregisterIfPresent(latencyName(metrics, stage));
+			}
+		} catch (JMException e) {
+			System.err.println("Unable to unregister metrics for '" + metrics.getCamName() + "': " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Adds a frame buffer pool, once however many cameras share it.
+	 */
+	public void register(FrameBufferPool pool) {
+		if ( framePools.contains(pool) ) {
+			return;
+		}
+		framePools.add(pool);
+		try {
+			mbeanServer.registerMBean(pool, framePoolName(pool));
+		} catch (JMException e) {
+			System.err.println("Unable to register frame buffer pool '" + pool.getName() + "' over JMX: " + e.getMessage());
+		}
+	}
+
+	public void unregister(FrameBufferPool pool) {
+		framePools.remove(pool);
+		try {
+			unregisterIfPresent(framePoolName(pool));
+		} catch (JMException e) {
+			System.err.println("Unable to unregister frame buffer pool '" + pool.getName() + "': " + e.getMessage());
+		}
+	}
+
+	private void unregisterIfPresent(ObjectName name) throws JMException {
+		if ( mbeanServer.isRegistered(name) ) {
+			mbeanServer.unregisterMBean(name);
+		}
+	}
+
+	private static ObjectName cameraName(CameraMetrics metrics) throws JMException {
+		return new ObjectName(JMX_DOMAIN + ":type=Camera,name=" + ObjectName.quote(metrics.getCamName()));
+	}
+
+	private static ObjectName latencyName(CameraMetrics metrics, CameraMetrics.Stage stage) throws JMException {
+		return new ObjectName(JMX_DOMAIN + ":type=Latency,camera=" + ObjectName.quote(metrics.getCamName()) + ",stage=" + stage.label());
+	}
+
+	private static ObjectName framePoolName(FrameBufferPool pool) throws JMException {
+		return new ObjectName(JMX_DOMAIN + ":type=FrameBufferPool,name=" + ObjectName.quote(pool.getName()));
+	}
+
+	/**
+	 * Serves the metrics as Prometheus text until {@link #stop()}.
+	 */
+	public void startHttpServer(int port) throws IOException {
+		httpServer = HttpServer.create(new InetSocketAddress(port), 0);
+		httpServer.createContext(METRICS_PATH, new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				byte[] body = toText().getBytes("UTF-8");
+				exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+				exchange.sendResponseHeaders(200, body.length);
+				OutputStream out = exchange.getResponseBody();
+				try {
+					out.write(body);
+				}
+				finally {
+					out.close();
+				}
+			}
+		});
+		httpServer.start();
+		System.out.println("Serving metrics at http://localhost:" + getHttpPort() + METRICS_PATH);
+	}
+
+	/**
+	 * @return the port metrics are served on, or -1 if they are not
+	 */
+	public int getHttpPort() {
+		return httpServer == null ? -1 : httpServer.getAddress().getPort();
+	}
+
+	public void stop() {
+		if ( httpServer != null ) {
+			httpServer.stop(0);
+			httpServer = null;
+		}
+		for ( CameraMetrics metrics : cameras ) {
+			unregister(metrics);
+		}
+		for ( FrameBufferPool pool : framePools ) {
+			unregister(pool);
+		}
+	}
+
+	/**
+	 * @return every camera's metrics in the Prometheus text format
+	 */
+	public String toText() {
+		StringBuilder text = new StringBuilder();
+		counter(text, "frames_received_total", "Frames read from the camera.");
+		for ( CameraMetrics m : cameras ) {
+			sample(text, "frames_received_total", m, m.getFramesReceived());
+		}
+		counter(text, "frames_decoded_total", "Frames decoded from JPEG.");
+		for ( CameraMetrics m : cameras ) {
+			sample(text, "frames_decoded_total", m, m.getFramesDecoded());
+		}
+		counter(text, "frames_encoded_total", "Frames given to the H.264 encoder.");
+		for ( CameraMetrics m : cameras ) {
+			sample(text, "frames_encoded_total", m, m.getFramesEncoded());
+		}
+		counter(text, "frames_written_total", "Frames saved to a recording.");
+		for ( CameraMetrics m : cameras ) {
+			sample(text, "frames_written_total", m, m.getFramesWritten());
+		}
+		counter(text, "frames_dropped_total", "Frames dropped because the encoder fell behind.");
+		for ( CameraMetrics m : cameras ) {
+			sample(text, "frames_dropped_total", m, m.getFramesDropped());
+		}
+		counter(text, "frames_duplicate_total", "Frames not encoded because they repeated the previous frame.");
+		for ( CameraMetrics m : cameras ) {
+			sample(text, "frames_duplicate_total", m, m.getFramesDuplicate());
+		}
+		counter(text, "bytes_in_total", "Bytes read from the camera.");
+		for ( CameraMetrics m : cameras ) {
+			sample(text, "bytes_in_total", m, m.getBytesIn());
+		}
+		counter(text, "bytes_out_total", "Bytes written to recordings.");
+		for ( CameraMetrics m : cameras ) {
+			sample(text, "bytes_out_total", m, m.getBytesOut());
+		}
+		counter(text, "disk_writes_total", "Write calls made to segment files.");
+		for ( CameraMetrics m : cameras ) {
+			sample(text, "disk_writes_total", m, m.getDiskWrites());
+		}
+		counter(text, "disk_bytes_written_total", "Bytes of whole pages written to segment files.");
+		for ( CameraMetrics m : cameras ) {
+			sample(text, "disk_bytes_written_total", m, m.getDiskBytesWritten());
+		}
+		counter(text, "disk_syncs_total", "Times segment files were synced to storage.");
+		for ( CameraMetrics m : cameras ) {
+			sample(text, "disk_syncs_total", m, m.getDiskSyncs());
+		}
+		gauge(text, "write_amplification", "Page bytes written to disk per byte written to segments.");
+		for ( CameraMetrics m : cameras ) {
+			sample(text, "write_amplification", m, m.getWriteAmplification());
+		}
+		gauge(text, "disk_iops", "Disk writes and syncs per second over the last 10 seconds.");
+		for ( CameraMetrics m : cameras ) {
+			sample(text, "disk_iops", m, m.getDiskIops());
+		}
+		gauge(text, "frame_queue_depth", "Frames waiting for the encoder.");
+		for ( CameraMetrics m : cameras ) {
+			sample(text, "frame_queue_depth", m, m.getFrameQueueDepth());
+		}
+		gauge(text, "recording_bytes", "Size of the recording being written.");
+		for ( CameraMetrics m : cameras ) {
+			sample(text, "recording_bytes", m, m.getRecordingBytes());
+		}
+		gauge(text, "quota_headroom_bytes", "Bytes left under the camera's disk quota.");
+		for ( CameraMetrics m : cameras ) {
+			if ( m.getQuotaHeadroomBytes() >= 0 ) {
+				sample(text, "quota_headroom_bytes", m, m.getQuotaHeadroomBytes());
+			}
+		}
+
+		gauge(text, "camera_up", "1 while frames are arriving from the camera, 0 otherwise.");
+		for ( CameraMetrics m : cameras ) {
+			sample(text, "camera_up", m, ConnectionManager.Health.STREAMING.label().equals(m.getConnectionHealth()) ? 1 : 0);
+		}
+		counter(text, "reconnects_total", "Times the camera connection failed and was retried.");
+		for ( CameraMetrics m : cameras ) {
+			sample(text, "reconnects_total", m, m.getReconnects());
+		}
+		gauge(text, "seconds_since_last_frame", "Time since the last frame arrived from the camera.");
+		for ( CameraMetrics m : cameras ) {
+			if ( m.getMillisSinceLastFrame() >= 0 ) {
+				sample(text, "seconds_since_last_frame", m, m.getMillisSinceLastFrame() / 1000.0);
+			}
+		}
+
+		counter(text, "frame_pool_hits_total", "Frames copied into a buffer reused from the pool.");
+		for ( FrameBufferPool pool : framePools ) {
+			sample(text, "frame_pool_hits_total", pool, pool.getHits());
+		}
+		counter(text, "frame_pool_misses_total", "Frames that needed a newly allocated buffer.");
+		for ( FrameBufferPool pool : framePools ) {
+			sample(text, "frame_pool_misses_total", pool, pool.getMisses());
+		}
+		counter(text, "frame_pool_leaks_total", "Frames garbage collected without being released.");
+		for ( FrameBufferPool pool : framePools ) {
+			sample(text, "frame_pool_leaks_total", pool, pool.getLeaks());
+		}
+		gauge(text, "frame_pool_buffers_in_use", "Pooled buffers held by frames not yet released.");
+		for ( FrameBufferPool pool : framePools ) {
+			sample(text, "frame_pool_buffers_in_use", pool, pool.getBuffersInUse());
+		}
+		gauge(text, "frame_pool_idle_bytes", "Memory held by idle buffers waiting to be reused.");
+		for ( FrameBufferPool pool : framePools ) {
+			sample(text, "frame_pool_idle_bytes", pool, pool.getPooledBytes());
+		}
+
+		text.append("# HELP ").append(PREFIX).append("stage_latency_seconds Time spent per frame in each pipeline stage.\n");
+		text.append("# TYPE ").append(PREFIX).append("stage_latency_seconds histogram\n");
+		for ( CameraMetrics m : cameras ) {
+			for ( CameraMetrics.Stage stage : CameraMetrics.Stage.values() ) {
+				histogram(text, m, stage);
+			}
+		}
+		return text.toString();
+	}
+
+	private static void counter(StringBuilder text, String name, String help) {
+		header(text, name, help, "counter");
+	}
+
+	private static void gauge(StringBuilder text, String name, String help) {
+		header(text, name, help, "gauge");
+	}
+
+	private static void header(StringBuilder text, String name, String help, String type) {
+		text.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+		text.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+	}
+
+	private static void sample(StringBuilder text, String name, CameraMetrics m, long value) {
+		text.append(PREFIX).append(name).append("{camera=\"").append(escape(m.getCamName())).append("\"} ").append(value).append('\n');
+	}
+
+	private static void sample(StringBuilder text, String name, CameraMetrics m, double value) {
+		text.append(PREFIX).append(name).append("{camera=\"").append(escape(m.getCamName())).append("\"} ").append(value).append('\n');
+	}
+
+	private static void sample(StringBuilder text, String name, FrameBufferPool pool, long value) {
+		text.append(PREFIX).append(name).append("{pool=\"").append(escape(pool.getName())).append("\"} ").append(value).append('\n');
+	}
+
+	private static void histogram(StringBuilder text, CameraMetrics m, CameraMetrics.Stage stage) {
+		LatencyHistogram latency = m.getLatency(stage);
+		String labels = "camera=\"" + escape(m.getCamName()) + "\",stage=\"" + stage.label() + "\"";
+		long cumulative = 0;
+		for ( int i = 0; i < LatencyHistogram.BUCKETS; i++ ) {
+			cumulative += latency.getBucketCount(i);
+			if ( i >= FIRST_PUBLISHED_BUCKET && i <= LAST_PUBLISHED_BUCKET ) {
+				text.append(PREFIX).append("stage_latency_seconds_bucket{").append(labels)
+					.append(",le=\"").append(LatencyHistogram.getBucketLimitNanos(i) / 1e9).append("\"} ").append(cumulative).append('\n');
+			}
+		}
+		// the count is read after the buckets so +Inf is never below the last bucket
+		long count = Math.max(cumulative, latency.getCount());
+		text.append(PREFIX).append("stage_latency_seconds_bucket{").append(labels).append(",le=\"+Inf\"} ").append(count).append('\n');
+		text.append(PREFIX).append("stage_latency_seconds_sum{").append(labels).append("} ").append(latency.getSumNanos() / 1e9).append('\n');
+		text.append(PREFIX).append("stage_latency_seconds_count{").append(labels).append("} ").append(count).append('\n');
+	}
+
+	private static String escape(String label) {
+		return label.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+}
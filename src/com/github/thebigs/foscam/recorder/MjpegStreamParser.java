@@ -0,0 +1,547 @@
+/**
+ *  foscamRecorder - http://github.com/TheBigS
+ *  Copyright (C) 2012
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *   any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.thebigs.foscam.recorder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Parser for <code>multipart/x-mixed-replace</code> MJPEG streams.
+ *
+ * The parser reads the stream into a single reusable buffer and hands out
+ * frames as (buffer, offset, length) views into it, so once the buffer has
+ * grown to the largest frame size nothing is allocated per frame. A frame view
+ * is only valid until the next call to {@link #nextFrame(InputStream)}.
+ *
+ * Part headers other than Content-Length are skipped. A missing or wrong
+ * Content-Length is tolerated by scanning for the next boundary instead.
+ *
+ * For non-blocking sockets the parser can also be fed: {@link #read(ReadableByteChannel)}
+ * or {@link #append(byte[], int, int)} add whatever bytes have arrived and
+ * {@link #parseFrame()} returns a frame once one is complete, leaving a
+ * partial frame buffered for the next attempt.
+ */
+public class MjpegStreamParser {
+	public static final String DEFAULT_BOUNDARY      = "ipcamera";
+	public static final int    DEFAULT_BUFFER_SIZE   = 64 * 1024;
+	public static final int    DEFAULT_MAX_FRAME_SIZE = 8 * 1024 * 1024;
+	/** Returned by {@link #parseFrame()} when the buffered data does not hold a whole frame yet. */
+	public static final int    NEED_MORE_DATA        = -2;
+
+	private static final byte[] CONTENT_LENGTH = "content-length".getBytes();
+	private static final byte CR = 0x0d;
+	private static final byte LF = 0x0a;
+
+	private final int maxFrameSize;
+
+	private byte[] buffer;
+	private int readPos = 0;   // first byte not yet consumed
+	private int writePos = 0;  // end of the valid data in the buffer
+
+	private byte[] delimiter = null; // "--" + boundary
+
+	private int frameOffset = 0;
+	private int frameLength = 0;
+	private int contentLength = -1;
+
+	private boolean starved = false; // ran out of buffered data while parsing in fed mode
+	private ByteBuffer channelBuffer = null; // wraps buffer for channel reads
+
+	private long bytesRead = 0L;      // since the parser was created, across resets
+	private long blockedNanos = 0L;   // time spent in stream reads by the current parse
+	private long lastParseNanos = 0L;
+
+	public MjpegStreamParser(String contentType) {
+		this(contentType, DEFAULT_BUFFER_SIZE, DEFAULT_MAX_FRAME_SIZE);
+	}
+
+	public MjpegStreamParser(String contentType, int bufferSize, int maxFrameSize) {
+		super();
+		this.buffer = new byte[bufferSize];
+		this.maxFrameSize = maxFrameSize;
+		reset(contentType);
+	}
+
+	/**
+	 * Prepares the parser for a new stream, keeping the buffer that has
+	 * already been allocated.
+	 *
+	 * @param contentType the Content-Type of the HTTP response, used to find
+	 *        the boundary. When blank or without a boundary parameter the
+	 *        boundary is learned from the first delimiter line in the stream.
+	 */
+	public void reset(String contentType) {
+		readPos = 0;
+		writePos = 0;
+		frameOffset = 0;
+		frameLength = 0;
+		contentLength = -1;
+
+		String boundary = parseBoundary(contentType);
+		delimiter = boundary == null ? null : ("--" + boundary).getBytes();
+	}
+
+	/**
+	 * Extracts the boundary parameter from a multipart Content-Type header.
+	 *
+	 * @return the boundary without leading dashes, or null if none is present
+	 */
+	public static String parseBoundary(String contentType) {
+		if ( contentType == null ) {
+			return null;
+		}
+		for ( String param : contentType.split(";") ) {
+			String[] pair = param.trim().split("=", 2);
+			if ( pair.length == 2 && pair[0].trim().equalsIgnoreCase("boundary") ) {
+				String boundary = pair[1].trim();
+				if ( boundary.length() >= 2 && boundary.startsWith("\"") && boundary.endsWith("\"") ) {
+					boundary = boundary.substring(1, boundary.length() - 1);
+				}
+				// some cameras (Foscam included) repeat the dashes in the header
+				while ( boundary.startsWith("-") ) {
+					boundary = boundary.substring(1);
+				}
+				return boundary.length() > 0 ? boundary : null;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Reads the next frame from the stream.
+	 *
+	 * @return the length of the frame, or -1 if the stream ended
+	 */
+	public int nextFrame(InputStream in) throws IOException {
+		starved = false;
+		return parse(in);
+	}
+
+	/**
+	 * Reads whatever a non-blocking channel has available into the buffer.
+	 *
+	 * @return the number of bytes read, possibly 0, or -1 if the channel has ended
+	 */
+	public int read(ReadableByteChannel channel) throws IOException {
+		if ( writePos == buffer.length ) {
+			ensureCapacity(buffer.length * 2);
+		}
+		if ( channelBuffer == null || channelBuffer.array() != buffer ) {
+			channelBuffer = ByteBuffer.wrap(buffer);
+		}
+		channelBuffer.limit(buffer.length);
+		channelBuffer.position(writePos);
+		int n = channel.read(channelBuffer);
+		if ( n > 0 ) {
+			writePos += n;
+			bytesRead += n;
+		}
+		return n;
+	}
+
+	/**
+	 * Adds bytes that arrived by other means, such as the start of the body
+	 * read together with the HTTP response headers.
+	 */
+	public void append(byte[] data, int offset, int length) {
+		ensureCapacity(writePos + length);
+		System.arraycopy(data, offset, buffer, writePos, length);
+		writePos += length;
+		bytesRead += length;
+	}
+
+	/**
+	 * Parses the next frame from the data buffered so far, without reading.
+	 *
+	 * @return the length of the frame, or {@link #NEED_MORE_DATA} if the frame
+	 *         is not complete yet, in which case nothing is consumed
+	 */
+	public int parseFrame() throws IOException {
+		starved = false;
+		int length = parse(null);
+		if ( starved ) {
+			frameOffset = 0;
+			frameLength = 0;
+			return NEED_MORE_DATA;
+		}
+		return length;
+	}
+
+	/**
+	 * @param in the stream to read from, or null to use only buffered data
+	 */
+	private int parse(InputStream in) throws IOException {
+		long start = System.nanoTime();
+		blockedNanos = 0L;
+		int length = parseFrom(in);
+		lastParseNanos = System.nanoTime() - start - blockedNanos;
+		return length;
+	}
+
+	private int parseFrom(InputStream in) throws IOException {
+		frameOffset = 0;
+		frameLength = 0;
+		contentLength = -1;
+
+		if ( !findDelimiter(in) ) {
+			return -1;
+		}
+
+		// rest of the delimiter line (CR/LF, or "--" for the closing delimiter)
+		int pos = readLineEnd(in, readPos);
+		if ( pos < 0 ) {
+			return -1;
+		}
+
+		// part headers, terminated by a blank line
+		while ( true ) {
+			int lineEnd = readLineEnd(in, pos);
+			if ( lineEnd < 0 ) {
+				return -1;
+			}
+			int lineLength = lineEnd - pos - 1;
+			if ( lineLength > 0 && buffer[lineEnd - 2] == CR ) {
+				lineLength--;
+			}
+			if ( lineLength == 0 ) {
+				pos = lineEnd;
+				break;
+			}
+			if ( startsWithIgnoreCase(pos, lineLength, CONTENT_LENGTH) ) {
+				contentLength = parseHeaderInt(pos + CONTENT_LENGTH.length, pos + lineLength);
+			}
+			pos = lineEnd;
+		}
+
+		int bodyStart = pos;
+		int bodyEnd = -1;
+		if ( contentLength >= 0 && contentLength <= maxFrameSize ) {
+			bodyEnd = readKnownLengthBody(in, bodyStart);
+		}
+		if ( bodyEnd < 0 ) {
+			bodyEnd = scanForDelimiter(in, bodyStart);
+		}
+		if ( starved ) {
+			// leave readPos on the delimiter, the part is parsed again once more data is in
+			return -1;
+		}
+
+		// the CR/LF before the next delimiter is not part of the image
+		int end = bodyEnd;
+		while ( end > bodyStart && (buffer[end - 1] == LF || buffer[end - 1] == CR) ) {
+			end--;
+		}
+
+		frameOffset = bodyStart;
+		frameLength = end - bodyStart;
+		readPos = bodyEnd;
+		return frameLength;
+	}
+
+	/**
+	 * @return the buffer holding the last frame. Only valid until the next
+	 *         call to {@link #nextFrame(InputStream)}.
+	 */
+	public byte[] getFrameData() {
+		return buffer;
+	}
+
+	public int getFrameOffset() {
+		return frameOffset;
+	}
+
+	public int getFrameLength() {
+		return frameLength;
+	}
+
+	/**
+	 * @return the Content-Length header of the last frame, or -1 if it had none
+	 */
+	public int getContentLength() {
+		return contentLength;
+	}
+
+	/**
+	 * @return bytes read or appended since the parser was created, boundaries and headers included
+	 */
+	public long getBytesRead() {
+		return bytesRead;
+	}
+
+	/**
+	 * @return time the last parse took, not counting time blocked reading the stream
+	 */
+	public long getLastParseNanos() {
+		return lastParseNanos;
+	}
+
+	/**
+	 * @return the boundary in use, or null if it has not been seen yet
+	 */
+	public String getBoundary() {
+		return delimiter == null ? null : new String(delimiter, 2, delimiter.length - 2);
+	}
+
+	/**
+	 * Positions readPos on the next delimiter, compacting it to the start of
+	 * the buffer so the rest of the part can be parsed without moving data.
+	 */
+	private boolean findDelimiter(InputStream in) throws IOException {
+		if ( delimiter == null ) {
+			return learnDelimiter(in);
+		}
+		int from = readPos;
+		while ( true ) {
+			int idx = indexOf(delimiter, from, writePos);
+			if ( idx >= 0 ) {
+				compact(idx);
+				return true;
+			}
+			// keep the tail in case the delimiter straddles two reads
+			compact(Math.max(readPos, writePos - delimiter.length + 1));
+			from = readPos;
+			if ( fill(in) < 0 ) {
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Takes the first line starting with "--" as the delimiter.
+	 */
+	private boolean learnDelimiter(InputStream in) throws IOException {
+		while ( true ) {
+			int lineEnd = readLineEnd(in, readPos);
+			if ( lineEnd < 0 ) {
+				return false;
+			}
+			int end = lineEnd - 1;
+			if ( end > readPos && buffer[end - 1] == CR ) {
+				end--;
+			}
+			if ( end - readPos > 2 && buffer[readPos] == '-' && buffer[readPos + 1] == '-' ) {
+				delimiter = new byte[end - readPos];
+				System.arraycopy(buffer, readPos, delimiter, 0, delimiter.length);
+				compact(readPos);
+				return true;
+			}
+			readPos = lineEnd;
+			compact(readPos);
+		}
+	}
+
+	/**
+	 * Reads the body straight into the buffer and checks that it ends where
+	 * Content-Length says: at a line break, or right at the next delimiter.
+	 * Cameras send the next delimiter with the next frame, so the frame is
+	 * returned as soon as the line break after it is in, not held back by a
+	 * frame interval waiting for the delimiter.
+	 *
+	 * @return the position after the body's line break, or -1 if the
+	 *         Content-Length was wrong or more data is needed in fed mode
+	 */
+	private int readKnownLengthBody(InputStream in, int bodyStart) throws IOException {
+		int bodyEnd = bodyStart + contentLength;
+		ensureCapacity(bodyEnd + 2);
+		if ( !fillTo(in, bodyEnd + 1) ) {
+			// stream ended right after the frame, or in the middle of it
+			return !starved && writePos == bodyEnd ? bodyEnd : -1;
+		}
+
+		int pos = bodyEnd;
+		if ( buffer[pos] == CR ) {
+			pos++;
+			if ( !fillTo(in, pos + 1) ) {
+				return !starved && writePos == pos ? pos : -1;
+			}
+		}
+		if ( buffer[pos] == LF ) {
+			return pos + 1;
+		}
+		if ( pos == bodyEnd && fillTo(in, pos + delimiter.length) && regionMatches(pos, delimiter) ) {
+			return pos;
+		}
+		return -1;
+	}
+
+	/**
+	 * Reads until the buffer holds data up to target.
+	 *
+	 * @return false if the stream ended first, or in fed mode if the data is not in yet
+	 */
+	private boolean fillTo(InputStream in, int target) throws IOException {
+		while ( writePos < target ) {
+			if ( fill(in) < 0 ) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the position of the next delimiter after from, or the end of
+	 *         the data if the stream ended first
+	 */
+	private int scanForDelimiter(InputStream in, int from) throws IOException {
+		int scanPos = from;
+		while ( true ) {
+			int idx = indexOf(delimiter, scanPos, writePos);
+			if ( idx >= 0 ) {
+				return idx;
+			}
+			scanPos = Math.max(from, writePos - delimiter.length + 1);
+			if ( writePos - from > maxFrameSize ) {
+				throw new IOException("No multipart boundary found within " + maxFrameSize + " bytes");
+			}
+			if ( fill(in) < 0 ) {
+				return writePos;
+			}
+		}
+	}
+
+	/**
+	 * @return the position just after the next LF at or after from, or -1
+	 *         if the stream ended first
+	 */
+	private int readLineEnd(InputStream in, int from) throws IOException {
+		int scanPos = from;
+		while ( true ) {
+			for ( int i = scanPos; i < writePos; i++ ) {
+				if ( buffer[i] == LF ) {
+					return i + 1;
+				}
+			}
+			scanPos = writePos;
+			if ( writePos - from > maxFrameSize ) {
+				throw new IOException("Header line exceeds " + maxFrameSize + " bytes");
+			}
+			if ( fill(in) < 0 ) {
+				return -1;
+			}
+		}
+	}
+
+	private int fill(InputStream in) throws IOException {
+		if ( in == null ) {
+			starved = true;
+			return -1;
+		}
+		if ( writePos == buffer.length ) {
+			ensureCapacity(buffer.length * 2);
+		}
+		long start = System.nanoTime();
+		int n = in.read(buffer, writePos, buffer.length - writePos);
+		blockedNanos += System.nanoTime() - start;
+		if ( n > 0 ) {
+			writePos += n;
+			bytesRead += n;
+		}
+		return n;
+	}
+
+	private void ensureCapacity(int capacity) {
+		if ( capacity > buffer.length ) {
+			byte[] grown = new byte[Math.max(capacity, buffer.length * 2)];
+			System.arraycopy(buffer, 0, grown, 0, writePos);
+			buffer = grown;
+		}
+	}
+
+	/**
+	 * Drops everything before from.
+	 */
+	private void compact(int from) {
+		if ( from > 0 ) {
+			int remaining = writePos - from;
+			if ( remaining > 0 ) {
+				System.arraycopy(buffer, from, buffer, 0, remaining);
+			}
+			writePos = Math.max(remaining, 0);
+		}
+		readPos = 0;
+	}
+
+	private int indexOf(byte[] pattern, int from, int to) {
+		byte first = pattern[0];
+		int last = to - pattern.length;
+		for ( int i = from; i <= last; i++ ) {
+			if ( buffer[i] == first && regionMatches(i, pattern) ) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private boolean regionMatches(int pos, byte[] pattern) {
+		for ( int i = 1; i < pattern.length; i++ ) {
+			if ( buffer[pos + i] != pattern[i] ) {
+				return false;
+			}
+		}
+		return buffer[pos] == pattern[0];
+	}
+
+	private boolean startsWithIgnoreCase(int pos, int length, byte[] lowerCasePrefix) {
+		if ( length < lowerCasePrefix.length ) {
+			return false;
+		}
+		for ( int i = 0; i < lowerCasePrefix.length; i++ ) {
+			int b = buffer[pos + i];
+			if ( b >= 'A' && b <= 'Z' ) {
+				b += 'a' - 'A';
+			}
+			if ( b != lowerCasePrefix[i] ) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Parses the value of a "Name: 1234" header without allocating.
+	 *
+	 * @return the value, or -1 if it is missing or not a number
+	 */
+	private int parseHeaderInt(int from, int to) {
+		int pos = from;
+		while ( pos < to && (buffer[pos] == ' ' || buffer[pos] == '\t') ) {
+			pos++;
+		}
+		if ( pos >= to || buffer[pos] != ':' ) {
+			return -1;
+		}
+		pos++;
+		while ( pos < to && (buffer[pos] == ' ' || buffer[pos] == '\t') ) {
+			pos++;
+		}
+		long value = 0;
+		int digits = 0;
+		while ( pos < to && buffer[pos] >= '0' && buffer[pos] <= '9' ) {
+			value = value * 10 + (buffer[pos] - '0');
+			if ( value > Integer.MAX_VALUE ) {
+				return -1;
+			}
+			pos++;
+			digits++;
+		}
+		return digits > 0 ? (int) value : -1;
+	}
+}
@@ -0,0 +1,303 @@
+/**
+ *  foscamRecorder - http://github.com/TheBigS
+ *  Copyright (C) 2012
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *   any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.github.thebigs.foscam.recorder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.xuggle.xuggler.IVideoPicture;
+
+/**
+ * Frame-difference motion detector working on a downscaled luma plane.
+ *
+ * Each frame's luma plane is averaged down to a grid of blockSize x blockSize
+ * cells, cut to the frame when it is narrower or shorter than one block, and
+ * compared against a slowly adapting background. Cells whose brightness moved
+ * by more than the sensitivity threshold are changed, and motion is reported
+ * when the largest connected group of changed cells (outside the exclusion
+ * masks) reaches the minimum blob size. Motion stays active for holdFrames
+ * quiet frames after the last detection.
+ *
+ * All working arrays are allocated when the frame size is first seen, so
+ * detecting motion allocates nothing per frame. A detector belongs to one
+ * camera and is not thread safe.
+ */
+public class MotionDetector {
+	public static final int DEFAULT_BLOCK_SIZE     = 8;
+	public static final int DEFAULT_SENSITIVITY    = 20;
+	public static final int DEFAULT_MIN_BLOB_CELLS = 6;
+	public static final int DEFAULT_HOLD_FRAMES    = 10;
+
+	/** background learning rate, as a right shift: 1/8 of the difference per frame */
+	private static final int BACKGROUND_ADAPT_SHIFT = 3;
+	/** cell values are kept with 4 fractional bits so slow drifts are not lost */
+	private static final int FIXED_POINT_SHIFT = 4;
+
+	private final int blockSize;
+	private final int sensitivity;
+	private final int minBlobCells;
+	private final int holdFrames;
+
+	/** exclusion rectangles in percent of the frame: x, y, width, height */
+	private final List<int[]> exclusions = new ArrayList<int[]>();
+
+	private int frameWidth = -1;
+	private int frameHeight = -1;
+	private int gridWidth;
+	private int gridHeight;
+	private int cellWidth; // pixels averaged into a cell, less than blockSize for frames smaller than a block
+	private int cellHeight;
+	private int[] background;
+	private int[] cells;
+	private boolean[] excluded;
+	private boolean[] changed;
+	private int[] fillStack;
+	private byte[] luma;
+
+	private boolean backgroundValid = false;
+	private int quietFrames = Integer.MAX_VALUE;
+	private int lastBlobCells = 0;
+
+	public MotionDetector() {
+		this(DEFAULT_BLOCK_SIZE, DEFAULT_SENSITIVITY, DEFAULT_MIN_BLOB_CELLS, DEFAULT_HOLD_FRAMES);
+	}
+
+	/**
+	 * @param blockSize side of the square of pixels averaged into one cell
+	 * @param sensitivity change in average luma (0-255) for a cell to count as changed,
+	 *        lower is more sensitive
+	 * @param minBlobCells number of connected changed cells needed to report motion
+	 * @param holdFrames number of quiet frames before motion is no longer active
+	 */
+	public MotionDetector(int blockSize, int sensitivity, int minBlobCells, int holdFrames) {
+		super();
+		if ( blockSize < 1 ) {
+			throw new IllegalArgumentException("Block size must be at least 1.");
+		}
+		if ( sensitivity < 1 || sensitivity > 255 ) {
+			throw new IllegalArgumentException("Sensitivity must be between 1 and 255.");
+		}
+		this.blockSize = blockSize;
+		this.sensitivity = sensitivity;
+		this.minBlobCells = Math.max(1, minBlobCells);
+		this.holdFrames = Math.max(0, holdFrames);
+	}
+
+	/**
+	 * Ignores changes inside a rectangle, given in percent of the frame so the
+	 * mask holds for any resolution.
+	 */
+	public void addExclusion(int xPercent, int yPercent, int widthPercent, int heightPercent) {
+		exclusions.add(new int[] { xPercent, yPercent, widthPercent, heightPercent });
+		frameWidth = -1; // rebuild the mask with the next frame
+	}
+
+	/**
+	 * Parses exclusion rectangles of the form "x,y,w,h;x,y,w,h" in percent of the frame.
+	 */
+	public void addExclusions(String rectangles) {
+		for ( String rectangle : rectangles.split(";") ) {
+			if ( rectangle.trim().length() == 0 ) {
+				continue;
+			}
+			String[] parts = rectangle.split(",");
+			if ( parts.length != 4 ) {
+				throw new IllegalArgumentException("Exclusion must be 'x,y,width,height' in percent: '" + rectangle + "'");
+			}
+			addExclusion(Integer.parseInt(parts[0].trim()), Integer.parseInt(parts[1].trim()),
+					Integer.parseInt(parts[2].trim()), Integer.parseInt(parts[3].trim()));
+		}
+	}
+
+	/**
+	 * Feeds the luma plane of a YUV picture to the detector.
+	 *
+	 * @return true if motion is active after this frame
+	 */
+	public boolean detect(IVideoPicture picture) {
+		int width = picture.getWidth();
+		int height = picture.getHeight();
+		int stride = picture.getDataLineSize(0);
+		int size = stride * height;
+		if ( luma == null || luma.length < size ) {
+			luma = new byte[size];
+		}
+		picture.get(0, luma, 0, size);
+		return detect(luma, 0, width, height, stride);
+	}
+
+	/**
+	 * Feeds an 8-bit luma plane to the detector.
+	 *
+	 * @return true if motion is active after this frame
+	 */
+	public boolean detect(byte[] plane, int offset, int width, int height, int stride) {
+		if ( width < 1 || height < 1 ) {
+			return isMotionActive();
+		}
+		if ( width != frameWidth || height != frameHeight ) {
+			init(width, height);
+		}
+
+		downscale(plane, offset, stride);
+
+		if ( !backgroundValid ) {
+			System.arraycopy(cells, 0, background, 0, cells.length);
+			backgroundValid = true;
+			lastBlobCells = 0;
+			return isMotionActive();
+		}
+
+		int threshold = sensitivity << FIXED_POINT_SHIFT;
+		for ( int i = 0; i < cells.length; i++ ) {
+			int diff = cells[i] - background[i];
+			changed[i] = !excluded[i] && (diff > threshold || diff < -threshold);
+			background[i] += diff >> BACKGROUND_ADAPT_SHIFT;
+		}
+
+		lastBlobCells = largestBlob();
+		if ( lastBlobCells >= minBlobCells ) {
+			quietFrames = 0;
+		}
+		else if ( quietFrames < Integer.MAX_VALUE ) {
+			quietFrames++;
+		}
+		return isMotionActive();
+	}
+
+	/**
+	 * @return true while motion was seen within the last holdFrames frames
+	 */
+	public boolean isMotionActive() {
+		return quietFrames <= holdFrames;
+	}
+
+	/**
+	 * @return size in cells of the largest changed area in the last frame
+	 */
+	public int getLastBlobSize() {
+		return lastBlobCells;
+	}
+
+	/**
+	 * Forgets the background, for example after the camera reconnected.
+	 */
+	public void reset() {
+		backgroundValid = false;
+		quietFrames = Integer.MAX_VALUE;
+		lastBlobCells = 0;
+	}
+
+	private void init(int width, int height) {
+		frameWidth = width;
+		frameHeight = height;
+		gridWidth = Math.max(1, width / blockSize);
+		gridHeight = Math.max(1, height / blockSize);
+		cellWidth = Math.min(blockSize, width);
+		cellHeight = Math.min(blockSize, height);
+		int numCells = gridWidth * gridHeight;
+		background = new int[numCells];
+		cells = new int[numCells];
+		excluded = new boolean[numCells];
+		changed = new boolean[numCells];
+		fillStack = new int[numCells];
+
+		for ( int[] rect : exclusions ) {
+			int x0 = rect[0] * gridWidth / 100;
+			int y0 = rect[1] * gridHeight / 100;
+			int x1 = Math.min(gridWidth, (rect[0] + rect[2]) * gridWidth / 100 + 1);
+			int y1 = Math.min(gridHeight, (rect[1] + rect[3]) * gridHeight / 100 + 1);
+			for ( int y = Math.max(0, y0); y < y1; y++ ) {
+				for ( int x = Math.max(0, x0); x < x1; x++ ) {
+					excluded[y * gridWidth + x] = true;
+				}
+			}
+		}
+		reset();
+	}
+
+	/**
+	 * Averages each block of the plane into its cell, in fixed point.
+	 */
+	private void downscale(byte[] plane, int offset, int stride) {
+		int blockArea = cellWidth * cellHeight;
+		for ( int gy = 0; gy < gridHeight; gy++ ) {
+			int rowBase = gy * gridWidth;
+			for ( int gx = 0; gx < gridWidth; gx++ ) {
+				cells[rowBase + gx] = 0;
+			}
+			for ( int dy = 0; dy < cellHeight; dy++ ) {
+				int pos = offset + (gy * blockSize + dy) * stride;
+				for ( int gx = 0; gx < gridWidth; gx++ ) {
+					int sum = 0;
+					for ( int dx = 0; dx < cellWidth; dx++ ) {
+						sum += plane[pos++] & 0xff;
+					}
+					cells[rowBase + gx] += sum;
+				}
+			}
+			for ( int gx = 0; gx < gridWidth; gx++ ) {
+				cells[rowBase + gx] = (cells[rowBase + gx] << FIXED_POINT_SHIFT) / blockArea;
+			}
+		}
+	}
+
+	/**
+	 * @return size of the largest 4-connected group of changed cells. Clears
+	 *         the changed flags as it goes.
+	 */
+	private int largestBlob() {
+		int largest = 0;
+		for ( int start = 0; start < changed.length; start++ ) {
+			if ( !changed[start] ) {
+				continue;
+			}
+			int size = 0;
+			int top = 0;
+			fillStack[top++] = start;
+			changed[start] = false;
+			while ( top > 0 ) {
+				int cell = fillStack[--top];
+				size++;
+				int x = cell % gridWidth;
+				if ( x > 0 && changed[cell - 1] ) {
+					changed[cell - 1] = false;
+					fillStack[top++] = cell - 1;
+				}
+				if ( x < gridWidth - 1 && changed[cell + 1] ) {
+					changed[cell + 1] = false;
+					fillStack[top++] = cell + 1;
+				}
+				if ( cell >= gridWidth && changed[cell - gridWidth] ) {
+					changed[cell - gridWidth] = false;
+					fillStack[top++] = cell - gridWidth;
+				}
+				if ( cell + gridWidth < changed.length && changed[cell + gridWidth] ) {
+					changed[cell + gridWidth] = false;
+					fillStack[top++] = cell + gridWidth;
+				}
+			}
+			if ( size > largest ) {
+				largest = size;
+			}
+		}
+		return largest;
+	}
+}
@@ -0,0 +1,265 @@
+/**
+ *  foscamRecorder - http://github.com/TheBigS
+ *  Copyright (C) 2012
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *   any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.thebigs.foscam.recorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Random access to the frames of a pack file written by {@link PackRecording}.
+ *
+ * Frame positions come from the pack's {@link FrameIndex}. If the index is
+ * missing, or does not cover every record in the pack (the pack is still
+ * being written, or the recorder stopped between writing a frame and
+ * indexing it), the pack is scanned once and the index built in memory. The
+ * index file is left alone, it may be mapped by the recorder writing the
+ * pack; only {@link #PackReader(File, boolean)} asked to repair it replaces
+ * it, for packs nothing is writing. A record cut short by a crash at the end
+ * of the pack is ignored. Not thread safe.
+ */
+public class PackReader {
+	private final File packFile;
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	private final long packLength;
+	private long dataEnd; // end of the last complete record
+	private final ByteBuffer recordHeader = ByteBuffer.allocate(PackRecording.RECORD_HEADER_SIZE);
+	private FrameIndex index;
+
+	public PackReader(File packFile) throws IOException {
+		this(packFile, false);
+	}
+
+	/**
+	 * @param repairIndex replace a missing or incomplete index file with the
+	 *        rebuilt one. Only for packs no recorder is writing to.
+	 */
+	public PackReader(File packFile, boolean repairIndex) throws IOException {
+		super();
+		this.packFile = packFile;
+		this.raf = new RandomAccessFile(packFile, "r");
+		this.channel = raf.getChannel();
+		try {
+			ByteBuffer header = ByteBuffer.allocate(PackRecording.HEADER_SIZE);
+			readFully(header, 0L);
+			if ( header.getInt(0) != PackRecording.MAGIC || header.getInt(4) != PackRecording.VERSION ) {
+				throw new IOException("not a pack file " + packFile);
+			}
+			this.packLength = channel.size();
+			this.index = openIndex(repairIndex);
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	public int getFrameCount() {
+		return index.size();
+	}
+
+	public long getCaptureTime(int frame) {
+		return index.getTimestamp(frame);
+	}
+
+	/**
+	 * @return the last frame captured at or before the time, the first frame
+	 *         if the time is earlier than all of them, or -1 if the pack is empty
+	 */
+	public int findFrame(long timeMillis) {
+		return index.find(timeMillis);
+	}
+
+	/**
+	 * @return the first frame whose record starts at or after the byte
+	 *         offset, as in a {@link RecordingIndex.SeekPoint}; the frame
+	 *         count if there is none
+	 */
+	public int findFrameAtOffset(long offset) {
+		int low = 0;
+		int high = index.size();
+		while ( low < high ) {
+			int mid = (low + high) >>> 1;
+			if ( index.getOffset(mid) < offset ) {
+				low = mid + 1;
+			}
+			else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	public int getFrameLength(int frame) {
+		long start = index.getOffset(frame) + PackRecording.RECORD_HEADER_SIZE;
+		long end = frame + 1 < index.size() ? index.getOffset(frame + 1) : dataEnd;
+		return (int) (end - start);
+	}
+
+	/**
+	 * Reads a frame's JPEG bytes into buffer with a single positioned read.
+	 *
+	 * @return the frame length
+	 * @throws IllegalArgumentException if the buffer is too small, see {@link #getFrameLength(int)}
+	 */
+	public int readFrame(int frame, byte[] buffer) throws IOException {
+		int length = getFrameLength(frame);
+		if ( buffer.length < length ) {
+			throw new IllegalArgumentException("frame " + frame + " needs " + length + " bytes, buffer has " + buffer.length);
+		}
+		readFully(ByteBuffer.wrap(buffer, 0, length), index.getOffset(frame) + PackRecording.RECORD_HEADER_SIZE);
+		return length;
+	}
+
+	public byte[] readFrame(int frame) throws IOException {
+		byte[] buffer = new byte[getFrameLength(frame)];
+		readFrame(frame, buffer);
+		return buffer;
+	}
+
+	public File getPackFile() {
+		return packFile;
+	}
+
+	/**
+	 * @return where the last complete record ends. Anything past it is a
+	 *         record cut short by a crash.
+	 */
+	public long getDataEnd() {
+		return dataEnd;
+	}
+
+	public void close() {
+		if ( index != null ) {
+			index.close();
+			index = null;
+		}
+		try {
+			raf.close();
+		} catch (IOException e) {
+			System.err.println("Unable to close pack file '" + packFile + "': " + e.getMessage());
+		}
+	}
+
+	private FrameIndex openIndex(boolean repairIndex) throws IOException {
+		File indexFile = FrameIndex.indexFileFor(packFile);
+		if ( indexFile.exists() ) {
+			FrameIndex existing = null;
+			try {
+				existing = FrameIndex.open(indexFile);
+				if ( coversPack(existing) ) {
+					return existing;
+				}
+			} catch (IOException e) {
+				System.err.println("Unable to read frame index '" + indexFile + "': " + e.getMessage());
+			}
+			if ( existing != null ) {
+				existing.close();
+			}
+		}
+		if ( !repairIndex ) {
+			FrameIndex rebuilt = FrameIndex.createInMemory(indexFile);
+			rebuildIndex(rebuilt);
+			return rebuilt;
+		}
+		System.err.println("Rebuilding frame index: " + indexFile);
+		// built next to it and renamed, so the index is never seen half written
+		File tmp = new File(indexFile.getPath() + ".tmp");
+		FrameIndex rebuilt = FrameIndex.create(tmp);
+		try {
+			rebuildIndex(rebuilt);
+		} finally {
+			rebuilt.close();
+		}
+		if ( !tmp.renameTo(indexFile) ) {
+			// renameTo does not replace an existing file on every platform
+			indexFile.delete();
+			if ( !tmp.renameTo(indexFile) ) {
+				throw new IOException("could not rename " + tmp);
+			}
+		}
+		return FrameIndex.open(indexFile);
+	}
+
+	/**
+	 * @return true if no complete record follows the index's last frame
+	 */
+	private boolean coversPack(FrameIndex existing) throws IOException {
+		long next = PackRecording.HEADER_SIZE;
+		if ( existing.size() > 0 ) {
+			long last = existing.getOffset(existing.size() - 1);
+			next = recordEnd(last);
+			if ( next < 0 ) {
+				return false; // index points at a record that is not there
+			}
+		}
+		dataEnd = next;
+		return recordEnd(next) < 0;
+	}
+
+	private void rebuildIndex(FrameIndex rebuilt) throws IOException {
+		long offset = PackRecording.HEADER_SIZE;
+		long lastTime = Long.MIN_VALUE;
+		long end;
+		while ( (end = recordEnd(offset)) >= 0 ) {
+			lastTime = Math.max(lastTime, recordHeader.getLong(4));
+			rebuilt.append(lastTime, offset);
+			offset = end;
+		}
+		dataEnd = offset;
+	}
+
+	/**
+	 * Reads the record header at offset into recordHeader.
+	 *
+	 * @return where the record ends, or -1 if there is no complete record at offset
+	 */
+	private long recordEnd(long offset) throws IOException {
+		if ( offset + PackRecording.RECORD_HEADER_SIZE > packLength ) {
+			return -1L;
+		}
+		int length = readRecordLength(offset);
+		long end = offset + PackRecording.RECORD_HEADER_SIZE + length;
+		// frames are never empty, a zero length is the zero-filled tail a power cut can leave
+		return length <= 0 || end > packLength ? -1L : end;
+	}
+
+	/**
+	 * Reads the record header at offset into recordHeader.
+	 *
+	 * @return the record's frame length
+	 */
+	private int readRecordLength(long offset) throws IOException {
+		recordHeader.clear();
+		readFully(recordHeader, offset);
+		return recordHeader.getInt(0);
+	}
+
+	private void readFully(ByteBuffer buffer, long position) throws IOException {
+		while ( buffer.hasRemaining() ) {
+			int read = channel.read(buffer, position);
+			if ( read < 0 ) {
+				throw new IOException("unexpected end of " + packFile);
+			}
+			position += read;
+		}
+	}
+}
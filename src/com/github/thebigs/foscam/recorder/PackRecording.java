@@ -0,0 +1,234 @@
+/**
+ *  foscamRecorder - http://github.com/TheBigS
+ *  Copyright (C) 2012
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *   any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.thebigs.foscam.recorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * Passthrough alternative to {@link Recording}: appends the camera's JPEG
+ * frames as received to an append-only pack file, with no decoding or
+ * encoding at all.
+ *
+ * A pack starts with an 8 byte header (magic, version) followed by one
+ * record per frame: length (int), capture time (long) and the JPEG bytes.
+ * The records make the pack self-describing; a {@link FrameIndex} written
+ * next to it ('&lt;pack&gt;.idx') maps each frame's capture time to its
+ * offset, so {@link PackReader} can seek to any frame with a binary search
+ * and one read.
+ *
+ * Frames are buffered by a {@link SegmentFile} as its {@link WritePolicy}
+ * says. Index entries are held back until their frame has been written out,
+ * so the index never points past what is on disk.
+ */
+public class PackRecording implements SegmentWriter {
+	public static final String FILE_EXTENSION = ".mjpk";
+
+	static final int MAGIC = 0x4d4a504b; // "MJPK"
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 8;
+	static final int RECORD_HEADER_SIZE = 12;
+
+	private static final int INITIAL_PENDING = 64;
+
+	private final long startTimeMillis;
+	private final File packFile;
+	private SegmentFile out;
+	private FrameIndex index;
+	private long position = 0L;
+	private long lastCaptureTime = Long.MIN_VALUE;
+	private CameraMetrics metrics = null;
+
+	// index entries of frames still in the write buffer, with where each record ends
+	private long[] pendingTimes = new long[INITIAL_PENDING];
+	private long[] pendingOffsets = new long[INITIAL_PENDING];
+	private long[] pendingEnds = new long[INITIAL_PENDING];
+	private int pendingCount = 0;
+
+	public PackRecording(String outputDir, String camName, Date startTime) {
+		this(outputDir, camName, startTime, new WritePolicy());
+	}
+
+	public PackRecording(String outputDir, String camName, Date startTime, WritePolicy writePolicy) {
+		this(new File(outputDir, RecordingSegment.fileName(startTime, camName, FILE_EXTENSION)), startTime.getTime(), writePolicy);
+	}
+
+	/**
+	 * Writes a pack under any name, as for thumbnails.
+	 */
+	public PackRecording(File packFile, long startTimeMillis) {
+		this(packFile, startTimeMillis, new WritePolicy());
+	}
+
+	public PackRecording(File packFile, long startTimeMillis, WritePolicy writePolicy) {
+		super();
+		this.startTimeMillis = startTimeMillis;
+		this.packFile = packFile;
+		try {
+			out = new SegmentFile(packFile, writePolicy);
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			position = HEADER_SIZE;
+			index = FrameIndex.create(FrameIndex.indexFileFor(packFile));
+		} catch (IOException e) {
+			close();
+			throw new RuntimeException("could not open output file " + packFile, e);
+		}
+	}
+
+	/**
+	 * Appends the frame. Capture times are clamped so they never go
+	 * backwards, which keeps the index searchable across clock adjustments.
+	 */
+	@Override
+	public void saveFrame(byte[] data, int offset, int length, long captureTimeMillis) {
+		long captureTime = Math.max(captureTimeMillis, lastCaptureTime);
+		long writeStart = System.nanoTime();
+		try {
+			long recordOffset = position;
+			out.writeInt(length);
+			out.writeLong(captureTime);
+			out.write(data, offset, length);
+			position += RECORD_HEADER_SIZE + length;
+			addPending(captureTime, recordOffset, position);
+			commitWritten();
+		} catch (IOException e) {
+			throw new RuntimeException("could not write to " + packFile + ": " + e.getMessage(), e);
+		}
+		lastCaptureTime = captureTime;
+		if ( metrics != null ) {
+			metrics.recordLatency(CameraMetrics.Stage.WRITE, System.nanoTime() - writeStart);
+			metrics.addBytesOut(RECORD_HEADER_SIZE + length);
+		}
+	}
+
+	/**
+	 * Writes out buffered frames and indexes them.
+	 */
+	public void flush() {
+		try {
+			out.flush();
+			commitWritten();
+		} catch (IOException e) {
+			throw new RuntimeException("could not write to " + packFile + ": " + e.getMessage(), e);
+		}
+	}
+
+	@Override
+	public void flushIfDue() {
+		try {
+			out.flushIfDue();
+			commitWritten();
+		} catch (IOException e) {
+			throw new RuntimeException("could not write to " + packFile + ": " + e.getMessage(), e);
+		}
+	}
+
+	private void addPending(long captureTime, long recordOffset, long recordEnd) {
+		if ( pendingCount == pendingTimes.length ) {
+			pendingTimes = Arrays.copyOf(pendingTimes, pendingCount * 2);
+			pendingOffsets = Arrays.copyOf(pendingOffsets, pendingCount * 2);
+			pendingEnds = Arrays.copyOf(pendingEnds, pendingCount * 2);
+		}
+		pendingTimes[pendingCount] = captureTime;
+		pendingOffsets[pendingCount] = recordOffset;
+		pendingEnds[pendingCount] = recordEnd;
+		pendingCount++;
+	}
+
+	/**
+	 * Indexes the pending frames the file has written out, in order.
+	 */
+	private void commitWritten() throws IOException {
+		long written = out.getWrittenSize();
+		int committed = 0;
+		while ( committed < pendingCount && pendingEnds[committed] <= written ) {
+			index.append(pendingTimes[committed], pendingOffsets[committed]);
+			committed++;
+		}
+		if ( committed > 0 ) {
+			pendingCount -= committed;
+			System.arraycopy(pendingTimes, committed, pendingTimes, 0, pendingCount);
+			System.arraycopy(pendingOffsets, committed, pendingOffsets, 0, pendingCount);
+			System.arraycopy(pendingEnds, committed, pendingEnds, 0, pendingCount);
+		}
+	}
+
+	@Override
+	public void close() {
+		if ( out != null ) {
+			try {
+				out.closeFile();
+			} catch (IOException e) {
+				System.err.println("Unable to close pack file '" + packFile + "': " + e.getMessage());
+			}
+			finally {
+				if ( index != null ) {
+					// index whatever made it out before a failed close
+					try {
+						commitWritten();
+					} catch (IOException e) {
+						System.err.println("Unable to index pack file '" + packFile + "': " + e.getMessage());
+					}
+				}
+			}
+		}
+		if ( index != null ) {
+			index.close();
+		}
+	}
+
+	@Override
+	public String getRecordingFileLocation() {
+		return packFile.getPath();
+	}
+
+	@Override
+	public String getRecordingFileName() {
+		return packFile.getName();
+	}
+
+	@Override
+	public long getRecordingFileSize() {
+		return (out == null ? 0L : out.getSize()) + (index == null ? 0L : index.getFileSize());
+	}
+
+	@Override
+	public long getStartTime() {
+		return startTimeMillis;
+	}
+
+	/**
+	 * Every JPEG stands on its own, a pack can end after any frame.
+	 */
+	@Override
+	public boolean isKeyframeBoundary() {
+		return true;
+	}
+
+	@Override
+	public void setMetrics(CameraMetrics metrics) {
+		this.metrics = metrics;
+		if ( out != null ) {
+			out.setMetrics(metrics);
+		}
+	}
+}
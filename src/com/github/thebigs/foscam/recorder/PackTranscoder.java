@@ -0,0 +1,130 @@
+/**
+ *  foscamRecorder - http://github.com/TheBigS
+ *  Copyright (C) 2012
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *   any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.thebigs.foscam.recorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+/**
+ * Transcodes a pack file written in passthrough mode into an MP4
+ * {@link Recording}, keeping the original capture times.
+ */
+public class PackTranscoder {
+
+	/**
+	 * Writes every frame of the pack to a recording in outputDir, at the
+	 * resolution and frame rate of the frames in the pack.
+	 *
+	 * @return the MP4 file written, or null if the pack has no frames
+	 */
+	public static String transcode(File packFile, String outputDir) throws IOException {
+		return transcode(packFile, outputDir, new EncoderProfile());
+	}
+
+	/**
+	 * Writes every frame of the pack to a recording in outputDir. Settings the
+	 * profile leaves on auto are learned from the first frames of the pack.
+	 *
+	 * @return the MP4 file written, or null if the pack has no frames
+	 */
+	public static String transcode(File packFile, String outputDir, EncoderProfile profile) throws IOException {
+		PackReader reader = new PackReader(packFile);
+		try {
+			int frameCount = reader.getFrameCount();
+			if ( frameCount == 0 ) {
+				return null;
+			}
+			String camName = RecordingCatalog.parseCamName(packFile.getName());
+			if ( profile.needsProbe() ) {
+				EncoderProbe probe = new EncoderProbe();
+				for ( int i = 0; i < frameCount && !probe.isComplete(); i++ ) {
+					byte[] data = new byte[reader.getFrameLength(i)];
+					reader.readFrame(i, data);
+					probe.add(new Frame(data, data.length, reader.getCaptureTime(i), i));
+				}
+				profile = probe.resolve(profile);
+			}
+			JpegDecoder jpegDecoder = new JpegDecoder();
+			Recording recording = new Recording(outputDir, camName, new Date(reader.getCaptureTime(0)), jpegDecoder, profile);
+			try {
+				byte[] buffer = new byte[64 * 1024];
+				for ( int i = 0; i < frameCount; i++ ) {
+					int length = reader.getFrameLength(i);
+					if ( length > buffer.length ) {
+						buffer = new byte[length];
+					}
+					reader.readFrame(i, buffer);
+					recording.saveFrame(buffer, 0, length, reader.getCaptureTime(i));
+				}
+			}
+			finally {
+				recording.close();
+				jpegDecoder.close();
+			}
+			return recording.getRecordingFileLocation();
+		}
+		finally {
+			reader.close();
+		}
+	}
+
+	// Command line app
+	public static void main(String[] args) {
+		Options options = new Options();
+
+		options.addOption("i", true, "Pack file (.mjpk) to transcode.");
+		options.addOption("o", true, "Output dir location (Defaults to the pack file's directory).");
+		options.addOption("v", true, "Encoder profile, e.g. 'size=1280x720,fps=15,preset=veryfast' (Defaults to the size and fps of the pack's frames).");
+		options.addOption("h", false, "Print this help message.");
+
+		try {
+			CommandLine cli = new GnuParser().parse(options, args);
+
+			if ( cli.hasOption("h") || !cli.hasOption("i") ) {
+				HelpFormatter formatter = new HelpFormatter();
+				formatter.printHelp( "java -cp recorder.jar " + PackTranscoder.class.getName(), options );
+				System.exit(-1);
+			}
+			File packFile = new File(cli.getOptionValue("i"));
+			String outputDir = cli.getOptionValue("o", packFile.getAbsoluteFile().getParent());
+
+			EncoderProfile profile = cli.hasOption("v") ? EncoderProfile.parse(cli.getOptionValue("v")) : new EncoderProfile();
+			String mp4 = transcode(packFile, outputDir, profile);
+			if ( mp4 == null ) {
+				System.out.println("No frames in " + packFile);
+			}
+			else {
+				System.out.println("Transcoded " + packFile + " to " + mp4);
+			}
+		}
+		catch (ParseException e) {
+			System.err.println("Unable to parse command line options: " + e.getMessage());
+		}
+		catch (IOException e) {
+			System.err.println("Unable to transcode pack file: " + e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,314 @@
+/**
+ *  foscamRecorder - http://github.com/TheBigS
+ *  Copyright (C) 2012
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *   any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.thebigs.foscam.recorder;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+
+import com.xuggle.xuggler.IVideoPicture;
+
+/**
+ * Decodes one camera's JPEG frames to YUV420P on several threads and hands
+ * them back in the order they were submitted, for HD cameras whose frames
+ * one encoder thread cannot decode as fast as they arrive.
+ *
+ * Frames are decoded on a work-stealing {@link ForkJoinPool}, each worker
+ * with a {@link JpegDecoder} of its own. Decoded frames wait in a reorder
+ * window until every frame submitted before them is done, so the encoder
+ * still sees them in capture order. The window caps the frames submitted but
+ * not yet delivered: {@link #submit} waits while it is full, which leaves
+ * the frame queue and its drop policy to deal with a camera that is too fast
+ * even for the pool. The decoder holds a reference to each frame from
+ * {@link #submit} until the sink has had it.
+ *
+ * Everything but the decoding itself belongs to the camera's encoder and
+ * must not be called from two threads at once.
+ */
+public class ParallelDecoder {
+	public static final int DEFAULT_THREADS = Runtime.getRuntime().availableProcessors();
+
+	private static final long SHUTDOWN_TIMEOUT_MS = 5000L;
+
+	/**
+	 * Receives decoded frames in submission order.
+	 */
+	public interface FrameSink {
+		/**
+		 * @param picture the frame decoded to YUV420P, or null if it could not
+		 *        be decoded natively. Only valid for the duration of the call.
+		 */
+		void onFrame(Frame frame, IVideoPicture picture);
+	}
+
+	private class DecodeTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final Frame frame;
+		private IVideoPicture picture = null;
+		private volatile boolean decoded = false;
+
+		DecodeTask(Frame frame) {
+			this.frame = frame;
+		}
+
+		@Override
+		protected void compute() {
+			long decodeStart = System.nanoTime();
+			try {
+				picture = decode(frame);
+				CameraMetrics m = metrics;
+				if ( picture != null && m != null ) {
+					m.recordLatency(CameraMetrics.Stage.DECODE, System.nanoTime() - decodeStart);
+				}
+			} catch (RuntimeException e) {
+				System.err.println("Unable to decode frame " + frame.getSequence() + ": " + e.getMessage());
+			}
+			finally {
+				decoded = true;
+			}
+			Runnable listener = readyListener;
+			if ( listener != null ) {
+				listener.run();
+			}
+		}
+	}
+
+	private final ForkJoinPool pool;
+	private final int threads;
+	private final int window;
+	private final Runnable readyListener;
+	private final ArrayDeque<DecodeTask> inFlight = new ArrayDeque<DecodeTask>();
+	private final ConcurrentLinkedQueue<JpegDecoder> idleDecoders = new ConcurrentLinkedQueue<JpegDecoder>();
+	private final ConcurrentLinkedQueue<IVideoPicture> freePictures = new ConcurrentLinkedQueue<IVideoPicture>();
+	private volatile CameraMetrics metrics = null;
+
+	public ParallelDecoder(String camName) {
+		this(camName, DEFAULT_THREADS, 0, null);
+	}
+
+	/**
+	 * @param threads frames decoded at once
+	 * @param window frames that can be submitted but not yet delivered, 0 for
+	 *        twice the threads. Never less than the threads.
+	 * @param readyListener called on the decoding thread whenever a frame is
+	 *        decoded, or null. For encoders that cannot wait in {@link #deliverNext}.
+	 */
+	public ParallelDecoder(final String camName, int threads, int window, Runnable readyListener) {
+		super();
+		if ( threads < 1 ) {
+			throw new IllegalArgumentException("Parallel decoder needs at least one thread.");
+		}
+		this.threads = threads;
+		this.window = Math.max(threads, window > 0 ? window : threads * 2);
+		this.readyListener = readyListener;
+		this.pool = new ForkJoinPool(threads, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+			@Override
+			public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+				ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+				thread.setName("Decoder thread - " + camName + " - " + thread.getPoolIndex());
+				return thread;
+			}
+		}, null, false);
+	}
+
+	public void setMetrics(CameraMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	public int getThreadCount() {
+		return threads;
+	}
+
+	public int getWindow() {
+		return window;
+	}
+
+	/**
+	 * Starts decoding a frame, first waiting for the oldest one and handing it
+	 * to the sink if the window is full.
+	 */
+	public void submit(Frame frame, FrameSink sink) {
+		while ( isFull() ) {
+			deliverNext(sink);
+		}
+		DecodeTask task = new DecodeTask(frame.retain());
+		inFlight.add(task);
+		pool.execute(task);
+	}
+
+	/**
+	 * Hands decoded frames to the sink, without waiting, up to the first
+	 * frame that is still being decoded.
+	 *
+	 * @return the number of frames delivered
+	 */
+	public int deliver(FrameSink sink, int maxFrames) {
+		int delivered = 0;
+		while ( delivered < maxFrames && hasReady() ) {
+			deliverNext(sink);
+			delivered++;
+		}
+		return delivered;
+	}
+
+	/**
+	 * Waits for the oldest frame to be decoded and hands it to the sink.
+	 *
+	 * @return false if there was no frame being decoded
+	 */
+	public boolean deliverNext(FrameSink sink) {
+		DecodeTask task = inFlight.poll();
+		if ( task == null ) {
+			return false;
+		}
+		task.join();
+		try {
+			sink.onFrame(task.frame, task.picture);
+		}
+		finally {
+			releasePicture(task.picture);
+			task.frame.release();
+		}
+		return true;
+	}
+
+	/**
+	 * Waits for every submitted frame and hands them all to the sink.
+	 */
+	public void drain(FrameSink sink) {
+		while ( deliverNext(sink) ) {
+			// keep going
+		}
+	}
+
+	/**
+	 * @return true if the next {@link #submit} would have to wait
+	 */
+	public boolean isFull() {
+		return inFlight.size() >= window;
+	}
+
+	/**
+	 * @return true if frames have been submitted and not yet delivered
+	 */
+	public boolean hasPending() {
+		return !inFlight.isEmpty();
+	}
+
+	/**
+	 * @return true if the oldest frame is decoded and can be delivered without waiting
+	 */
+	public boolean hasReady() {
+		DecodeTask head = inFlight.peek();
+		return head != null && head.decoded;
+	}
+
+	/**
+	 * @return frames submitted and not yet delivered
+	 */
+	public int getPendingCount() {
+		return inFlight.size();
+	}
+
+	/**
+	 * Stops the decoding threads and releases the native decoders. Frames not
+	 * yet delivered are dropped.
+	 */
+	public void close() {
+		DecodeTask task;
+		while ( (task = inFlight.poll()) != null ) {
+			task.join();
+			releasePicture(task.picture);
+			task.frame.release();
+		}
+		pool.shutdown();
+		try {
+			pool.awaitTermination(SHUTDOWN_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		JpegDecoder decoder;
+		while ( (decoder = idleDecoders.poll()) != null ) {
+			decoder.close();
+		}
+		IVideoPicture picture;
+		while ( (picture = freePictures.poll()) != null ) {
+			picture.delete();
+		}
+	}
+
+	/**
+	 * Decodes a frame on a pool thread, with a decoder no other thread is using.
+	 *
+	 * @return a picture of the frame's own, recycled once it has been
+	 *         delivered, or null if the frame could not be decoded natively
+	 */
+	protected IVideoPicture decode(Frame frame) {
+		JpegDecoder decoder = idleDecoders.poll();
+		if ( decoder == null ) {
+			decoder = new JpegDecoder();
+		}
+		try {
+			IVideoPicture output = decoder.decode(frame.getData(), 0, frame.getLength(), 0L);
+			if ( output == null ) {
+				return null;
+			}
+			// the decoder reuses its output for the next frame
+			IVideoPicture picture = obtainPicture(output);
+			picture.copy(output);
+			return picture;
+		}
+		finally {
+			idleDecoders.add(decoder);
+		}
+	}
+
+	/**
+	 * Reuses a delivered frame's picture when the resolution has not changed,
+	 * so an HD camera does not allocate a native picture per frame.
+	 */
+	private IVideoPicture obtainPicture(IVideoPicture like) {
+		IVideoPicture picture;
+		while ( (picture = freePictures.poll()) != null ) {
+			if ( picture.getWidth() == like.getWidth() && picture.getHeight() == like.getHeight()
+					&& picture.getPixelType() == like.getPixelType() ) {
+				return picture;
+			}
+			picture.delete();
+		}
+		return IVideoPicture.make(like.getPixelType(), like.getWidth(), like.getHeight());
+	}
+
+	private void releasePicture(IVideoPicture picture) {
+		if ( picture == null ) {
+			return;
+		}
+		// one picture per frame in the window is all that can be in use at once
+		if ( freePictures.size() < window ) {
+			freePictures.add(picture);
+		}
+		else {
+			picture.delete();
+		}
+	}
+}
@@ -0,0 +1,180 @@
+/**
+ *  foscamRecorder - http://github.com/TheBigS
+ *  Copyright (C) 2012
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *   any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.github.thebigs.foscam.recorder;
+
+/**
+ * Time-bounded ring of compressed JPEG frames kept while nothing is being
+ * recorded, so an event recording can start with the seconds before the event.
+ *
+ * Frames are copied into one byte arena allocated up front, so memory use is
+ * fixed by the byte cap no matter how long the camera stays idle. The oldest
+ * frames are evicted when they fall out of the time window or when the arena
+ * is full. Not thread safe, a buffer belongs to one camera's encoder.
+ */
+public class PreRollBuffer {
+	public static final int DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+
+	private static final int AVERAGE_FRAME_BYTES = 16 * 1024;
+
+	/**
+	 * Receives frames when the buffer is flushed. The data is only valid for
+	 * the duration of the call.
+	 */
+	public interface FrameSink {
+		void onFrame(byte[] data, int offset, int length, long captureTimeMillis);
+	}
+
+	private final long windowMillis;
+	private final byte[] arena;
+
+	// ring of frame descriptors, oldest at head
+	private final int[] offsets;
+	private final int[] lengths;
+	private final long[] captureTimes;
+	private int head = 0;
+	private int count = 0;
+
+	private int writePos = 0; // where the next frame goes in the arena
+
+	/**
+	 * @param windowMillis how far back the buffer reaches
+	 * @param maxBytes hard cap on the memory used for frame data
+	 */
+	public PreRollBuffer(long windowMillis, int maxBytes) {
+		super();
+		if ( maxBytes < 1 ) {
+			throw new IllegalArgumentException("Pre-roll buffer needs at least one byte.");
+		}
+		this.windowMillis = windowMillis;
+		this.arena = new byte[maxBytes];
+		int maxFrames = Math.max(16, maxBytes / AVERAGE_FRAME_BYTES * 4);
+		this.offsets = new int[maxFrames];
+		this.lengths = new int[maxFrames];
+		this.captureTimes = new long[maxFrames];
+	}
+
+	/**
+	 * Copies a frame into the buffer, evicting whatever is needed to make room.
+	 *
+	 * @return false if the frame is larger than the whole buffer and was not kept
+	 */
+	public boolean add(byte[] data, int offset, int length, long captureTimeMillis) {
+		evictOlderThan(captureTimeMillis - windowMillis);
+		if ( length > arena.length ) {
+			return false;
+		}
+
+		int pos = writePos;
+		if ( pos + length > arena.length ) {
+			// wrap, the tail of the arena is left unused this round. Anything
+			// still stored past writePos is older than what sits at the start.
+			while ( count > 0 && offsets[head] >= writePos ) {
+				removeOldest();
+			}
+			pos = 0;
+		}
+		// evict frames overlapping [pos, pos + length) and free up a descriptor
+		while ( count > 0 && (count == offsets.length || overlapsOldest(pos, length)) ) {
+			removeOldest();
+		}
+
+		System.arraycopy(data, offset, arena, pos, length);
+		int slot = (head + count) % offsets.length;
+		offsets[slot] = pos;
+		lengths[slot] = length;
+		captureTimes[slot] = captureTimeMillis;
+		count++;
+		writePos = pos + length;
+		return true;
+	}
+
+	/**
+	 * Hands every buffered frame to the sink, oldest first, and empties the buffer.
+	 *
+	 * @return the number of frames flushed
+	 */
+	public int flush(FrameSink sink) {
+		int flushed = 0;
+		while ( count > 0 ) {
+			int slot = head;
+			sink.onFrame(arena, offsets[slot], lengths[slot], captureTimes[slot]);
+			removeOldest();
+			flushed++;
+		}
+		clear();
+		return flushed;
+	}
+
+	public void clear() {
+		head = 0;
+		count = 0;
+		writePos = 0;
+	}
+
+	public boolean isEmpty() {
+		return count == 0;
+	}
+
+	/**
+	 * @return number of frames buffered
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * @return bytes of frame data buffered
+	 */
+	public long getBufferedBytes() {
+		long bytes = 0;
+		for ( int i = 0; i < count; i++ ) {
+			bytes += lengths[(head + i) % offsets.length];
+		}
+		return bytes;
+	}
+
+	/**
+	 * @return size of the arena, which is all the memory this buffer will ever use for frame data
+	 */
+	public int getMaxBytes() {
+		return arena.length;
+	}
+
+	private void evictOlderThan(long oldestAllowed) {
+		while ( count > 0 && captureTimes[head] < oldestAllowed ) {
+			removeOldest();
+		}
+	}
+
+	/**
+	 * Frames are laid out in arrival order, so only the oldest frame can sit
+	 * where the next one is about to be written.
+	 */
+	private boolean overlapsOldest(int pos, int length) {
+		int oldestStart = offsets[head];
+		int oldestEnd = oldestStart + lengths[head];
+		return pos < oldestEnd && oldestStart < pos + length;
+	}
+
+	private void removeOldest() {
+		head = (head + 1) % offsets.length;
+		count--;
+	}
+}
@@ -18,41 +18,85 @@
 
 package com.github.thebigs.foscam.recorder;
 
-import java.awt.Image;
-import java.awt.Toolkit;
-import java.io.ByteArrayOutputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 
+import javax.imageio.ImageIO;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.GnuParser;
 import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 import org.apache.commons.lang.StringUtils;
-import org.apache.tools.ant.DirectoryScanner;
+
+import com.xuggle.xuggler.IVideoPicture;
 
 public class Recorder implements Runnable {
 	public static final String DEFAULT_CAM_NAME            = "webcam";
 	public static final String DEFAULT_OUTPUT_DIR          = "./";
 	public static final Long   DEFAULT_MAX_DISK_SPACE_MB   = -1L;
 	public static final Long   DEFAULT_CYCLE_DURATION_MINS = 60L;
+	public static final int    DEFAULT_FRAME_QUEUE_SIZE    = FrameQueue.DEFAULT_CAPACITY;
+	public static final DropPolicy DEFAULT_DROP_POLICY     = DropPolicy.DROP_OLDEST;
+	public static final RecordingFormat DEFAULT_RECORDING_FORMAT = RecordingFormat.MP4;
+	
+	private static final long ENCODER_SHUTDOWN_TIMEOUT_MS  = 5000L;
+	private static final long NEXT_SEGMENT_LEAD_MS         = 10000L; // how long before a cycle the next file is prepared
+	private static final long MAX_KEYFRAME_WAIT_MS         = 5000L;  // how long a cycle waits for the end of a GOP
+	private static final long FLUSH_CHECK_MS               = 1000L;  // how often an idle segment's write buffer is checked
+	
+	// opens and closes recording files off the encoder threads, shared by every camera
+	private static final ExecutorService SEGMENT_THREADS = Executors.newCachedThreadPool(new ThreadFactory() {
+		private int count = 0;
+		
+		@Override
+		public synchronized Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "Segment thread - " + (++count));
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	
+	// flushes buffered segment writes the encoders have not flushed for lack of new frames, shared by every camera
+	private static final ScheduledExecutorService FLUSH_TIMER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "Segment flush timer");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
 	
 	public void setDefaults() {
 		this.camName           = DEFAULT_CAM_NAME;
 		this.outputDir         = DEFAULT_OUTPUT_DIR;
 		this.cycleDurationMins = DEFAULT_CYCLE_DURATION_MINS;
 		this.maxDiskSpaceMb    = DEFAULT_MAX_DISK_SPACE_MB;
+		this.frameQueue        = new FrameQueue(DEFAULT_FRAME_QUEUE_SIZE, DEFAULT_DROP_POLICY, encoderProfile.getGop());
 	}
 	
 	private String camUrl;
@@ -60,12 +104,55 @@ public class Recorder implements Runnable {
 	private String outputDir;
 	private long   cycleDurationMins;
 	private long   maxDiskSpaceMb;
+	private FrameQueue frameQueue;
 	
 	
-	private List<WebCamImageListener> imageListeners = new ArrayList<WebCamImageListener>();
+	// delivered off the capture thread, each through its own mailbox
+	private final CopyOnWriteArrayList<ListenerMailbox> imageListeners = new CopyOnWriteArrayList<ListenerMailbox>();
+	private final CopyOnWriteArrayList<ListenerMailbox> jpegListeners = new CopyOnWriteArrayList<ListenerMailbox>();
 	private volatile boolean shutdown = false;
-	private Recording currentRecording = null;
-	private long totalBytesSaved = 0L;
+	private RecordingFormat recordingFormat = DEFAULT_RECORDING_FORMAT;
+	private SegmentWriter currentRecording = null;
+	private RecordingCatalog catalog = null;
+	private RetentionPolicy retentionPolicy = null;
+	private MjpegStreamParser parser = null;
+	private Thread encoderThread = null;
+	private long frameSequence = 0L;
+	private EncoderPool encoderPool = null;
+	private EncoderPool.Lane encoderLane = null;
+	private final Object encodeLock = new Object();
+	private final Object reconnectLock = new Object(); // notified by shutdown() to end a reconnect backoff
+	private volatile ScheduledFuture<?> flushTimer = null;
+	private boolean recordingClosed = false;
+	private JpegDecoder jpegDecoder = null;
+	private int decodeThreads = 0;
+	private int decodeWindow = 0;
+	private ParallelDecoder parallelDecoder = null;
+	private MotionDetector motionDetector = null;
+	private PreRollBuffer preRollBuffer = null;
+	private long postRollMillis = 0L;
+	private boolean triggeredRecording = false;
+	private long lastEventTime = -1L;
+	private volatile long lastTriggerTime = -1L;
+	private int connectTimeoutMillis = (int) CaptureEngine.DEFAULT_CONNECT_TIMEOUT_MS;
+	private int readTimeoutMillis = (int) CaptureEngine.DEFAULT_READ_TIMEOUT_MS;
+	private long stallTimeoutMillis = ConnectionManager.DEFAULT_STALL_TIMEOUT_MS;
+	private long minBackoffMillis = ConnectionManager.DEFAULT_MIN_BACKOFF_MS;
+	private long maxBackoffMillis = ConnectionManager.DEFAULT_MAX_BACKOFF_MS;
+	private volatile ConnectionManager connection = null;
+	private CaptureEngine.Stream captureStream = null;
+	private volatile FrameWrittenListener frameWrittenListener = null;
+	private final CameraMetrics metrics;
+	private long lastBytesRead = 0L;
+	private EncoderProfile encoderProfile = new EncoderProfile();
+	private long thumbnailIntervalMillis = ThumbnailWriter.DEFAULT_INTERVAL_MILLIS;
+	private volatile WritePolicy writePolicy = new WritePolicy();
+	private EncoderProfile resolvedProfile = null; // encoderProfile with auto settings learned from the stream
+	private EncoderProbe encoderProbe = null;
+	private Frame previousFrame = null; // holds a reference
+	private FrameBufferPool framePool = null;
+	private Future<SegmentWriter> nextRecording = null; // being opened ahead of the next cycle
+	private final LinkedList<Future<?>> pendingCloses = new LinkedList<Future<?>>();
 	
 	public Recorder(String camUrl) {
 		super();
@@ -77,6 +164,8 @@ public class Recorder implements Runnable {
 		else {
 			throw new IllegalArgumentException("Cam URL cannot be blank.");
 		}
+		this.metrics = new CameraMetrics(this.camName);
+		metrics.setFrameQueue(frameQueue);
 	}
 	
 	public Recorder(String camUrl, String camName, String outputDir, Long cycleDurationMins, Long maxDiskSpaceMb) {
@@ -102,239 +191,1017 @@ public class Recorder implements Runnable {
 		if ( maxDiskSpaceMb != null ) {
 			this.maxDiskSpaceMb = maxDiskSpaceMb;
 		}
+		this.metrics = new CameraMetrics(this.camName);
+		metrics.setFrameQueue(frameQueue);
+	}
+	
+	/**
+	 * Sets the size of the queue between the capture and encoder threads and
+	 * what happens to frames when the encoder cannot keep up. Must be called
+	 * before {@link #run()}.
+	 */
+	public void setFrameQueue(int size, DropPolicy dropPolicy) {
+		this.frameQueue = new FrameQueue(size, dropPolicy, encoderProfile.getGop());
+		metrics.setFrameQueue(frameQueue);
 	}
 	
-	private void initTotalBytesSaved() {
-		// initialize the totalBytesSaved
-		String[] files = getRecordedVideoFiles();
-		for ( String file : files ) {
-			totalBytesSaved += new File(outputDir + "/" + file).length();
+	/**
+	 * @return the queue between the capture and encoder threads, for its depth and drop counts
+	 */
+	public FrameQueue getFrameQueue() {
+		return frameQueue;
+	}
+	
+	/**
+	 * Copies this camera's frames into buffers from a pool shared with other
+	 * cameras, instead of a pool of its own. Must be called before {@link #run()}.
+	 */
+	public void setFrameBufferPool(FrameBufferPool framePool) {
+		this.framePool = framePool;
+	}
+	
+	/**
+	 * @return the pool frames are copied into, for its hit rate and leak counts
+	 */
+	public FrameBufferPool getFrameBufferPool() {
+		if ( framePool == null ) {
+			framePool = new FrameBufferPool(camName);
 		}
+		return framePool;
 	}
 	
-	public void addWebCamImageListener(WebCamImageListener l) {
-		synchronized(imageListeners) {
-			if ( !imageListeners.contains(l) ) {
-				imageListeners.add(l);
-			}
+	/**
+	 * Encodes this camera's frames on a shared pool instead of a dedicated
+	 * encoder thread. Must be called before {@link #run()}.
+	 */
+	public void setEncoderPool(EncoderPool encoderPool) {
+		this.encoderPool = encoderPool;
+	}
+	
+	/**
+	 * Decodes frames on a pool of threads instead of on the encoder thread,
+	 * for HD cameras that send frames faster than one core can decode them.
+	 * Frames are still encoded in capture order. Must be called before
+	 * {@link #run()}.
+	 *
+	 * @param threads frames decoded at once, 0 to decode on the encoder thread
+	 * @param window frames decoded ahead of the one being encoded, 0 for twice the threads
+	 */
+	public void setParallelDecode(int threads, int window) {
+		this.decodeThreads = threads;
+		this.decodeWindow = window;
+	}
+	
+	/**
+	 * Only records while the detector sees motion; each stretch of motion
+	 * gets its own recording file. Must be called before {@link #run()}.
+	 */
+	public void setMotionDetector(MotionDetector motionDetector) {
+		this.motionDetector = motionDetector;
+	}
+	
+	/**
+	 * Records only around events: motion, if a motion detector is set, and
+	 * calls to {@link #trigger()}. Each event recording starts with up to
+	 * preRollSecs of frames from before the event and continues postRollSecs
+	 * after the last one. Must be called before {@link #run()}.
+	 *
+	 * @param maxPreRollBytes hard cap on the memory used to hold pre-roll frames
+	 */
+	public void setEventRecording(long preRollSecs, long postRollSecs, int maxPreRollBytes) {
+		this.triggeredRecording = true;
+		this.preRollBuffer = preRollSecs > 0 ? new PreRollBuffer(TimeUnit.SECONDS.toMillis(preRollSecs), maxPreRollBytes) : null;
+		this.postRollMillis = TimeUnit.SECONDS.toMillis(Math.max(0, postRollSecs));
+	}
+	
+	/**
+	 * Signals an external event, such as a door contact. Starts an event
+	 * recording, or extends the current one. Safe to call from any thread.
+	 */
+	public void trigger() {
+		lastTriggerTime = System.currentTimeMillis();
+	}
+	
+	private boolean isEventRecording() {
+		return triggeredRecording || motionDetector != null;
+	}
+	
+	/**
+	 * Chooses between encoding to MP4 and storing the camera's JPEGs as
+	 * received. Must be called before {@link #run()}.
+	 */
+	public void setRecordingFormat(RecordingFormat recordingFormat) {
+		this.recordingFormat = recordingFormat;
+	}
+	
+	/**
+	 * Sets how MP4 recordings are encoded. Resolution and frame rate left on
+	 * auto, the default, are learned from the first frames of the stream.
+	 * Must be called before {@link #run()}.
+	 */
+	public void setEncoderProfile(EncoderProfile encoderProfile) {
+		this.encoderProfile = encoderProfile;
+		frameQueue.setKeyframeInterval(encoderProfile.getGop());
+	}
+	
+	/**
+	 * Sets how recording files are buffered and synced, see {@link WritePolicy}.
+	 * Applies from the next segment opened.
+	 */
+	public void setWritePolicy(WritePolicy writePolicy) {
+		this.writePolicy = writePolicy;
+	}
+	
+	/**
+	 * Sets how often MP4 recordings save a thumbnail for timeline browsing,
+	 * see {@link ThumbnailCache}. 0 saves none.
+	 */
+	public void setThumbnailInterval(long intervalMillis) {
+		this.thumbnailIntervalMillis = intervalMillis;
+	}
+	
+	/**
+	 * Sets how long the capture loop waits for the camera to accept the
+	 * connection, and for data once connected, before reconnecting. Must be
+	 * called before {@link #run()}.
+	 */
+	public void setTimeouts(int connectTimeoutMillis, int readTimeoutMillis) {
+		this.connectTimeoutMillis = connectTimeoutMillis;
+		this.readTimeoutMillis = readTimeoutMillis;
+	}
+	
+	/**
+	 * Sets how long the capture loop waits for a frame before it treats the
+	 * connection as stalled and reconnects, even if the camera is still
+	 * sending data. Must be called before {@link #run()}.
+	 */
+	public void setStallTimeout(long stallTimeoutMillis) {
+		this.stallTimeoutMillis = stallTimeoutMillis;
+	}
+	
+	/**
+	 * Sets the shortest and longest wait before reconnecting, see
+	 * {@link ConnectionManager}. Must be called before {@link #run()}.
+	 */
+	public void setReconnectBackoff(long minBackoffMillis, long maxBackoffMillis) {
+		this.minBackoffMillis = minBackoffMillis;
+		this.maxBackoffMillis = maxBackoffMillis;
+	}
+	
+	/**
+	 * @return the camera connection's health and history, or null until capture has started
+	 */
+	public ConnectionManager getConnection() {
+		return connection;
+	}
+	
+	public ConnectionManager.Health getHealth() {
+		ConnectionManager current = connection;
+		if ( current == null ) {
+			return shutdown ? ConnectionManager.Health.STOPPED : ConnectionManager.Health.CONNECTING;
 		}
+		return current.getHealth();
+	}
+	
+	public String getCamName() {
+		return camName;
+	}
+	
+	/**
+	 * @return this camera's counters and stage latencies, for a {@link MetricsRegistry}
+	 */
+	public CameraMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * Applies a retention policy to the output directory every time one of
+	 * this camera's recordings is closed. Must be called before {@link #run()}.
+	 */
+	public void setRetentionPolicy(RetentionPolicy retentionPolicy) {
+		this.retentionPolicy = retentionPolicy;
+	}
+	
+	/**
+	 * @param listener told about every frame written, or null for none
+	 */
+	public void setFrameWrittenListener(FrameWrittenListener listener) {
+		this.frameWrittenListener = listener;
+	}
+	
+	/**
+	 * Adds a listener given each frame as a decoded AWT image, on a listener
+	 * thread. A slow listener skips frames rather than slowing recording.
+	 */
+	public void addWebCamImageListener(final WebCamImageListener l) {
+		imageListeners.addIfAbsent(new ListenerMailbox(l) {
+			@Override
+			protected void deliver(Frame frame) {
+				// decoded now, while the mailbox holds the frame, so the pooled buffer is read in place;
+				// a toolkit image would decode lazily, after the buffer has gone back to the pool
+				BufferedImage image;
+				try {
+					// a memory cache, ImageIO's default stream for an InputStream goes through a temporary file
+					image = ImageIO.read(new MemoryCacheImageInputStream(new ByteArrayInputStream(frame.getData(), 0, frame.getLength())));
+				} catch (IOException e) {
+					return; // a corrupt frame, the next one will do
+				}
+				if ( image != null ) {
+					l.onImage(image);
+				}
+			}
+		});
 	}
 	public boolean removeWebCamImageListener(WebCamImageListener l) {
-		synchronized(imageListeners) {
-			return imageListeners.remove(l);
-		}
+		return removeListener(imageListeners, l);
 	}
 	public void clearWebCamImageListeners() {
-		synchronized(imageListeners) {
-			imageListeners.clear();
+		clearListeners(imageListeners);
+	}
+	
+	/**
+	 * Adds a listener given each frame's JPEG bytes as received, on a listener
+	 * thread. A slow listener skips frames rather than slowing recording.
+	 */
+	public void addWebCamJpegListener(final WebCamJpegListener l) {
+		jpegListeners.addIfAbsent(new ListenerMailbox(l) {
+			@Override
+			protected void deliver(Frame frame) {
+				l.onJpeg(frame.getData(), 0, frame.getLength(), frame.getCaptureTime());
+			}
+		});
+	}
+	public boolean removeWebCamJpegListener(WebCamJpegListener l) {
+		return removeListener(jpegListeners, l);
+	}
+	public void clearWebCamJpegListeners() {
+		clearListeners(jpegListeners);
+	}
+	
+	private static boolean removeListener(CopyOnWriteArrayList<ListenerMailbox> mailboxes, Object l) {
+		for ( ListenerMailbox mailbox : mailboxes ) {
+			if ( mailbox.getListener() == l && mailboxes.remove(mailbox) ) {
+				mailbox.close();
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	private static void clearListeners(CopyOnWriteArrayList<ListenerMailbox> mailboxes) {
+		for ( ListenerMailbox mailbox : mailboxes ) {
+			if ( mailboxes.remove(mailbox) ) {
+				mailbox.close();
+			}
 		}
 	}
 
 	public void shutdown() {
 		shutdown = true;
-		if (currentRecording != null) {
-			currentRecording.close();
+		synchronized(reconnectLock) {
+			reconnectLock.notifyAll();
 		}
+		if ( captureStream != null ) {
+			captureStream.close();
+		}
+		ConnectionManager current = connection;
+		if ( current != null ) {
+			current.stopped(System.currentTimeMillis());
+		}
+		ScheduledFuture<?> timer = flushTimer;
+		if ( timer != null ) {
+			timer.cancel(false);
+		}
+		Thread encoder = encoderThread;
+		if ( encoder != null ) {
+			encoder.interrupt();
+			try {
+				encoder.join(ENCODER_SHUTDOWN_TIMEOUT_MS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		synchronized(encodeLock) {
+			if ( parallelDecoder != null ) {
+				parallelDecoder.drain(decodedFrames);
+			}
+			if ( resolvedProfile == null && encoderProbe != null && !recordingClosed ) {
+				// too few frames to be sure of the cadence, but better than losing them
+				resolvedProfile = encoderProbe.resolve(encoderProfile);
+				try {
+					processProbedFrames();
+				} catch (RuntimeException e) {
+					System.err.println("Unable to encode frame for '" + camName + "': " + e.getMessage());
+				}
+			}
+			recordingClosed = true;
+			discardNextRecording();
+			if (currentRecording != null) {
+				closeRecording(currentRecording, System.currentTimeMillis());
+				currentRecording = null;
+			}
+			awaitPendingCloses();
+			if ( catalog != null ) {
+				catalog.save(); // the background save may not get to run before the process exits
+			}
+			if ( parallelDecoder != null ) {
+				parallelDecoder.close();
+				parallelDecoder = null;
+			}
+			if ( encoderProbe != null ) {
+				for ( Frame probed : encoderProbe.drainFrames() ) {
+					probed.release();
+				}
+			}
+			if ( previousFrame != null ) {
+				previousFrame.release();
+				previousFrame = null;
+			}
+			if ( jpegDecoder != null ) {
+				jpegDecoder.close();
+				jpegDecoder = null;
+			}
+		}
+		frameQueue.clear();
 		clearWebCamImageListeners();
+		clearWebCamJpegListeners();
+	}
+	
+	/**
+	 * Captures on the engine's selector threads instead of a thread of this
+	 * recorder's own. Returns at once; {@link #shutdown()} stops the capture.
+	 *
+	 * @throws MalformedURLException if the cam URL is not an http URL
+	 */
+	public void start(CaptureEngine captureEngine) throws MalformedURLException {
+		startEncoding();
+		try {
+			captureStream = captureEngine.addStream(camUrl, camName, new CaptureEngine.FrameHandler() {
+			@Override
+			public void onFrame(byte[] data, int offset, int length, long captureTimeMillis) {
+					// only null for frames that arrive before addStream has returned
+					CaptureEngine.Stream stream = captureStream;
+					handleFrame(data, offset, length, captureTimeMillis,
+							stream == null ? -1L : stream.getLastParseNanos(), stream == null ? -1L : stream.getBytesReceived());
+				}
+			});
+		} catch (MalformedURLException e) {
+			connection = new ConnectionManager(camName);
+			connection.invalid(e.getMessage(), System.currentTimeMillis());
+			throw e;
+		}
+		connection = captureStream.getConnection();
+		metrics.setConnection(connection);
 	}
 	
+	/**
+	 * Captures on the calling thread until {@link #shutdown()}.
+	 */
 	@Override
 	public void run() {
-		new File(outputDir).mkdirs();
-		initTotalBytesSaved();
+		startEncoding();
+		final ConnectionManager connection = new ConnectionManager(camName, connectTimeoutMillis, readTimeoutMillis,
+				stallTimeoutMillis, minBackoffMillis, maxBackoffMillis);
+		this.connection = connection;
+		metrics.setConnection(connection);
 		
 		while( !shutdown ) {
+			connection.connecting(System.currentTimeMillis());
+			URLConnection urlc = null;
+			InputStream stream = null;
 			try {
 				URL url = new URL(camUrl);
 				
 				// Open a Connection to the server
-				URLConnection urlc = url.openConnection();
+				urlc = url.openConnection();
 				if (urlc == null) {
 					throw new IOException("Unable to make a connection to the image source");
 				}
 				// Turn off caches to force fresh reload of the jpg
 				urlc.setUseCaches(false);
+				urlc.setConnectTimeout(connectTimeoutMillis);
+				urlc.setReadTimeout(readTimeoutMillis);
 				urlc.connect(); // ignored if already connected.
-				InputStream stream = urlc.getInputStream();
-
-				// Line 1: "--ipcamera"
-				String delimiter = new String(readLine(stream)); 
-				while ( !shutdown && !imageListeners.isEmpty()) {
-					// Line 2: "Content-Type: image/jpeg"
-					String contentType = new String(readLine(stream)).split(":")[1].trim(); 
-					// Line 3: "Content-Length: 23304"
-					int contentLength = Integer.parseInt(new String(readLine(stream)).split(":")[1].trim());
-					// Line 4: <Blank Line>
-					readLine(stream);
-
-					// read image data
-					byte[] imageData = new byte[contentLength];
-					for (int i = 0; i < contentLength; i++ ){
-						int readByte = stream.read();
-						imageData[i] = (byte) readByte;
-					}
-
-					Image image = Toolkit.getDefaultToolkit().createImage(imageData);
-					// save the image to the current recording
-					saveImage(image);
-					
-					// notify listeners
-					synchronized(imageListeners) {
-						for ( WebCamImageListener l : imageListeners ) {
-							l.onImage(image);
-						}
-					}
+				stream = urlc.getInputStream();
+				connection.watch(closerFor(urlc, stream));
+				if ( shutdown ) {
+					break; // shut down while connecting, before there was anything to close
+				}
 
-					// read stream till next delimiter
-					boolean delimiterFound = false;
-					ByteArrayOutputStream delimiterBuffer = new ByteArrayOutputStream();
-					while (!delimiterFound) {
-						int nextByte = stream.read();
-						if ( nextByte == 0x2d ) {
-							int followingByte = stream.read();
-							if ( followingByte == 0x2d ) {
-								// read 8 bytes into the delimiter buffer
-								for ( int i = 0; i < 8; i++ ) {
-									delimiterBuffer.write(stream.read());
-								}
-								if (new String(delimiterBuffer.toByteArray()).equals("ipcamera")) {
-									delimiterFound = true;
-									// skip CR/LF
-									stream.skip(2);
-								}
-							}
-						}
+				if ( parser == null ) {
+					parser = new MjpegStreamParser(urlc.getContentType());
+				}
+				else {
+					parser.reset(urlc.getContentType());
+				}
+				while ( !shutdown ) {
+					int frameLength = parser.nextFrame(stream);
+					if ( frameLength < 0 ) {
+						throw new IOException("Stream closed by camera");
 					}
+					long captureTime = System.currentTimeMillis();
+					connection.frameReceived(captureTime);
+					handleFrame(parser.getFrameData(), parser.getFrameOffset(), frameLength, captureTime,
+							parser.getLastParseNanos(), parser.getBytesRead());
 				}
 			} 
 			catch (MalformedURLException e) {
-				System.err.println("Unable to parse URL: '" + camUrl + "'");
-				System.exit(-1);
+				System.err.println("Unable to parse URL: '" + camUrl + "', not capturing from it");
+				connection.invalid("invalid URL: " + e.getMessage(), System.currentTimeMillis());
+				shutdown();
+				break;
 			}
 			catch (IOException e) {
-				System.err.println("IO Exception: server not responding at : '" + camUrl + "'. retrying in 1 second");
-				
-				// sleep for 1 sec
-				try { Thread.sleep(1000); } catch (InterruptedException e1) { }
-				continue;
+				if ( shutdown ) {
+					break;
+				}
+				long delay = connection.failed(e.getMessage(), System.currentTimeMillis());
+				System.err.println("IO Exception: camera '" + camName + "' at '" + camUrl + "' (" + connection.getLastError()
+						+ "). retrying in " + delay + "ms");
+				awaitReconnect(delay);
 			}
-			
-			
-			if ( imageListeners.isEmpty() ) {
-				// sleep for 5 secs
-				try { Thread.sleep(5000); } catch (InterruptedException e) { }
+			finally {
+				connection.unwatch();
+				closeQuietly(closerFor(urlc, stream));
 			}
 		}
+		connection.stopped(System.currentTimeMillis());
 	}
 	
-	private void saveImage(Image image) {
-		Date currTime = new Date();
-		if ( currentRecording == null ) {
-			currentRecording = new Recording(outputDir, camName, currTime);
-			System.out.println("Recording file: opening " + currentRecording.getRecordingFileLocation());
+	/**
+	 * Waits out a reconnect backoff, returning early when {@link #shutdown()}
+	 * notifies the monitor.
+	 */
+	private void awaitReconnect(long delayMillis) {
+		long deadline = System.currentTimeMillis() + delayMillis;
+		synchronized(reconnectLock) {
+			long remaining;
+			while ( !shutdown && (remaining = deadline - System.currentTimeMillis()) > 0 ) {
+				try {
+					reconnectLock.wait(remaining);
+				} catch (InterruptedException e) {
+					return; // retry at once, as when interrupted out of a sleep
+				}
+			}
 		}
-		// check if we need to cycle the recording file
-		else if ( currTime.getTime() - currentRecording.getStartTime() >= TimeUnit.MINUTES.toMillis(cycleDurationMins) ) {
-			System.out.println("Cycling Recording file: closing " + currentRecording.getRecordingFileLocation());
-			currentRecording.close();
-			totalBytesSaved += currentRecording.getRecordingFileSize();
-			currentRecording = new Recording(outputDir, camName, currTime);
-			System.out.println("Cycling Recording file: opening " + currentRecording.getRecordingFileLocation());
+	}
+	
+	/**
+	 * @return something that drops the connection, which makes a read blocked on it fail
+	 */
+	private static Closeable closerFor(final URLConnection urlc, final InputStream stream) {
+		return new Closeable() {
+			@Override
+			public void close() throws IOException {
+				if ( urlc instanceof HttpURLConnection ) {
+					((HttpURLConnection) urlc).disconnect();
+				}
+				if ( stream != null ) {
+					stream.close();
+				}
+			}
+		};
+	}
+	
+	private static void closeQuietly(Closeable closeable) {
+		try {
+			closeable.close();
+		} catch (IOException e) {
+			// the connection is being dropped anyway
+		}
+	}
+	
+	/**
+	 * Copies a captured frame onto the frame queue and notifies listeners.
+	 * The data belongs to the parser and is only valid during the call.
+	 *
+	 * @param parseNanos time taken to parse the frame, or -1 if unknown
+	 * @param bytesRead total bytes read from the camera so far, or -1 if unknown
+	 */
+	private void handleFrame(byte[] data, int offset, int length, long captureTime, long parseNanos, long bytesRead) {
+		metrics.frameReceived();
+		if ( parseNanos >= 0 ) {
+			metrics.recordLatency(CameraMetrics.Stage.PARSE, parseNanos);
+		}
+		if ( bytesRead >= lastBytesRead ) {
+			metrics.addBytesIn(bytesRead - lastBytesRead);
+			lastBytesRead = bytesRead;
 		}
-		currentRecording.saveImage(image);
 		
-		// check for max disk space
-		if ( maxDiskSpaceMb >= 0 ) {
-			double totalMbUsed = ((totalBytesSaved + currentRecording.getRecordingFileSize()) / 1024.0) / 1024.0;
-			if (totalMbUsed >= maxDiskSpaceMb - 5.0) { //5mb ceiling so we don't go over the limit
-				System.out.println("Deleting oldest Recording.. finding oldest file");
-				deleteOldestRecording();
+		Frame frame = getFrameBufferPool().copyOf(data, offset, length, captureTime, frameSequence++);
+		try {
+			// hand the frame to the encoder thread, if it is behind a frame gets dropped instead of stalling the camera
+			if ( frameQueue.offer(frame.retain()) && encoderLane != null ) {
+				encoderLane.signal();
+			}
+			
+			// notify listeners, the frame's data is never modified so they share it with the encoder
+			if ( !imageListeners.isEmpty() ) {
+				for ( ListenerMailbox mailbox : imageListeners ) {
+					mailbox.post(frame);
+				}
+			}
+			if ( !jpegListeners.isEmpty() ) {
+				for ( ListenerMailbox mailbox : jpegListeners ) {
+					mailbox.post(frame);
+				}
 			}
 		}
+		finally {
+			frame.release();
+		}
 	}
-
-	private void deleteOldestRecording() {
-		String[] files = getRecordedVideoFiles();
-		if ( files.length > 0 ) {
-			String recordingToDelete = outputDir + "/" + files[0];
-			System.out.println("Deleting oldest Recording: " + recordingToDelete);
-			File file = new File(recordingToDelete);
-			totalBytesSaved -= file.length();
-			file.delete();
-		}
-	}
-	
-	private String[] getRecordedVideoFiles() {
-		DirectoryScanner scanner = new DirectoryScanner();
-		scanner.setIncludes(new String[]{"*.mp4"});
-		scanner.setBasedir(outputDir);
-		scanner.setCaseSensitive(false);
-		scanner.scan();
+	
+	private void startEncoding() {
+		new File(outputDir).mkdirs();
+		catalog = RecordingCatalog.forDirectory(outputDir);
 		
-		String[] mp4Files = scanner.getIncludedFiles();
+		if ( encoderPool != null ) {
+			encoderLane = encoderPool.register(new EncoderPool.Encoder() {
+				@Override
+				public int encodeFrames(int maxFrames) {
+					return encodeQueuedFrames(maxFrames);
+				}
+				@Override
+				public boolean hasPendingFrames() {
+					if ( parallelDecoder != null ) {
+						return (!frameQueue.isEmpty() && !parallelDecoder.isFull()) || parallelDecoder.hasReady();
+					}
+					return !frameQueue.isEmpty();
+				}
+			});
+		}
+		else {
+			encoderThread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					encodeFrames();
+				}
+			}, "Encoder thread - " + camName);
+		}
 		
-		List<String> validRecordedVideoFiles = new ArrayList<String>();
-		for( String mp4File : mp4Files ) {
+		// passthrough recording only decodes to look for motion
+		if ( decodeThreads > 0 && (recordingFormat.isEncoded() || motionDetector != null) ) {
+			final EncoderPool.Lane lane = encoderLane;
+			parallelDecoder = new ParallelDecoder(camName, decodeThreads, decodeWindow, lane == null ? null : new Runnable() {
+				@Override
+				public void run() {
+					lane.signal();
+				}
+			});
+			parallelDecoder.setMetrics(metrics);
+			System.out.println("Decoding '" + camName + "' on " + parallelDecoder.getThreadCount() + " threads, "
+					+ parallelDecoder.getWindow() + " frames ahead");
+		}
+		if ( encoderThread != null ) {
+			encoderThread.start();
+		}
+		flushTimer = FLUSH_TIMER.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				flushIdleRecording();
+			}
+		}, FLUSH_CHECK_MS, FLUSH_CHECK_MS, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Lets the current segment write out and sync what its write policy says
+	 * is due, for when a stalled, idle or motion gated camera sends no frame
+	 * to do it.
+	 */
+	private void flushIdleRecording() {
+		synchronized(encodeLock) {
+			if ( currentRecording == null || recordingClosed ) {
+				return;
+			}
+			try {
+				currentRecording.flushIfDue();
+			} catch (RuntimeException e) {
+				System.err.println("Unable to flush recording for '" + camName + "': " + e.getMessage());
+			}
+		}
+	}
+	
+	/**
+	 * Dedicated encoder thread loop, used when there is no shared encoder pool.
+	 */
+	private void encodeFrames() {
+		while ( !shutdown ) {
+			Frame frame;
 			try {
-				Recording.FILE_DATE_FORMAT.parse(mp4File);
-				if ( mp4File.endsWith(camName + ".mp4") ) {
-					validRecordedVideoFiles.add(mp4File);
+				// frames still being decoded are delivered as soon as the queue runs dry
+				frame = parallelDecoder != null && parallelDecoder.hasPending() ? frameQueue.poll() : frameQueue.take(1, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				continue;
+			}
+			synchronized(encodeLock) {
+				if ( frame != null ) {
+					encodeFrame(frame);
+				}
+				else if ( parallelDecoder != null ) {
+					parallelDecoder.deliverNext(decodedFrames);
 				}
-			} catch (java.text.ParseException e) {
-				// didn't match
 			}
 		}
-		
-		Collections.sort(validRecordedVideoFiles, new Comparator<String>() {
-			@Override
-			public int compare(String arg0, String arg1) {
-				try {
-					Date date0 = Recording.FILE_DATE_FORMAT.parse(arg0);
-					Date date1 = Recording.FILE_DATE_FORMAT.parse(arg1);
-					
-					return date0.compareTo(date1);
-				} catch (java.text.ParseException e) {
-					e.printStackTrace();
+	}
+	
+	/**
+	 * Encodes up to maxFrames queued frames on the calling encoder pool thread.
+	 */
+	private int encodeQueuedFrames(int maxFrames) {
+		int encoded = 0;
+		synchronized(encodeLock) {
+			if ( parallelDecoder != null ) {
+				// never wait on the decoder here, the lane is signalled when a frame is decoded
+				Frame frame;
+				while ( !parallelDecoder.isFull() && (frame = frameQueue.poll()) != null ) {
+					encodeFrame(frame);
 				}
-				return 0;
+				return parallelDecoder.deliver(decodedFrames, maxFrames);
+			}
+			Frame frame;
+			while ( encoded < maxFrames && (frame = frameQueue.poll()) != null ) {
+				encodeFrame(frame);
+				encoded++;
 			}
-		});
-
-		String[] recordedVideoFilesSorted = new String[validRecordedVideoFiles.size()];
-		for ( int i = 0; i <  validRecordedVideoFiles.size(); i++ ) {
-			recordedVideoFilesSorted[i] = validRecordedVideoFiles.get(i);
 		}
-		return recordedVideoFilesSorted;
+		return encoded;
 	}
-
-	private byte[] readLine(InputStream stream) throws IOException {
-		ByteArrayOutputStream buffered = new ByteArrayOutputStream();
-
-		while (true) {
-			int nextByte = stream.read();
-			
-			// carrige return
-			if ( nextByte == 0x0d ) {
-				int lineFeed = stream.read();
-				if ( lineFeed != 0x0a ) {
-					System.err.println("Parse error: found 0x0d not followed by 0x0a");
+	
+	/**
+	 * Encodes a frame taken off the frame queue, and releases it.
+	 */
+	private void encodeFrame(Frame frame) {
+		try {
+			if ( recordingClosed ) {
+				return;
+			}
+			if ( recordingFormat.isEncoded() ) {
+				if ( isDuplicate(frame) ) {
+					metrics.frameDuplicate();
+					return;
 				}
-				else {
-					break;
+				if ( previousFrame != null ) {
+					previousFrame.release();
 				}
+				previousFrame = frame.retain();
+			}
+			if ( parallelDecoder != null ) {
+				parallelDecoder.submit(frame, decodedFrames);
 			}
 			else {
-				buffered.write(nextByte);
+				saveFrame(frame, null);
+			}
+		} catch (RuntimeException e) {
+			System.err.println("Unable to encode frame for '" + camName + "': " + e.getMessage());
+		}
+		finally {
+			frame.release();
+		}
+	}
+	
+	/**
+	 * Frames back from the parallel decoder, in capture order.
+	 */
+	private final ParallelDecoder.FrameSink decodedFrames = new ParallelDecoder.FrameSink() {
+		@Override
+		public void onFrame(Frame frame, IVideoPicture picture) {
+			if ( recordingClosed ) {
+				return;
+			}
+			try {
+				saveFrame(frame, picture);
+			} catch (RuntimeException e) {
+				System.err.println("Unable to encode frame for '" + camName + "': " + e.getMessage());
+			}
+		}
+	};
+	
+	/**
+	 * @param picture the frame already decoded by the parallel decoder, or null
+	 */
+	private void saveFrame(Frame frame, IVideoPicture picture) {
+		if ( recordingFormat.isEncoded() ) {
+			if ( resolvedProfile != null && encoderProfile.getWidth() == EncoderProfile.AUTO ) {
+				int frameSize = EncoderProbe.readFrameSize(frame.getData(), 0, frame.getLength());
+				if ( frameSize >= 0 && frameSize != ((resolvedProfile.getWidth() << 16) | resolvedProfile.getHeight()) ) {
+					System.out.println("Resolution of '" + camName + "' changed, learning the new one");
+					resolvedProfile = null;
+					if ( currentRecording != null ) {
+						closeCurrentRecording(frame.getCaptureTime());
+					}
+				}
+			}
+			if ( resolvedProfile == null ) {
+				if ( !encoderProfile.needsProbe() ) {
+					resolvedProfile = encoderProfile;
+				}
+				else {
+					probeFrame(frame);
+					return;
+				}
+			}
+		}
+		processFrame(frame, picture);
+	}
+	
+	/**
+	 * Holds frames back until the probe has learned what it needs for the
+	 * encoder profile, then records them all.
+	 */
+	private void probeFrame(Frame frame) {
+		if ( encoderProbe == null ) {
+			encoderProbe = new EncoderProbe();
+		}
+		encoderProbe.add(frame.retain());
+		if ( encoderProbe.isComplete() ) {
+			resolvedProfile = encoderProbe.resolve(encoderProfile);
+			System.out.println("Encoding '" + camName + "' as " + resolvedProfile);
+			frameQueue.setKeyframeInterval(resolvedProfile.getGop());
+			processProbedFrames();
+		}
+	}
+	
+	private void processProbedFrames() {
+		List<Frame> probed = encoderProbe.drainFrames();
+		try {
+			for ( Frame frame : probed ) {
+				processFrame(frame, null);
+			}
+		}
+		finally {
+			for ( Frame frame : probed ) {
+				frame.release();
+			}
+		}
+	}
+	
+	/**
+	 * Cameras resend the same JPEG when the picture has not been refreshed;
+	 * encoding it again would only waste CPU. The frame before it simply
+	 * stays on screen longer, since frames are timestamped by capture time.
+	 */
+	private boolean isDuplicate(Frame frame) {
+		Frame previous = previousFrame;
+		if ( previous == null || previous.getLength() != frame.getLength() ) {
+			return false;
+		}
+		byte[] a = previous.getData();
+		byte[] b = frame.getData();
+		// the end of a JPEG differs more often than its headers
+		for ( int i = frame.getLength() - 1; i >= 0; i-- ) {
+			if ( a[i] != b[i] ) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * @param decoded the frame already decoded by the parallel decoder, or null
+	 */
+	private void processFrame(Frame frame, IVideoPicture decoded) {
+		long captureTime = frame.getCaptureTime();
+		
+		IVideoPicture picture = decoded;
+		if ( isEventRecording() ) {
+			if ( motionDetector != null ) {
+				if ( picture == null ) {
+					long decodeStart = System.nanoTime();
+					picture = getJpegDecoder().decode(frame.getData(), 0, frame.getLength(), 0L);
+					metrics.recordLatency(CameraMetrics.Stage.DECODE, System.nanoTime() - decodeStart);
+				}
+				// frames that cannot be decoded here are recorded rather than risk missing an event
+				if ( picture == null || motionDetector.detect(picture) ) {
+					lastEventTime = Math.max(lastEventTime, captureTime);
+				}
+			}
+			lastEventTime = Math.max(lastEventTime, lastTriggerTime);
+			
+			boolean eventActive = lastEventTime > 0 && captureTime - lastEventTime <= postRollMillis;
+			if ( !eventActive ) {
+				if ( currentRecording != null ) {
+					System.out.println("Event over: closing " + currentRecording.getRecordingFileLocation());
+					closeCurrentRecording(captureTime);
+				}
+				if ( preRollBuffer != null ) {
+					preRollBuffer.add(frame.getData(), 0, frame.getLength(), captureTime);
+				}
+				return;
+			}
+			if ( currentRecording == null && preRollBuffer != null && !preRollBuffer.isEmpty() ) {
+				System.out.println("Event started: saving " + preRollBuffer.size() + " pre-roll frames");
+				preRollBuffer.flush(new PreRollBuffer.FrameSink() {
+					@Override
+					public void onFrame(byte[] data, int offset, int length, long captureTimeMillis) {
+						writeFrame(data, offset, length, captureTimeMillis, null);
+					}
+				});
+				// the decoder reuses its picture, so a frame decoded here has to be decoded again
+				if ( picture != decoded ) {
+					picture = null;
+				}
 			}
 		}
-		return buffered.toByteArray();
+		writeFrame(frame.getData(), 0, frame.getLength(), captureTime, picture);
 	}
 	
+	/**
+	 * Writes a frame to the current recording, opening or cycling the recording file as needed.
+	 *
+	 * @param picture the frame already decoded, or null
+	 */
+	private void writeFrame(byte[] data, int offset, int length, long captureTime, IVideoPicture picture) {
+		if ( currentRecording == null ) {
+			// an event can end and another start within the second, reusing the file name of one still closing
+			awaitPendingCloses();
+			currentRecording = createRecording(new Date(captureTime), resolvedProfile);
+			System.out.println("Recording file: opening " + currentRecording.getRecordingFileLocation());
+		}
+		else {
+			cycleRecording(captureTime);
+		}
+		if ( picture != null && currentRecording instanceof Recording ) {
+			((Recording) currentRecording).savePicture(picture, captureTime);
+		}
+		else {
+			currentRecording.saveFrame(data, offset, length, captureTime);
+		}
+		
+		metrics.frameWritten();
+		metrics.setRecordingBytes(currentRecording.getRecordingFileSize());
+		
+		FrameWrittenListener listener = frameWrittenListener;
+		if ( listener != null ) {
+			listener.onFrameWritten(camName, captureTime, System.currentTimeMillis());
+		}
+		
+		// check for max disk space
+		if ( maxDiskSpaceMb >= 0 ) {
+			long bytesUsed = catalog.getCameraBytes(camName) + currentRecording.getRecordingFileSize();
+			double totalMbUsed = (bytesUsed / 1024.0) / 1024.0;
+			metrics.setQuotaHeadroomBytes(Math.max(0L, maxDiskSpaceMb * 1024L * 1024L - bytesUsed));
+			if (totalMbUsed >= maxDiskSpaceMb - 5.0) { //5mb ceiling so we don't go over the limit
+				catalog.deleteOldest(camName);
+			}
+		}
+	}
+	
+	/**
+	 * Created on first use, so passthrough recording without motion
+	 * detection never loads the native decoder.
+	 */
+	private JpegDecoder getJpegDecoder() {
+		if ( jpegDecoder == null ) {
+			jpegDecoder = new JpegDecoder();
+		}
+		return jpegDecoder;
+	}
+	
+	/**
+	 * Switches to a new recording file once the cycle duration is up, without
+	 * stalling the frame being written. The next file is opened in the
+	 * background ahead of time; the switch waits for it to be ready and for
+	 * the current file to reach the end of a GOP, and the old file is closed
+	 * in the background. Until then frames keep going to the current file.
+	 */
+	private void cycleRecording(long captureTime) {
+		long cycleEnd = currentRecording.getStartTime() + TimeUnit.MINUTES.toMillis(cycleDurationMins);
+		if ( nextRecording == null && captureTime >= cycleEnd - NEXT_SEGMENT_LEAD_MS ) {
+			// after a gap in the stream the next file starts now rather than at the planned time
+			prepareNextRecording(new Date(Math.max(cycleEnd, captureTime)));
+		}
+		if ( captureTime < cycleEnd || !nextRecording.isDone() ) {
+			return;
+		}
+		if ( !currentRecording.isKeyframeBoundary() && captureTime < cycleEnd + MAX_KEYFRAME_WAIT_MS ) {
+			return;
+		}
+		SegmentWriter next;
+		try {
+			next = nextRecording.get();
+		} catch (ExecutionException e) {
+			System.err.println("Unable to prepare next recording for '" + camName + "': " + e.getCause().getMessage());
+			next = createRecording(new Date(captureTime), resolvedProfile);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		}
+		nextRecording = null;
+		System.out.println("Cycling Recording file: closing " + currentRecording.getRecordingFileLocation());
+		closeInBackground(currentRecording, captureTime);
+		currentRecording = next;
+		System.out.println("Cycling Recording file: opening " + currentRecording.getRecordingFileLocation());
+	}
+	
+	private void prepareNextRecording(final Date startTime) {
+		final EncoderProfile profile = resolvedProfile;
+		if ( recordingFormat.isEncoded() ) {
+			getJpegDecoder(); // created here, recordings only share it
+		}
+		nextRecording = SEGMENT_THREADS.submit(new Callable<SegmentWriter>() {
+			@Override
+			public SegmentWriter call() {
+				return createRecording(startTime, profile);
+			}
+		});
+	}
+	
+	/**
+	 * Closes and deletes a recording prepared for a cycle that is not going to happen.
+	 */
+	private void discardNextRecording() {
+		if ( nextRecording == null ) {
+			return;
+		}
+		try {
+			SegmentWriter unused = nextRecording.get();
+			unused.close();
+			catalog.segmentDiscarded(unused.getRecordingFileName());
+		} catch (ExecutionException e) {
+			// never opened, nothing to clean up
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		nextRecording = null;
+	}
+	
+	/**
+	 * Opens a recording file. Called on the encoder thread, or on a segment
+	 * thread when preparing the next cycle.
+	 */
+	private SegmentWriter createRecording(Date startTime, EncoderProfile profile) {
+		SegmentWriter recording;
+		if ( recordingFormat == RecordingFormat.MJPEG ) {
+			recording = new PackRecording(outputDir, camName, startTime, writePolicy);
+		}
+		else {
+			Recording mp4 = new Recording(outputDir, camName, startTime, getJpegDecoder(), profile, recordingFormat == RecordingFormat.FRAGMENTED_MP4,
+					writePolicy);
+			mp4.setThumbnailInterval(thumbnailIntervalMillis);
+			recording = mp4;
+		}
+		recording.setMetrics(metrics);
+		catalog.segmentOpened(recording.getRecordingFileName(), camName, startTime.getTime());
+		return recording;
+	}
+	
+	/**
+	 * Ends the current recording early, as when an event is over.
+	 */
+	private void closeCurrentRecording(long endTime) {
+		discardNextRecording();
+		closeInBackground(currentRecording, endTime);
+		currentRecording = null;
+	}
+	
+	private void closeInBackground(final SegmentWriter recording, final long endTime) {
+		Iterator<Future<?>> it = pendingCloses.iterator();
+		while ( it.hasNext() ) {
+			if ( it.next().isDone() ) {
+				it.remove();
+			}
+		}
+		pendingCloses.add(SEGMENT_THREADS.submit(new Runnable() {
+			@Override
+			public void run() {
+				closeRecording(recording, endTime);
+			}
+		}));
+	}
+	
+	private void awaitPendingCloses() {
+		for ( Future<?> close : pendingCloses ) {
+			try {
+				close.get();
+			} catch (ExecutionException e) {
+				System.err.println("Unable to close recording for '" + camName + "': " + e.getCause().getMessage());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		pendingCloses.clear();
+	}
+	
+	private void closeRecording(SegmentWriter recording, long endTime) {
+		recording.close();
+		catalog.segmentClosed(recording.getRecordingFileName(), endTime, recording.getRecordingFileSize());
+		if ( retentionPolicy != null ) {
+			catalog.applyRetention(retentionPolicy, System.currentTimeMillis());
+		}
+	}
+
 	@Override
 	public String toString() {
 		return "Record [camUrl=" + camUrl + ", camName=" + camName
 				+ ", outputDir=" + outputDir + ", cycleDurationMins="
-				+ cycleDurationMins + ", maxDiskSpace=" + maxDiskSpaceMb + "]";
+				+ cycleDurationMins + ", maxDiskSpace=" + maxDiskSpaceMb
+				+ ", frameQueueSize=" + frameQueue.getCapacity()
+				+ ", dropPolicy=" + frameQueue.getDropPolicy()
+				+ ", format=" + recordingFormat
+				+ ", encoder=" + encoderProfile
+				+ ", write=" + writePolicy + "]";
 	}
 	
 	// Command line app
@@ -343,9 +1210,26 @@ public class Recorder implements Runnable {
 		
 		options.addOption("c", true, "Cam url (eg. http://<ip>:<port>/<stream page>?<params>");
 		options.addOption("o", true, "Output dir location (default: './'). File names will default to '<YYYY.MM.DD-mm-ss>-<webcam name>.mp4'.");
+		options.addOption("f", true, "Recording format: mp4, fragmented-mp4 to keep segments playable after a crash, or mjpeg to store the camera's frames as received without encoding (Defaults to mp4).");
 		options.addOption("n", true, "Webcam name. Defaults to 'webcam'.");
 		options.addOption("d", true, "Duration (in mins) before cycling to new video file (Defaults to 60mins).");
 		options.addOption("x", true, "Max disk space (in megabytes [1024kb]) to use before overwritting recordings. Oldest recordings will be overwritten first. Defaults to -1 (unlimited)");
+		options.addOption("q", true, "Number of frames buffered between the camera and the encoder (Defaults to " + DEFAULT_FRAME_QUEUE_SIZE + ").");
+		options.addOption("j", true, "Decode frames on this many threads, for HD cameras one encoder thread cannot keep up with (Defaults to off).");
+		options.addOption("l", true, "Frames decoded ahead of the one being encoded with -j (Defaults to twice the decode threads).");
+		options.addOption("p", true, "What to drop when the encoder falls behind: drop-oldest, drop-newest or keyframes-only (Defaults to drop-oldest).");
+		options.addOption("m", true, "Only record while there is motion. Sensitivity from 1 (most sensitive) to 255 (Defaults to off).");
+		options.addOption("e", true, "Areas ignored by motion detection, as 'x,y,width,height' in percent of the frame, separated by ';'.");
+		options.addOption("b", true, "Seconds of video kept from before motion is detected (Defaults to 0). Implies event recording.");
+		options.addOption("a", true, "Seconds to keep recording after motion stops (Defaults to 0). Implies event recording.");
+		options.addOption("t", true, "Seconds to wait for the camera to connect or send data before reconnecting (Defaults to " + CaptureEngine.DEFAULT_READ_TIMEOUT_MS / 1000 + ").");
+		options.addOption("w", true, "Seconds without a frame before the camera is considered stalled and reconnected, even if it is still sending data (Defaults to " + ConnectionManager.DEFAULT_STALL_TIMEOUT_MS / 1000 + ").");
+		options.addOption("k", true, "Max age (in hours) of recordings to keep. Older recordings are deleted (Defaults to -1, keep forever).");
+		options.addOption("r", true, "Serve live video to viewers on this port at /<webcam name>/stream and /<webcam name>/snapshot.");
+		options.addOption("v", true, "Encoder profile for mp4, e.g. 'size=1280x720,fps=15,gop=30,bitrate=2000000,preset=veryfast,tune=zerolatency,threads=2' (Defaults to size and fps learned from the camera).");
+		options.addOption("u", true, "Seconds between the thumbnails mp4 recordings save for timeline browsing, 0 for none (Defaults to " + ThumbnailWriter.DEFAULT_INTERVAL_MILLIS / 1000 + ").");
+		options.addOption("i", true, "How recording files are written, e.g. 'buffer=1m,flush=1,fsync=10': bytes per write, seconds data may stay buffered, and never, close, flush or seconds between fsyncs (Defaults to 'buffer=1m,flush=1,fsync=close').");
+		options.addOption("s", true, "Serve metrics on this port at /metrics. Metrics are always available over JMX.");
 		options.addOption("h", false, "Print this help message.");
 		
 		try {
@@ -356,6 +1240,8 @@ public class Recorder implements Runnable {
 			String outputDir = null;
 			Long durationMins = null;
 			Long maxDiskSpaceMb = null;
+			int frameQueueSize = DEFAULT_FRAME_QUEUE_SIZE;
+			DropPolicy dropPolicy = DEFAULT_DROP_POLICY;
 			
 			if ( cli.hasOption("h") ) {
 				HelpFormatter formatter = new HelpFormatter();
@@ -381,8 +1267,69 @@ public class Recorder implements Runnable {
 			if ( cli.hasOption("x") ) {
 				maxDiskSpaceMb = Long.parseLong(cli.getOptionValue("x"));
 			}
+			if ( cli.hasOption("q") ) {
+				frameQueueSize = Integer.parseInt(cli.getOptionValue("q"));
+			}
+			if ( cli.hasOption("p") ) {
+				dropPolicy = DropPolicy.parse(cli.getOptionValue("p"));
+			}
 			
 			Recorder recording = new Recorder(camUrl, camName, outputDir, durationMins, maxDiskSpaceMb);
+			recording.setFrameQueue(frameQueueSize, dropPolicy);
+			if ( cli.hasOption("t") ) {
+				int timeoutMillis = (int) TimeUnit.SECONDS.toMillis(Long.parseLong(cli.getOptionValue("t")));
+				recording.setTimeouts(timeoutMillis, timeoutMillis);
+			}
+			if ( cli.hasOption("w") ) {
+				recording.setStallTimeout(TimeUnit.SECONDS.toMillis(Long.parseLong(cli.getOptionValue("w"))));
+			}
+			if ( cli.hasOption("j") ) {
+				recording.setParallelDecode(Integer.parseInt(cli.getOptionValue("j")),
+						cli.hasOption("l") ? Integer.parseInt(cli.getOptionValue("l")) : 0);
+			}
+			if ( cli.hasOption("f") ) {
+				recording.setRecordingFormat(RecordingFormat.parse(cli.getOptionValue("f")));
+			}
+			if ( cli.hasOption("v") ) {
+				recording.setEncoderProfile(EncoderProfile.parse(cli.getOptionValue("v")));
+			}
+			if ( cli.hasOption("i") ) {
+				recording.setWritePolicy(WritePolicy.parse(cli.getOptionValue("i")));
+			}
+			if ( cli.hasOption("u") ) {
+				recording.setThumbnailInterval(TimeUnit.SECONDS.toMillis(Long.parseLong(cli.getOptionValue("u"))));
+			}
+			if ( cli.hasOption("m") ) {
+				MotionDetector motionDetector = new MotionDetector(MotionDetector.DEFAULT_BLOCK_SIZE,
+						Integer.parseInt(cli.getOptionValue("m")), MotionDetector.DEFAULT_MIN_BLOB_CELLS, MotionDetector.DEFAULT_HOLD_FRAMES);
+				if ( cli.hasOption("e") ) {
+					motionDetector.addExclusions(cli.getOptionValue("e"));
+				}
+				recording.setMotionDetector(motionDetector);
+			}
+			if ( cli.hasOption("k") ) {
+				RetentionPolicy retentionPolicy = new RetentionPolicy();
+				retentionPolicy.setMaxAgeHours(Long.parseLong(cli.getOptionValue("k")));
+				recording.setRetentionPolicy(retentionPolicy);
+			}
+			if ( cli.hasOption("b") || cli.hasOption("a") ) {
+				recording.setEventRecording(
+						cli.hasOption("b") ? Long.parseLong(cli.getOptionValue("b")) : 0L,
+						cli.hasOption("a") ? Long.parseLong(cli.getOptionValue("a")) : 0L,
+						PreRollBuffer.DEFAULT_MAX_BYTES);
+			}
+			
+			MetricsRegistry metricsRegistry = new MetricsRegistry();
+			metricsRegistry.register(recording.getMetrics());
+			metricsRegistry.register(recording.getFrameBufferPool());
+			if ( cli.hasOption("s") ) {
+				metricsRegistry.startHttpServer(Integer.parseInt(cli.getOptionValue("s")));
+			}
+			if ( cli.hasOption("r") ) {
+				RestreamServer restreamServer = new RestreamServer(Integer.parseInt(cli.getOptionValue("r")));
+				restreamServer.addCamera(recording);
+				restreamServer.start();
+			}
 			
 			System.out.println("Starting recording...");
 			recording.run(); // stay here until program is terminated
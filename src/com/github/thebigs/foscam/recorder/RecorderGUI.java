@@ -18,36 +18,33 @@
 
 package com.github.thebigs.foscam.recorder;
 
-import java.awt.Graphics;
-import java.awt.Image;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.WindowEvent;
 import java.awt.event.WindowListener;
+import java.util.ArrayList;
+import java.util.List;
 
-import javax.swing.ImageIcon;
 import javax.swing.JButton;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
-import javax.swing.JPanel;
 
 import net.miginfocom.swing.MigLayout;
 import javax.swing.JTextField;
 
 import org.apache.commons.lang.StringUtils;
 
-public class RecorderGUI extends JFrame implements WebCamImageListener {
-	private static Recorder recorder = null;
-	private static Thread recorderThread = null;
-	boolean connect = true;
+public class RecorderGUI extends JFrame {
+	private static final List<Recorder> recorders = new ArrayList<Recorder>();
+	private static final List<Thread> recorderThreads = new ArrayList<Thread>();
 
-	private Image image;
-	private JLabel imageArea;
+	private VideoGrid videoGrid;
 
 	private static String camName = "Brahe";
 	private static String camUrl = "";
 	private JTextField txtCamUrl;
 	private JButton btnConnect;
+	private JButton btnDisconnect;
 	private static RecorderGUI gui;
 	private JLabel lblCamName;
 	private JTextField txtCamName;
@@ -71,67 +68,65 @@ public class RecorderGUI extends JFrame implements WebCamImageListener {
 		txtCamUrl.setColumns(10);
 		
 		btnConnect = new JButton("Connect");
-		getContentPane().add(btnConnect, "cell 3 2");
+		getContentPane().add(btnConnect, "flowx,cell 3 2");
 		
+		btnDisconnect = new JButton("Disconnect All");
+		btnDisconnect.setEnabled(false);
+		getContentPane().add(btnDisconnect, "cell 3 2");
+		
+		// every connect adds another camera to the grid
 		btnConnect.addActionListener(new ActionListener() {
 
 			@Override
 			public void actionPerformed(ActionEvent arg0) {
-				// Button says "Connect"
-				if ( connect ) {
-					if ( recorder != null ) {
-						recorder.shutdown();
-						recorderThread.interrupt();
-					}
-					camName = txtCamName.getText();
-					if ( StringUtils.isBlank(camName)) {
-						camName = "defaultCamera";
-					}
-					camUrl = txtCamUrl.getText();
-					if ( StringUtils.isBlank(camUrl) ) {
-						// TODO: dialog this
-						System.err.println("Cam url is blank.");
-					}
-					else {
-						recorder = new Recorder(camUrl, camName, "recordings", 2L, 20L);
-
-						recorder.addWebCamImageListener(gui);
-						recorderThread = new Thread(new Runnable() {
-							@Override
-							public void run() {
-								recorder.run();
-							}
-						}, "Recorder thread");
-						recorderThread.start();
-						btnConnect.setText("Disconnect");
-						connect = false;
-					}
+				camName = txtCamName.getText();
+				if ( StringUtils.isBlank(camName)) {
+					camName = "defaultCamera";
+				}
+				camUrl = txtCamUrl.getText();
+				if ( StringUtils.isBlank(camUrl) ) {
+					// TODO: dialog this
+					System.err.println("Cam url is blank.");
 				}
-				// Button says "Disconnect"
 				else {
-					if ( recorder != null ) {
-						recorder.shutdown();
-						recorderThread.interrupt();
-					}
-					btnConnect.setText("Connect");
-					connect = true;
+					final Recorder recorder = new Recorder(camUrl, camName, "recordings", 2L, 20L);
+
+					videoGrid.addCamera(recorder);
+					Thread recorderThread = new Thread(new Runnable() {
+						@Override
+						public void run() {
+							recorder.run();
+						}
+					}, "Recorder thread - " + camName);
+					recorders.add(recorder);
+					recorderThreads.add(recorderThread);
+					recorderThread.start();
+					btnDisconnect.setEnabled(true);
 				}
 			}
 		});
+		
+		btnDisconnect.addActionListener(new ActionListener() {
 
-		JPanel panel = new JPanel();
-		getContentPane().add(panel, "cell 1 3 3 1,grow"); 
+			@Override
+			public void actionPerformed(ActionEvent arg0) {
+				videoGrid.removeAllCameras();
+				shutdownRecorders();
+				btnDisconnect.setEnabled(false);
+			}
+		});
 
-		imageArea = new JLabel();
-		panel.add(imageArea);
+		videoGrid = new VideoGrid();
+		getContentPane().add(videoGrid, "cell 1 3 3 1,grow"); 
 	}
 
-	@Override
-	public void paint(Graphics g) {
-		super.paint(g);
-		if ( image != null ) {
-			imageArea.setIcon(new ImageIcon(image));
+	private static void shutdownRecorders() {
+		for ( int i = 0; i < recorders.size(); i++ ) {
+			recorders.get(i).shutdown();
+			recorderThreads.get(i).interrupt();
 		}
+		recorders.clear();
+		recorderThreads.clear();
 	}
 	
 	public static void main(String[] args) {
@@ -143,9 +138,7 @@ public class RecorderGUI extends JFrame implements WebCamImageListener {
 			@Override
 			public void windowClosing(WindowEvent arg0) {
 				System.out.println("Closing...");
-				if ( recorder != null ) {
-					recorder.shutdown();
-				}
+				shutdownRecorders();
 				System.out.println("Finished.");
 				System.exit(0);
 			}
@@ -164,11 +157,4 @@ public class RecorderGUI extends JFrame implements WebCamImageListener {
 			public void windowOpened(WindowEvent arg0) { }
 		});
 	}
-
-	@Override
-	public void onImage(Image image) {
-		this.image = image;
-//		System.out.println("Received Image " + new Date().toString());
-		repaint();
-	}
 }
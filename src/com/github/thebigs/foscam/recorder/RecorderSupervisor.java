@@ -0,0 +1,490 @@
+/**
+ *  foscamRecorder - http://github.com/TheBigS
+ *  Copyright (C) 2012
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *   any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.github.thebigs.foscam.recorder;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Runs several cameras in one process. By default every camera keeps its own
+ * capture thread; with capture.mode=nio all cameras are captured by a
+ * {@link CaptureEngine} on capture.selectorThreads threads instead, which is
+ * what sites with hundreds of cameras want. All of them share one
+ * {@link EncoderPool}. capture.connectTimeoutSecs, capture.readTimeoutSecs,
+ * capture.stallTimeoutSecs, capture.retryDelaySecs and capture.maxRetryDelaySecs
+ * apply in both modes, see {@link ConnectionManager}.
+ *
+ * Cameras are read from a properties file:
+ * <pre>
+ * encoder.threads=4
+ * encoder.framesPerTurn=1
+ * outputDir=recordings
+ *
+ * camera.frontdoor.url=http://10.0.0.132/videostream.cgi?user=myuser&amp;pwd=mypassword
+ * camera.frontdoor.maxDiskSpaceMb=10240
+ * camera.garage.url=http://10.0.0.133/videostream.cgi?user=myuser&amp;pwd=mypassword
+ * </pre>
+ * Any camera setting (name, outputDir, cycleDurationMins, maxDiskSpaceMb,
+ * format, video.profile, write.policy, frameQueueSize, dropPolicy, decode.threads, decode.window,
+ * motion.sensitivity, motion.minBlobSize, motion.exclude, event.preRollSecs,
+ * event.postRollSecs, event.preRollMaxMb, thumbnail.intervalSecs)
+ * given without the camera prefix is the default for all cameras. The camera
+ * name defaults to its id.
+ *
+ * retention.maxDiskSpaceMb and retention.maxAgeHours set limits shared by all
+ * cameras recording into the same directory, applied whenever a segment is
+ * closed; camera.&lt;id&gt;.retention.share caps a camera at a fraction (0-1)
+ * of retention.maxDiskSpaceMb.
+ *
+ * Every camera's metrics are registered over JMX when the cameras start;
+ * metrics.port also serves them as Prometheus text on /metrics.
+ * restream.port serves every camera's live video to viewers through a
+ * {@link RestreamServer}, so viewers never connect to the cameras.
+ * Every camera copies its frames into one shared {@link FrameBufferPool},
+ * which keeps up to framePool.maxMb of idle buffers.
+ */
+public class RecorderSupervisor {
+	public static final String DEFAULT_CONFIG_FILE = "cameras.properties";
+
+	private static final String CAMERA_PREFIX = "camera.";
+	private static final int CAPTURE_THREAD_STACK_SIZE = 256 * 1024;
+
+	private final EncoderPool encoderPool;
+	private FrameBufferPool framePool = new FrameBufferPool("shared");
+	private CaptureEngine captureEngine = null;
+	private final List<Recorder> recorders = new ArrayList<Recorder>();
+	private final List<Thread> captureThreads = new ArrayList<Thread>();
+	private final MetricsRegistry metricsRegistry = new MetricsRegistry();
+	private int metricsPort = -1;
+	private int restreamPort = -1;
+	private RestreamServer restreamServer = null;
+
+	public RecorderSupervisor(int encoderThreads, int framesPerTurn) {
+		super();
+		this.encoderPool = new EncoderPool(encoderThreads, framesPerTurn);
+	}
+
+	public static RecorderSupervisor fromProperties(Properties config) {
+		int threads = Integer.parseInt(config.getProperty("encoder.threads", String.valueOf(EncoderPool.DEFAULT_THREADS)));
+		int framesPerTurn = Integer.parseInt(config.getProperty("encoder.framesPerTurn", String.valueOf(EncoderPool.DEFAULT_FRAMES_PER_TURN)));
+		RecorderSupervisor supervisor = new RecorderSupervisor(threads, framesPerTurn);
+		String metricsPort = config.getProperty("metrics.port");
+		if ( !StringUtils.isBlank(metricsPort) ) {
+			supervisor.setMetricsPort(Integer.parseInt(metricsPort.trim()));
+		}
+		String restreamPort = config.getProperty("restream.port");
+		if ( !StringUtils.isBlank(restreamPort) ) {
+			supervisor.setRestreamPort(Integer.parseInt(restreamPort.trim()));
+		}
+		String framePoolMaxMb = config.getProperty("framePool.maxMb");
+		if ( !StringUtils.isBlank(framePoolMaxMb) ) {
+			supervisor.setFrameBufferPool(new FrameBufferPool("shared", Long.parseLong(framePoolMaxMb.trim()) * 1024L * 1024L));
+		}
+
+		long connectTimeoutMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(config.getProperty("capture.connectTimeoutSecs",
+				String.valueOf(CaptureEngine.DEFAULT_CONNECT_TIMEOUT_MS / 1000))));
+		long readTimeoutMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(config.getProperty("capture.readTimeoutSecs",
+				String.valueOf(CaptureEngine.DEFAULT_READ_TIMEOUT_MS / 1000))));
+		long stallTimeoutMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(config.getProperty("capture.stallTimeoutSecs",
+				String.valueOf(ConnectionManager.DEFAULT_STALL_TIMEOUT_MS / 1000))));
+		long retryDelayMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(config.getProperty("capture.retryDelaySecs",
+				String.valueOf(ConnectionManager.DEFAULT_MIN_BACKOFF_MS / 1000))));
+		long maxRetryDelayMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(config.getProperty("capture.maxRetryDelaySecs",
+				String.valueOf(ConnectionManager.DEFAULT_MAX_BACKOFF_MS / 1000))));
+		if ( "nio".equalsIgnoreCase(config.getProperty("capture.mode", "threads").trim()) ) {
+			int selectorThreads = Integer.parseInt(config.getProperty("capture.selectorThreads", String.valueOf(CaptureEngine.DEFAULT_SELECTOR_THREADS)));
+			try {
+				supervisor.setCaptureEngine(new CaptureEngine(selectorThreads, connectTimeoutMillis, readTimeoutMillis, stallTimeoutMillis,
+						retryDelayMillis, maxRetryDelayMillis));
+			} catch (IOException e) {
+				throw new IllegalStateException("Unable to start capture engine: " + e.getMessage(), e);
+			}
+		}
+
+		// camera ids in a stable order
+		TreeSet<String> ids = new TreeSet<String>();
+		for ( String key : config.stringPropertyNames() ) {
+			if ( key.startsWith(CAMERA_PREFIX) && key.endsWith(".url") ) {
+				ids.add(key.substring(CAMERA_PREFIX.length(), key.length() - ".url".length()));
+			}
+		}
+		RetentionPolicy retentionPolicy = createRetentionPolicy(config);
+		for ( String id : ids ) {
+			Recorder recorder = createRecorder(id, config);
+			recorder.setTimeouts((int) connectTimeoutMillis, (int) readTimeoutMillis);
+			recorder.setStallTimeout(stallTimeoutMillis);
+			recorder.setReconnectBackoff(retryDelayMillis, maxRetryDelayMillis);
+			if ( retentionPolicy != null ) {
+				String share = config.getProperty(CAMERA_PREFIX + id + ".retention.share");
+				if ( !StringUtils.isBlank(share) ) {
+					retentionPolicy.setCameraShare(recorder.getCamName(), Double.parseDouble(share.trim()));
+				}
+				recorder.setRetentionPolicy(retentionPolicy);
+			}
+			supervisor.addCamera(recorder);
+		}
+		return supervisor;
+	}
+
+	/**
+	 * @return the policy shared by every camera, or null if the config sets no retention limits
+	 */
+	private static RetentionPolicy createRetentionPolicy(Properties config) {
+		String maxDiskSpaceMb = config.getProperty("retention.maxDiskSpaceMb");
+		String maxAgeHours = config.getProperty("retention.maxAgeHours");
+		if ( StringUtils.isBlank(maxDiskSpaceMb) && StringUtils.isBlank(maxAgeHours) ) {
+			return null;
+		}
+		RetentionPolicy retentionPolicy = new RetentionPolicy();
+		if ( !StringUtils.isBlank(maxDiskSpaceMb) ) {
+			retentionPolicy.setMaxTotalMb(Long.parseLong(maxDiskSpaceMb.trim()));
+		}
+		if ( !StringUtils.isBlank(maxAgeHours) ) {
+			retentionPolicy.setMaxAgeHours(Long.parseLong(maxAgeHours.trim()));
+		}
+		return retentionPolicy;
+	}
+
+	private static Recorder createRecorder(String id, Properties config) {
+		String camName = getCameraSetting(config, id, "name");
+		String cycleDurationMins = getCameraSetting(config, id, "cycleDurationMins");
+		String maxDiskSpaceMb = getCameraSetting(config, id, "maxDiskSpaceMb");
+		String frameQueueSize = getCameraSetting(config, id, "frameQueueSize");
+		String dropPolicy = getCameraSetting(config, id, "dropPolicy");
+		String format = getCameraSetting(config, id, "format");
+		String motionSensitivity = getCameraSetting(config, id, "motion.sensitivity");
+
+		Recorder recorder = new Recorder(
+				config.getProperty(CAMERA_PREFIX + id + ".url"),
+				StringUtils.isBlank(camName) ? id : camName,
+				getCameraSetting(config, id, "outputDir"),
+				StringUtils.isBlank(cycleDurationMins) ? null : Long.valueOf(cycleDurationMins.trim()),
+				StringUtils.isBlank(maxDiskSpaceMb) ? null : Long.valueOf(maxDiskSpaceMb.trim()));
+		if ( !StringUtils.isBlank(frameQueueSize) || !StringUtils.isBlank(dropPolicy) ) {
+			recorder.setFrameQueue(
+					StringUtils.isBlank(frameQueueSize) ? Recorder.DEFAULT_FRAME_QUEUE_SIZE : Integer.parseInt(frameQueueSize.trim()),
+					StringUtils.isBlank(dropPolicy) ? Recorder.DEFAULT_DROP_POLICY : DropPolicy.parse(dropPolicy));
+		}
+		if ( !StringUtils.isBlank(format) ) {
+			recorder.setRecordingFormat(RecordingFormat.parse(format));
+		}
+		String decodeThreads = getCameraSetting(config, id, "decode.threads");
+		if ( !StringUtils.isBlank(decodeThreads) ) {
+			String decodeWindow = getCameraSetting(config, id, "decode.window");
+			recorder.setParallelDecode(Integer.parseInt(decodeThreads.trim()),
+					StringUtils.isBlank(decodeWindow) ? 0 : Integer.parseInt(decodeWindow.trim()));
+		}
+		String encoderProfile = getCameraSetting(config, id, "video.profile");
+		if ( !StringUtils.isBlank(encoderProfile) ) {
+			recorder.setEncoderProfile(EncoderProfile.parse(encoderProfile));
+		}
+		String writePolicy = getCameraSetting(config, id, "write.policy");
+		if ( !StringUtils.isBlank(writePolicy) ) {
+			recorder.setWritePolicy(WritePolicy.parse(writePolicy));
+		}
+		String thumbnailIntervalSecs = getCameraSetting(config, id, "thumbnail.intervalSecs");
+		if ( !StringUtils.isBlank(thumbnailIntervalSecs) ) {
+			recorder.setThumbnailInterval(TimeUnit.SECONDS.toMillis(Long.parseLong(thumbnailIntervalSecs.trim())));
+		}
+		if ( !StringUtils.isBlank(motionSensitivity) ) {
+			String minBlobSize = getCameraSetting(config, id, "motion.minBlobSize");
+			String exclusions = getCameraSetting(config, id, "motion.exclude");
+			MotionDetector motionDetector = new MotionDetector(MotionDetector.DEFAULT_BLOCK_SIZE,
+					Integer.parseInt(motionSensitivity.trim()),
+					StringUtils.isBlank(minBlobSize) ? MotionDetector.DEFAULT_MIN_BLOB_CELLS : Integer.parseInt(minBlobSize.trim()),
+					MotionDetector.DEFAULT_HOLD_FRAMES);
+			if ( !StringUtils.isBlank(exclusions) ) {
+				motionDetector.addExclusions(exclusions);
+			}
+			recorder.setMotionDetector(motionDetector);
+		}
+		String preRollSecs = getCameraSetting(config, id, "event.preRollSecs");
+		String postRollSecs = getCameraSetting(config, id, "event.postRollSecs");
+		if ( !StringUtils.isBlank(preRollSecs) || !StringUtils.isBlank(postRollSecs) ) {
+			String preRollMaxMb = getCameraSetting(config, id, "event.preRollMaxMb");
+			recorder.setEventRecording(
+					StringUtils.isBlank(preRollSecs) ? 0L : Long.parseLong(preRollSecs.trim()),
+					StringUtils.isBlank(postRollSecs) ? 0L : Long.parseLong(postRollSecs.trim()),
+					StringUtils.isBlank(preRollMaxMb) ? PreRollBuffer.DEFAULT_MAX_BYTES : Integer.parseInt(preRollMaxMb.trim()) * 1024 * 1024);
+		}
+		return recorder;
+	}
+
+	private static String getCameraSetting(Properties config, String id, String setting) {
+		String value = config.getProperty(CAMERA_PREFIX + id + "." + setting);
+		if ( value == null ) {
+			value = config.getProperty(setting);
+		}
+		return value;
+	}
+
+	/**
+	 * Adds a camera. Must be called before {@link #start()}.
+	 */
+	public void addCamera(Recorder recorder) {
+		recorder.setEncoderPool(encoderPool);
+		recorder.setFrameBufferPool(framePool);
+		recorders.add(recorder);
+	}
+
+	/**
+	 * Captures every camera on the engine's selector threads instead of a
+	 * capture thread per camera. Must be called before {@link #start()}.
+	 */
+	public void setCaptureEngine(CaptureEngine captureEngine) {
+		this.captureEngine = captureEngine;
+	}
+
+	public CaptureEngine getCaptureEngine() {
+		return captureEngine;
+	}
+
+	/**
+	 * Serves metrics over HTTP on the port, 0 for any free port, or -1 for
+	 * JMX only. Must be called before {@link #start()}.
+	 */
+	public void setMetricsPort(int metricsPort) {
+		this.metricsPort = metricsPort;
+	}
+
+	public MetricsRegistry getMetricsRegistry() {
+		return metricsRegistry;
+	}
+
+	/**
+	 * Serves live video to viewers on the port, 0 for any free port, or -1
+	 * for not at all. Must be called before {@link #start()}.
+	 */
+	public void setRestreamPort(int restreamPort) {
+		this.restreamPort = restreamPort;
+	}
+
+	/**
+	 * @return the server viewers connect to, or null if live video is not served
+	 */
+	public RestreamServer getRestreamServer() {
+		return restreamServer;
+	}
+
+	public List<Recorder> getRecorders() {
+		return Collections.unmodifiableList(recorders);
+	}
+
+	/**
+	 * @return every camera's connection health by camera name, in the order the cameras were added
+	 */
+	public Map<String, ConnectionManager.Health> getHealth() {
+		Map<String, ConnectionManager.Health> health = new LinkedHashMap<String, ConnectionManager.Health>();
+		for ( Recorder recorder : recorders ) {
+			health.put(recorder.getCamName(), recorder.getHealth());
+		}
+		return health;
+	}
+
+	/**
+	 * Signals an external event for the named camera.
+	 *
+	 * @return false if there is no camera by that name
+	 */
+	public boolean trigger(String camName) {
+		for ( Recorder recorder : recorders ) {
+			if ( recorder.getCamName().equals(camName) ) {
+				recorder.trigger();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public EncoderPool getEncoderPool() {
+		return encoderPool;
+	}
+
+	/**
+	 * Replaces the pool every camera's frames are copied into. Must be called
+	 * before the cameras are added.
+	 */
+	public void setFrameBufferPool(FrameBufferPool framePool) {
+		this.framePool = framePool;
+	}
+
+	public FrameBufferPool getFrameBufferPool() {
+		return framePool;
+	}
+
+	public void start() {
+		for ( Recorder recorder : recorders ) {
+			metricsRegistry.register(recorder.getMetrics());
+			metricsRegistry.register(recorder.getFrameBufferPool());
+		}
+		if ( metricsPort >= 0 ) {
+			try {
+				metricsRegistry.startHttpServer(metricsPort);
+			} catch (IOException e) {
+				System.err.println("Unable to serve metrics on port " + metricsPort + ": " + e.getMessage());
+			}
+		}
+		if ( restreamPort >= 0 ) {
+			try {
+				restreamServer = new RestreamServer(restreamPort);
+				for ( Recorder recorder : recorders ) {
+					restreamServer.addCamera(recorder);
+				}
+				restreamServer.start();
+			} catch (IOException e) {
+				System.err.println("Unable to serve live video on port " + restreamPort + ": " + e.getMessage());
+				restreamServer = null;
+			}
+		}
+		if ( captureEngine != null ) {
+			for ( Recorder recorder : recorders ) {
+				try {
+					recorder.start(captureEngine);
+				} catch (MalformedURLException e) {
+					System.err.println("Unable to parse URL for '" + recorder.getCamName() + "': " + e.getMessage());
+				}
+			}
+			return;
+		}
+		for ( final Recorder recorder : recorders ) {
+			// capture threads spend their life blocked in socket reads, so they get a small stack
+			Thread captureThread = new Thread(null, recorder, "Capture thread - " + recorder.getCamName(), CAPTURE_THREAD_STACK_SIZE);
+			captureThreads.add(captureThread);
+			captureThread.start();
+		}
+	}
+
+	/**
+	 * Blocks until every capture thread has finished.
+	 */
+	public void awaitTermination() throws InterruptedException {
+		if ( captureEngine != null ) {
+			captureEngine.awaitTermination();
+		}
+		for ( Thread captureThread : captureThreads ) {
+			captureThread.join();
+		}
+	}
+
+	/**
+	 * Stops every camera, closing their recordings, then the encoder pool.
+	 */
+	public void shutdown() {
+		for ( Recorder recorder : recorders ) {
+			recorder.shutdown();
+		}
+		for ( Thread captureThread : captureThreads ) {
+			captureThread.interrupt();
+		}
+		if ( captureEngine != null ) {
+			captureEngine.shutdown();
+		}
+		encoderPool.shutdown();
+		metricsRegistry.stop();
+		if ( restreamServer != null ) {
+			restreamServer.shutdown();
+		}
+	}
+
+	// Command line app
+	public static void main(String[] args) {
+		Options options = new Options();
+
+		options.addOption("f", true, "Camera config file (default: '" + DEFAULT_CONFIG_FILE + "').");
+		options.addOption("t", true, "Number of encoder threads shared by all cameras (Defaults to the number of cores, overrides encoder.threads).");
+		options.addOption("s", true, "Serve metrics on this port at /metrics (overrides metrics.port).");
+		options.addOption("r", true, "Serve live video on this port at /<camera>/stream and /<camera>/snapshot (overrides restream.port).");
+		options.addOption("h", false, "Print this help message.");
+
+		try {
+			CommandLine cli = new GnuParser().parse(options, args);
+
+			if ( cli.hasOption("h") ) {
+				HelpFormatter formatter = new HelpFormatter();
+				formatter.printHelp( "java -cp recorder.jar " + RecorderSupervisor.class.getName(), options );
+				System.exit(-1);
+			}
+
+			String configFile = cli.hasOption("f") ? cli.getOptionValue("f") : DEFAULT_CONFIG_FILE;
+			Properties config = new Properties();
+			InputStream in = new FileInputStream(configFile);
+			try {
+				config.load(in);
+			}
+			finally {
+				in.close();
+			}
+			if ( cli.hasOption("t") ) {
+				config.setProperty("encoder.threads", cli.getOptionValue("t"));
+			}
+			if ( cli.hasOption("s") ) {
+				config.setProperty("metrics.port", cli.getOptionValue("s"));
+			}
+			if ( cli.hasOption("r") ) {
+				config.setProperty("restream.port", cli.getOptionValue("r"));
+			}
+
+			final RecorderSupervisor supervisor = fromProperties(config);
+			if ( supervisor.getRecorders().isEmpty() ) {
+				System.err.println("No cameras found in '" + configFile + "'. Use -h for more information.");
+				System.exit(-1);
+			}
+
+			Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+				@Override
+				public void run() {
+					System.out.println("Closing recordings...");
+					supervisor.shutdown();
+				}
+			}, "Supervisor shutdown"));
+
+			System.out.println("Starting " + supervisor.getRecorders().size() + " cameras on "
+					+ supervisor.getEncoderPool().getThreadCount() + " encoder threads...");
+			supervisor.start();
+			supervisor.awaitTermination(); // stay here until program is terminated
+		}
+		catch (ParseException e) {
+			System.err.println("Unable to parse command line options: " + e.getMessage());
+		}
+		catch (IOException e) {
+			System.err.println("Unable to read camera config: " + e.getMessage());
+		}
+		catch (Exception e) {
+			System.err.println("Unable to start cameras: " + e.getMessage());
+		}
+	}
+}
@@ -18,201 +18,440 @@
 
 package com.github.thebigs.foscam.recorder;
 
-import java.awt.Graphics;
-import java.awt.GraphicsConfiguration;
-import java.awt.GraphicsDevice;
-import java.awt.GraphicsEnvironment;
-import java.awt.HeadlessException;
 import java.awt.Image;
-import java.awt.Transparency;
+import java.awt.Toolkit;
 import java.awt.image.BufferedImage;
 import java.io.File;
+import java.io.IOException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 
-import javax.swing.ImageIcon;
-
 import com.xuggle.xuggler.ICodec.ID;
 import com.xuggle.xuggler.IContainer;
+import com.xuggle.xuggler.IContainerFormat;
+import com.xuggle.xuggler.IMetaData;
 import com.xuggle.xuggler.IPacket;
 import com.xuggle.xuggler.IPixelFormat;
 import com.xuggle.xuggler.IRational;
 import com.xuggle.xuggler.IStream;
 import com.xuggle.xuggler.IStreamCoder;
 import com.xuggle.xuggler.IVideoPicture;
+import com.xuggle.xuggler.io.XugglerIO;
 import com.xuggle.xuggler.video.ConverterFactory;
 import com.xuggle.xuggler.video.IConverter;
 
-public class Recording {
-	public static final DateFormat FILE_DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd-HH-mm-ss");
+public class Recording implements SegmentWriter {
+	public static final String FILE_DATE_PATTERN = "yyyy-MM-dd-HH-mm-ss";
+	public static final DateFormat FILE_DATE_FORMAT = new SimpleDateFormat(FILE_DATE_PATTERN);
 	private static final IPixelFormat.Type pixelFormat = IPixelFormat.Type.YUV420P;
-	private static final int NUM_FRAMES_TILL_FILE_SIZE_UPDATE = 30;
+	public static final int NUM_PICTURES_IN_GROUP_OF_PICTURES = 10;
+	private static final int DEFAULT_WIDTH = 640;
+	private static final int DEFAULT_HEIGHT = 480;
+	private static final int DEFAULT_FRAME_RATE = 5;
 	
 	private long startTimeMillis = -1L;
 	
 	private IContainer outContainer = null;
 	private long firstTimestamp = -1;
+	private long lastTick = -1L; // coder time base ticks of the last picture
+	private IRational timeBase = null; // seconds per tick
 	private String outputVideoFileUrl = "";
 	private IStreamCoder outStreamCoder = null;
-	private int numFrameCounterTillFileSizeUpdate = NUM_FRAMES_TILL_FILE_SIZE_UPDATE;
-	private long recordingFileSizeBytes = -1L;
+	private final WritePolicy writePolicy;
+	private SegmentFile segmentFile = null;
+	private IPacket packet = null;
+	private final JpegDecoder jpegDecoder;
+	private IConverter converter = null;
+	private int converterWidth = -1;
+	private int converterHeight = -1;
+	private FrameIndex keyframeIndex = null;
+	private CameraMetrics metrics = null;
+	private final EncoderProfile profile;
+	private long picturesEncoded = 0L;
+	private final boolean fragmented;
+	private ThumbnailWriter thumbnails = null;
 	
 	public Recording(String outputDir, String camName, Date startTime) {
+		this(outputDir, camName, startTime, null);
+	}
+	
+	/**
+	 * @param jpegDecoder decoder for {@link #saveFrame}, kept by the caller across recordings.
+	 *        When null every frame is decoded through AWT.
+	 */
+	public Recording(String outputDir, String camName, Date startTime, JpegDecoder jpegDecoder) {
+		this(outputDir, camName, startTime, jpegDecoder, EncoderProfile.fixed(DEFAULT_WIDTH, DEFAULT_HEIGHT, DEFAULT_FRAME_RATE));
+	}
+	
+	/**
+	 * @param profile how to encode, with the resolution and frame rate already known.
+	 *        Frames must match its resolution, they are not rescaled.
+	 */
+	public Recording(String outputDir, String camName, Date startTime, JpegDecoder jpegDecoder, EncoderProfile profile) {
+		this(outputDir, camName, startTime, jpegDecoder, profile, false);
+	}
+	
+	/**
+	 * @param fragmented write a fragmented MP4 with one fragment per GOP, see
+	 *        {@link RecordingFormat#FRAGMENTED_MP4}
+	 */
+	public Recording(String outputDir, String camName, Date startTime, JpegDecoder jpegDecoder, EncoderProfile profile, boolean fragmented) {
+		this(outputDir, camName, startTime, jpegDecoder, profile, fragmented, new WritePolicy());
+	}
+	
+	/**
+	 * @param writePolicy how the muxer's output is buffered and synced, see {@link SegmentFile}
+	 */
+	public Recording(String outputDir, String camName, Date startTime, JpegDecoder jpegDecoder, EncoderProfile profile, boolean fragmented,
+			WritePolicy writePolicy) {
+		if ( profile.needsProbe() ) {
+			throw new IllegalArgumentException("Encoder profile needs a resolution and frame rate: " + profile);
+		}
 		startTimeMillis = startTime.getTime();
+		this.jpegDecoder = jpegDecoder;
+		this.profile = profile;
+		this.fragmented = fragmented;
+		this.writePolicy = writePolicy;
 
-		String fileName = FILE_DATE_FORMAT.format(startTime);
-		outputVideoFileUrl = outputDir + "/" + fileName + "-" + camName + ".mp4";
+		outputVideoFileUrl = outputDir + "/" + RecordingSegment.fileName(startTime, camName, ".mp4");
 		
 		init();
 	}
 	
 	private void init() {
+		try {
+			segmentFile = new SegmentFile(new File(outputVideoFileUrl), writePolicy);
+		} catch (IOException e) {
+			throw new RuntimeException("could not open output file " + outputVideoFileUrl, e);
+		}
+		// the muxer writes through the segment file instead of opening the path itself
+		String segmentUrl = XugglerIO.map(XugglerIO.generateUniqueName(segmentFile, ".mp4"), segmentFile, true);
+		IContainerFormat format = IContainerFormat.make();
+		format.setOutputFormat("mp4", null, null);
 		outContainer = IContainer.make();
-		int retval = outContainer.open(outputVideoFileUrl, IContainer.Type.WRITE, null);
+		int retval;
+		if ( fragmented ) {
+			// an empty moov up front, then a moof/mdat pair starting at every keyframe
+			IMetaData options = IMetaData.make();
+			options.setValue("movflags", "frag_keyframe+empty_moov");
+			IMetaData unset = IMetaData.make();
+			retval = outContainer.open(segmentUrl, IContainer.Type.WRITE, format, false, false, options, unset);
+			if ( retval >= 0 && unset.getNumKeys() > 0 ) {
+				System.err.println("Muxer does not support fragmented MP4, '" + outputVideoFileUrl + "' will only be playable once closed");
+			}
+		}
+		else {
+			retval = outContainer.open(segmentUrl, IContainer.Type.WRITE, format);
+		}
 		if ( retval < 0 ) {
+			XugglerIO.unmap(segmentUrl);
+			segmentFile.close();
 			throw new RuntimeException("could not open output file");
 		}
 		IStream outStream = outContainer.addNewStream(ID.CODEC_ID_H264);
 		outStreamCoder = outStream.getStreamCoder();
 		
-		outStreamCoder.setNumPicturesInGroupOfPictures(10);
+		outStreamCoder.setNumPicturesInGroupOfPictures(profile.getGop());
 
-		outStreamCoder.setBitRate(100000);
-//		outStreamCoder.setBitRate(25000);
-		outStreamCoder.setBitRateTolerance(9000);
+		outStreamCoder.setBitRate(profile.getBitRate());
+		outStreamCoder.setBitRateTolerance(EncoderProfile.DEFAULT_BIT_RATE_TOLERANCE);
 		outStreamCoder.setPixelType(pixelFormat);
-		outStreamCoder.setWidth(640);
-		outStreamCoder.setHeight(480);
-		outStreamCoder.setFlag(IStreamCoder.Flags.FLAG_QSCALE, true);
-		outStreamCoder.setGlobalQuality(0);
+		outStreamCoder.setWidth(profile.getWidth());
+		outStreamCoder.setHeight(profile.getHeight());
+		if ( profile.getQuality() >= 0 ) {
+			outStreamCoder.setFlag(IStreamCoder.Flags.FLAG_QSCALE, true);
+			outStreamCoder.setGlobalQuality(profile.getQuality());
+		}
+		setCoderProperty("preset", profile.getPreset());
+		setCoderProperty("tune", profile.getTune());
+		if ( profile.getThreads() > 0 ) {
+			setCoderProperty("threads", String.valueOf(profile.getThreads()));
+		}
 
-		IRational frameRate = IRational.make(5);
+		// one tick per frame: x264 takes its idea of the frame rate from the time base
+		IRational frameRate = IRational.make(profile.getFrameRate());
 		outStreamCoder.setFrameRate(frameRate);
-		outStreamCoder.setTimeBase(IRational.make(frameRate.getDenominator(), frameRate.getNumerator()));
+		timeBase = IRational.make(frameRate.getDenominator(), frameRate.getNumerator());
+		outStreamCoder.setTimeBase(timeBase);
 		frameRate = null; 
 			
 		outStreamCoder.open();
 		outContainer.writeHeader();
+		
+		packet = IPacket.make();
+		
+		try {
+			keyframeIndex = FrameIndex.create(FrameIndex.indexFileFor(new File(outputVideoFileUrl)));
+		} catch (IOException e) {
+			// the recording is still good, it just cannot be searched by time
+			System.err.println("Unable to create keyframe index for '" + outputVideoFileUrl + "': " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * Passes an option through to the encoder, such as the x264 preset. The
+	 * recording still works if the encoder does not know the option.
+	 */
+	private void setCoderProperty(String name, String value) {
+		if ( value != null && outStreamCoder.setProperty(name, value) < 0 ) {
+			System.err.println("Encoder does not support " + name + "=" + value + ", ignoring it");
+		}
+	}
+	
+	/**
+	 * Writes a thumbnail every intervalMillis from the frames being encoded,
+	 * see {@link ThumbnailWriter}. Call before saving the first frame.
+	 */
+	public void setThumbnailInterval(long intervalMillis) {
+		if ( thumbnails != null ) {
+			thumbnails.close();
+		}
+		thumbnails = intervalMillis > 0
+				? new ThumbnailWriter(new File(outputVideoFileUrl), startTimeMillis, intervalMillis, ThumbnailWriter.DEFAULT_WIDTH)
+				: null;
+	}
+	
+	/**
+	 * @return the settings the recording is encoded with
+	 */
+	public EncoderProfile getEncoderProfile() {
+		return profile;
 	}
 	
 	public String getRecordingFileLocation() {
 		return outputVideoFileUrl;
 	}
 	
+	public String getRecordingFileName() {
+		return new File(outputVideoFileUrl).getName();
+	}
+	
+	/**
+	 * Counted from what was written, no stat call.
+	 */
 	public long getRecordingFileSize() {
-		if ( recordingFileSizeBytes < 0 ) {
-			recordingFileSizeBytes = new File(outputVideoFileUrl).length();
-		}
-		return recordingFileSizeBytes;
+		return segmentFile.getSize() + (keyframeIndex == null ? 0L : keyframeIndex.getFileSize())
+				+ (thumbnails == null ? 0L : thumbnails.getFileSize());
 	}
 	
 	public void saveImage(Image image) {
-		if ( --numFrameCounterTillFileSizeUpdate <= 0 ) {
-			// update filesize bytes
-			recordingFileSizeBytes = new File(outputVideoFileUrl).length();
-			// reset counter
-			numFrameCounterTillFileSizeUpdate = NUM_FRAMES_TILL_FILE_SIZE_UPDATE;
-		}
+		saveImage(image, System.currentTimeMillis());
+	}
+	
+	/**
+	 * @param captureTimeMillis when the image was captured, used to timestamp the video frame
+	 */
+	public void saveImage(Image image, long captureTimeMillis) {
+		encodeImage(image, captureTimeMillis, toTimestamp(captureTimeMillis));
+	}
+	
+	/**
+	 * Saves a JPEG frame, decoding it straight to YUV420P when possible and
+	 * through AWT otherwise.
+	 *
+	 * @param captureTimeMillis when the frame was captured, used to timestamp the video frame
+	 */
+	public void saveFrame(byte[] data, int offset, int length, long captureTimeMillis) {
 		
+		IVideoPicture picture = null;
+		long timestamp = toTimestamp(captureTimeMillis);
+		if ( jpegDecoder != null ) {
+			long decodeStart = System.nanoTime();
+			picture = jpegDecoder.decode(data, offset, length, timestamp);
+			if ( picture != null && metrics != null ) {
+				metrics.recordLatency(CameraMetrics.Stage.DECODE, System.nanoTime() - decodeStart);
+			}
+		}
+		if ( picture != null ) {
+			addThumbnail(picture, captureTimeMillis);
+			encodePicture(picture);
+		}
+		else {
+			encodeImage(Toolkit.getDefaultToolkit().createImage(data, offset, length), captureTimeMillis, timestamp);
+		}
+	}
+	
+	/**
+	 * Saves a picture that is already in the recording's pixel format, such
+	 * as one from a {@link JpegDecoder}.
+	 */
+	public void savePicture(IVideoPicture picture, long captureTimeMillis) {
+		picture.setTimeStamp(toTimestamp(captureTimeMillis));
+		addThumbnail(picture, captureTimeMillis);
+		encodePicture(picture);
+	}
+	
+	/**
+	 * Rounds the capture time to a tick of the coder's time base, at least one
+	 * tick after the previous picture's: frames arriving faster than the
+	 * probed frame rate, as in a burst after a stall, would otherwise share a
+	 * tick and be rejected by the muxer.
+	 *
+	 * @return the picture timestamp in microseconds
+	 */
+	private long toTimestamp(long captureTimeMillis) {
+		if ( firstTimestamp  == -1) {
+			firstTimestamp = captureTimeMillis;
+		}
+		long num = timeBase.getNumerator();
+		long den = timeBase.getDenominator();
+		long tick = ((captureTimeMillis - firstTimestamp) * den + 500L * num) / (1000L * num);
+		if ( tick <= lastTick ) {
+			tick = lastTick + 1;
+		}
+		lastTick = tick;
+		return (tick * 1000000L * num + den / 2) / den; // convert to microseconds
+	}
+	
+	private void encodeImage(Image image, long captureTimeMillis, long timestamp) {
 		// Save the image to our video stream
+		long decodeStart = System.nanoTime();
 		BufferedImage writableBufferImage = convertToType(toBufferedImage(image), BufferedImage.TYPE_3BYTE_BGR);
-		
-		IPacket packet = IPacket.make();
-		IConverter converter = ConverterFactory.createConverter(writableBufferImage, pixelFormat);
-		long now = System.currentTimeMillis();
-		if ( firstTimestamp  == -1) {
-			firstTimestamp = now;
+		long decodeNanos = System.nanoTime() - decodeStart;
+		if ( thumbnails != null && thumbnails.isDue(captureTimeMillis) ) {
+			thumbnails.add(writableBufferImage, captureTimeMillis);
 		}
 		
-		long timestamp = (now-firstTimestamp) * 1000; // convert to microseconds
-		
-		IVideoPicture outFrame = converter.toPicture(writableBufferImage, timestamp);
-		outFrame.setQuality(0);
-		outStreamCoder.encodeVideo(packet, outFrame, 0); 
+		long convertStart = System.nanoTime();
+		IVideoPicture outFrame = getConverter(writableBufferImage).toPicture(writableBufferImage, timestamp);
+		if ( metrics != null ) {
+			metrics.recordLatency(CameraMetrics.Stage.DECODE, decodeNanos);
+			metrics.recordLatency(CameraMetrics.Stage.CONVERT, System.nanoTime() - convertStart);
+		}
+		encodePicture(outFrame);
+	}
+	
+	private void addThumbnail(IVideoPicture picture, long captureTimeMillis) {
+		if ( thumbnails != null && thumbnails.isDue(captureTimeMillis) ) {
+			thumbnails.add(picture, captureTimeMillis);
+		}
+	}
+	
+	private IConverter getConverter(BufferedImage image) {
+		if ( converter == null || converterWidth != image.getWidth() || converterHeight != image.getHeight() ) {
+			if ( converter != null ) {
+				converter.delete();
+			}
+			converter = ConverterFactory.createConverter(image, pixelFormat);
+			converterWidth = image.getWidth();
+			converterHeight = image.getHeight();
+		}
+		return converter;
+	}
+	
+	private void encodePicture(IVideoPicture picture) {
+		picture.setQuality(0);
+		long encodeStart = System.nanoTime();
+		outStreamCoder.encodeVideo(packet, picture, 0); 
+		picturesEncoded++;
+		if ( metrics != null ) {
+			metrics.recordLatency(CameraMetrics.Stage.ENCODE, System.nanoTime() - encodeStart);
+			metrics.frameEncoded();
+		}
 		
 		if ( packet.isComplete() ) {
-			outContainer.writePacket(packet);
+			if ( packet.isKeyPacket() ) {
+				indexKeyframe(packet);
+			}
+			long writeStart = System.nanoTime();
+			boolean written = outContainer.writePacket(packet) >= 0;
+			if ( !written ) {
+				System.err.println("Unable to write packet (pts " + packet.getPts() + ") to '" + outputVideoFileUrl + "'");
+			}
+			if ( fragmented && packet.isKeyPacket() ) {
+				// the keyframe ended the previous fragment, get it onto disk
+				outContainer.flushPackets();
+				flushSegmentFile();
+			}
+			if ( metrics != null ) {
+				metrics.recordLatency(CameraMetrics.Stage.WRITE, System.nanoTime() - writeStart);
+				if ( written ) {
+					metrics.addBytesOut(packet.getSize());
+				}
+			}
 		}
 	}
 	
-	public BufferedImage convertToType(BufferedImage sourceImage, int targetType) {
-		BufferedImage image;
-
-		// if the source image is already the target type, return the source
-		// image
-
-		if (sourceImage.getType() == targetType)
-			image = sourceImage;
-
-		// otherwise create a new image of the target type and draw the new
-		// image
-
-		else {
-			image = new BufferedImage(sourceImage.getWidth(), sourceImage.getHeight(), targetType);
-			image.getGraphics().drawImage(sourceImage, 0, 0, null);
+	@Override
+	public void flushIfDue() {
+		try {
+			segmentFile.flushIfDue();
+		} catch (IOException e) {
+			System.err.println("Unable to write to '" + outputVideoFileUrl + "': " + e.getMessage());
+		}
+	}
+	
+	private void flushSegmentFile() {
+		try {
+			segmentFile.flush();
+		} catch (IOException e) {
+			System.err.println("Unable to write to '" + outputVideoFileUrl + "': " + e.getMessage());
 		}
-
-		return image;
+	}
+	
+	/**
+	 * Maps the keyframe's wall-clock capture time to its timestamp in the video.
+	 */
+	private void indexKeyframe(IPacket keyframe) {
+		if ( keyframeIndex == null ) {
+			return;
+		}
+		IRational timeBase = keyframe.getTimeBase();
+		long micros = keyframe.getPts() * 1000000L * timeBase.getNumerator() / timeBase.getDenominator();
+		try {
+			keyframeIndex.append(firstTimestamp + micros / 1000, micros);
+		} catch (IOException e) {
+			System.err.println("Unable to index keyframe in '" + outputVideoFileUrl + "': " + e.getMessage());
+			keyframeIndex.close();
+			keyframeIndex = null;
+		}
+	}
+	
+	public BufferedImage convertToType(BufferedImage sourceImage, int targetType) {
+		return BufferedImages.convertToType(sourceImage, targetType);
 	}
 	
 	public BufferedImage toBufferedImage(Image image) {
-	    if (image instanceof BufferedImage) {
-	        return (BufferedImage)image;
-	    }
-
-	    // This code ensures that all the pixels in the image are loaded
-	    image = new ImageIcon(image).getImage();
-
-	    boolean hasAlpha = false;
-
-	    // Create a buffered image with a format that's compatible with the screen
-	    BufferedImage bimage = null;
-	    GraphicsEnvironment ge = GraphicsEnvironment.getLocalGraphicsEnvironment();
-	    try {
-	        // Determine the type of transparency of the new buffered image
-	        int transparency = Transparency.OPAQUE;
-	        if (hasAlpha) {
-	            transparency = Transparency.BITMASK;
-	        }
-
-	        // Create the buffered image
-	        GraphicsDevice gs = ge.getDefaultScreenDevice();
-	        GraphicsConfiguration gc = gs.getDefaultConfiguration();
-	        bimage = gc.createCompatibleImage(
-	            image.getWidth(null), image.getHeight(null), transparency);
-	    } catch (HeadlessException e) {
-	        // The system does not have a screen
-	    }
-
-	    if (bimage == null) {
-	        // Create a buffered image using the default color model
-	        int type = BufferedImage.TYPE_INT_RGB;
-	        if (hasAlpha) {
-	            type = BufferedImage.TYPE_INT_ARGB;
-	        }
-	        bimage = new BufferedImage(image.getWidth(null), image.getHeight(null), type);
-	    }
-
-	    // Copy image to buffered image
-	    Graphics g = bimage.createGraphics();
-
-	    // Paint the image onto the buffered image
-	    g.drawImage(image, 0, 0, null);
-	    g.dispose();
-
-	    return bimage;
+		return BufferedImages.toBufferedImage(image);
 	}
 	
 	public void close() {
 		outContainer.writeTrailer();
 		outContainer.close();
+		segmentFile.close(); // already closed through the muxer unless it failed
 		
 		outStreamCoder.close();
-		recordingFileSizeBytes = new File(outputVideoFileUrl).length();
+		if ( converter != null ) {
+			converter.delete();
+			converter = null;
+		}
+		if ( packet != null ) {
+			packet.delete();
+			packet = null;
+		}
+		if ( keyframeIndex != null ) {
+			keyframeIndex.close();
+		}
+		if ( thumbnails != null ) {
+			thumbnails.close();
+		}
 	}
 
 	public long getStartTime() {
 		return startTimeMillis;
 	}
+	
+	public void setMetrics(CameraMetrics metrics) {
+		this.metrics = metrics;
+		segmentFile.setMetrics(metrics);
+	}
+	
+	/**
+	 * Counts in whole GOPs of the profile. Keyframes the encoder adds at scene
+	 * cuts are not accounted for, the boundary is only a preference.
+	 */
+	public boolean isKeyframeBoundary() {
+		return picturesEncoded % profile.getGop() == 0;
+	}
 }
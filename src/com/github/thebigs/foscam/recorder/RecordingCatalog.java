@@ -0,0 +1,653 @@
+/**
+ *  foscamRecorder - http://github.com/TheBigS
+ *  Copyright (C) 2012
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *   any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.github.thebigs.foscam.recorder;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.DateFormat;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-memory catalog of the recording segments in an output directory,
+ * ordered by start time and grouped by camera.
+ *
+ * The catalog is built once per directory and then kept up to date as
+ * recorders open, close and delete segments, so retention never has to scan
+ * the directory. Changes are saved to a compact snapshot file in the
+ * directory by a background thread, at most once per {@link #SAVE_DELAY_MS}
+ * however many changes come in, so recorders never wait for the file to be
+ * written; {@link #save()} writes it at once, as on shutdown. At startup the
+ * snapshot is reconciled against a single directory listing, and only files
+ * the snapshot does not know are stat'ed.
+ *
+ * Recorders sharing a directory share its catalog, see {@link #forDirectory(String)}.
+ * Other processes reading a directory a recorder may be writing to use
+ * {@link #readOnly(String)}, which never recovers, deletes or saves.
+ */
+public class RecordingCatalog {
+	public static final String SNAPSHOT_FILE_NAME = ".recordings.catalog";
+
+	private static final int SNAPSHOT_MAGIC = 0x46524331; // "FRC1"
+	private static final String[] SEGMENT_EXTENSIONS = { ".mp4", PackRecording.FILE_EXTENSION };
+
+	public static final long SAVE_DELAY_MS = 1000L;
+
+	private static final Map<String, RecordingCatalog> catalogs = new HashMap<String, RecordingCatalog>();
+
+	// writes the snapshots of every catalog and tells their listeners about removed segments
+	private static final ScheduledExecutorService BACKGROUND_THREAD = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "Recording catalog");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	/**
+	 * @return the catalog shared by everything recording into outputDir, loading it on first use
+	 */
+	public static RecordingCatalog forDirectory(String outputDir) {
+		File dir = new File(outputDir);
+		String key;
+		try {
+			key = dir.getCanonicalPath();
+		} catch (IOException e) {
+			key = dir.getAbsolutePath();
+		}
+		synchronized(catalogs) {
+			RecordingCatalog catalog = catalogs.get(key);
+			if ( catalog == null ) {
+				catalog = new RecordingCatalog(dir);
+				catalogs.put(key, catalog);
+			}
+			return catalog;
+		}
+	}
+
+	/**
+	 * @return a private catalog of outputDir for reading only. Segments the
+	 *         snapshot has open are left as they are, they may still be
+	 *         written by a recorder in another process.
+	 */
+	public static RecordingCatalog readOnly(String outputDir) {
+		return new RecordingCatalog(new File(outputDir), true);
+	}
+
+	private final File dir;
+	private final File snapshotFile;
+	private final boolean readOnly;
+	private final Object saveLock = new Object(); // one snapshot write at a time, taken before the catalog's lock
+	private boolean saveScheduled = false;
+	private final Runnable saveTask = new Runnable() {
+		@Override
+		public void run() {
+			save();
+		}
+	};
+	private final DateFormat dateFormat = new SimpleDateFormat(Recording.FILE_DATE_PATTERN);
+
+	private final Map<String, RecordingSegment> byFileName = new HashMap<String, RecordingSegment>();
+	private final TreeSet<RecordingSegment> segments = new TreeSet<RecordingSegment>();
+	private final Map<String, TreeSet<RecordingSegment>> byCamera = new HashMap<String, TreeSet<RecordingSegment>>();
+	private final Map<String, Long> cameraBytes = new HashMap<String, Long>();
+	private long totalBytes = 0L;
+	private final CopyOnWriteArrayList<SegmentRemovedListener> removedListeners = new CopyOnWriteArrayList<SegmentRemovedListener>();
+
+	public RecordingCatalog(File dir) {
+		this(dir, false);
+	}
+
+	private RecordingCatalog(File dir, boolean readOnly) {
+		super();
+		this.dir = dir;
+		this.snapshotFile = new File(dir, SNAPSHOT_FILE_NAME);
+		this.readOnly = readOnly;
+		load();
+	}
+
+	public boolean isReadOnly() {
+		return readOnly;
+	}
+
+	/**
+	 * Adds a listener told about each segment deleted or replaced, as by
+	 * retention. Listeners are called on a background thread without the
+	 * catalog locked, so they may query it.
+	 */
+	public void addSegmentRemovedListener(SegmentRemovedListener listener) {
+		removedListeners.addIfAbsent(listener);
+	}
+
+	public boolean removeSegmentRemovedListener(SegmentRemovedListener listener) {
+		return removedListeners.remove(listener);
+	}
+
+	/**
+	 * Records that a recorder started writing a segment.
+	 */
+	public synchronized RecordingSegment segmentOpened(String fileName, String camName, long startTimeMillis) {
+		checkWritable();
+		RecordingSegment existing = byFileName.get(fileName);
+		if ( existing != null ) {
+			// same camera restarted within the second, the file is being overwritten
+			remove(existing);
+		}
+		RecordingSegment segment = new RecordingSegment(fileName, camName, startTimeMillis, -1L, 0L, true);
+		add(segment);
+		requestSave();
+		return segment;
+	}
+
+	/**
+	 * Records that a segment is complete.
+	 */
+	public synchronized void segmentClosed(String fileName, long endTimeMillis, long sizeBytes) {
+		checkWritable();
+		RecordingSegment segment = byFileName.get(fileName);
+		if ( segment == null ) {
+			return;
+		}
+		replace(segment, segment.closed(endTimeMillis, sizeBytes));
+		requestSave();
+	}
+
+	/**
+	 * Forgets a segment that was opened ahead of time but never written to,
+	 * deleting its files.
+	 */
+	public synchronized void segmentDiscarded(String fileName) {
+		checkWritable();
+		RecordingSegment segment = byFileName.get(fileName);
+		if ( segment == null ) {
+			return;
+		}
+		File file = new File(dir, fileName);
+		if ( !file.delete() && file.exists() ) {
+			System.err.println("Unable to delete unused recording '" + file.getPath() + "'");
+		}
+		deleteSidecarFiles(file);
+		remove(segment);
+		requestSave();
+	}
+
+	/**
+	 * @return bytes used by every closed segment in the directory
+	 */
+	public synchronized long getTotalBytes() {
+		return totalBytes;
+	}
+
+	/**
+	 * @return bytes used by the camera's closed segments
+	 */
+	public synchronized long getCameraBytes(String camName) {
+		Long bytes = cameraBytes.get(camName);
+		return bytes == null ? 0L : bytes;
+	}
+
+	/**
+	 * @return every segment, oldest first
+	 */
+	public synchronized List<RecordingSegment> getSegments() {
+		return new ArrayList<RecordingSegment>(segments);
+	}
+
+	/**
+	 * @return the camera's segments, oldest first
+	 */
+	public synchronized List<RecordingSegment> getSegments(String camName) {
+		TreeSet<RecordingSegment> cameraSegments = byCamera.get(camName);
+		return cameraSegments == null ? new ArrayList<RecordingSegment>() : new ArrayList<RecordingSegment>(cameraSegments);
+	}
+
+	/**
+	 * @return the camera's segments overlapping [fromMillis, toMillis], oldest first
+	 */
+	public synchronized List<RecordingSegment> getSegments(String camName, long fromMillis, long toMillis) {
+		List<RecordingSegment> overlapping = new ArrayList<RecordingSegment>();
+		TreeSet<RecordingSegment> cameraSegments = byCamera.get(camName);
+		if ( cameraSegments == null ) {
+			return overlapping;
+		}
+		// a camera's segments follow each other, so walk back from the last one
+		// starting in the range until one ends before it
+		RecordingSegment last = new RecordingSegment("\uffff", camName, toMillis, -1L, 0L, false);
+		for ( RecordingSegment segment : cameraSegments.headSet(last, true).descendingSet() ) {
+			if ( !segment.isOpen() && segment.getEndTime() >= 0 && segment.getEndTime() < fromMillis ) {
+				break;
+			}
+			overlapping.add(0, segment);
+		}
+		return overlapping;
+	}
+
+	public File getDirectory() {
+		return dir;
+	}
+
+	/**
+	 * @return the file of a segment in this catalog
+	 */
+	public File getFile(RecordingSegment segment) {
+		return new File(dir, segment.getFileName());
+	}
+
+	/**
+	 * Deletes the camera's oldest closed segment.
+	 *
+	 * @return the deleted segment, or null if the camera has none
+	 */
+	public synchronized RecordingSegment deleteOldest(String camName) {
+		checkWritable();
+		TreeSet<RecordingSegment> cameraSegments = byCamera.get(camName);
+		RecordingSegment oldest = cameraSegments == null ? null : oldestClosed(cameraSegments);
+		if ( oldest != null ) {
+			delete(oldest);
+			requestSave();
+		}
+		return oldest;
+	}
+
+	/**
+	 * Deletes closed segments until the policy is met: first segments past
+	 * the maximum age, then the oldest segments of cameras over their share,
+	 * then the oldest segments overall until the global quota is met.
+	 *
+	 * @return the deleted segments
+	 */
+	public synchronized List<RecordingSegment> applyRetention(RetentionPolicy policy, long nowMillis) {
+		checkWritable();
+		List<RecordingSegment> deleted = new ArrayList<RecordingSegment>();
+
+		if ( policy.getMaxAgeMillis() >= 0 ) {
+			long oldestAllowed = nowMillis - policy.getMaxAgeMillis();
+			List<RecordingSegment> expired = new ArrayList<RecordingSegment>();
+			for ( RecordingSegment segment : segments ) {
+				if ( segment.getStartTime() >= oldestAllowed ) {
+					break;
+				}
+				long end = segment.getEndTime() >= 0 ? segment.getEndTime() : segment.getStartTime();
+				if ( !segment.isOpen() && end < oldestAllowed ) {
+					expired.add(segment);
+				}
+			}
+			for ( RecordingSegment segment : expired ) {
+				delete(segment);
+				deleted.add(segment);
+			}
+		}
+
+		if ( policy.getMaxTotalBytes() >= 0 ) {
+			for ( Map.Entry<String, Double> share : policy.getCameraShares().entrySet() ) {
+				long limit = (long) (policy.getMaxTotalBytes() * share.getValue());
+				TreeSet<RecordingSegment> cameraSegments = byCamera.get(share.getKey());
+				RecordingSegment oldest;
+				while ( getCameraBytes(share.getKey()) > limit && cameraSegments != null
+						&& (oldest = oldestClosed(cameraSegments)) != null ) {
+					delete(oldest);
+					deleted.add(oldest);
+				}
+			}
+
+			RecordingSegment oldest;
+			while ( totalBytes > policy.getMaxTotalBytes() && (oldest = oldestClosed(segments)) != null ) {
+				delete(oldest);
+				deleted.add(oldest);
+			}
+		}
+
+		if ( !deleted.isEmpty() ) {
+			requestSave();
+		}
+		return deleted;
+	}
+
+	/**
+	 * Has the snapshot saved in the background unless a save is already due.
+	 */
+	private void requestSave() {
+		if ( !saveScheduled ) {
+			saveScheduled = true;
+			BACKGROUND_THREAD.schedule(saveTask, SAVE_DELAY_MS, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Writes the snapshot now. The catalog is only locked to copy the list
+	 * of segments, the file is written without holding it. Failures are
+	 * reported and ignored.
+	 */
+	public void save() {
+		if ( readOnly ) {
+			return;
+		}
+		synchronized(saveLock) {
+			RecordingSegment[] snapshot;
+			synchronized(this) {
+				saveScheduled = false;
+				snapshot = segments.toArray(new RecordingSegment[segments.size()]);
+			}
+			writeSnapshot(snapshot);
+		}
+	}
+
+	private void writeSnapshot(RecordingSegment[] snapshot) {
+		File tmp = new File(dir, SNAPSHOT_FILE_NAME + ".tmp");
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			try {
+				out.writeInt(SNAPSHOT_MAGIC);
+				out.writeInt(snapshot.length);
+				for ( RecordingSegment segment : snapshot ) {
+					out.writeUTF(segment.getFileName());
+					out.writeUTF(segment.getCamName());
+					out.writeLong(segment.getStartTime());
+					out.writeLong(segment.getEndTime());
+					out.writeLong(segment.getSizeBytes());
+					out.writeBoolean(segment.isOpen());
+				}
+			}
+			finally {
+				out.close();
+			}
+			if ( !tmp.renameTo(snapshotFile) ) {
+				// renameTo does not replace an existing file on every platform
+				snapshotFile.delete();
+				if ( !tmp.renameTo(snapshotFile) ) {
+					throw new IOException("could not rename " + tmp);
+				}
+			}
+		} catch (IOException e) {
+			System.err.println("Unable to save recording catalog '" + snapshotFile + "': " + e.getMessage());
+		}
+	}
+
+	private void checkWritable() {
+		if ( readOnly ) {
+			throw new IllegalStateException("Recording catalog of '" + dir + "' is read only.");
+		}
+	}
+
+	/**
+	 * @return the start time encoded in a segment file name, or -1 if it is not a segment
+	 */
+	public synchronized long parseStartTime(String fileName) {
+		if ( !isSegmentFile(fileName) ) {
+			return -1L;
+		}
+		ParsePosition pos = new ParsePosition(0);
+		Date date = dateFormat.parse(fileName, pos);
+		if ( date == null || pos.getIndex() >= fileName.length() || fileName.charAt(pos.getIndex()) != '-' ) {
+			return -1L;
+		}
+		return date.getTime();
+	}
+
+	/**
+	 * @return the camera name encoded in a segment file name
+	 */
+	public static String parseCamName(String fileName) {
+		int start = Recording.FILE_DATE_PATTERN.length() + 1;
+		int end = fileName.lastIndexOf('.');
+		return end > start ? fileName.substring(start, end) : "";
+	}
+
+	public static boolean isSegmentFile(String fileName) {
+		String lower = fileName.toLowerCase();
+		for ( String extension : SEGMENT_EXTENSIONS ) {
+			if ( lower.endsWith(extension) ) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private synchronized void load() {
+		String[] names = dir.list();
+		if ( names == null ) {
+			return; // directory does not exist yet
+		}
+		Set<String> present = new HashSet<String>();
+		for ( String name : names ) {
+			present.add(name);
+		}
+
+		boolean changed = !readSnapshot(present);
+		if ( readOnly ) {
+			// files the snapshot does not know yet are listed as they are
+			for ( String name : names ) {
+				long startTime = byFileName.containsKey(name) ? -1L : parseStartTime(name);
+				if ( startTime >= 0 ) {
+					File file = new File(dir, name);
+					add(new RecordingSegment(name, parseCamName(name), startTime, file.lastModified(), segmentLength(file), false));
+				}
+			}
+			return;
+		}
+
+		// without a snapshot to say which segments were open, a camera's newest may have been
+		Map<String, RecordingSegment> newestUnknown = new HashMap<String, RecordingSegment>();
+		for ( String name : names ) {
+			if ( byFileName.containsKey(name) ) {
+				continue;
+			}
+			long startTime = parseStartTime(name);
+			if ( startTime >= 0 ) {
+				File file = new File(dir, name);
+				RecordingSegment segment = new RecordingSegment(name, parseCamName(name), startTime, file.lastModified(), segmentLength(file), false);
+				add(segment);
+				RecordingSegment newest = newestUnknown.get(segment.getCamName());
+				if ( newest == null || newest.getStartTime() < startTime ) {
+					newestUnknown.put(segment.getCamName(), segment);
+				}
+				changed = true;
+			}
+		}
+		for ( RecordingSegment segment : newestUnknown.values() ) {
+			recover(segment);
+		}
+
+		// segments still open in the snapshot were being written when the process stopped
+		for ( RecordingSegment segment : new ArrayList<RecordingSegment>(segments) ) {
+			if ( segment.isOpen() ) {
+				recover(segment);
+				changed = true;
+			}
+		}
+
+		if ( changed ) {
+			requestSave();
+		}
+	}
+
+	/**
+	 * Finishes a segment the recorder may have stopped in the middle of and closes it.
+	 */
+	private void recover(RecordingSegment segment) {
+		File file = new File(dir, segment.getFileName());
+		long endTime = SegmentRecovery.recover(file, segment.getStartTime());
+		replace(segment, segment.closed(endTime, segmentLength(file)));
+	}
+
+	/**
+	 * Loads the snapshot, skipping segments whose files are gone.
+	 *
+	 * @return true if the snapshot was read and matched the directory
+	 */
+	private boolean readSnapshot(Set<String> present) {
+		if ( !present.contains(SNAPSHOT_FILE_NAME) ) {
+			return false;
+		}
+		boolean upToDate = true;
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshotFile)));
+			try {
+				if ( in.readInt() != SNAPSHOT_MAGIC ) {
+					return false;
+				}
+				int count = in.readInt();
+				for ( int i = 0; i < count; i++ ) {
+					String fileName = in.readUTF();
+					String camName = in.readUTF();
+					long startTime = in.readLong();
+					long endTime = in.readLong();
+					long sizeBytes = in.readLong();
+					boolean open = in.readBoolean();
+					if ( present.contains(fileName) ) {
+						add(new RecordingSegment(fileName, camName, startTime, endTime, sizeBytes, open));
+					}
+					else {
+						upToDate = false;
+					}
+				}
+			}
+			finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			System.err.println("Unable to read recording catalog '" + snapshotFile + "', rebuilding it: " + e.getMessage());
+			clear();
+			return false;
+		}
+		return upToDate;
+	}
+
+	private RecordingSegment oldestClosed(TreeSet<RecordingSegment> set) {
+		for ( RecordingSegment segment : set ) {
+			if ( !segment.isOpen() ) {
+				return segment;
+			}
+		}
+		return null;
+	}
+
+	private void delete(RecordingSegment segment) {
+		File file = new File(dir, segment.getFileName());
+		System.out.println("Deleting oldest Recording: " + file.getPath());
+		if ( !file.delete() && file.exists() ) {
+			System.err.println("Unable to delete recording '" + file.getPath() + "'");
+		}
+		deleteSidecarFiles(file);
+		remove(segment);
+	}
+
+	private static void deleteSidecarFiles(File file) {
+		for ( File sidecar : sidecarFiles(file) ) {
+			if ( sidecar.exists() && !sidecar.delete() ) {
+				System.err.println("Unable to delete '" + sidecar.getPath() + "'");
+			}
+		}
+	}
+
+	/**
+	 * @return the files kept next to a segment: its frame index, and its thumbnails with their index
+	 */
+	private static File[] sidecarFiles(File file) {
+		File thumbnails = ThumbnailWriter.thumbnailFileFor(file);
+		return new File[] { FrameIndex.indexFileFor(file), thumbnails, FrameIndex.indexFileFor(thumbnails) };
+	}
+
+	/**
+	 * @return size of a segment file plus the files kept next to it
+	 */
+	private static long segmentLength(File file) {
+		long length = file.length();
+		for ( File sidecar : sidecarFiles(file) ) {
+			length += sidecar.length();
+		}
+		return length;
+	}
+
+	private void add(RecordingSegment segment) {
+		byFileName.put(segment.getFileName(), segment);
+		segments.add(segment);
+		TreeSet<RecordingSegment> cameraSegments = byCamera.get(segment.getCamName());
+		if ( cameraSegments == null ) {
+			cameraSegments = new TreeSet<RecordingSegment>();
+			byCamera.put(segment.getCamName(), cameraSegments);
+		}
+		cameraSegments.add(segment);
+		addBytes(segment.getCamName(), segment.getSizeBytes());
+	}
+
+	private void remove(final RecordingSegment segment) {
+		unlink(segment);
+		if ( !removedListeners.isEmpty() ) {
+			BACKGROUND_THREAD.execute(new Runnable() {
+				@Override
+				public void run() {
+					for ( SegmentRemovedListener listener : removedListeners ) {
+						listener.onSegmentRemoved(segment);
+					}
+				}
+			});
+		}
+	}
+
+	private void unlink(RecordingSegment segment) {
+		byFileName.remove(segment.getFileName());
+		segments.remove(segment);
+		TreeSet<RecordingSegment> cameraSegments = byCamera.get(segment.getCamName());
+		if ( cameraSegments != null ) {
+			cameraSegments.remove(segment);
+		}
+		addBytes(segment.getCamName(), -segment.getSizeBytes());
+	}
+
+	private void replace(RecordingSegment segment, RecordingSegment replacement) {
+		unlink(segment);
+		add(replacement);
+	}
+
+	private void addBytes(String camName, long delta) {
+		totalBytes += delta;
+		Long bytes = cameraBytes.get(camName);
+		cameraBytes.put(camName, (bytes == null ? 0L : bytes) + delta);
+	}
+
+	private void clear() {
+		byFileName.clear();
+		segments.clear();
+		byCamera.clear();
+		cameraBytes.clear();
+		totalBytes = 0L;
+	}
+}
@@ -0,0 +1,49 @@
+/**
+ *  foscamRecorder - http://github.com/TheBigS
+ *  Copyright (C) 2012
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *   any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.thebigs.foscam.recorder;
+
+/**
+ * How a {@link Recorder} stores what it captures.
+ */
+public enum RecordingFormat {
+	/** Decode every frame and encode it to H.264 in an MP4 file, see {@link Recording}. */
+	MP4,
+	/**
+	 * Like {@link #MP4}, but written as a fragmented MP4 that is flushed at
+	 * every keyframe. A segment cut short by a crash plays up to its last
+	 * complete fragment, and closing it does not rewrite the file.
+	 */
+	FRAGMENTED_MP4,
+	/**
+	 * Append the camera's JPEGs as received to a pack file, see
+	 * {@link PackRecording}. Costs no encoding CPU but several times the disk.
+	 */
+	MJPEG;
+
+	/**
+	 * @return true if frames are decoded and encoded to H.264
+	 */
+	public boolean isEncoded() {
+		return this != MJPEG;
+	}
+
+	public static RecordingFormat parse(String name) {
+		return valueOf(name.trim().toUpperCase().replace('-', '_'));
+	}
+}
@@ -0,0 +1,202 @@
+/**
+ *  foscamRecorder - http://github.com/TheBigS
+ *  Copyright (C) 2012
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *   any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.thebigs.foscam.recorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Answers "where is camera X at time T" from a {@link RecordingCatalog} and
+ * the segments' {@link FrameIndex} sidecars, without opening any video.
+ *
+ * The catalog narrows a time range down to the segments that overlap it, and
+ * each segment's index is binary searched for the last keyframe at or before
+ * the start of the range. Indexes of closed segments stay mapped in a small
+ * LRU cache, so repeated queries cost no file system calls at all, until the
+ * catalog deletes the segment.
+ */
+public class RecordingIndex {
+	public static final int DEFAULT_CACHED_INDEXES = 32;
+
+	/**
+	 * Where to start decoding a segment: the file, and the keyframe to seek to.
+	 */
+	public static class SeekPoint {
+		private final RecordingSegment segment;
+		private final File file;
+		private final long captureTimeMillis;
+		private final long offset;
+
+		public SeekPoint(RecordingSegment segment, File file, long captureTimeMillis, long offset) {
+			super();
+			this.segment = segment;
+			this.file = file;
+			this.captureTimeMillis = captureTimeMillis;
+			this.offset = offset;
+		}
+
+		public RecordingSegment getSegment() {
+			return segment;
+		}
+
+		public File getFile() {
+			return file;
+		}
+
+		/**
+		 * @return wall-clock capture time of the keyframe
+		 */
+		public long getCaptureTime() {
+			return captureTimeMillis;
+		}
+
+		/**
+		 * @return the keyframe's position, see {@link FrameIndex}: microseconds
+		 *         into an MP4 recording, bytes into a pack file. 0 for segments
+		 *         recorded without an index, which have to be read from the start.
+		 */
+		public long getOffset() {
+			return offset;
+		}
+
+		@Override
+		public String toString() {
+			return "SeekPoint [file=" + file + ", captureTime=" + captureTimeMillis + ", offset=" + offset + "]";
+		}
+	}
+
+	private final RecordingCatalog catalog;
+	private final int maxCachedIndexes;
+	private final Map<String, FrameIndex> cachedIndexes;
+	private final SegmentRemovedListener evictor = new SegmentRemovedListener() {
+		@Override
+		public void onSegmentRemoved(RecordingSegment segment) {
+			evict(segment);
+		}
+	};
+
+	public RecordingIndex(RecordingCatalog catalog) {
+		this(catalog, DEFAULT_CACHED_INDEXES);
+	}
+
+	public RecordingIndex(RecordingCatalog catalog, int maxCachedIndexes) {
+		super();
+		this.catalog = catalog;
+		this.maxCachedIndexes = maxCachedIndexes;
+		this.cachedIndexes = new LinkedHashMap<String, FrameIndex>(16, 0.75f, true);
+		catalog.addSegmentRemovedListener(evictor);
+	}
+
+	/**
+	 * @return one seek point per segment of the camera overlapping
+	 *         [fromMillis, toMillis], oldest first. In the first segment it is
+	 *         the last keyframe at or before fromMillis, in the others the
+	 *         segment's first keyframe.
+	 */
+	public synchronized List<SeekPoint> find(String camName, long fromMillis, long toMillis) {
+		List<SeekPoint> seekPoints = new ArrayList<SeekPoint>();
+		for ( RecordingSegment segment : catalog.getSegments(camName, fromMillis, toMillis) ) {
+			seekPoints.add(seek(segment, fromMillis));
+		}
+		return seekPoints;
+	}
+
+	/**
+	 * @return the seek point for a single moment, or null if the camera was not recording then
+	 */
+	public synchronized SeekPoint find(String camName, long timeMillis) {
+		List<RecordingSegment> segments = catalog.getSegments(camName, timeMillis, timeMillis);
+		return segments.isEmpty() ? null : seek(segments.get(segments.size() - 1), timeMillis);
+	}
+
+	/**
+	 * Unmaps every cached index and stops following the catalog.
+	 */
+	public synchronized void close() {
+		catalog.removeSegmentRemovedListener(evictor);
+		for ( FrameIndex index : cachedIndexes.values() ) {
+			index.close();
+		}
+		cachedIndexes.clear();
+	}
+
+	/**
+	 * Unmaps the cached index of a segment the catalog has deleted.
+	 */
+	private synchronized void evict(RecordingSegment segment) {
+		FrameIndex index = cachedIndexes.remove(segment.getFileName());
+		if ( index != null ) {
+			index.close();
+		}
+	}
+
+	private SeekPoint seek(RecordingSegment segment, long timeMillis) {
+		File file = catalog.getFile(segment);
+		FrameIndex index = openIndex(segment, file);
+		try {
+			int entry = index == null ? -1 : index.find(timeMillis);
+			if ( entry < 0 ) {
+				return new SeekPoint(segment, file, segment.getStartTime(), 0L);
+			}
+			return new SeekPoint(segment, file, index.getTimestamp(entry), index.getOffset(entry));
+		}
+		finally {
+			if ( index != null && segment.isOpen() ) {
+				index.close();
+			}
+		}
+	}
+
+	/**
+	 * Indexes of open segments are still growing, so they are mapped afresh
+	 * for each query instead of being cached.
+	 *
+	 * @return the segment's index, or null if it has none
+	 */
+	private FrameIndex openIndex(RecordingSegment segment, File file) {
+		FrameIndex index = segment.isOpen() ? null : cachedIndexes.get(segment.getFileName());
+		if ( index != null ) {
+			return index;
+		}
+		File indexFile = FrameIndex.indexFileFor(file);
+		if ( !indexFile.exists() ) {
+			return null;
+		}
+		try {
+			index = FrameIndex.open(indexFile);
+		} catch (IOException e) {
+			System.err.println("Unable to read frame index '" + indexFile + "': " + e.getMessage());
+			return null;
+		}
+		if ( !segment.isOpen() ) {
+			cachedIndexes.put(segment.getFileName(), index);
+			Iterator<FrameIndex> eldest = cachedIndexes.values().iterator();
+			while ( cachedIndexes.size() > maxCachedIndexes ) {
+				eldest.next().close();
+				eldest.remove();
+			}
+		}
+		return index;
+	}
+}
@@ -0,0 +1,124 @@
+/**
+ *  foscamRecorder - http://github.com/TheBigS
+ *  Copyright (C) 2012
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *   any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.github.thebigs.foscam.recorder;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * One recording file known to a {@link RecordingCatalog}. Immutable, the
+ * catalog replaces a segment when it changes, so segments handed out can be
+ * read from any thread.
+ */
+public class RecordingSegment implements Comparable<RecordingSegment> {
+	private static final DateFormat FILE_DATE_FORMAT = new SimpleDateFormat(Recording.FILE_DATE_PATTERN);
+
+	/**
+	 * @return '&lt;start time&gt;-&lt;camName&gt;&lt;extension&gt;', the name every segment file follows
+	 */
+	public static String fileName(Date startTime, String camName, String extension) {
+		synchronized(FILE_DATE_FORMAT) {
+			return FILE_DATE_FORMAT.format(startTime) + "-" + camName + extension;
+		}
+	}
+
+	private final String fileName;
+	private final String camName;
+	private final long startTimeMillis;
+	private final long endTimeMillis;
+	private final long sizeBytes;
+	private final boolean open;
+
+	public RecordingSegment(String fileName, String camName, long startTimeMillis, long endTimeMillis, long sizeBytes, boolean open) {
+		super();
+		this.fileName = fileName;
+		this.camName = camName;
+		this.startTimeMillis = startTimeMillis;
+		this.endTimeMillis = endTimeMillis;
+		this.sizeBytes = sizeBytes;
+		this.open = open;
+	}
+
+	public String getFileName() {
+		return fileName;
+	}
+
+	public String getCamName() {
+		return camName;
+	}
+
+	public long getStartTime() {
+		return startTimeMillis;
+	}
+
+	/**
+	 * @return when the segment was closed, or -1 if that is not known
+	 */
+	public long getEndTime() {
+		return endTimeMillis;
+	}
+
+	public long getSizeBytes() {
+		return sizeBytes;
+	}
+
+	/**
+	 * @return true while a recorder is still writing the segment
+	 */
+	public boolean isOpen() {
+		return open;
+	}
+
+	/**
+	 * @return the segment as closed at endTimeMillis with its final size
+	 */
+	RecordingSegment closed(long endTimeMillis, long sizeBytes) {
+		return new RecordingSegment(fileName, camName, startTimeMillis, endTimeMillis, sizeBytes, false);
+	}
+
+	/**
+	 * Oldest first, file name breaks ties.
+	 */
+	@Override
+	public int compareTo(RecordingSegment other) {
+		if ( startTimeMillis != other.startTimeMillis ) {
+			return startTimeMillis < other.startTimeMillis ? -1 : 1;
+		}
+		return fileName.compareTo(other.fileName);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		return obj instanceof RecordingSegment && ((RecordingSegment) obj).fileName.equals(fileName);
+	}
+
+	@Override
+	public int hashCode() {
+		return fileName.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return "RecordingSegment [fileName=" + fileName + ", camName=" + camName
+				+ ", startTime=" + startTimeMillis + ", endTime=" + endTimeMillis
+				+ ", sizeBytes=" + sizeBytes + ", open=" + open + "]";
+	}
+}
@@ -0,0 +1,458 @@
+/**
+ *  foscamRecorder - http://github.com/TheBigS
+ *  Copyright (C) 2012
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *   any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.thebigs.foscam.recorder;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Serves the frames a {@link Recorder} already captures to any number of
+ * viewers, so viewers never connect to the camera itself. Each camera has
+ * two endpoints:
+ * <pre>
+ * http://&lt;host&gt;:&lt;port&gt;/&lt;camera&gt;/stream    multipart/x-mixed-replace MJPEG
+ * http://&lt;host&gt;:&lt;port&gt;/&lt;camera&gt;/snapshot  the latest frame as image/jpeg
+ * </pre>
+ *
+ * Frames come in through a {@link WebCamJpegListener}. Each frame is wrapped
+ * once, multipart headers included, in a read-only buffer that every client
+ * is written from through its own duplicate, so nothing is copied per
+ * client. All sockets are non-blocking and served by one selector thread. A
+ * client still writing out a frame when the next one arrives skips frames
+ * and is sent the newest one when it is ready, so a slow viewer costs neither
+ * the camera nor the other viewers anything.
+ */
+public class RestreamServer {
+	public static final int DEFAULT_PORT = 8090;
+	public static final String BOUNDARY = "foscamrecorder";
+
+	private static final long TICK_MS = 100L;
+	private static final long REQUEST_TIMEOUT_MS = 10000L;
+	private static final long WRITE_TIMEOUT_MS = 30000L;
+	private static final int MAX_REQUEST_SIZE = 4 * 1024;
+	private static final long SHUTDOWN_TIMEOUT_MS = 5000L;
+
+	/**
+	 * One frame, ready to be written to any number of clients.
+	 */
+	private static class SharedFrame {
+		private final ByteBuffer part; // read-only: multipart headers, JPEG, CR/LF
+		private final int jpegOffset;
+		private final int jpegLength;
+
+		SharedFrame(ByteBuffer part, int jpegOffset, int jpegLength) {
+			this.part = part;
+			this.jpegOffset = jpegOffset;
+			this.jpegLength = jpegLength;
+		}
+
+		ByteBuffer newPart() {
+			return part.duplicate();
+		}
+
+		ByteBuffer newJpeg() {
+			ByteBuffer jpeg = part.duplicate();
+			jpeg.position(jpegOffset);
+			jpeg.limit(jpegOffset + jpegLength);
+			return jpeg;
+		}
+	}
+
+	/**
+	 * The frames of one camera and the clients watching it.
+	 */
+	private class Feed implements WebCamJpegListener {
+		private final String camName;
+		private volatile SharedFrame latest = null;
+		private final AtomicBoolean queued = new AtomicBoolean(false);
+		// only touched by the selector thread
+		private final List<Client> viewers = new ArrayList<Client>();
+
+		Feed(String camName) {
+			this.camName = camName;
+		}
+
+		@Override
+		public void onJpeg(byte[] data, int offset, int length, long captureTimeMillis) {
+			byte[] header = ("--" + BOUNDARY + "\r\nContent-Type: image/jpeg\r\nContent-Length: " + length + "\r\n\r\n").getBytes();
+			ByteBuffer part = ByteBuffer.allocate(header.length + length + 2);
+			part.put(header).put(data, offset, length).put((byte) '\r').put((byte) '\n');
+			part.flip();
+			latest = new SharedFrame(part.asReadOnlyBuffer(), header.length, length);
+			if ( queued.compareAndSet(false, true) ) {
+				updated.add(this);
+				selector.wakeup();
+			}
+		}
+	}
+
+	private enum State {
+		READING_REQUEST, STREAMING, SENDING_SNAPSHOT
+	}
+
+	private static class Client {
+		private final SocketChannel channel;
+		private final long connectedAt;
+		private State state = State.READING_REQUEST;
+		private ByteBuffer request = ByteBuffer.allocate(MAX_REQUEST_SIZE);
+		private Feed feed = null;
+		private ByteBuffer header = null;  // response headers, still to be written
+		private ByteBuffer frame = null;   // part of the frame still to be written
+		private SharedFrame lastSent = null;
+		private long lastProgress;
+
+		Client(SocketChannel channel, long now) {
+			this.channel = channel;
+			this.connectedAt = now;
+			this.lastProgress = now;
+		}
+
+		boolean isWriting() {
+			return header != null || frame != null;
+		}
+	}
+
+	private final ServerSocketChannel serverChannel;
+	private final Selector selector;
+	private final Map<String, Feed> feeds = new ConcurrentHashMap<String, Feed>();
+	private final ConcurrentLinkedQueue<Feed> updated = new ConcurrentLinkedQueue<Feed>();
+	private final List<Client> clients = new ArrayList<Client>();
+	private Thread thread = null;
+	private volatile boolean shutdown = false;
+	private volatile int clientCount = 0;
+
+	/**
+	 * @param port port to listen on, 0 for any free port
+	 */
+	public RestreamServer(int port) throws IOException {
+		super();
+		this.selector = Selector.open();
+		this.serverChannel = ServerSocketChannel.open();
+		serverChannel.socket().setReuseAddress(true);
+		serverChannel.socket().bind(new InetSocketAddress(port));
+		serverChannel.configureBlocking(false);
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+	}
+
+	/**
+	 * Serves the recorder's frames under its camera name. Can be called before
+	 * or after {@link #start()}.
+	 */
+	public void addCamera(Recorder recorder) {
+		Feed feed = new Feed(recorder.getCamName());
+		feeds.put(recorder.getCamName(), feed);
+		recorder.addWebCamJpegListener(feed);
+	}
+
+	public int getPort() {
+		return serverChannel.socket().getLocalPort();
+	}
+
+	/**
+	 * @return number of connected viewers, over all cameras
+	 */
+	public int getClientCount() {
+		return clientCount;
+	}
+
+	public void start() {
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				serve();
+			}
+		}, "Restream server - " + getPort());
+		thread.start();
+		System.out.println("Serving live video at http://localhost:" + getPort() + "/<camera>/stream");
+	}
+
+	/**
+	 * Disconnects every viewer and stops listening.
+	 */
+	public void shutdown() {
+		shutdown = true;
+		selector.wakeup();
+		if ( thread != null ) {
+			try {
+				thread.join(SHUTDOWN_TIMEOUT_MS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private void serve() {
+		try {
+			while ( !shutdown ) {
+				selector.select(TICK_MS);
+				long now = System.currentTimeMillis();
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while ( keys.hasNext() ) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if ( !key.isValid() ) {
+						continue;
+					}
+					if ( key.isAcceptable() ) {
+						accept(now);
+					}
+					else {
+						handle((Client) key.attachment(), key, now);
+					}
+				}
+				Feed feed;
+				while ( (feed = updated.poll()) != null ) {
+					feed.queued.set(false);
+					// backwards, since a viewer that has gone away is removed as we go
+					for ( int i = feed.viewers.size() - 1; i >= 0; i-- ) {
+						Client client = feed.viewers.get(i);
+						if ( !client.isWriting() ) {
+							try {
+								sendLatest(client, now);
+							} catch (IOException e) {
+								close(client);
+							}
+						}
+					}
+				}
+				checkTimeouts(now);
+			}
+		} catch (IOException e) {
+			System.err.println("Restream server failed: " + e.getMessage());
+		}
+		finally {
+			for ( Client client : new ArrayList<Client>(clients) ) {
+				close(client);
+			}
+			try {
+				serverChannel.close();
+				selector.close();
+			} catch (IOException e) {
+				// nothing left to do with them
+			}
+		}
+	}
+
+	private void accept(long now) throws IOException {
+		SocketChannel channel;
+		while ( (channel = serverChannel.accept()) != null ) {
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			Client client = new Client(channel, now);
+			channel.register(selector, SelectionKey.OP_READ, client);
+			clients.add(client);
+			clientCount = clients.size();
+		}
+	}
+
+	private void handle(Client client, SelectionKey key, long now) {
+		try {
+			if ( key.isReadable() ) {
+				if ( client.state == State.READING_REQUEST ) {
+					readRequest(client, now);
+				}
+				else if ( discardInput(client) < 0 ) {
+					close(client);
+					return;
+				}
+			}
+			if ( key.isValid() && key.isWritable() ) {
+				write(client, now);
+			}
+		} catch (IOException e) {
+			// viewers come and go, nothing worth reporting
+			close(client);
+		}
+	}
+
+	private void readRequest(Client client, long now) throws IOException {
+		if ( client.channel.read(client.request) < 0 ) {
+			close(client);
+			return;
+		}
+		ByteBuffer request = client.request;
+		byte[] data = request.array();
+		int end = -1;
+		for ( int i = 3; i < request.position(); i++ ) {
+			if ( data[i] == '\n' && data[i - 1] == '\r' && data[i - 2] == '\n' && data[i - 3] == '\r' ) {
+				end = i;
+				break;
+			}
+		}
+		if ( end < 0 ) {
+			if ( !request.hasRemaining() ) {
+				respondAndClose(client, "431 Request Header Fields Too Large", now);
+			}
+			return;
+		}
+		String[] requestLine = new String(data, 0, end, "ISO-8859-1").split("\r\n", 2)[0].split(" ");
+		client.request = null;
+		if ( requestLine.length < 2 || !requestLine[0].equals("GET") ) {
+			respondAndClose(client, "405 Method Not Allowed", now);
+			return;
+		}
+		String path = requestLine[1];
+		int query = path.indexOf('?');
+		if ( query >= 0 ) {
+			path = path.substring(0, query);
+		}
+		String[] parts = path.split("/");
+		Feed feed = parts.length == 3 ? feeds.get(parts[1]) : null;
+		if ( feed == null ) {
+			respondAndClose(client, "404 Not Found", now);
+		}
+		else if ( parts[2].equals("stream") ) {
+			client.feed = feed;
+			client.state = State.STREAMING;
+			client.header = ByteBuffer.wrap(("HTTP/1.0 200 OK\r\n"
+					+ "Content-Type: multipart/x-mixed-replace;boundary=" + BOUNDARY + "\r\n"
+					+ "Cache-Control: no-cache\r\n"
+					+ "Connection: close\r\n\r\n").getBytes());
+			feed.viewers.add(client);
+			sendLatest(client, now);
+		}
+		else if ( parts[2].equals("snapshot") ) {
+			SharedFrame latest = feed.latest;
+			if ( latest == null ) {
+				respondAndClose(client, "503 Service Unavailable", now);
+				return;
+			}
+			client.state = State.SENDING_SNAPSHOT;
+			client.header = ByteBuffer.wrap(("HTTP/1.0 200 OK\r\n"
+					+ "Content-Type: image/jpeg\r\n"
+					+ "Content-Length: " + latest.jpegLength + "\r\n"
+					+ "Cache-Control: no-cache\r\n"
+					+ "Connection: close\r\n\r\n").getBytes());
+			client.frame = latest.newJpeg();
+			write(client, now);
+		}
+		else {
+			respondAndClose(client, "404 Not Found", now);
+		}
+	}
+
+	private void respondAndClose(Client client, String status, long now) throws IOException {
+		client.state = State.SENDING_SNAPSHOT;
+		client.request = null;
+		client.header = ByteBuffer.wrap(("HTTP/1.0 " + status + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").getBytes());
+		write(client, now);
+	}
+
+	/**
+	 * Reads and ignores anything a viewer sends after its request, to notice it going away.
+	 */
+	private int discardInput(Client client) throws IOException {
+		ByteBuffer scratch = ByteBuffer.allocate(256);
+		return client.channel.read(scratch);
+	}
+
+	/**
+	 * Starts writing the camera's newest frame, unless the client has already had it.
+	 */
+	private void sendLatest(Client client, long now) throws IOException {
+		SharedFrame latest = client.feed.latest;
+		if ( latest != null && latest != client.lastSent ) {
+			client.frame = latest.newPart();
+			client.lastSent = latest;
+		}
+		write(client, now);
+	}
+
+	private void write(Client client, long now) throws IOException {
+		if ( client.header != null ) {
+			if ( client.channel.write(client.header) > 0 ) {
+				client.lastProgress = now;
+			}
+			if ( client.header.hasRemaining() ) {
+				interestInWrite(client, true);
+				return;
+			}
+			client.header = null;
+		}
+		if ( client.frame != null ) {
+			if ( client.channel.write(client.frame) > 0 ) {
+				client.lastProgress = now;
+			}
+			if ( client.frame.hasRemaining() ) {
+				interestInWrite(client, true);
+				return;
+			}
+			client.frame = null;
+		}
+		if ( client.state != State.STREAMING ) {
+			close(client);
+			return;
+		}
+		// a newer frame may have arrived while this one was being written
+		SharedFrame latest = client.feed.latest;
+		if ( latest != null && latest != client.lastSent ) {
+			client.frame = latest.newPart();
+			client.lastSent = latest;
+			write(client, now);
+			return;
+		}
+		interestInWrite(client, false);
+		client.lastProgress = now;
+	}
+
+	private void interestInWrite(Client client, boolean write) {
+		SelectionKey key = client.channel.keyFor(selector);
+		if ( key != null && key.isValid() ) {
+			key.interestOps(write ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+		}
+	}
+
+	private void checkTimeouts(long now) {
+		for ( Client client : new ArrayList<Client>(clients) ) {
+			if ( client.state == State.READING_REQUEST ) {
+				if ( now - client.connectedAt > REQUEST_TIMEOUT_MS ) {
+					close(client);
+				}
+			}
+			else if ( client.isWriting() && now - client.lastProgress > WRITE_TIMEOUT_MS ) {
+				close(client);
+			}
+		}
+	}
+
+	private void close(Client client) {
+		if ( client.feed != null ) {
+			client.feed.viewers.remove(client);
+		}
+		clients.remove(client);
+		clientCount = clients.size();
+		try {
+			client.channel.close();
+		} catch (IOException e) {
+			// already gone
+		}
+	}
+}
@@ -0,0 +1,82 @@
+/**
+ *  foscamRecorder - http://github.com/TheBigS
+ *  Copyright (C) 2012
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *   any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.github.thebigs.foscam.recorder;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits applied by {@link RecordingCatalog#applyRetention}: a global disk
+ * quota, a maximum age, and optional per-camera shares of the global quota.
+ * A negative limit means unlimited.
+ */
+public class RetentionPolicy {
+	private long maxTotalBytes = -1L;
+	private long maxAgeMillis = -1L;
+	private final Map<String, Double> cameraShares = new HashMap<String, Double>();
+
+	public long getMaxTotalBytes() {
+		return maxTotalBytes;
+	}
+
+	public void setMaxTotalBytes(long maxTotalBytes) {
+		this.maxTotalBytes = maxTotalBytes;
+	}
+
+	public void setMaxTotalMb(long maxTotalMb) {
+		this.maxTotalBytes = maxTotalMb < 0 ? -1L : maxTotalMb * 1024L * 1024L;
+	}
+
+	public long getMaxAgeMillis() {
+		return maxAgeMillis;
+	}
+
+	public void setMaxAgeMillis(long maxAgeMillis) {
+		this.maxAgeMillis = maxAgeMillis;
+	}
+
+	public void setMaxAgeHours(long maxAgeHours) {
+		this.maxAgeMillis = maxAgeHours < 0 ? -1L : TimeUnit.HOURS.toMillis(maxAgeHours);
+	}
+
+	/**
+	 * Caps one camera at a fraction of the global quota.
+	 *
+	 * @param share between 0 and 1
+	 */
+	public void setCameraShare(String camName, double share) {
+		if ( share < 0.0 || share > 1.0 ) {
+			throw new IllegalArgumentException("Camera share must be between 0 and 1.");
+		}
+		cameraShares.put(camName, share);
+	}
+
+	public Map<String, Double> getCameraShares() {
+		return Collections.unmodifiableMap(cameraShares);
+	}
+
+	@Override
+	public String toString() {
+		return "RetentionPolicy [maxTotalBytes=" + maxTotalBytes + ", maxAgeMillis="
+				+ maxAgeMillis + ", cameraShares=" + cameraShares + "]";
+	}
+}
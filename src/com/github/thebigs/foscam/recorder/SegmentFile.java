@@ -0,0 +1,347 @@
+/**
+ *  foscamRecorder - http://github.com/TheBigS
+ *  Copyright (C) 2012
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *   any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.thebigs.foscam.recorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.xuggle.xuggler.io.IURLProtocolHandler;
+
+/**
+ * Buffered, seekable output file for a segment, written according to a
+ * {@link WritePolicy}. {@link PackRecording} writes to it directly and
+ * {@link Recording} hands it to the muxer as a Xuggler protocol handler, so
+ * neither issues a system call per frame or packet.
+ *
+ * Writes collect in one buffer and go to the file in a single positioned
+ * write when the buffer is full, when data has waited longer than the
+ * policy's flush interval, on {@link #flush()} and on close. The flush
+ * interval is checked on each write and by {@link #flushIfDue()}, which the
+ * recorder calls on a timer. The buffer's
+ * capacity is cut at the next multiple of the buffer size in the file, so
+ * full buffers always start and end on the same aligned boundaries. Seeks
+ * within the buffer, like the muxer patching a box header it just wrote,
+ * change it in place; seeks outside write it out first.
+ *
+ * The size is tracked from what was written, so it costs no stat call.
+ * Writes, page-rounded bytes and syncs are counted into the camera's
+ * {@link CameraMetrics}: an SD card or a file server rewrites whole pages,
+ * so page bytes over bytes written is the write amplification.
+ *
+ * Not thread safe, a file belongs to one recording at a time.
+ */
+public class SegmentFile implements IURLProtocolHandler {
+	private final File file;
+	private final WritePolicy policy;
+	private final byte[] buffer;
+	private final byte[] scratch = new byte[8];
+	private RandomAccessFile raf;
+	private FileChannel channel;
+
+	private long bufferStart = 0L; // file position of buffer[0]
+	private int bufferPos = 0; // write position within the buffer
+	private int bufferLength = 0; // bytes of the buffer holding data
+	private volatile long size = 0L;
+	private volatile long writtenSize = 0L;
+	private long firstBufferedTime = -1L;
+	private long lastSyncTime;
+	private boolean dirty = false; // written but not synced
+
+	private long logicalBytes = 0L;
+	private long reportedLogicalBytes = 0L;
+	private CameraMetrics metrics = null;
+
+	/**
+	 * Creates the file, replacing any existing one.
+	 */
+	public SegmentFile(File file, WritePolicy policy) throws IOException {
+		super();
+		this.file = file;
+		this.policy = policy;
+		this.buffer = new byte[policy.getBufferSize()];
+		raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(0);
+		} catch (IOException e) {
+			raf.close();
+			throw e;
+		}
+		channel = raf.getChannel();
+		lastSyncTime = System.currentTimeMillis();
+	}
+
+	/**
+	 * Writes at the current position.
+	 */
+	public void write(byte[] data, int offset, int length) throws IOException {
+		ensureOpen();
+		if ( length > 0 && firstBufferedTime < 0 ) {
+			firstBufferedTime = System.currentTimeMillis();
+		}
+		int remaining = length;
+		while ( remaining > 0 ) {
+			int capacity = bufferCapacity();
+			if ( bufferPos == capacity ) {
+				writeOut();
+				capacity = bufferCapacity();
+			}
+			int n = Math.min(remaining, capacity - bufferPos);
+			System.arraycopy(data, offset, buffer, bufferPos, n);
+			bufferPos += n;
+			bufferLength = Math.max(bufferLength, bufferPos);
+			offset += n;
+			remaining -= n;
+		}
+		logicalBytes += length;
+		size = Math.max(size, bufferStart + bufferLength);
+		flushIfDue();
+	}
+
+	public void writeInt(int value) throws IOException {
+		scratch[0] = (byte) (value >>> 24);
+		scratch[1] = (byte) (value >>> 16);
+		scratch[2] = (byte) (value >>> 8);
+		scratch[3] = (byte) value;
+		write(scratch, 0, 4);
+	}
+
+	public void writeLong(long value) throws IOException {
+		for ( int i = 0; i < 8; i++ ) {
+			scratch[i] = (byte) (value >>> (56 - 8 * i));
+		}
+		write(scratch, 0, 8);
+	}
+
+	/**
+	 * Writes out the buffer, and syncs if the policy says so.
+	 */
+	public void flush() throws IOException {
+		ensureOpen();
+		writeOut();
+	}
+
+	/**
+	 * Writes out the buffer if data has waited longer than the policy's flush
+	 * interval, and syncs if an interval sync is due. Called on every write
+	 * and on a timer, so a stalled or idle camera's last frames still reach
+	 * the disk. Does nothing if closed.
+	 */
+	public void flushIfDue() throws IOException {
+		if ( raf == null ) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		if ( policy.getFlushMillis() > 0 && firstBufferedTime >= 0 && now - firstBufferedTime >= policy.getFlushMillis() ) {
+			writeOut();
+		}
+		else if ( dirty && policy.getSync() == WritePolicy.Sync.INTERVAL && now - lastSyncTime >= policy.getSyncMillis() ) {
+			sync();
+		}
+	}
+
+	/**
+	 * Flushes, syncs unless the policy never does, and closes the file. Does
+	 * nothing if already closed.
+	 */
+	public void closeFile() throws IOException {
+		if ( raf == null ) {
+			return;
+		}
+		try {
+			writeBuffer();
+			if ( policy.getSync() != WritePolicy.Sync.NEVER ) {
+				sync();
+			}
+		}
+		finally {
+			raf.close();
+			raf = null;
+			channel = null;
+		}
+	}
+
+	/**
+	 * @return bytes in the file once everything buffered is written
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * @return bytes handed to the operating system, everything before this
+	 *         offset can be read back from the file
+	 */
+	public long getWrittenSize() {
+		return writtenSize;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public WritePolicy getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * @param metrics where to count disk writes and syncs, or null for nowhere
+	 */
+	public void setMetrics(CameraMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	private int bufferCapacity() {
+		return buffer.length - (int) (bufferStart % buffer.length);
+	}
+
+	private void writeOut() throws IOException {
+		writeBuffer();
+		WritePolicy.Sync sync = policy.getSync();
+		if ( sync == WritePolicy.Sync.FLUSH
+				|| (sync == WritePolicy.Sync.INTERVAL && System.currentTimeMillis() - lastSyncTime >= policy.getSyncMillis()) ) {
+			sync();
+		}
+	}
+
+	private void writeBuffer() throws IOException {
+		if ( bufferLength > 0 ) {
+			ByteBuffer data = ByteBuffer.wrap(buffer, 0, bufferLength);
+			long position = bufferStart;
+			while ( data.hasRemaining() ) {
+				position += channel.write(data, position);
+			}
+			writtenSize = Math.max(writtenSize, position);
+			dirty = true;
+			long firstPage = bufferStart / WritePolicy.PAGE_SIZE;
+			long lastPage = (position - 1) / WritePolicy.PAGE_SIZE;
+			if ( metrics != null ) {
+				metrics.addSegmentBytes(logicalBytes - reportedLogicalBytes);
+				metrics.diskWrite((lastPage - firstPage + 1) * WritePolicy.PAGE_SIZE);
+				reportedLogicalBytes = logicalBytes;
+			}
+		}
+		bufferStart += bufferPos;
+		bufferPos = 0;
+		bufferLength = 0;
+		firstBufferedTime = -1L;
+	}
+
+	private void sync() throws IOException {
+		lastSyncTime = System.currentTimeMillis();
+		if ( !dirty ) {
+			return;
+		}
+		channel.force(false);
+		dirty = false;
+		if ( metrics != null ) {
+			metrics.diskSync();
+		}
+	}
+
+	private void ensureOpen() throws IOException {
+		if ( raf == null ) {
+			throw new IOException("Segment file '" + file + "' is closed.");
+		}
+	}
+
+	/**
+	 * The file is already open, the muxer opening it again is a no-op.
+	 */
+	@Override
+	public int open(String url, int flags) {
+		return raf == null ? -1 : 0;
+	}
+
+	@Override
+	public int read(byte[] buf, int size) {
+		return -1;
+	}
+
+	@Override
+	public int write(byte[] buf, int size) {
+		try {
+			write(buf, 0, size);
+			return size;
+		} catch (IOException e) {
+			System.err.println("Unable to write to '" + file + "': " + e.getMessage());
+			return -1;
+		}
+	}
+
+	@Override
+	public long seek(long offset, int whence) {
+		long target;
+		if ( whence == SEEK_SET ) {
+			target = offset;
+		}
+		else if ( whence == SEEK_CUR ) {
+			target = bufferStart + bufferPos + offset;
+		}
+		else if ( whence == SEEK_END ) {
+			target = size + offset;
+		}
+		else if ( whence == SEEK_SIZE ) {
+			return size;
+		}
+		else {
+			return -1;
+		}
+		if ( target < 0 ) {
+			return -1;
+		}
+		if ( target >= bufferStart && target <= bufferStart + bufferLength ) {
+			bufferPos = (int) (target - bufferStart);
+			return target;
+		}
+		try {
+			ensureOpen();
+			writeOut();
+		} catch (IOException e) {
+			System.err.println("Unable to write to '" + file + "': " + e.getMessage());
+			return -1;
+		}
+		bufferStart = target;
+		return target;
+	}
+
+	/**
+	 * Called by the muxer when the container is closed.
+	 */
+	@Override
+	public int close() {
+		try {
+			closeFile();
+			return 0;
+		} catch (IOException e) {
+			System.err.println("Unable to close '" + file + "': " + e.getMessage());
+			return -1;
+		}
+	}
+
+	/**
+	 * The muxer may seek back to patch headers.
+	 */
+	@Override
+	public boolean isStreamed(String url, int flags) {
+		return false;
+	}
+}
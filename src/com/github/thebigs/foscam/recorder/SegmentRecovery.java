@@ -0,0 +1,179 @@
+/**
+ *  foscamRecorder - http://github.com/TheBigS
+ *  Copyright (C) 2012
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *   any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.thebigs.foscam.recorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Finishes segments left open when the recorder stopped without closing
+ * them, so they can be played and the catalog knows where they end.
+ *
+ * Packs are cut back to their last complete frame and get their index
+ * rebuilt if needed. Fragmented MP4s are cut back to their last complete
+ * fragment. A plain MP4 has its moov written only when it is closed, so an
+ * unfinished one cannot be salvaged and is left as it is.
+ *
+ * Only reads the ends of the files it is given, never the whole directory.
+ */
+public class SegmentRecovery {
+	private static final int BOX_HEADER_SIZE = 8;
+
+	private SegmentRecovery() {
+	}
+
+	/**
+	 * @param startTime when the segment was opened
+	 * @return when the recovered segment ends, or the file's modification
+	 *         time if it could not be recovered
+	 */
+	public static long recover(File segmentFile, long startTime) {
+		String name = segmentFile.getName().toLowerCase();
+		try {
+			if ( name.endsWith(PackRecording.FILE_EXTENSION) ) {
+				return recoverPack(segmentFile, startTime);
+			}
+			if ( name.endsWith(".mp4") ) {
+				return recoverMp4(segmentFile, startTime);
+			}
+		} catch (IOException e) {
+			System.err.println("Unable to recover segment '" + segmentFile + "': " + e.getMessage());
+		}
+		return segmentFile.lastModified();
+	}
+
+	private static long recoverPack(File packFile, long startTime) throws IOException {
+		long endTime = startTime;
+		long dataEnd;
+		PackReader reader = new PackReader(packFile, true); // nothing is writing a pack being recovered
+		try {
+			if ( reader.getFrameCount() > 0 ) {
+				endTime = reader.getCaptureTime(reader.getFrameCount() - 1);
+			}
+			dataEnd = reader.getDataEnd();
+		} finally {
+			reader.close();
+		}
+		truncate(packFile, dataEnd);
+		return endTime;
+	}
+
+	private static long recoverMp4(File mp4File, long startTime) throws IOException {
+		long playableEnd = findPlayableEnd(mp4File);
+		if ( playableEnd < 0 ) {
+			System.err.println("Segment '" + mp4File + "' was not closed and is not a fragmented MP4, it cannot be recovered");
+			return mp4File.lastModified();
+		}
+		truncate(mp4File, playableEnd);
+		return lastKeyframeTime(mp4File, startTime);
+	}
+
+	/**
+	 * Walks the top level boxes of an MP4.
+	 *
+	 * @return where the last complete moov, or moof and mdat pair, ends. -1
+	 *         if there is no moov to play the file with.
+	 */
+	static long findPlayableEnd(File mp4File) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(mp4File, "r");
+		try {
+			long length = raf.length();
+			long offset = 0L;
+			long playableEnd = -1L;
+			boolean moofPending = false;
+			while ( offset + BOX_HEADER_SIZE <= length ) {
+				raf.seek(offset);
+				long size = raf.readInt() & 0xFFFFFFFFL;
+				int type = raf.readInt();
+				if ( size == 1 ) {
+					if ( offset + BOX_HEADER_SIZE + 8 > length ) {
+						break;
+					}
+					size = raf.readLong();
+				}
+				else if ( size == 0 ) {
+					size = length - offset; // runs to the end of the file, only ever complete if the writer said so
+				}
+				if ( size < BOX_HEADER_SIZE || offset + size > length ) {
+					break; // cut short
+				}
+				offset += size;
+
+				if ( type == boxType("moov") ) {
+					playableEnd = offset;
+				}
+				else if ( type == boxType("moof") ) {
+					moofPending = true;
+				}
+				else if ( type == boxType("mdat") ) {
+					if ( playableEnd >= 0 && moofPending ) {
+						playableEnd = offset;
+						moofPending = false;
+					}
+				}
+				else if ( playableEnd >= 0 && !moofPending ) {
+					playableEnd = offset; // trailing boxes such as mfra
+				}
+			}
+			return playableEnd;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * A fragment is flushed when the keyframe after it is encoded, so the
+	 * last indexed keyframe is where the complete fragments end.
+	 */
+	private static long lastKeyframeTime(File mp4File, long startTime) {
+		File indexFile = FrameIndex.indexFileFor(mp4File);
+		if ( !indexFile.exists() ) {
+			return mp4File.lastModified();
+		}
+		try {
+			FrameIndex index = FrameIndex.open(indexFile);
+			try {
+				return index.size() > 0 ? index.getTimestamp(index.size() - 1) : startTime;
+			} finally {
+				index.close();
+			}
+		} catch (IOException e) {
+			System.err.println("Unable to read keyframe index '" + indexFile + "': " + e.getMessage());
+			return mp4File.lastModified();
+		}
+	}
+
+	private static void truncate(File file, long length) throws IOException {
+		if ( file.length() <= length ) {
+			return;
+		}
+		System.err.println("Recovering segment " + file + ": dropping " + (file.length() - length) + " bytes written after the last complete frame");
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(length);
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static int boxType(String fourcc) {
+		return (fourcc.charAt(0) << 24) | (fourcc.charAt(1) << 16) | (fourcc.charAt(2) << 8) | fourcc.charAt(3);
+	}
+}
@@ -0,0 +1,62 @@
+/**
+ *  foscamRecorder - http://github.com/TheBigS
+ *  Copyright (C) 2012
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *   any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.thebigs.foscam.recorder;
+
+/**
+ * A recording file being written by a {@link Recorder}, one per segment
+ * between cycles.
+ */
+public interface SegmentWriter {
+	/**
+	 * Saves one JPEG frame from the camera.
+	 *
+	 * @param captureTimeMillis when the frame was captured
+	 */
+	void saveFrame(byte[] data, int offset, int length, long captureTimeMillis);
+
+	/**
+	 * Writes out and syncs whatever the write policy says is due, called on
+	 * a timer so buffered frames reach the disk when no new frame arrives.
+	 */
+	void flushIfDue();
+
+	void close();
+
+	String getRecordingFileLocation();
+
+	String getRecordingFileName();
+
+	/**
+	 * @return bytes on disk used by the segment, including any sidecar files
+	 */
+	long getRecordingFileSize();
+
+	long getStartTime();
+
+	/**
+	 * @return true if the next frame would start a new group of pictures, so
+	 *         the segment can end here without cutting one short
+	 */
+	boolean isKeyframeBoundary();
+
+	/**
+	 * @param metrics where to count bytes written and stage latencies, or null for nowhere
+	 */
+	void setMetrics(CameraMetrics metrics);
+}
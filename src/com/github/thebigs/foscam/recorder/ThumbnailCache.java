@@ -0,0 +1,267 @@
+/**
+ *  foscamRecorder - http://github.com/TheBigS
+ *  Copyright (C) 2012
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *   any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.thebigs.foscam.recorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Serves timeline previews from the thumbnails written next to each segment
+ * by {@link ThumbnailWriter}, without decoding any video.
+ *
+ * The catalog narrows a time range down to the segments that overlap it, and
+ * each segment's thumbnail pack is read whole with a single read. Packs of
+ * closed segments stay in an LRU cache bounded by bytes, so scrubbing back
+ * and forth over a day costs no file system calls at all. Packs of open
+ * segments are still growing and are read afresh for each query.
+ */
+public class ThumbnailCache {
+	public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+	/**
+	 * A JPEG thumbnail and when its frame was captured. The bytes are shared
+	 * with the cache and must not be modified.
+	 */
+	public static class Thumbnail {
+		private final long captureTimeMillis;
+		private final byte[] data;
+		private final int offset;
+		private final int length;
+
+		public Thumbnail(long captureTimeMillis, byte[] data, int offset, int length) {
+			super();
+			this.captureTimeMillis = captureTimeMillis;
+			this.data = data;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		public long getCaptureTime() {
+			return captureTimeMillis;
+		}
+
+		public byte[] getData() {
+			return data;
+		}
+
+		public int getOffset() {
+			return offset;
+		}
+
+		public int getLength() {
+			return length;
+		}
+
+		/**
+		 * @return a copy of the JPEG
+		 */
+		public byte[] toByteArray() {
+			byte[] copy = new byte[length];
+			System.arraycopy(data, offset, copy, 0, length);
+			return copy;
+		}
+	}
+
+	/**
+	 * Every thumbnail of one segment, in the pack as read from disk.
+	 */
+	private static class SegmentThumbnails {
+		final List<Thumbnail> thumbnails;
+		final long sizeBytes;
+
+		SegmentThumbnails(List<Thumbnail> thumbnails, long sizeBytes) {
+			this.thumbnails = thumbnails;
+			this.sizeBytes = sizeBytes;
+		}
+	}
+
+	private static final SegmentThumbnails NONE = new SegmentThumbnails(new ArrayList<Thumbnail>(0), 0L);
+
+	private final RecordingCatalog catalog;
+	private final long maxBytes;
+	private final Map<String, SegmentThumbnails> cached;
+	private long cachedBytes = 0L;
+	private long hits = 0L;
+	private long misses = 0L;
+
+	public ThumbnailCache(RecordingCatalog catalog) {
+		this(catalog, DEFAULT_MAX_BYTES);
+	}
+
+	/**
+	 * @param maxBytes how much thumbnail data to keep in memory
+	 */
+	public ThumbnailCache(RecordingCatalog catalog, long maxBytes) {
+		super();
+		this.catalog = catalog;
+		this.maxBytes = maxBytes;
+		this.cached = new LinkedHashMap<String, SegmentThumbnails>(16, 0.75f, true);
+	}
+
+	/**
+	 * @return every thumbnail of the camera captured in [fromMillis, toMillis], oldest first
+	 */
+	public synchronized List<Thumbnail> getTimeline(String camName, long fromMillis, long toMillis) {
+		List<Thumbnail> timeline = new ArrayList<Thumbnail>();
+		for ( RecordingSegment segment : catalog.getSegments(camName, fromMillis, toMillis) ) {
+			for ( Thumbnail thumbnail : get(segment).thumbnails ) {
+				if ( thumbnail.getCaptureTime() >= fromMillis && thumbnail.getCaptureTime() <= toMillis ) {
+					timeline.add(thumbnail);
+				}
+			}
+		}
+		return timeline;
+	}
+
+	/**
+	 * Picks at most maxThumbnails evenly spread over the range, as for a
+	 * timeline strip of fixed width.
+	 *
+	 * @return the first thumbnail in each of maxThumbnails equal slices of
+	 *         the range, skipping slices that have none, oldest first
+	 */
+	public synchronized List<Thumbnail> getTimeline(String camName, long fromMillis, long toMillis, int maxThumbnails) {
+		List<Thumbnail> sampled = new ArrayList<Thumbnail>(maxThumbnails);
+		double sliceMillis = (double) (toMillis - fromMillis + 1) / maxThumbnails;
+		long lastSlice = -1L;
+		for ( Thumbnail thumbnail : getTimeline(camName, fromMillis, toMillis) ) {
+			long slice = (long) ((thumbnail.getCaptureTime() - fromMillis) / sliceMillis);
+			if ( slice > lastSlice ) {
+				sampled.add(thumbnail);
+				lastSlice = slice;
+			}
+		}
+		return sampled;
+	}
+
+	/**
+	 * @return the last thumbnail at or before timeMillis, or null if there is none
+	 *         in the segment recording at that time
+	 */
+	public synchronized Thumbnail find(String camName, long timeMillis) {
+		List<RecordingSegment> segments = catalog.getSegments(camName, timeMillis, timeMillis);
+		if ( segments.isEmpty() ) {
+			return null;
+		}
+		Thumbnail found = null;
+		for ( Thumbnail thumbnail : get(segments.get(segments.size() - 1)).thumbnails ) {
+			if ( thumbnail.getCaptureTime() > timeMillis ) {
+				break;
+			}
+			found = thumbnail;
+		}
+		return found;
+	}
+
+	/**
+	 * @return bytes of thumbnail data held in memory
+	 */
+	public synchronized long getCachedBytes() {
+		return cachedBytes;
+	}
+
+	/**
+	 * @return segment lookups answered from memory
+	 */
+	public synchronized long getHitCount() {
+		return hits;
+	}
+
+	/**
+	 * @return segment lookups that had to read the thumbnail pack
+	 */
+	public synchronized long getMissCount() {
+		return misses;
+	}
+
+	public synchronized void clear() {
+		cached.clear();
+		cachedBytes = 0L;
+	}
+
+	private SegmentThumbnails get(RecordingSegment segment) {
+		SegmentThumbnails thumbnails = segment.isOpen() ? null : cached.get(segment.getFileName());
+		if ( thumbnails != null ) {
+			hits++;
+			return thumbnails;
+		}
+		misses++;
+		File file = ThumbnailWriter.thumbnailFileFor(catalog.getFile(segment));
+		try {
+			thumbnails = file.exists() ? read(file) : NONE;
+		} catch (IOException e) {
+			System.err.println("Unable to read thumbnails '" + file + "': " + e.getMessage());
+			return NONE;
+		}
+		if ( !segment.isOpen() ) {
+			cached.put(segment.getFileName(), thumbnails);
+			cachedBytes += thumbnails.sizeBytes;
+			Iterator<SegmentThumbnails> eldest = cached.values().iterator();
+			while ( cachedBytes > maxBytes && cached.size() > 1 ) {
+				cachedBytes -= eldest.next().sizeBytes;
+				eldest.remove();
+			}
+		}
+		return thumbnails;
+	}
+
+	/**
+	 * Reads a whole thumbnail pack and walks its records in place. A record
+	 * cut short at the end, as in a pack still being written, is ignored.
+	 */
+	private static SegmentThumbnails read(File file) throws IOException {
+		byte[] pack;
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			long length = raf.length();
+			if ( length > Integer.MAX_VALUE ) {
+				throw new IOException("thumbnail pack too large");
+			}
+			pack = new byte[(int) length];
+			raf.readFully(pack);
+		} finally {
+			raf.close();
+		}
+
+		ByteBuffer buffer = ByteBuffer.wrap(pack);
+		if ( pack.length < PackRecording.HEADER_SIZE || buffer.getInt(0) != PackRecording.MAGIC ) {
+			throw new IOException("not a pack file");
+		}
+		List<Thumbnail> thumbnails = new ArrayList<Thumbnail>();
+		int position = PackRecording.HEADER_SIZE;
+		while ( position + PackRecording.RECORD_HEADER_SIZE <= pack.length ) {
+			int length = buffer.getInt(position);
+			long captureTime = buffer.getLong(position + 4);
+			int data = position + PackRecording.RECORD_HEADER_SIZE;
+			if ( length <= 0 || length > pack.length - data ) {
+				break;
+			}
+			thumbnails.add(new Thumbnail(captureTime, pack, data, length));
+			position = data + length;
+		}
+		return new SegmentThumbnails(thumbnails, pack.length);
+	}
+}
@@ -0,0 +1,243 @@
+/**
+ *  foscamRecorder - http://github.com/TheBigS
+ *  Copyright (C) 2012
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *   any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.thebigs.foscam.recorder;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+import com.xuggle.xuggler.IVideoPicture;
+
+/**
+ * Writes a small JPEG preview of a recording every few seconds, taken from
+ * frames the recording has already decoded, to a pack next to the segment
+ * ('&lt;segment&gt;.thumbs', in the {@link PackRecording} format).
+ * {@link ThumbnailCache} reads them back to draw timelines without touching
+ * the video.
+ *
+ * The pack is only created once the first thumbnail is due. A writer
+ * belongs to one recording and is not thread safe.
+ */
+public class ThumbnailWriter {
+	public static final String FILE_EXTENSION = ".thumbs";
+	public static final long DEFAULT_INTERVAL_MILLIS = 10000L;
+	public static final int DEFAULT_WIDTH = 160;
+
+	private static final float JPEG_QUALITY = 0.7f;
+
+	private final File segmentFile;
+	private final long startTimeMillis;
+	private final long intervalMillis;
+	private final int width;
+	private PackRecording pack = null;
+	private long nextDue = Long.MIN_VALUE;
+	private boolean failed = false;
+
+	// reused across thumbnails
+	private BufferedImage thumbnail = null;
+	private byte[] luma;
+	private byte[] chromaU;
+	private byte[] chromaV;
+	private final ByteArrayOutputStream jpeg = new ByteArrayOutputStream(8 * 1024);
+	private ImageWriter jpegWriter = null;
+	private ImageWriteParam jpegParam = null;
+
+	/**
+	 * @param intervalMillis time between thumbnails
+	 * @param width thumbnail width, the height follows the frame's aspect ratio
+	 */
+	public ThumbnailWriter(File segmentFile, long startTimeMillis, long intervalMillis, int width) {
+		super();
+		this.segmentFile = segmentFile;
+		this.startTimeMillis = startTimeMillis;
+		this.intervalMillis = intervalMillis;
+		this.width = width;
+	}
+
+	/**
+	 * @return the thumbnail pack for a segment file
+	 */
+	public static File thumbnailFileFor(File segmentFile) {
+		return new File(segmentFile.getPath() + FILE_EXTENSION);
+	}
+
+	/**
+	 * @return true if a frame captured at this time should become a thumbnail.
+	 *         Cheap, call it before doing any work for the thumbnail.
+	 */
+	public boolean isDue(long captureTimeMillis) {
+		return !failed && captureTimeMillis >= nextDue;
+	}
+
+	/**
+	 * Adds a thumbnail from a decoded image of any size.
+	 */
+	public void add(BufferedImage image, long captureTimeMillis) {
+		BufferedImage target = getThumbnailImage(image.getWidth(), image.getHeight());
+		Graphics2D g = target.createGraphics();
+		try {
+			g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+			g.drawImage(image, 0, 0, target.getWidth(), target.getHeight(), null);
+		} finally {
+			g.dispose();
+		}
+		write(target, captureTimeMillis);
+	}
+
+	/**
+	 * Adds a thumbnail from a YUV420P picture, sampling the planes directly
+	 * so no full size RGB image is ever made.
+	 */
+	public void add(IVideoPicture picture, long captureTimeMillis) {
+		int frameWidth = picture.getWidth();
+		int frameHeight = picture.getHeight();
+		int lumaStride = picture.getDataLineSize(0);
+		int chromaStride = picture.getDataLineSize(1);
+		int lumaSize = lumaStride * frameHeight;
+		int chromaSize = chromaStride * ((frameHeight + 1) / 2);
+		if ( luma == null || luma.length < lumaSize ) {
+			luma = new byte[lumaSize];
+		}
+		if ( chromaU == null || chromaU.length < chromaSize ) {
+			chromaU = new byte[chromaSize];
+			chromaV = new byte[chromaSize];
+		}
+		// the planes follow each other in the picture's buffer
+		picture.get(0, luma, 0, lumaSize);
+		picture.get(lumaSize, chromaU, 0, chromaSize);
+		picture.get(lumaSize + chromaSize, chromaV, 0, chromaSize);
+
+		BufferedImage target = getThumbnailImage(frameWidth, frameHeight);
+		int thumbWidth = target.getWidth();
+		int thumbHeight = target.getHeight();
+		for ( int ty = 0; ty < thumbHeight; ty++ ) {
+			int y = ty * frameHeight / thumbHeight;
+			int lumaRow = y * lumaStride;
+			int chromaRow = (y >> 1) * chromaStride;
+			for ( int tx = 0; tx < thumbWidth; tx++ ) {
+				int x = tx * frameWidth / thumbWidth;
+				target.setRGB(tx, ty, toRgb(luma[lumaRow + x] & 0xFF, chromaU[chromaRow + (x >> 1)] & 0xFF,
+						chromaV[chromaRow + (x >> 1)] & 0xFF));
+			}
+		}
+		write(target, captureTimeMillis);
+	}
+
+	/**
+	 * @return bytes on disk used by the thumbnails and their index
+	 */
+	public long getFileSize() {
+		return pack == null ? 0L : pack.getRecordingFileSize();
+	}
+
+	public void close() {
+		if ( pack != null ) {
+			pack.close();
+		}
+		if ( jpegWriter != null ) {
+			jpegWriter.dispose();
+			jpegWriter = null;
+		}
+	}
+
+	private BufferedImage getThumbnailImage(int frameWidth, int frameHeight) {
+		int thumbWidth = Math.min(width, frameWidth);
+		int thumbHeight = Math.max(1, (int) ((long) frameHeight * thumbWidth / frameWidth));
+		if ( thumbnail == null || thumbnail.getWidth() != thumbWidth || thumbnail.getHeight() != thumbHeight ) {
+			thumbnail = new BufferedImage(thumbWidth, thumbHeight, BufferedImage.TYPE_INT_RGB);
+		}
+		return thumbnail;
+	}
+
+	/**
+	 * ITU-R BT.601 limited range, which is what the camera's JPEGs decode to.
+	 */
+	private static int toRgb(int y, int u, int v) {
+		int c = 298 * (y - 16);
+		int d = u - 128;
+		int e = v - 128;
+		int r = clamp((c + 409 * e + 128) >> 8);
+		int g = clamp((c - 100 * d - 208 * e + 128) >> 8);
+		int b = clamp((c + 516 * d + 128) >> 8);
+		return (r << 16) | (g << 8) | b;
+	}
+
+	private static int clamp(int value) {
+		return value < 0 ? 0 : (value > 255 ? 255 : value);
+	}
+
+	private void write(BufferedImage image, long captureTimeMillis) {
+		nextDue = captureTimeMillis + intervalMillis;
+		try {
+			jpeg.reset();
+			ImageOutputStream out = new MemoryCacheImageOutputStream(jpeg);
+			try {
+				ImageWriter writer = getJpegWriter();
+				writer.setOutput(out);
+				writer.write(null, new IIOImage(image, null, null), jpegParam);
+			} finally {
+				out.close();
+			}
+			if ( pack == null ) {
+				pack = new PackRecording(thumbnailFileFor(segmentFile), startTimeMillis);
+			}
+			pack.saveFrame(jpeg.toByteArray(), 0, jpeg.size(), captureTimeMillis);
+			// one write every few seconds, and timelines of the live segment stay current
+			pack.flush();
+		} catch (IOException e) {
+			stop("Unable to write thumbnail for '" + segmentFile + "': " + e.getMessage());
+		} catch (RuntimeException e) {
+			stop("Unable to write thumbnail for '" + segmentFile + "': " + e.getMessage());
+		}
+	}
+
+	private ImageWriter getJpegWriter() throws IOException {
+		if ( jpegWriter == null ) {
+			Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+			if ( !writers.hasNext() ) {
+				throw new IOException("no JPEG encoder available");
+			}
+			jpegWriter = writers.next();
+			jpegParam = jpegWriter.getDefaultWriteParam();
+			jpegParam.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+			jpegParam.setCompressionQuality(JPEG_QUALITY);
+		}
+		return jpegWriter;
+	}
+
+	/**
+	 * Thumbnails are a convenience, a failure never stops the recording.
+	 */
+	private void stop(String message) {
+		System.err.println(message + ", no more thumbnails for this recording");
+		failed = true;
+		close();
+	}
+}
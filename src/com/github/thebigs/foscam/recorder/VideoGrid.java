@@ -0,0 +1,94 @@
+/**
+ *  foscamRecorder - http://github.com/TheBigS
+ *  Copyright (C) 2012
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *   any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.thebigs.foscam.recorder;
+
+import java.awt.Color;
+import java.awt.GridLayout;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.swing.JPanel;
+
+/**
+ * Live view of several cameras at once, one {@link VideoPanel} per camera
+ * in a grid that stays as square as possible. Must be used on the event
+ * dispatch thread.
+ */
+public class VideoGrid extends JPanel {
+	private static final long serialVersionUID = 1L;
+	private static final int GAP = 2;
+
+	private final List<Recorder> recorders = new ArrayList<Recorder>();
+	private final List<VideoPanel> panels = new ArrayList<VideoPanel>();
+
+	public VideoGrid() {
+		super(new GridLayout(1, 1, GAP, GAP));
+		setBackground(Color.DARK_GRAY);
+	}
+
+	/**
+	 * Adds a tile showing the recorder's camera.
+	 */
+	public VideoPanel addCamera(Recorder recorder) {
+		VideoPanel panel = new VideoPanel(recorder.getCamName());
+		recorder.addWebCamJpegListener(panel);
+		recorders.add(recorder);
+		panels.add(panel);
+		add(panel);
+		relayout();
+		return panel;
+	}
+
+	/**
+	 * Removes the recorder's tile. The recorder keeps running.
+	 *
+	 * @return false if the recorder was not in the grid
+	 */
+	public boolean removeCamera(Recorder recorder) {
+		int i = recorders.indexOf(recorder);
+		if ( i < 0 ) {
+			return false;
+		}
+		recorder.removeWebCamJpegListener(panels.get(i));
+		remove(panels.get(i));
+		recorders.remove(i);
+		panels.remove(i);
+		relayout();
+		return true;
+	}
+
+	public void removeAllCameras() {
+		while ( !recorders.isEmpty() ) {
+			removeCamera(recorders.get(recorders.size() - 1));
+		}
+	}
+
+	public int getCameraCount() {
+		return recorders.size();
+	}
+
+	private void relayout() {
+		int count = Math.max(1, panels.size());
+		int columns = (int) Math.ceil(Math.sqrt(count));
+		int rows = (count + columns - 1) / columns;
+		setLayout(new GridLayout(rows, columns, GAP, GAP));
+		revalidate();
+		repaint();
+	}
+}
@@ -0,0 +1,219 @@
+/**
+ *  foscamRecorder - http://github.com/TheBigS
+ *  Copyright (C) 2012
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *   any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.thebigs.foscam.recorder;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.VolatileImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import javax.swing.JComponent;
+
+/**
+ * Shows one camera's live video, scaled to fit.
+ *
+ * Frames are decoded on the listener thread, subsampled while decoding when
+ * the panel is much smaller than the camera's resolution. Only the newest
+ * decoded frame is kept, and at most one repaint is ever queued, so frames
+ * that arrive between repaints are dropped rather than queued. A repaint
+ * scales the frame into a reused, accelerated back buffer once, and only
+ * copies the back buffer when nothing new has arrived, so its cost does not
+ * depend on how fast the camera sends frames.
+ *
+ * A panel listens to one camera at a time.
+ */
+public class VideoPanel extends JComponent implements WebCamJpegListener {
+	private static final long serialVersionUID = 1L;
+	private static final int MAX_RESTORE_ATTEMPTS = 3;
+
+	private final String title;
+	private final AtomicReference<BufferedImage> latest = new AtomicReference<BufferedImage>();
+	private final AtomicBoolean repaintQueued = new AtomicBoolean(false);
+
+	// decoding, on the listener thread
+	private ImageReader jpegReader = null;
+	private volatile int targetWidth = 0;
+	private volatile int targetHeight = 0;
+
+	// painting, on the event dispatch thread
+	private BufferedImage shown = null;
+	private VolatileImage backBuffer = null;
+	private boolean backBufferValid = false;
+
+	/**
+	 * @param title drawn over the video, such as the camera name. May be null.
+	 */
+	public VideoPanel(String title) {
+		super();
+		this.title = title;
+		setOpaque(true);
+		setBackground(Color.BLACK);
+		setForeground(Color.WHITE);
+		setPreferredSize(new Dimension(320, 240));
+	}
+
+	public String getTitle() {
+		return title;
+	}
+
+	@Override
+	public void onJpeg(byte[] data, int offset, int length, long captureTimeMillis) {
+		BufferedImage image;
+		try {
+			image = decode(data, offset, length);
+		} catch (IOException e) {
+			return; // a corrupt frame, the next one will do
+		}
+		if ( image == null ) {
+			return;
+		}
+		latest.set(image);
+		if ( repaintQueued.compareAndSet(false, true) ) {
+			repaint();
+		}
+	}
+
+	/**
+	 * Shows an image directly, as for a recording being played back.
+	 */
+	public void showImage(BufferedImage image) {
+		latest.set(image);
+		if ( repaintQueued.compareAndSet(false, true) ) {
+			repaint();
+		}
+	}
+
+	@Override
+	protected void paintComponent(Graphics g) {
+		repaintQueued.set(false);
+		int width = getWidth();
+		int height = getHeight();
+		targetWidth = width;
+		targetHeight = height;
+
+		BufferedImage image = latest.get();
+		if ( image != shown ) {
+			shown = image;
+			backBufferValid = false;
+		}
+		if ( shown == null || width <= 0 || height <= 0 ) {
+			g.setColor(getBackground());
+			g.fillRect(0, 0, width, height);
+			drawTitle(g);
+			return;
+		}
+
+		// the contents of an accelerated image can be lost at any time, as
+		// when the display mode changes, so redraw until they stick
+		GraphicsConfiguration config = getGraphicsConfiguration();
+		for ( int attempt = 0; attempt < MAX_RESTORE_ATTEMPTS; attempt++ ) {
+			int status = backBuffer == null || config == null ? VolatileImage.IMAGE_INCOMPATIBLE : backBuffer.validate(config);
+			if ( status == VolatileImage.IMAGE_INCOMPATIBLE || backBuffer.getWidth() != width || backBuffer.getHeight() != height ) {
+				if ( backBuffer != null ) {
+					backBuffer.flush();
+				}
+				backBuffer = createVolatileImage(width, height);
+				backBufferValid = false;
+				if ( backBuffer == null ) {
+					break; // not displayable
+				}
+			}
+			else if ( status == VolatileImage.IMAGE_RESTORED ) {
+				backBufferValid = false;
+			}
+			if ( !backBufferValid ) {
+				Graphics2D bg = backBuffer.createGraphics();
+				try {
+					drawScaled(bg, shown, width, height);
+				} finally {
+					bg.dispose();
+				}
+				backBufferValid = true;
+			}
+			g.drawImage(backBuffer, 0, 0, null);
+			if ( !backBuffer.contentsLost() ) {
+				return;
+			}
+			backBufferValid = false;
+		}
+		// no accelerated buffer to be had, scale straight to the screen
+		drawScaled((Graphics2D) g, shown, width, height);
+	}
+
+	/**
+	 * Letterboxes the image into the area, keeping its aspect ratio.
+	 */
+	private void drawScaled(Graphics2D g, BufferedImage image, int width, int height) {
+		g.setColor(getBackground());
+		g.fillRect(0, 0, width, height);
+		double scale = Math.min((double) width / image.getWidth(), (double) height / image.getHeight());
+		int scaledWidth = (int) (image.getWidth() * scale);
+		int scaledHeight = (int) (image.getHeight() * scale);
+		g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+		g.drawImage(image, (width - scaledWidth) / 2, (height - scaledHeight) / 2, scaledWidth, scaledHeight, null);
+		drawTitle(g);
+	}
+
+	private void drawTitle(Graphics g) {
+		if ( title != null ) {
+			g.setColor(getForeground());
+			g.drawString(title, 4, g.getFontMetrics().getAscent() + 2);
+		}
+	}
+
+	/**
+	 * Decodes the JPEG, skipping rows and columns that would be scaled away anyway.
+	 */
+	private BufferedImage decode(byte[] data, int offset, int length) throws IOException {
+		if ( jpegReader == null ) {
+			Iterator<ImageReader> readers = ImageIO.getImageReadersByFormatName("jpeg");
+			if ( !readers.hasNext() ) {
+				throw new IOException("no JPEG decoder available");
+			}
+			jpegReader = readers.next();
+		}
+		ImageInputStream in = new MemoryCacheImageInputStream(new ByteArrayInputStream(data, offset, length));
+		try {
+			jpegReader.setInput(in, true, true);
+			ImageReadParam param = jpegReader.getDefaultReadParam();
+			int frameSize = EncoderProbe.readFrameSize(data, offset, length);
+			if ( frameSize >= 0 && targetWidth > 0 && targetHeight > 0 ) {
+				int subsampling = Math.max(1, Math.min((frameSize >>> 16) / targetWidth, (frameSize & 0xFFFF) / targetHeight));
+				param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+			}
+			return jpegReader.read(0, param);
+		} finally {
+			in.close();
+		}
+	}
+}
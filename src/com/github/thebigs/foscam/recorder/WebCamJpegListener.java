@@ -0,0 +1,37 @@
+/**
+ *  foscamRecorder - http://github.com/TheBigS
+ *  Copyright (C) 2012
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *   any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.thebigs.foscam.recorder;
+
+/**
+ * Receives the camera's frames as the JPEG bytes that came over the network,
+ * without decoding them, for listeners that store or forward the frames.
+ *
+ * Called on a listener thread, never on the capture thread. A listener that
+ * is still busy with a frame misses the frames that arrive meanwhile and is
+ * given the newest one next.
+ */
+public interface WebCamJpegListener {
+	/**
+	 * @param data shared with the recorder and other listeners, must not be
+	 *        modified. Only valid for the duration of the call, the buffer is
+	 *        reused for later frames once every consumer is done with it.
+	 * @param captureTimeMillis when the frame was read from the camera
+	 */
+	public void onJpeg(byte[] data, int offset, int length, long captureTimeMillis);
+}
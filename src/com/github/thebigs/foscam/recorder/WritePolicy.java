@@ -0,0 +1,177 @@
+/**
+ *  foscamRecorder - http://github.com/TheBigS
+ *  Copyright (C) 2012
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *   any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.thebigs.foscam.recorder;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * How a camera's segments are written to disk by {@link SegmentFile}: how
+ * much is buffered before a write, how long data may sit in the buffer and
+ * how often it is forced onto the storage with fsync.
+ *
+ * Policies are written as comma separated settings, for example
+ * <code>buffer=1m,flush=1,fsync=10</code>:
+ * <ul>
+ * <li>buffer: bytes written at a time, with an optional k or m suffix; rounded up to whole 4 KB pages</li>
+ * <li>flush: seconds data may wait in the buffer, 0 to only write full buffers</li>
+ * <li>fsync: never, close, flush (after every write), or seconds between syncs</li>
+ * </ul>
+ * The default buffers 1 MB for at most a second and only syncs when a
+ * segment is closed. Cards and network shares that lose a lot on power
+ * failure want a sync interval, at the cost of one more I/O per interval.
+ */
+public class WritePolicy {
+	public static final int PAGE_SIZE = 4096;
+	public static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+	public static final long DEFAULT_FLUSH_MILLIS = 1000L;
+
+	/**
+	 * When written data is forced onto the storage.
+	 */
+	public enum Sync {
+		/** Left to the operating system. */
+		NEVER,
+		/** When the segment is closed. */
+		CLOSE,
+		/** After every write, and on close. */
+		FLUSH,
+		/** At most every sync interval, and on close. */
+		INTERVAL
+	}
+
+	private int bufferSize = DEFAULT_BUFFER_SIZE;
+	private long flushMillis = DEFAULT_FLUSH_MILLIS;
+	private Sync sync = Sync.CLOSE;
+	private long syncMillis = 0L;
+
+	public WritePolicy() {
+		super();
+	}
+
+	/**
+	 * @param spec comma separated settings, see the class description
+	 */
+	public static WritePolicy parse(String spec) {
+		WritePolicy policy = new WritePolicy();
+		for ( String setting : StringUtils.split(spec, ',') ) {
+			String[] pair = StringUtils.split(setting, "=", 2);
+			if ( pair.length != 2 ) {
+				throw new IllegalArgumentException("Write setting '" + setting + "' is not name=value.");
+			}
+			String name = pair[0].trim().toLowerCase();
+			String value = pair[1].trim().toLowerCase();
+			if ( name.equals("buffer") ) {
+				policy.setBufferSize(parseBytes(value));
+			}
+			else if ( name.equals("flush") ) {
+				policy.setFlushMillis(TimeUnit.SECONDS.toMillis(Long.parseLong(value)));
+			}
+			else if ( name.equals("fsync") ) {
+				if ( value.equals("never") ) {
+					policy.setSync(Sync.NEVER, 0L);
+				}
+				else if ( value.equals("close") ) {
+					policy.setSync(Sync.CLOSE, 0L);
+				}
+				else if ( value.equals("flush") ) {
+					policy.setSync(Sync.FLUSH, 0L);
+				}
+				else {
+					policy.setSync(Sync.INTERVAL, TimeUnit.SECONDS.toMillis(Long.parseLong(value)));
+				}
+			}
+			else {
+				throw new IllegalArgumentException("Unknown write setting '" + name + "'.");
+			}
+		}
+		return policy;
+	}
+
+	private static int parseBytes(String value) {
+		long multiplier = 1L;
+		if ( value.endsWith("k") ) {
+			multiplier = 1024L;
+		}
+		else if ( value.endsWith("m") ) {
+			multiplier = 1024L * 1024L;
+		}
+		String number = multiplier == 1L ? value : value.substring(0, value.length() - 1);
+		long bytes = Long.parseLong(number.trim()) * multiplier;
+		if ( bytes > Integer.MAX_VALUE ) {
+			throw new IllegalArgumentException("Write buffer '" + value + "' is too large.");
+		}
+		return (int) bytes;
+	}
+
+	/**
+	 * @return bytes written at a time, a whole number of pages
+	 */
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	public void setBufferSize(int bufferSize) {
+		if ( bufferSize < 1 ) {
+			throw new IllegalArgumentException("Invalid write buffer size " + bufferSize + ".");
+		}
+		this.bufferSize = (bufferSize + PAGE_SIZE - 1) / PAGE_SIZE * PAGE_SIZE;
+	}
+
+	/**
+	 * @return how long data may wait in the buffer, 0 to only write full buffers
+	 */
+	public long getFlushMillis() {
+		return flushMillis;
+	}
+
+	public void setFlushMillis(long flushMillis) {
+		if ( flushMillis < 0 ) {
+			throw new IllegalArgumentException("Invalid flush interval " + flushMillis + "ms.");
+		}
+		this.flushMillis = flushMillis;
+	}
+
+	public Sync getSync() {
+		return sync;
+	}
+
+	/**
+	 * @return time between syncs with {@link Sync#INTERVAL}
+	 */
+	public long getSyncMillis() {
+		return syncMillis;
+	}
+
+	public void setSync(Sync sync, long syncMillis) {
+		if ( sync == Sync.INTERVAL && syncMillis <= 0 ) {
+			throw new IllegalArgumentException("Invalid fsync interval " + syncMillis + "ms.");
+		}
+		this.sync = sync;
+		this.syncMillis = syncMillis;
+	}
+
+	@Override
+	public String toString() {
+		return "WritePolicy [buffer=" + bufferSize
+				+ ", flush=" + flushMillis + "ms"
+				+ ", fsync=" + (sync == Sync.INTERVAL ? syncMillis + "ms" : sync.name().toLowerCase()) + "]";
+	}
+}